@@ -1,6 +1,8 @@
 package com.basrikahveci.p2p;
 
 import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.network.codec.WireFormat;
+import com.basrikahveci.p2p.peer.service.MembershipMode;
 import com.google.common.base.Charsets;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -84,6 +86,209 @@ public class Main {
             public void setIntValue(int val, Config config) {
                 config.setLeaderRejectionTimeoutSeconds(val);
             }
+        },
+
+        COMPRESSION_THRESHOLD_BYTES("compressionThresholdBytes") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setCompressionThresholdBytes(val);
+            }
+        },
+
+        CHUNK_COMPRESSION_ENABLED("chunkCompressionEnabled") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setChunkCompressionEnabled(Boolean.parseBoolean(val.trim()));
+            }
+        },
+
+        WIRE_FORMAT("wireFormat") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setWireFormat(WireFormat.valueOf(val.trim().toUpperCase()));
+            }
+        },
+
+        NATIVE_TRANSPORT_ENABLED("nativeTransportEnabled") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setNativeTransportEnabled(Boolean.parseBoolean(val.trim()));
+            }
+        },
+
+        ACCEPTOR_COUNT("acceptorCount") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setAcceptorCount(val);
+            }
+        },
+
+        ACCEPT_BACKLOG("acceptBacklog") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setAcceptBacklog(val);
+            }
+        },
+
+        FILE_CHUNK_SIZE_BYTES("fileChunkSizeBytes") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setFileChunkSizeBytes(val);
+            }
+        },
+
+        FILE_TRANSFER_WINDOW_SIZE("fileTransferWindowSize") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setFileTransferWindowSize(val);
+            }
+        },
+
+        DOWNLOAD_DIRECTORY("downloadDirectory") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setDownloadDirectory(val.trim());
+            }
+        },
+
+        DISK_IO_THREADS("diskIoThreads") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setDiskIoThreads(val);
+            }
+        },
+
+        DISK_IO_QUEUE_SIZE("diskIoQueueSize") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setDiskIoQueueSize(val);
+            }
+        },
+
+        TRANSFER_RESUME_TIMEOUT_SECONDS("transferResumeTimeoutSeconds") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setTransferResumeTimeoutSeconds(val);
+            }
+        },
+
+        SWARM_REQUEST_TIMEOUT_SECONDS("swarmRequestTimeoutSeconds") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setSwarmRequestTimeoutSeconds(val);
+            }
+        },
+
+        SWARM_MAX_PIPELINE_DEPTH("swarmMaxPipelineDepth") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setSwarmMaxPipelineDepth(val);
+            }
+        },
+
+        DELTA_TRANSFER_ENABLED("deltaTransferEnabled") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setDeltaTransferEnabled(Boolean.parseBoolean(val.trim()));
+            }
+        },
+
+        DELTA_CHUNK_SIZE_BYTES("deltaChunkSizeBytes") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setDeltaChunkSizeBytes(val);
+            }
+        },
+
+        HASHING_THREADS("hashingThreads") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setHashingThreads(val);
+            }
+        },
+
+        WRITE_BUFFER_HIGH_WATER_MARK_BYTES("writeBufferHighWaterMarkBytes") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setWriteBufferHighWaterMarkBytes(val);
+            }
+        },
+
+        WRITE_BUFFER_LOW_WATER_MARK_BYTES("writeBufferLowWaterMarkBytes") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setWriteBufferLowWaterMarkBytes(val);
+            }
+        },
+
+        MAX_PENDING_WRITE_COUNT("maxPendingWriteCount") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setMaxPendingWriteCount(val);
+            }
+        },
+
+        SLOW_CONNECTION_TIMEOUT_SECONDS("slowConnectionTimeoutSeconds") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setSlowConnectionTimeoutSeconds(val);
+            }
+        },
+
+        GLOBAL_BANDWIDTH_LIMIT_BYTES_PER_SECOND("globalBandwidthLimitBytesPerSecond") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setGlobalBandwidthLimitBytesPerSecond(val);
+            }
+        },
+
+        PEER_BANDWIDTH_LIMIT_BYTES_PER_SECOND("peerBandwidthLimitBytesPerSecond") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setPeerBandwidthLimitBytesPerSecond(val);
+            }
+        },
+
+        DATA_CHANNEL_ENABLED("dataChannelEnabled") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setDataChannelEnabled(Boolean.parseBoolean(val.trim()));
+            }
+        },
+
+        MEMBERSHIP_MODE("membershipMode") {
+            @Override
+            public void setValue(String val, Config config) {
+                config.setMembershipMode(MembershipMode.valueOf(val.trim().toUpperCase()));
+            }
+        },
+
+        PONG_BATCH_WINDOW_MILLIS("pongBatchWindowMillis") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setPongBatchWindowMillis(val);
+            }
+        },
+
+        MAX_PONG_BATCH_SIZE("maxPongBatchSize") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setMaxPongBatchSize(val);
+            }
+        },
+
+        PEER_DIRECTORY_TTL_SECONDS("peerDirectoryTtlSeconds") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setPeerDirectoryTtlSeconds(val);
+            }
+        },
+
+        PEER_DIRECTORY_REFRESH_SECONDS("peerDirectoryRefreshSeconds") {
+            @Override
+            public void setIntValue(int val, Config config) {
+                config.setPeerDirectoryRefreshSeconds(val);
+            }
         };
 
         public static ConfigProperty byPropertyName(final String propertyName) {
@@ -102,7 +307,13 @@ public class Main {
             this.propertyName = propertyName;
         }
 
-        public abstract void setIntValue(final int val, final Config config);
+        public void setValue(final String val, final Config config) {
+            setIntValue(Integer.parseInt(val.trim()), config);
+        }
+
+        public void setIntValue(final int val, final Config config) {
+            throw new IllegalArgumentException("Config property " + propertyName + " does not accept int values");
+        }
 
     }
 
@@ -178,8 +389,7 @@ public class Main {
         fileInputStream.close();
         for (String propertyName : properties.stringPropertyNames()) {
             final ConfigProperty configProperty = ConfigProperty.byPropertyName(propertyName);
-            final int val = Integer.parseInt(properties.getProperty(propertyName));
-            configProperty.setIntValue(val, config);
+            configProperty.setValue(properties.getProperty(propertyName), config);
         }
     }
 
@@ -191,7 +401,7 @@ public class Main {
         System.out.println(
                 "############################################## COMMANDS ###############################################");
         System.out.println(
-                "# 1) ping                       >>> Lists peers in the network                                        #");
+                "# 1) ping [count] [quietMillis] >>> Lists peers, completing at count peers or after quiet millis       #");
         System.out.println(
                 "# 2) leave                      >>> Leaves the network                                                #");
         System.out.println(
@@ -202,6 +412,18 @@ public class Main {
                 "# 5) sendfile peerName filepath >>> Send file to the specified peer                                   #");
         System.out.println(
                 "# 6) election                   >>> Starts a new leader election                                      #");
+        System.out.println(
+                "# 7) stats                      >>> Prints message write and flush counters of connections            #");
+        System.out.println(
+                "# 8) share filepath             >>> Shares the file with its content hash                             #");
+        System.out.println(
+                "# 9) download hash [fileName]   >>> Downloads the file with the content hash from all neighbours      #");
+        System.out.println(
+                "# 10) bandwidth [peer] bytes    >>> Limits bulk traffic in bytes/sec globally or to the given peer    #");
+        System.out.println(
+                "# 11) broadcastfile filepath    >>> Sends the file to all peers in the network via the neighbours     #");
+        System.out.println(
+                "# 12) transfers                 >>> Prints progress, throughput and ack latency of file transfers     #");
         System.out.println(
                 "#######################################################################################################");
     }
@@ -2,13 +2,20 @@ package com.basrikahveci.p2p;
 
 import com.basrikahveci.p2p.peer.Config;
 import com.basrikahveci.p2p.peer.PeerHandle;
+import com.basrikahveci.p2p.peer.network.WriteStats;
+import com.basrikahveci.p2p.peer.service.TransferHandle;
+import com.basrikahveci.p2p.peer.service.TransferProgress;
+import com.basrikahveci.p2p.peer.service.TransferStats;
 import io.netty.channel.ChannelFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static com.basrikahveci.p2p.PeerRunner.CommandResult.INVALID_COMMAND;
 
@@ -37,6 +44,13 @@ public class PeerRunner {
         try {
             if (command.equals("ping")) {
                 handle.ping().whenComplete(new PingFutureListener());
+            } else if (command.startsWith("ping ")) {
+                // ping <expectedPeerCount> [quietPeriodMillis] logs each peer as it responds
+                final String[] tokens = command.trim().split(" +");
+                final int expectedPeerCount = Integer.parseInt(tokens[1]);
+                final long quietPeriodMillis = tokens.length > 2 ? Long.parseLong(tokens[2]) : 0;
+                handle.ping(peer -> LOGGER.info("DISCOVERED: {}", peer), expectedPeerCount, quietPeriodMillis)
+                        .getFuture().whenComplete(new PingFutureListener());
             } else if (command.equals("leave")) {
                 handle.leave().whenComplete(new LeaveFutureListener());
                 result = CommandResult.SHUT_DOWN;
@@ -48,6 +62,8 @@ public class PeerRunner {
             } else if (command.startsWith("disconnect ")) {
                 final String[] tokens = command.split(" ");
                 handle.disconnect(tokens[1]);
+            } else if (command.equals("stats")) {
+                handle.getTotalWriteStats().thenAcceptBoth(handle.getConnectionWriteStats(), new WriteStatsListener());
             } else if (command.equals("election")) {
                 handle.scheduleLeaderElection();
 
@@ -55,9 +71,32 @@ public class PeerRunner {
                 final String[] tokens = command.split(" ", 3);
                 final String targetPeer = tokens[1];
                 final String filePath = tokens[2];
-                handle.sendFileToPeer(targetPeer, filePath);
-
-
+                final TransferHandle transfer = handle.sendFileToPeer(targetPeer, filePath);
+                transfer.addProgressListener(new TransferProgressListener(filePath));
+                transfer.getFuture().whenComplete(new SendFileFutureListener(targetPeer, filePath));
+            } else if (command.equals("transfers")) {
+                handle.getTransferStats().thenAccept(new TransferStatsListener());
+            } else if (command.startsWith("share ")) {
+                final String filePath = command.substring("share ".length()).trim();
+                handle.shareFile(filePath).whenComplete(new ShareFileFutureListener(filePath));
+            } else if (command.startsWith("broadcastfile ")) {
+                final String filePath = command.substring("broadcastfile ".length()).trim();
+                handle.broadcastFile(filePath).whenComplete(new BroadcastFileFutureListener(filePath));
+            } else if (command.startsWith("bandwidth ")) {
+                // bandwidth <bytesPerSecond> sets the global limit and bandwidth <peer> <bytesPerSecond> a peer's limit
+                final String[] tokens = command.trim().split(" +");
+                if (tokens.length == 2) {
+                    handle.setGlobalBandwidthLimit(Long.parseLong(tokens[1]));
+                } else if (tokens.length == 3) {
+                    handle.setPeerBandwidthLimit(tokens[1], Long.parseLong(tokens[2]));
+                } else {
+                    result = INVALID_COMMAND;
+                }
+            } else if (command.startsWith("download ")) {
+                final String[] tokens = command.split(" ", 3);
+                final String contentHash = tokens[1];
+                final String fileName = tokens.length > 2 ? tokens[2].trim() : null;
+                handle.downloadFile(contentHash, fileName).whenComplete(new DownloadFileFutureListener(contentHash));
             } else {
                 result = INVALID_COMMAND;
             }
@@ -81,6 +120,132 @@ public class PeerRunner {
         }
     }
 
+    private static class WriteStatsListener implements BiConsumer<WriteStats, Map<String, WriteStats>> {
+
+        @Override
+        public void accept(WriteStats totalStats, Map<String, WriteStats> connectionStats) {
+            LOGGER.info("TOTAL WRITES: {}", totalStats);
+            for (Map.Entry<String, WriteStats> e : connectionStats.entrySet()) {
+                LOGGER.info("WRITES TO {}: {}", e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Logs the progress of a transfer at each tenth of the file
+     */
+    private static class TransferProgressListener implements Consumer<TransferProgress> {
+
+        private final String filePath;
+
+        private int loggedTenths = -1;
+
+        public TransferProgressListener(String filePath) {
+            this.filePath = filePath;
+        }
+
+        @Override
+        public void accept(TransferProgress progress) {
+            final int tenths = (int) (progress.getPercentage() / 10);
+            if (tenths > loggedTenths) {
+                loggedTenths = tenths;
+                LOGGER.info("SENDING {} TO {}: {}/{} BYTES ({}%), {} KB/s, ETA {} ms", filePath, progress.getPeerName(),
+                        progress.getAckedBytes(), progress.getFileSize(), String.format("%.1f", progress.getPercentage()),
+                        (long) (progress.getThroughputBytesPerSecond() / 1024), progress.getEtaMillis());
+            }
+        }
+    }
+
+    private static class TransferStatsListener implements Consumer<TransferStats> {
+
+        @Override
+        public void accept(TransferStats stats) {
+            for (TransferStats.Transfer transfer : stats.getTransfers()) {
+                LOGGER.info("{} {}: {}", transfer.isActive() ? "TRANSFER" : "FINISHED TRANSFER", transfer.getPath(),
+                        transfer.getProgress());
+                LOGGER.info("    THROUGHPUT (BYTES/S): {}", transfer.getThroughputHistogram());
+                LOGGER.info("    ACK LATENCY (US): {}", transfer.getAckLatencyHistogram());
+            }
+            LOGGER.info("TOTAL THROUGHPUT (BYTES/S): {}", stats.getThroughputHistogram());
+            LOGGER.info("TOTAL ACK LATENCY (US): {}", stats.getAckLatencyHistogram());
+        }
+    }
+
+    private static class SendFileFutureListener implements BiConsumer<Void, Throwable> {
+
+        private final String peerName;
+
+        private final String filePath;
+
+        public SendFileFutureListener(String peerName, String filePath) {
+            this.peerName = peerName;
+            this.filePath = filePath;
+        }
+
+        @Override
+        public void accept(Void result, Throwable throwable) {
+            if (throwable == null) {
+                LOGGER.info("SENT {} TO {}", filePath, peerName);
+            } else {
+                LOGGER.error("SENDING " + filePath + " TO " + peerName + " FAILED!", throwable);
+            }
+        }
+    }
+
+    private static class ShareFileFutureListener implements BiConsumer<String, Throwable> {
+
+        private final String filePath;
+
+        public ShareFileFutureListener(String filePath) {
+            this.filePath = filePath;
+        }
+
+        @Override
+        public void accept(String contentHash, Throwable throwable) {
+            if (throwable == null) {
+                LOGGER.info("SHARED {} AS {}", filePath, contentHash);
+            } else {
+                LOGGER.error("SHARING " + filePath + " FAILED!", throwable);
+            }
+        }
+    }
+
+    private static class BroadcastFileFutureListener implements BiConsumer<String, Throwable> {
+
+        private final String filePath;
+
+        public BroadcastFileFutureListener(String filePath) {
+            this.filePath = filePath;
+        }
+
+        @Override
+        public void accept(String contentHash, Throwable throwable) {
+            if (throwable == null) {
+                LOGGER.info("BROADCASTING {} AS {}", filePath, contentHash);
+            } else {
+                LOGGER.error("BROADCASTING " + filePath + " FAILED!", throwable);
+            }
+        }
+    }
+
+    private static class DownloadFileFutureListener implements BiConsumer<Path, Throwable> {
+
+        private final String contentHash;
+
+        public DownloadFileFutureListener(String contentHash) {
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        public void accept(Path path, Throwable throwable) {
+            if (throwable == null) {
+                LOGGER.info("DOWNLOADED {} TO {}", contentHash, path);
+            } else {
+                LOGGER.error("DOWNLOADING " + contentHash + " FAILED!", throwable);
+            }
+        }
+    }
+
     private static class LeaveFutureListener implements BiConsumer<Void, Throwable> {
 
         @Override
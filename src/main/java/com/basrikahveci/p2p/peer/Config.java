@@ -1,5 +1,8 @@
 package com.basrikahveci.p2p.peer;
 
+import com.basrikahveci.p2p.peer.network.codec.WireFormat;
+import com.basrikahveci.p2p.peer.service.MembershipMode;
+
 import java.util.concurrent.TimeUnit;
 
 public class Config {
@@ -16,16 +19,89 @@ public class Config {
 
     public static final int DEFAULT_PING_TTL = 7;
 
+    /**
+     * Ping and Pong messages carry their ttl in a single byte on the binary wire format
+     */
+    public static final int MAX_PING_TTL = 255;
+
     public static final int DEFAULT_LEADER_ELECTION_TIMEOUT_SECONDS = 5;
 
     public static final int DEFAULT_LEADER_REJECTION_TIMEOUT_SECONDS = 10;
 
+    public static final WireFormat DEFAULT_WIRE_FORMAT = WireFormat.BINARY;
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 4096;
+
+    public static final boolean DEFAULT_CHUNK_COMPRESSION_ENABLED = false;
+
+    public static final boolean DEFAULT_NATIVE_TRANSPORT_ENABLED = true;
+
+    public static final int DEFAULT_ACCEPTOR_COUNT = 1;
+
+    public static final int DEFAULT_ACCEPT_BACKLOG = 100;
+
+    public static final int DEFAULT_FILE_CHUNK_SIZE_BYTES = 64 * 1024;
+
+    public static final int DEFAULT_FILE_TRANSFER_WINDOW_SIZE = 8;
+
+    public static final String DEFAULT_DOWNLOAD_DIRECTORY = "received_files";
+
+    public static final int DEFAULT_DISK_IO_THREADS = 2;
+
+    public static final int DEFAULT_DISK_IO_QUEUE_SIZE = 1024;
+
+    public static final int DEFAULT_TRANSFER_RESUME_TIMEOUT_SECONDS = 300;
+
+    public static final int DEFAULT_SWARM_REQUEST_TIMEOUT_SECONDS = 10;
+
+    public static final int DEFAULT_SWARM_MAX_PIPELINE_DEPTH = 16;
+
+    public static final boolean DEFAULT_DELTA_TRANSFER_ENABLED = true;
+
+    public static final int DEFAULT_DELTA_CHUNK_SIZE_BYTES = 64 * 1024;
+
+    public static final int DEFAULT_HASHING_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK_BYTES = 1024 * 1024;
+
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK_BYTES = 512 * 1024;
+
+    public static final int DEFAULT_MAX_PENDING_WRITE_COUNT = 4096;
+
+    public static final int DEFAULT_SLOW_CONNECTION_TIMEOUT_SECONDS = 60;
+
+    public static final int DEFAULT_GLOBAL_BANDWIDTH_LIMIT_BYTES_PER_SECOND = 0;
+
+    public static final int DEFAULT_PEER_BANDWIDTH_LIMIT_BYTES_PER_SECOND = 0;
+
+    public static final boolean DEFAULT_DATA_CHANNEL_ENABLED = true;
+
+    public static final MembershipMode DEFAULT_MEMBERSHIP_MODE = MembershipMode.FLOODING;
+
+    public static final int DEFAULT_PONG_BATCH_WINDOW_MILLIS = 20;
+
+    public static final int DEFAULT_MAX_PONG_BATCH_SIZE = 64;
+
+    /**
+     * Pong batches carry the number of their pongs in an unsigned short on the binary wire format
+     */
+    public static final int MAX_PONG_BATCH_SIZE = 65535;
+
+    public static final int DEFAULT_PEER_DIRECTORY_TTL_SECONDS = 60;
+
+    public static final int DEFAULT_PEER_DIRECTORY_REFRESH_SECONDS = 20;
+
 
     /**
      * Name of the peer. It must be unique across the p2p network
      */
     private String peerName;
 
+    /**
+     * Numeric identifier of the peer derived from its name. It is used in place of the name in flooded messages
+     */
+    private long peerId;
+
     /**
      * When a peer has less number of connections than min number of active connections,
      * it pings other peers periodically and try to connect to new peers
@@ -71,12 +147,185 @@ public class Config {
      */
     private int leaderRejectionTimeoutSeconds = DEFAULT_LEADER_REJECTION_TIMEOUT_SECONDS;
 
+    /**
+     * Wire format that is offered to neighbours in handshakes. Connections fall back to Java serialization
+     * if the neighbour does not support the offered format.
+     */
+    private WireFormat wireFormat = DEFAULT_WIRE_FORMAT;
+
+    /**
+     * Frames of large message types, such as file contents, are compressed if their size exceeds this threshold
+     * and the neighbour supports compression. Compression is disabled if it is not positive.
+     */
+    private int compressionThresholdBytes = DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    /**
+     * Chunks of file transfers and swarm downloads are compressed if it is enabled and the neighbour supports
+     * compression. Compressed chunks are read into buffers on the disk I/O executor instead of being written to the
+     * socket directly from the file, so it only pays off for compressible files over slow links.
+     */
+    private boolean chunkCompressionEnabled = DEFAULT_CHUNK_COMPRESSION_ENABLED;
+
+    /**
+     * Native epoll transport is used instead of NIO if it is enabled and available on the platform
+     */
+    private boolean nativeTransportEnabled = DEFAULT_NATIVE_TRANSPORT_ENABLED;
+
+    /**
+     * Number of server sockets that accept incoming connections in parallel. Multiple sockets are bound to the same
+     * port with SO_REUSEPORT, which is only supported by the native transport.
+     */
+    private int acceptorCount = DEFAULT_ACCEPTOR_COUNT;
+
+    /**
+     * Maximum length of the queue of incoming connections waiting to be accepted by each server socket
+     */
+    private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+
+    /**
+     * Size of the chunks that files are streamed with. It is capped so that a chunk always fits into a single frame.
+     */
+    private int fileChunkSizeBytes = DEFAULT_FILE_CHUNK_SIZE_BYTES;
+
+    /**
+     * Maximum number of chunks of a file transfer that are sent but not acknowledged by the receiver yet
+     */
+    private int fileTransferWindowSize = DEFAULT_FILE_TRANSFER_WINDOW_SIZE;
+
+    /**
+     * Directory that the files received from other peers are saved into
+     */
+    private String downloadDirectory = DEFAULT_DOWNLOAD_DIRECTORY;
+
+    /**
+     * Number of threads that persist the received files. Disk I/O is kept off the peer event loop so that large
+     * files do not delay the other messages.
+     */
+    private int diskIoThreads = DEFAULT_DISK_IO_THREADS;
+
+    /**
+     * Maximum number of pending disk I/O tasks. A file transfer is aborted if its task can not be queued.
+     */
+    private int diskIoQueueSize = DEFAULT_DISK_IO_QUEUE_SIZE;
+
+    /**
+     * Outgoing file transfers of a closed connection are resumed if the connection to the receiver is established
+     * again within this duration. Otherwise, they fail.
+     */
+    private int transferResumeTimeoutSeconds = DEFAULT_TRANSFER_RESUME_TIMEOUT_SECONDS;
+
+    /**
+     * Seconds to wait for a chunk requested from a neighbour before requesting it from another neighbour
+     */
+    private int swarmRequestTimeoutSeconds = DEFAULT_SWARM_REQUEST_TIMEOUT_SECONDS;
+
+    /**
+     * Max number of chunks requested from a single neighbour at a time while downloading a file from multiple
+     * neighbours
+     */
+    private int swarmMaxPipelineDepth = DEFAULT_SWARM_MAX_PIPELINE_DEPTH;
+
+    /**
+     * Enables delta transfers, in which files are split into content-defined chunks and only the chunks that the
+     * receiver does not have in its chunk store are sent
+     */
+    private boolean deltaTransferEnabled = DEFAULT_DELTA_TRANSFER_ENABLED;
+
+    /**
+     * Average size of the content-defined chunks of delta transfers. It is rounded down to a power of two.
+     */
+    private int deltaChunkSizeBytes = DEFAULT_DELTA_CHUNK_SIZE_BYTES;
+
+    /**
+     * Parallelism of the fork-join pool that hashes the files sent and verifies the chunks received against the
+     * Merkle root of their file
+     */
+    private int hashingThreads = DEFAULT_HASHING_THREADS;
+
+    /**
+     * Once more bytes are waiting to be sent to a neighbour, the connection becomes unwritable. Keep-alives and
+     * pings to the neighbour are dropped and file contents are held back until the waiting bytes drop below the low
+     * watermark.
+     */
+    private int writeBufferHighWaterMarkBytes = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK_BYTES;
+
+    /**
+     * An unwritable connection becomes writable again once fewer bytes are waiting to be sent to the neighbour. It
+     * must not be greater than the high watermark.
+     */
+    private int writeBufferLowWaterMarkBytes = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK_BYTES;
+
+    /**
+     * Max number of messages held back for an unwritable connection. The connection is closed if the neighbour is so
+     * slow that more messages are waiting.
+     */
+    private int maxPendingWriteCount = DEFAULT_MAX_PENDING_WRITE_COUNT;
+
+    /**
+     * A connection that is not writable for longer than this duration is closed. It is disabled if it is not
+     * positive.
+     */
+    private int slowConnectionTimeoutSeconds = DEFAULT_SLOW_CONNECTION_TIMEOUT_SECONDS;
+
+    /**
+     * Max rate of the file contents sent by this peer to all neighbours. Control messages are not limited. It is
+     * unlimited if it is not positive and it can be changed at runtime.
+     */
+    private int globalBandwidthLimitBytesPerSecond = DEFAULT_GLOBAL_BANDWIDTH_LIMIT_BYTES_PER_SECOND;
+
+    /**
+     * Max rate of the file contents sent by this peer to each neighbour, unless a limit is set for the neighbour at
+     * runtime. It is unlimited if it is not positive.
+     */
+    private int peerBandwidthLimitBytesPerSecond = DEFAULT_PEER_BANDWIDTH_LIMIT_BYTES_PER_SECOND;
+
+    /**
+     * Sends file contents and transfer messages over a second connection to each neighbour that supports it, so that
+     * they do not delay the control messages
+     */
+    private boolean dataChannelEnabled = DEFAULT_DATA_CHANNEL_ENABLED;
+
+    /**
+     * Protocol used to learn about the other peers in the network and to find peers to connect to
+     */
+    private MembershipMode membershipMode = DEFAULT_MEMBERSHIP_MODE;
+
+    /**
+     * Duration that a peer collects the pongs of a ping initiated by another peer before forwarding them towards the
+     * initiator in a single message. Pongs are forwarded one by one if it is 0.
+     */
+    private int pongBatchWindowMillis = DEFAULT_PONG_BATCH_WINDOW_MILLIS;
+
+    /**
+     * Maximum number of pongs forwarded in a single message. Collected pongs are forwarded immediately once there
+     * are this many of them, or once their encoded length approaches the maximum frame length.
+     */
+    private int maxPongBatchSize = DEFAULT_MAX_PONG_BATCH_SIZE;
+
+    /**
+     * Peers that are not seen in any Pong message for this duration are evicted from the peer directory. Ping
+     * commands are answered from the directory while it is refreshed by a discovery ping within this duration. 0
+     * disables the directory, so that each ping command floods the network.
+     */
+    private int peerDirectoryTtlSeconds = DEFAULT_PEER_DIRECTORY_TTL_SECONDS;
+
+    /**
+     * Peer directory is refreshed with a discovery ping in the background once its last refresh is older than this
+     * duration. Auto-connect decisions are taken from the directory without a new discovery ping until then.
+     */
+    private int peerDirectoryRefreshSeconds = DEFAULT_PEER_DIRECTORY_REFRESH_SECONDS;
+
     public String getPeerName() {
         return peerName;
     }
 
     public void setPeerName(String peerName) {
         this.peerName = peerName;
+        this.peerId = peerName != null ? PeerIds.of(peerName) : 0;
+    }
+
+    public long getPeerId() {
+        return peerId;
     }
 
     public int getMinNumberOfActiveConnections() {
@@ -120,6 +369,9 @@ public class Config {
     }
 
     public void setPingTTL(int pingTTL) {
+        if (pingTTL < 0 || pingTTL > MAX_PING_TTL) {
+            throw new IllegalArgumentException("pingTTL must be between 0 and " + MAX_PING_TTL + ": " + pingTTL);
+        }
         this.pingTTL = pingTTL;
     }
 
@@ -147,6 +399,242 @@ public class Config {
         this.leaderRejectionTimeoutSeconds = leaderRejectionTimeoutSeconds;
     }
 
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    public int getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    public void setCompressionThresholdBytes(int compressionThresholdBytes) {
+        this.compressionThresholdBytes = compressionThresholdBytes;
+    }
+
+    public boolean isChunkCompressionEnabled() {
+        return chunkCompressionEnabled;
+    }
+
+    public void setChunkCompressionEnabled(boolean chunkCompressionEnabled) {
+        this.chunkCompressionEnabled = chunkCompressionEnabled;
+    }
+
+    public boolean isNativeTransportEnabled() {
+        return nativeTransportEnabled;
+    }
+
+    public void setNativeTransportEnabled(boolean nativeTransportEnabled) {
+        this.nativeTransportEnabled = nativeTransportEnabled;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    public void setAcceptorCount(int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getFileChunkSizeBytes() {
+        return fileChunkSizeBytes;
+    }
+
+    public void setFileChunkSizeBytes(int fileChunkSizeBytes) {
+        this.fileChunkSizeBytes = fileChunkSizeBytes;
+    }
+
+    public int getFileTransferWindowSize() {
+        return fileTransferWindowSize;
+    }
+
+    public void setFileTransferWindowSize(int fileTransferWindowSize) {
+        this.fileTransferWindowSize = fileTransferWindowSize;
+    }
+
+    public String getDownloadDirectory() {
+        return downloadDirectory;
+    }
+
+    public void setDownloadDirectory(String downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    public int getDiskIoThreads() {
+        return diskIoThreads;
+    }
+
+    public void setDiskIoThreads(int diskIoThreads) {
+        this.diskIoThreads = diskIoThreads;
+    }
+
+    public int getDiskIoQueueSize() {
+        return diskIoQueueSize;
+    }
+
+    public void setDiskIoQueueSize(int diskIoQueueSize) {
+        this.diskIoQueueSize = diskIoQueueSize;
+    }
+
+    public int getTransferResumeTimeoutSeconds() {
+        return transferResumeTimeoutSeconds;
+    }
+
+    public void setTransferResumeTimeoutSeconds(int transferResumeTimeoutSeconds) {
+        this.transferResumeTimeoutSeconds = transferResumeTimeoutSeconds;
+    }
+
+    public int getSwarmRequestTimeoutSeconds() {
+        return swarmRequestTimeoutSeconds;
+    }
+
+    public void setSwarmRequestTimeoutSeconds(int swarmRequestTimeoutSeconds) {
+        this.swarmRequestTimeoutSeconds = swarmRequestTimeoutSeconds;
+    }
+
+    public int getSwarmMaxPipelineDepth() {
+        return swarmMaxPipelineDepth;
+    }
+
+    public void setSwarmMaxPipelineDepth(int swarmMaxPipelineDepth) {
+        this.swarmMaxPipelineDepth = swarmMaxPipelineDepth;
+    }
+
+    public boolean isDeltaTransferEnabled() {
+        return deltaTransferEnabled;
+    }
+
+    public void setDeltaTransferEnabled(boolean deltaTransferEnabled) {
+        this.deltaTransferEnabled = deltaTransferEnabled;
+    }
+
+    public int getDeltaChunkSizeBytes() {
+        return deltaChunkSizeBytes;
+    }
+
+    public void setDeltaChunkSizeBytes(int deltaChunkSizeBytes) {
+        this.deltaChunkSizeBytes = deltaChunkSizeBytes;
+    }
+
+    public int getHashingThreads() {
+        return hashingThreads;
+    }
+
+    public void setHashingThreads(int hashingThreads) {
+        this.hashingThreads = hashingThreads;
+    }
+
+    public int getWriteBufferHighWaterMarkBytes() {
+        return writeBufferHighWaterMarkBytes;
+    }
+
+    public void setWriteBufferHighWaterMarkBytes(int writeBufferHighWaterMarkBytes) {
+        this.writeBufferHighWaterMarkBytes = writeBufferHighWaterMarkBytes;
+    }
+
+    public int getWriteBufferLowWaterMarkBytes() {
+        return writeBufferLowWaterMarkBytes;
+    }
+
+    public void setWriteBufferLowWaterMarkBytes(int writeBufferLowWaterMarkBytes) {
+        this.writeBufferLowWaterMarkBytes = writeBufferLowWaterMarkBytes;
+    }
+
+    public int getMaxPendingWriteCount() {
+        return maxPendingWriteCount;
+    }
+
+    public void setMaxPendingWriteCount(int maxPendingWriteCount) {
+        this.maxPendingWriteCount = maxPendingWriteCount;
+    }
+
+    public int getSlowConnectionTimeoutSeconds() {
+        return slowConnectionTimeoutSeconds;
+    }
+
+    public void setSlowConnectionTimeoutSeconds(int slowConnectionTimeoutSeconds) {
+        this.slowConnectionTimeoutSeconds = slowConnectionTimeoutSeconds;
+    }
+
+    public int getGlobalBandwidthLimitBytesPerSecond() {
+        return globalBandwidthLimitBytesPerSecond;
+    }
+
+    public void setGlobalBandwidthLimitBytesPerSecond(int globalBandwidthLimitBytesPerSecond) {
+        this.globalBandwidthLimitBytesPerSecond = globalBandwidthLimitBytesPerSecond;
+    }
+
+    public int getPeerBandwidthLimitBytesPerSecond() {
+        return peerBandwidthLimitBytesPerSecond;
+    }
+
+    public void setPeerBandwidthLimitBytesPerSecond(int peerBandwidthLimitBytesPerSecond) {
+        this.peerBandwidthLimitBytesPerSecond = peerBandwidthLimitBytesPerSecond;
+    }
+
+    public boolean isDataChannelEnabled() {
+        return dataChannelEnabled;
+    }
+
+    public void setDataChannelEnabled(boolean dataChannelEnabled) {
+        this.dataChannelEnabled = dataChannelEnabled;
+    }
+
+    public MembershipMode getMembershipMode() {
+        return membershipMode;
+    }
+
+    public void setMembershipMode(MembershipMode membershipMode) {
+        this.membershipMode = membershipMode;
+    }
+
+    public int getPongBatchWindowMillis() {
+        return pongBatchWindowMillis;
+    }
+
+    public void setPongBatchWindowMillis(int pongBatchWindowMillis) {
+        this.pongBatchWindowMillis = pongBatchWindowMillis;
+    }
+
+    public int getMaxPongBatchSize() {
+        return maxPongBatchSize;
+    }
+
+    public void setMaxPongBatchSize(int maxPongBatchSize) {
+        if (maxPongBatchSize < 1 || maxPongBatchSize > MAX_PONG_BATCH_SIZE) {
+            throw new IllegalArgumentException("maxPongBatchSize must be between 1 and " + MAX_PONG_BATCH_SIZE + ": "
+                    + maxPongBatchSize);
+        }
+        this.maxPongBatchSize = maxPongBatchSize;
+    }
+
+    public int getPeerDirectoryTtlSeconds() {
+        return peerDirectoryTtlSeconds;
+    }
+
+    public void setPeerDirectoryTtlSeconds(int peerDirectoryTtlSeconds) {
+        this.peerDirectoryTtlSeconds = peerDirectoryTtlSeconds;
+    }
+
+    public int getPeerDirectoryRefreshSeconds() {
+        return peerDirectoryRefreshSeconds;
+    }
+
+    public void setPeerDirectoryRefreshSeconds(int peerDirectoryRefreshSeconds) {
+        this.peerDirectoryRefreshSeconds = peerDirectoryRefreshSeconds;
+    }
+
     @Override
     public String toString() {
         return "Config{" +
@@ -159,6 +647,35 @@ public class Config {
                 ", autoDiscoveryPingFrequency=" + autoDiscoveryPingFrequency +
                 ", leaderElectionTimeoutSeconds=" + leaderElectionTimeoutSeconds +
                 ", leaderRejectionTimeoutSeconds=" + leaderRejectionTimeoutSeconds +
+                ", wireFormat=" + wireFormat +
+                ", compressionThresholdBytes=" + compressionThresholdBytes +
+                ", chunkCompressionEnabled=" + chunkCompressionEnabled +
+                ", nativeTransportEnabled=" + nativeTransportEnabled +
+                ", acceptorCount=" + acceptorCount +
+                ", acceptBacklog=" + acceptBacklog +
+                ", fileChunkSizeBytes=" + fileChunkSizeBytes +
+                ", fileTransferWindowSize=" + fileTransferWindowSize +
+                ", downloadDirectory='" + downloadDirectory + '\'' +
+                ", diskIoThreads=" + diskIoThreads +
+                ", diskIoQueueSize=" + diskIoQueueSize +
+                ", transferResumeTimeoutSeconds=" + transferResumeTimeoutSeconds +
+                ", swarmRequestTimeoutSeconds=" + swarmRequestTimeoutSeconds +
+                ", swarmMaxPipelineDepth=" + swarmMaxPipelineDepth +
+                ", deltaTransferEnabled=" + deltaTransferEnabled +
+                ", deltaChunkSizeBytes=" + deltaChunkSizeBytes +
+                ", hashingThreads=" + hashingThreads +
+                ", writeBufferHighWaterMarkBytes=" + writeBufferHighWaterMarkBytes +
+                ", writeBufferLowWaterMarkBytes=" + writeBufferLowWaterMarkBytes +
+                ", maxPendingWriteCount=" + maxPendingWriteCount +
+                ", slowConnectionTimeoutSeconds=" + slowConnectionTimeoutSeconds +
+                ", globalBandwidthLimitBytesPerSecond=" + globalBandwidthLimitBytesPerSecond +
+                ", peerBandwidthLimitBytesPerSecond=" + peerBandwidthLimitBytesPerSecond +
+                ", dataChannelEnabled=" + dataChannelEnabled +
+                ", membershipMode=" + membershipMode +
+                ", pongBatchWindowMillis=" + pongBatchWindowMillis +
+                ", maxPongBatchSize=" + maxPongBatchSize +
+                ", peerDirectoryTtlSeconds=" + peerDirectoryTtlSeconds +
+                ", peerDirectoryRefreshSeconds=" + peerDirectoryRefreshSeconds +
                 '}';
     }
 }
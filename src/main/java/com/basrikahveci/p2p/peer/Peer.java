@@ -1,21 +1,53 @@
 package com.basrikahveci.p2p.peer;
 
 import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.WriteStats;
 import com.basrikahveci.p2p.peer.network.message.FileMessage;
+import com.basrikahveci.p2p.peer.network.message.Handshake;
+import com.basrikahveci.p2p.peer.network.message.membership.MemberUpdate;
+import com.basrikahveci.p2p.peer.network.message.membership.MembershipGossip;
+import com.basrikahveci.p2p.peer.network.message.membership.Probe;
+import com.basrikahveci.p2p.peer.network.message.membership.ProbeAck;
+import com.basrikahveci.p2p.peer.network.message.membership.ProbeRequest;
 import com.basrikahveci.p2p.peer.network.message.ping.CancelPongs;
 import com.basrikahveci.p2p.peer.network.message.ping.Ping;
 import com.basrikahveci.p2p.peer.network.message.ping.Pong;
+import com.basrikahveci.p2p.peer.network.message.ping.PongBatch;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkData;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashes;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashesRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkMap;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkMapRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkReject;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.FileBroadcast;
+import com.basrikahveci.p2p.peer.network.message.swarm.Have;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferAbort;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferAck;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferChunk;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferComplete;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOffer;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOfferReply;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOpen;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferRewind;
 import com.basrikahveci.p2p.peer.service.ConnectionService;
+import com.basrikahveci.p2p.peer.service.FileTransferService;
 import com.basrikahveci.p2p.peer.service.LeadershipService;
+import com.basrikahveci.p2p.peer.service.MembershipMode;
+import com.basrikahveci.p2p.peer.service.MembershipService;
+import com.basrikahveci.p2p.peer.service.PeerDirectory;
+import com.basrikahveci.p2p.peer.service.PingHandle;
 import com.basrikahveci.p2p.peer.service.PingService;
+import com.basrikahveci.p2p.peer.service.SwarmService;
+import com.basrikahveci.p2p.peer.service.TrafficShaper;
+import com.basrikahveci.p2p.peer.service.TransferHandle;
+import com.basrikahveci.p2p.peer.service.TransferStats;
 import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.io.IOException;
 
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
@@ -35,15 +67,31 @@ public class Peer {
 
     private final LeadershipService leadershipService;
 
+    private final FileTransferService fileTransferService;
+
+    private final SwarmService swarmService;
+
+    private final TrafficShaper trafficShaper;
+
+    private final MembershipService membershipService;
+
     private Channel bindChannel;
 
     private boolean running = true;
 
-    public Peer(Config config, ConnectionService connectionService, PingService pingService, LeadershipService leadershipService) {
+    public Peer(Config config, ConnectionService connectionService, PingService pingService, LeadershipService leadershipService,
+                FileTransferService fileTransferService, SwarmService swarmService, TrafficShaper trafficShaper,
+                MembershipService membershipService) {
         this.config = config;
         this.connectionService = connectionService;
         this.pingService = pingService;
         this.leadershipService = leadershipService;
+        this.fileTransferService = fileTransferService;
+        this.swarmService = swarmService;
+        this.trafficShaper = trafficShaper;
+        this.membershipService = membershipService;
+        trafficShaper.setListener(this::handleConnectionWritable);
+        pingService.setOwnPingListener(this::handleOwnPingTimeout);
     }
 
     public void handleConnectionOpened(Connection connection, String leaderName) {
@@ -59,6 +107,14 @@ public class Peer {
         }
 
         connectionService.addConnection(connection);
+        if (config.isDataChannelEnabled() && connection.hasCapability(Handshake.DATA_CHANNEL_CAPABILITY)) {
+            connection.enableDataChannel(() -> connectionService.openDataChannel(this, connection));
+        }
+        fileTransferService.handleConnectionOpened(connection);
+        swarmService.handleConnectionOpened(connection);
+        if (isSwimEnabled()) {
+            membershipService.handleConnectionOpened(connection);
+        }
         if (leaderName != null) {
             final String currentLeaderName = leadershipService.getLeaderName();
             if (currentLeaderName == null) {
@@ -68,6 +124,7 @@ public class Peer {
                 leadershipService.scheduleElection();
             }
         }
+        pingService.getPeerDirectory().handleConnectionOpened(connection.getPeerId());
         pingService.propagatePingsToNewConnection(connection);
     }
 
@@ -82,8 +139,14 @@ public class Peer {
         }
 
         if (connectionService.removeConnection(connection)) {
-            cancelPings(connection, connectionPeerName);
-            cancelPongs(connectionPeerName);
+            cancelPings(connection, connection.getPeerId());
+            cancelPongs(connection.getPeerId());
+            fileTransferService.handleConnectionClosed(connection);
+            swarmService.handleConnectionClosed(connection);
+            trafficShaper.handleConnectionClosed(connection);
+            if (isSwimEnabled()) {
+                membershipService.handleConnectionClosed(connection);
+            }
         }
 
         if (connectionPeerName.equals(leadershipService.getLeaderName())) {
@@ -91,23 +154,76 @@ public class Peer {
             leadershipService.scheduleElection();
         }
     }
-    public void handleFileMessage(Connection connection, FileMessage fileMessage) {
-    LOGGER.info("Received file: {}", fileMessage.getFileName());
+    /**
+     * Called when a neighbour asks this peer to open the data channel of their connection
+     */
+    public void handleDataChannelRequest(final Connection connection) {
+        if (isShutdown() || connectionService.getConnection(connection.getPeerId()) != connection) {
+            return;
+        }
 
-    try {
-        Files.write(Paths.get("received_" + fileMessage.getFileName()), fileMessage.getFileContent());
-        LOGGER.info("File {} saved successfully.", fileMessage.getFileName());
-    } catch (IOException e) {
-        LOGGER.error("Error saving the file: {}", e.getMessage());
+        connection.openDataChannel();
     }
-}
 
+    /**
+     * Called when the handshake of a data channel is received. The channel is bound to the connection of the neighbour
+     * that has sent the handshake, or closed if there is no such connection expecting a data channel.
+     *
+     * @param channelConnection connection created for the new channel
+     * @param handshake         handshake received from the channel
+     */
+    public void handleDataChannelOpened(final Connection channelConnection, final Handshake handshake) {
+        final Connection connection = isShutdown() ? null : connectionService.getConnection(handshake.getPeerName());
+        if (connection != null && connection.bindDataChannel(channelConnection)) {
+            LOGGER.info("Data channel of {} is opened", connection);
+            handleConnectionWritable(connection);
+        } else {
+            LOGGER.warn("Closing data channel {} of {} since there is no connection expecting it",
+                    channelConnection.getRemoteAddress(), handshake.getPeerName());
+            channelConnection.close();
+        }
+    }
+
+    /**
+     * Called once file contents can be sent to a connection again, i.e., its write buffer is drained below the low
+     * watermark or its bandwidth limit is refilled
+     */
+    public void handleConnectionWritable(final Connection connection) {
+        if (isShutdown() || connection.getPeerName() == null
+                || connectionService.getConnection(connection.getPeerId()) != connection) {
+            return;
+        }
+
+        fileTransferService.handleConnectionWritable(connection);
+        swarmService.handleConnectionWritable(connection);
+    }
+
+    public void setGlobalBandwidthLimit(final long bytesPerSecond) {
+        trafficShaper.setGlobalLimit(bytesPerSecond);
+    }
+
+    public void setPeerBandwidthLimit(final String peerName, final long bytesPerSecond) {
+        trafficShaper.setPeerLimit(peerName, bytesPerSecond);
+    }
+
+    public void setDefaultPeerBandwidthLimit(final long bytesPerSecond) {
+        trafficShaper.setDefaultPeerLimit(bytesPerSecond);
+    }
+
+    public void handleFileMessage(final Connection connection, final FileMessage fileMessage) {
+        if (isShutdown()) {
+            LOGGER.warn("File {} of {} ignored since not running", fileMessage.getFileName(), connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleFileMessage(connection, fileMessage);
+    }
 
-    public void cancelPings(final Connection connection, final String removedPeerName) {
+    public void cancelPings(final Connection connection, final long removedPeerId) {
         if (running) {
-            pingService.cancelPings(connection, removedPeerName);
+            pingService.cancelPings(connection, removedPeerId);
         } else {
-            LOGGER.warn("Pings of {} can't be cancelled since not running", removedPeerName);
+            LOGGER.warn("Pings of {} can't be cancelled since not running", PeerIds.toString(removedPeerId));
         }
     }
 
@@ -126,22 +242,244 @@ public class Peer {
             LOGGER.warn("Pong of {} is ignored since not running", connection.getPeerName());
         }
     }
-    public void sendFileMessage(String peerName, FileMessage fileMessage) {
-    if (isShutdown()) {
-        LOGGER.warn("Cannot send file message since the peer is not running.");
-        return;
+
+    public void handleProbe(final Connection connection, final Probe probe) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", probe, connection.getPeerName());
+            return;
+        }
+
+        membershipService.handleProbe(connection, probe);
     }
 
-    Connection connection = connectionService.getConnection(peerName);
+    public void handleProbeAck(final Connection connection, final ProbeAck ack) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", ack, connection.getPeerName());
+            return;
+        }
 
-    if (connection == null) {
-        LOGGER.error("No connection found for peer {}", peerName);
-        return;
+        membershipService.handleProbeAck(connection, ack);
     }
 
-    connection.send(fileMessage);
-    LOGGER.info("File message sent to peer {}", peerName);
-}
+    public void handleProbeRequest(final Connection connection, final ProbeRequest request) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", request, connection.getPeerName());
+            return;
+        }
+
+        membershipService.handleProbeRequest(connection, request);
+    }
+
+    public void handleMembershipGossip(final Connection connection, final MembershipGossip gossip) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", gossip, connection.getPeerName());
+            return;
+        }
+
+        membershipService.handleMembershipGossip(gossip);
+    }
+
+    public void handlePongBatch(final Connection connection, final PongBatch batch) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", batch, connection.getPeerName());
+            return;
+        }
+
+        pingService.handlePongBatch(batch);
+    }
+
+    public void sendFile(final String peerName, final Path path, final TransferHandle handle) {
+        if (isShutdown()) {
+            LOGGER.warn("Cannot send file since the peer is not running.");
+            handle.getFuture().completeExceptionally(new RuntimeException("Server is not running"));
+            return;
+        }
+
+        fileTransferService.sendFile(peerName, path, handle);
+    }
+
+    public void handleTransferOpen(final Connection connection, final TransferOpen open) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", open, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferOpen(connection, open);
+    }
+
+    public void handleTransferChunk(final Connection connection, final TransferChunk chunk) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", chunk, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferChunk(connection, chunk);
+    }
+
+    public void handleTransferAck(final Connection connection, final TransferAck ack) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", ack, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferAck(connection, ack);
+    }
+
+    public void handleTransferComplete(final Connection connection, final TransferComplete complete) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", complete, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferComplete(connection, complete);
+    }
+
+    public void handleTransferOffer(final Connection connection, final TransferOffer offer) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", offer, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferOffer(connection, offer);
+    }
+
+    public void handleTransferOfferReply(final Connection connection, final TransferOfferReply reply) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", reply, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferOfferReply(connection, reply);
+    }
+
+    public void handleTransferRewind(final Connection connection, final TransferRewind rewind) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", rewind, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferRewind(connection, rewind);
+    }
+
+    public void handleTransferAbort(final Connection connection, final TransferAbort abort) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", abort, connection.getPeerName());
+            return;
+        }
+
+        fileTransferService.handleTransferAbort(connection, abort);
+    }
+
+    public void shareFile(final Path path, final CompletableFuture<String> futureToNotify) {
+        if (isShutdown()) {
+            LOGGER.warn("Cannot share file since the peer is not running.");
+            futureToNotify.completeExceptionally(new RuntimeException("Server is not running"));
+            return;
+        }
+
+        swarmService.shareFile(path, futureToNotify);
+    }
+
+    public void broadcastFile(final Path path, final CompletableFuture<String> futureToNotify) {
+        if (isShutdown()) {
+            LOGGER.warn("Cannot broadcast file since the peer is not running.");
+            futureToNotify.completeExceptionally(new RuntimeException("Server is not running"));
+            return;
+        }
+
+        swarmService.broadcastFile(path, futureToNotify);
+    }
+
+    public void handleFileBroadcast(final Connection connection, final FileBroadcast broadcast) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", broadcast, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleFileBroadcast(connection, broadcast);
+    }
+
+    public void downloadFile(final String contentHash, final Path destination, final CompletableFuture<Path> futureToNotify) {
+        if (isShutdown()) {
+            LOGGER.warn("Cannot download file since the peer is not running.");
+            futureToNotify.completeExceptionally(new RuntimeException("Server is not running"));
+            return;
+        }
+
+        swarmService.downloadFile(contentHash, destination, futureToNotify);
+    }
+
+    public void handleChunkMapRequest(final Connection connection, final ChunkMapRequest request) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", request, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkMapRequest(connection, request);
+    }
+
+    public void handleChunkMap(final Connection connection, final ChunkMap chunkMap) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", chunkMap, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkMap(connection, chunkMap);
+    }
+
+    public void handleChunkHashesRequest(final Connection connection, final ChunkHashesRequest request) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", request, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkHashesRequest(connection, request);
+    }
+
+    public void handleChunkHashes(final Connection connection, final ChunkHashes chunkHashes) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", chunkHashes, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkHashes(connection, chunkHashes);
+    }
+
+    public void handleHave(final Connection connection, final Have have) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", have, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleHave(connection, have);
+    }
+
+    public void handleChunkRequest(final Connection connection, final ChunkRequest request) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", request, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkRequest(connection, request);
+    }
+
+    public void handleChunkData(final Connection connection, final ChunkData chunkData) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", chunkData, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkData(connection, chunkData);
+    }
+
+    public void handleChunkReject(final Connection connection, final ChunkReject reject) {
+        if (isShutdown()) {
+            LOGGER.warn("{} of {} ignored since not running", reject, connection.getPeerName());
+            return;
+        }
+
+        swarmService.handleChunkReject(connection, reject);
+    }
 
     public void keepAlivePing() {
         if (isShutdown()) {
@@ -149,30 +487,43 @@ public class Peer {
             return;
         }
 
+        connectionService.closeSlowConnections();
+
+        if (isSwimEnabled()) {
+            membershipService.runProtocolPeriod();
+            connectToAliveMembers();
+            return;
+        }
+
         final int numberOfConnections = connectionService.getNumberOfConnections();
         if (numberOfConnections > 0) {
             final boolean discoveryPingEnabled = numberOfConnections < config.getMinNumberOfActiveConnections();
+            if (discoveryPingEnabled && pingService.getPeerDirectory().isFresh()) {
+                connectToDirectoryPeers();
+            }
             pingService.keepAlive(discoveryPingEnabled);
         } else {
             LOGGER.debug("No auto ping since there is no connection");
         }
     }
 
-    public void timeoutPings() {
+    /**
+     * Connects to random peers that have responded to the Ping operation of this peer, if this peer has less
+     * connections than {@link Config#getMinNumberOfActiveConnections()}
+     */
+    private void handleOwnPingTimeout(final Collection<Pong> pongs) {
         if (isShutdown()) {
-            LOGGER.warn("Timeout pings ignored since not running");
+            LOGGER.warn("Timeout of own ping ignored since not running");
             return;
         }
 
-        final Collection<Pong> pongs = pingService.timeoutPings();
         final int availableConnectionSlots =
                 config.getMinNumberOfActiveConnections() - connectionService.getNumberOfConnections();
 
         if (availableConnectionSlots > 0) {
             List<Pong> notConnectedPeers = new ArrayList<>();
             for (Pong pong : pongs) {
-                if (!config.getPeerName().equals(pong.getPeerName()) && !connectionService
-                        .isConnectedTo(pong.getPeerName())) {
+                if (config.getPeerId() != pong.getPeerId() && !connectionService.isConnectedTo(pong.getPeerId())) {
                     notConnectedPeers.add(pong);
                 }
             }
@@ -189,13 +540,67 @@ public class Peer {
         }
     }
 
-    public void cancelPongs(final String removedPeerName) {
+    /**
+     * Connects to random members that are known to be alive by {@link MembershipService} if this peer has less
+     * connections than {@link Config#getMinNumberOfActiveConnections()}
+     */
+    private void connectToAliveMembers() {
+        final int availableConnectionSlots =
+                config.getMinNumberOfActiveConnections() - connectionService.getNumberOfConnections();
+        if (availableConnectionSlots <= 0) {
+            return;
+        }
+
+        final List<MemberUpdate> notConnectedMembers = new ArrayList<>();
+        for (MemberUpdate member : membershipService.getAliveMembers()) {
+            if (!connectionService.isConnectedTo(member.getPeerId())) {
+                notConnectedMembers.add(member);
+            }
+        }
+
+        Collections.shuffle(notConnectedMembers);
+        for (int i = 0, j = min(availableConnectionSlots, notConnectedMembers.size()); i < j; i++) {
+            final MemberUpdate member = notConnectedMembers.get(i);
+            LOGGER.info("Auto-connecting to member {} via {}:{}", member.getPeerName(), member.getServerHost(),
+                    member.getServerPort());
+            connectTo(member.getServerHost(), member.getServerPort(), null);
+        }
+    }
+
+    /**
+     * Connects to random peers in {@link PeerDirectory} if this peer has less connections than
+     * {@link Config#getMinNumberOfActiveConnections()}
+     */
+    private void connectToDirectoryPeers() {
+        final int availableConnectionSlots =
+                config.getMinNumberOfActiveConnections() - connectionService.getNumberOfConnections();
+        if (availableConnectionSlots <= 0) {
+            return;
+        }
+
+        final List<PeerDirectory.Entry> notConnectedPeers = new ArrayList<>();
+        for (PeerDirectory.Entry entry : pingService.getPeerDirectory().getEntries()) {
+            if (config.getPeerId() != entry.getPeerId() && !connectionService.isConnectedTo(entry.getPeerId())) {
+                notConnectedPeers.add(entry);
+            }
+        }
+
+        Collections.shuffle(notConnectedPeers);
+        for (int i = 0, j = min(availableConnectionSlots, notConnectedPeers.size()); i < j; i++) {
+            final PeerDirectory.Entry entry = notConnectedPeers.get(i);
+            LOGGER.info("Auto-connecting to directory peer {} via {}:{}", entry.getPeerName(), entry.getServerHost(),
+                    entry.getServerPort());
+            connectTo(entry.getServerHost(), entry.getServerPort(), null);
+        }
+    }
+
+    public void cancelPongs(final long removedPeerId) {
         if (isShutdown()) {
-            LOGGER.warn("Pongs of {} not cancelled since not running", removedPeerName);
+            LOGGER.warn("Pongs of {} not cancelled since not running", PeerIds.toString(removedPeerId));
             return;
         }
 
-        pingService.cancelPongs(removedPeerName);
+        pingService.cancelPongs(removedPeerId);
     }
 
     public void handleLeader(final Connection connection, String leaderName) {
@@ -250,21 +655,38 @@ public class Peer {
         }
     }
 
+    public WriteStats getTotalWriteStats() {
+        return connectionService.getTotalWriteStats();
+    }
+
+    public TransferStats getTransferStats() {
+        return fileTransferService.getTransferStats();
+    }
+
+    public Map<String, WriteStats> getConnectionWriteStats() {
+        return connectionService.getConnectionWriteStats();
+    }
+
     public String getLeaderName() {
         return leadershipService.getLeaderName();
     }
 
     public void setBindChannel(final Channel bindChannel) {
         this.bindChannel = bindChannel;
+        membershipService.setBindAddress((InetSocketAddress) bindChannel.localAddress());
     }
 
-    public void ping(final CompletableFuture<Collection<String>> futureToNotify) {
+    public void ping(final PingHandle handle) {
         if (isShutdown()) {
-            futureToNotify.completeExceptionally(new RuntimeException("Disconnected!"));
+            handle.getFuture().completeExceptionally(new RuntimeException("Disconnected!"));
             return;
         }
 
-        pingService.ping(futureToNotify);
+        if (isSwimEnabled()) {
+            membershipService.ping(handle);
+        } else {
+            pingService.ping(handle);
+        }
     }
 
     public void leave(final CompletableFuture<Void> futureToNotify) {
@@ -283,10 +705,12 @@ public class Peer {
         });
 
         pingService.cancelOwnPing();
-        pingService.cancelPongs(config.getPeerName());
-        final CancelPongs cancelPongs = new CancelPongs(config.getPeerName());
+        pingService.cancelPongs(config.getPeerId());
+        connectionService.broadcast(new CancelPongs(config.getPeerId()));
+        if (isSwimEnabled()) {
+            membershipService.leave();
+        }
         for (Connection connection : connectionService.getConnections()) {
-            connection.send(cancelPongs);
             connection.close();
         }
         bindChannel.close();
@@ -301,6 +725,10 @@ public class Peer {
         }
     }
 
+    private boolean isSwimEnabled() {
+        return config.getMembershipMode() == MembershipMode.SWIM;
+    }
+
     private boolean isShutdown() {
         return !running;
     }
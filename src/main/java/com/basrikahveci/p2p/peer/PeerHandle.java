@@ -1,32 +1,49 @@
 package com.basrikahveci.p2p.peer;
-import java.io.File;
-import java.nio.file.Files;
-
 
 import com.basrikahveci.p2p.peer.network.PeerChannelHandler;
 import com.basrikahveci.p2p.peer.network.PeerChannelInitializer;
-import com.basrikahveci.p2p.peer.network.message.FileMessage;
+import com.basrikahveci.p2p.peer.network.Transport;
+import com.basrikahveci.p2p.peer.network.WriteStats;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
 import com.basrikahveci.p2p.peer.service.ConnectionService;
+import com.basrikahveci.p2p.peer.service.FileTransferService;
+import com.basrikahveci.p2p.peer.service.DiscoveredPeer;
 import com.basrikahveci.p2p.peer.service.LeadershipService;
+import com.basrikahveci.p2p.peer.service.MembershipService;
+import com.basrikahveci.p2p.peer.service.PingHandle;
 import com.basrikahveci.p2p.peer.service.PingService;
+import com.basrikahveci.p2p.peer.service.SwarmService;
+import com.basrikahveci.p2p.peer.service.TimeoutScheduler;
+import com.basrikahveci.p2p.peer.service.TrafficShaper;
+import com.basrikahveci.p2p.peer.service.TransferHandle;
+import com.basrikahveci.p2p.peer.service.TransferStats;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.serialization.ObjectEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -34,32 +51,59 @@ public class PeerHandle {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PeerHandle.class);
 
+    private static final int EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
 
     private final Config config;
 
     private final int portToBind;
 
-    private final EventLoopGroup acceptorEventLoopGroup = new NioEventLoopGroup(1);
+    private final Transport transport;
+
+    private final int acceptorCount;
+
+    private final EventLoopGroup acceptorEventLoopGroup;
+
+    private final EventLoopGroup networkEventLoopGroup;
+
+    private final EventLoopGroup peerEventLoopGroup;
+
+    private final ExecutorService diskExecutor;
 
-    private final EventLoopGroup networkEventLoopGroup = new NioEventLoopGroup(6);
+    private final ForkJoinPool hashPool;
 
-    private final EventLoopGroup peerEventLoopGroup = new NioEventLoopGroup(1);
+    private final MessageEncoder encoder;
 
-    private final ObjectEncoder encoder = new ObjectEncoder();
+    private final TimeoutScheduler timeoutScheduler;
 
     private final Peer peer;
 
     private Future keepAliveFuture;
 
-    private Future timeoutPingsFuture;
-
     public PeerHandle(Config config, int portToBind) {
         this.config = config;
         this.portToBind = portToBind;
-        final ConnectionService connectionService = new ConnectionService(config, networkEventLoopGroup, peerEventLoopGroup, encoder);
-        final LeadershipService leadershipService = new LeadershipService(connectionService, config, peerEventLoopGroup);
-        final PingService pingService = new PingService(connectionService, leadershipService, config);
-        this.peer = new Peer(config, connectionService, pingService, leadershipService);
+        this.transport = Transport.select(config);
+        this.acceptorCount = selectAcceptorCount(config, transport);
+        this.acceptorEventLoopGroup = transport.newEventLoopGroup(acceptorCount);
+        this.networkEventLoopGroup = transport.newEventLoopGroup(6);
+        this.peerEventLoopGroup = transport.newEventLoopGroup(1);
+        this.diskExecutor = newDiskExecutor(config);
+        this.hashPool = new ForkJoinPool(Math.max(1, config.getHashingThreads()));
+        this.encoder = new MessageEncoder(config);
+        final ConnectionService connectionService = new ConnectionService(config, transport, networkEventLoopGroup,
+                peerEventLoopGroup, encoder);
+        this.timeoutScheduler = new TimeoutScheduler(peerEventLoopGroup);
+        final LeadershipService leadershipService = new LeadershipService(connectionService, config, timeoutScheduler);
+        final PingService pingService = new PingService(connectionService, leadershipService, config, timeoutScheduler);
+        final TrafficShaper trafficShaper = new TrafficShaper(config, peerEventLoopGroup);
+        final FileTransferService fileTransferService = new FileTransferService(connectionService, config, diskExecutor,
+                hashPool, trafficShaper, peerEventLoopGroup, timeoutScheduler);
+        final SwarmService swarmService = new SwarmService(connectionService, config, diskExecutor, hashPool,
+                trafficShaper, peerEventLoopGroup);
+        final MembershipService membershipService = new MembershipService(connectionService, config, timeoutScheduler);
+        this.peer = new Peer(config, connectionService, pingService, leadershipService, fileTransferService,
+                swarmService, trafficShaper, membershipService);
     }
 
     public String getPeerName() {
@@ -73,16 +117,21 @@ public class PeerHandle {
         final PeerChannelInitializer peerChannelInitializer = new PeerChannelInitializer(config, encoder,
                 peerEventLoopGroup, peerChannelHandler);
         final ServerBootstrap peerBootstrap = new ServerBootstrap();
-        peerBootstrap.group(acceptorEventLoopGroup, networkEventLoopGroup).channel(NioServerSocketChannel.class)
+        peerBootstrap.group(acceptorEventLoopGroup, networkEventLoopGroup).channel(transport.getServerChannelClass())
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000).option(ChannelOption.SO_KEEPALIVE, true)
-                .option(ChannelOption.SO_BACKLOG, 100).handler(new LoggingHandler(LogLevel.INFO))
+                .option(ChannelOption.SO_BACKLOG, config.getAcceptBacklog()).handler(new LoggingHandler(LogLevel.INFO))
                 .childHandler(peerChannelInitializer);
 
+        if (acceptorCount > 1) {
+            transport.enableReusePort(peerBootstrap);
+        }
+
         final ChannelFuture bindFuture = peerBootstrap.bind(portToBind).sync();
 
         if (bindFuture.isSuccess()) {
             LOGGER.info("{} Successfully bind to {}", config.getPeerName(), portToBind);
             final Channel serverChannel = bindFuture.channel();
+            bindAdditionalAcceptors(peerBootstrap, serverChannel, acceptorCount - 1);
 
             final SettableFuture<Void> setServerChannelFuture = SettableFuture.create();
             peerEventLoopGroup.execute(() -> {
@@ -105,8 +154,6 @@ public class PeerHandle {
 
             this.keepAliveFuture = peerEventLoopGroup.scheduleAtFixedRate((Runnable) peer::keepAlivePing, initialDelay, config.getKeepAlivePeriodSeconds(), SECONDS);
 
-            this.timeoutPingsFuture = peerEventLoopGroup.scheduleAtFixedRate((Runnable) peer::timeoutPings, 0, 100, TimeUnit.MILLISECONDS);
-
             closeFuture = serverChannel.closeFuture();
         } else {
             LOGGER.error(config.getPeerName() + " could not bind to " + portToBind, bindFuture.cause());
@@ -116,24 +163,107 @@ public class PeerHandle {
         return closeFuture;
     }
 
+    /**
+     * Binds additional server sockets to the port of the given server channel with SO_REUSEPORT so that the kernel
+     * distributes incoming connections among the acceptor threads. The additional sockets are closed along with the
+     * given server channel.
+     */
+    private void bindAdditionalAcceptors(final ServerBootstrap peerBootstrap, final Channel serverChannel,
+                                         final int count) throws InterruptedException {
+        final List<Channel> additionalChannels = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final ChannelFuture bindFuture = peerBootstrap.bind(portToBind).sync();
+            additionalChannels.add(bindFuture.channel());
+        }
+
+        if (count > 0) {
+            LOGGER.info("{} Bound {} acceptors to {}", config.getPeerName(), count + 1, portToBind);
+            serverChannel.closeFuture().addListener(future -> additionalChannels.forEach(Channel::close));
+        }
+    }
+
+    private static ExecutorService newDiskExecutor(final Config config) {
+        final int threads = Math.max(1, config.getDiskIoThreads());
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.getDiskIoQueueSize())), new DefaultThreadFactory("diskIo"));
+    }
+
+    private static int selectAcceptorCount(final Config config, final Transport transport) {
+        final int acceptorCount = Math.max(1, config.getAcceptorCount());
+        if (acceptorCount > 1 && !transport.isReusePortSupported()) {
+            LOGGER.warn("{} transport does not support SO_REUSEPORT. Using a single acceptor instead of {}",
+                    transport, acceptorCount);
+            return 1;
+        }
+
+        return acceptorCount;
+    }
+
     public CompletableFuture<Collection<String>> ping() {
-        final CompletableFuture<Collection<String>> future = new CompletableFuture<>();
-        peerEventLoopGroup.execute(() -> peer.ping(future));
-        return future;
+        return ping(null, 0, 0).getFuture();
+    }
+
+    /**
+     * Pings the network and notifies the listener with each peer as soon as its response is received
+     *
+     * @param peerListener      listener that is notified in the peer event loop. It can be null.
+     * @param expectedPeerCount number of peers including this peer that completes the ping early, or 0 to disable
+     * @param quietPeriodMillis duration without any response that completes the ping early, or 0 to disable
+     */
+    public PingHandle ping(final Consumer<DiscoveredPeer> peerListener, final int expectedPeerCount,
+                           final long quietPeriodMillis) {
+        final PingHandle handle = new PingHandle(peerListener, expectedPeerCount, quietPeriodMillis);
+        peerEventLoopGroup.execute(() -> peer.ping(handle));
+        return handle;
     }
 
+    /**
+     * Leaves the network. Returned future is completed once the server channel is closed and the pending file writes
+     * are completed.
+     */
     public CompletableFuture<Void> leave() {
-        final CompletableFuture<Void> future = new CompletableFuture<>();
-        peerEventLoopGroup.execute(() -> peer.leave(future));
-        if (keepAliveFuture != null && timeoutPingsFuture != null) {
+        final CompletableFuture<Void> leaveFuture = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> peer.leave(leaveFuture));
+        if (keepAliveFuture != null) {
             keepAliveFuture.cancel(false);
-            timeoutPingsFuture.cancel(false);
             keepAliveFuture = null;
-            timeoutPingsFuture = null;
         }
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        leaveFuture.whenCompleteAsync((result, throwable) -> {
+            shutdownExecutors();
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(null);
+            }
+        });
         return future;
     }
 
+    /**
+     * Waits for the queued write-behind tasks of the disk executor and the ongoing hash computations. It is called off
+     * the peer event loop since both complete their transfers in it.
+     */
+    private void shutdownExecutors() {
+        diskExecutor.shutdown();
+        hashPool.shutdown();
+        awaitTermination(diskExecutor, "file writes");
+        awaitTermination(hashPool, "hash computations");
+    }
+
+    private void awaitTermination(final ExecutorService executor, final String tasks) {
+        try {
+            if (!executor.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS, SECONDS)) {
+                LOGGER.warn("{} Pending {} are not completed in {} seconds", config.getPeerName(), tasks,
+                        EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("{} Interrupted while waiting for pending {}", config.getPeerName(), tasks);
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void scheduleLeaderElection() {
         peerEventLoopGroup.execute(peer::scheduleElection);
     }
@@ -149,18 +279,122 @@ public class PeerHandle {
     public void disconnect(final String peerName) {
         peerEventLoopGroup.execute(() -> peer.disconnect(peerName));
     }
-    public void sendFileToPeer(String peerName, String filePath) throws Exception {
-        File file = new File(filePath);
-    
-        if (!file.exists()) {
+
+    public CompletableFuture<WriteStats> getTotalWriteStats() {
+        final CompletableFuture<WriteStats> future = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> future.complete(peer.getTotalWriteStats()));
+        return future;
+    }
+
+    public CompletableFuture<Map<String, WriteStats>> getConnectionWriteStats() {
+        final CompletableFuture<Map<String, WriteStats>> future = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> future.complete(peer.getConnectionWriteStats()));
+        return future;
+    }
+
+    /**
+     * Limits the rate of the file contents sent to all neighbours. Control messages are not limited.
+     *
+     * @param bytesPerSecond new limit, or a non-positive value to remove the limit
+     */
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        peerEventLoopGroup.execute(() -> peer.setGlobalBandwidthLimit(bytesPerSecond));
+    }
+
+    /**
+     * Limits the rate of the file contents sent to a neighbour, in addition to the global limit
+     *
+     * @param peerName       name of the neighbour
+     * @param bytesPerSecond new limit, zero to remove the limit, or a negative value to use the default limit
+     */
+    public void setPeerBandwidthLimit(String peerName, long bytesPerSecond) {
+        peerEventLoopGroup.execute(() -> peer.setPeerBandwidthLimit(peerName, bytesPerSecond));
+    }
+
+    /**
+     * Sets the limit of the neighbours without a limit of their own
+     *
+     * @param bytesPerSecond new limit, or a non-positive value to remove the limit
+     */
+    public void setDefaultPeerBandwidthLimit(long bytesPerSecond) {
+        peerEventLoopGroup.execute(() -> peer.setDefaultPeerBandwidthLimit(bytesPerSecond));
+    }
+
+    /**
+     * Streams a file to a neighbour
+     *
+     * @param peerName name of the neighbour
+     * @param filePath file to send
+     * @return handle that reports the progress of the transfer and completes once the receiver acknowledges the file
+     */
+    public TransferHandle sendFileToPeer(String peerName, String filePath) {
+        final Path path = Paths.get(filePath);
+        if (!Files.isRegularFile(path)) {
             throw new IllegalArgumentException("File not found: " + filePath);
         }
-    
-        byte[] content = Files.readAllBytes(file.toPath());
-        String fileName = file.getName();
-    
-        FileMessage message = new FileMessage(fileName, content, config.getPeerName());
-    
-        peerEventLoopGroup.execute(() -> peer.sendFileMessage(peerName, message));
+
+        final TransferHandle handle = new TransferHandle(peerName, path);
+        peerEventLoopGroup.execute(() -> peer.sendFile(peerName, path, handle));
+        return handle;
+    }
+
+    public CompletableFuture<TransferStats> getTransferStats() {
+        final CompletableFuture<TransferStats> future = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> future.complete(peer.getTransferStats()));
+        return future;
+    }
+
+    /**
+     * Shares a file with the neighbours by its content hash
+     *
+     * @param filePath file to share
+     * @return future to be notified with the content hash of the file
+     */
+    public CompletableFuture<String> shareFile(String filePath) {
+        final Path path = Paths.get(filePath);
+        if (!Files.isRegularFile(path)) {
+            throw new IllegalArgumentException("File not found: " + filePath);
+        }
+
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> peer.shareFile(path, future));
+        return future;
+    }
+
+    /**
+     * Sends a file to all peers in the network. Peers relay the chunks they receive to their neighbours while they
+     * are still receiving the file, so the file is sent only to the neighbours of this peer.
+     *
+     * @param filePath file to broadcast
+     * @return future to be notified with the content hash of the file once it is announced to the neighbours
+     */
+    public CompletableFuture<String> broadcastFile(String filePath) {
+        final Path path = Paths.get(filePath);
+        if (!Files.isRegularFile(path)) {
+            throw new IllegalArgumentException("File not found: " + filePath);
+        }
+
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> peer.broadcastFile(path, future));
+        return future;
+    }
+
+    /**
+     * Downloads a file from all neighbours that have it in parallel
+     *
+     * @param contentHash content hash of the file
+     * @param fileName    name of the file in the download directory. Content hash is used if it is null.
+     * @return future to be notified with the path of the downloaded file
+     */
+    public CompletableFuture<Path> downloadFile(String contentHash, String fileName) {
+        if (!SwarmService.isValidContentHash(contentHash)) {
+            throw new IllegalArgumentException("Invalid content hash: " + contentHash);
+        }
+
+        final Path name = Paths.get(fileName != null ? fileName : contentHash).getFileName();
+        final Path destination = Paths.get(config.getDownloadDirectory()).resolve(name);
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+        peerEventLoopGroup.execute(() -> peer.downloadFile(contentHash, destination, future));
+        return future;
     }
 }
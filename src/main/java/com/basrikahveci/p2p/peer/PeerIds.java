@@ -0,0 +1,27 @@
+package com.basrikahveci.p2p.peer;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Derives compact numeric identifiers of peers from their names. Since peer names are unique across the network,
+ * 64-bit hashes of them are used in flooded messages and ping tables instead of the names themselves.
+ */
+public final class PeerIds {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private PeerIds() {
+    }
+
+    public static long of(final String peerName) {
+        return HASH_FUNCTION.hashString(peerName, UTF_8).asLong();
+    }
+
+    public static String toString(final long peerId) {
+        return Long.toHexString(peerId);
+    }
+
+}
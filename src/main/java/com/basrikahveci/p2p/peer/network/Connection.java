@@ -1,14 +1,26 @@
 package com.basrikahveci.p2p.peer.network;
 
-import com.basrikahveci.p2p.peer.network.message.Message;
+import com.basrikahveci.p2p.peer.PeerIds;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
+import com.basrikahveci.p2p.peer.network.codec.WireFormat;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.FileRegion;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
 
 /**
- * Maintains a TCP connection between the local peer and a neighbour
+ * Maintains a TCP connection between the local peer and a neighbour. If both peers support it, file contents and the
+ * other {@link DataMessage}s are sent over a second TCP connection, i.e., the data channel, so that keep-alives, pings
+ * and leader messages never wait behind a file in the socket buffers. The data channel is opened the first time a data
+ * message is sent and both channels are bound to the same connection, which is closed along with either of them.
  */
 // public class Connection {
 //
@@ -54,43 +66,300 @@ public class Connection {
     private static final Logger LOGGER = LoggerFactory.getLogger(Connection.class);
 
     private final InetSocketAddress remoteAddress;
-    private final ChannelHandlerContext ctx;
+    private final boolean outbound;
+    private final int maxPendingWriteCount;
     private String peerName;
+    private long peerId;
+    private int capabilities;
 
-    public Connection(ChannelHandlerContext ctx) {
-        this.ctx = ctx;
+    private final OutboundChannel controlChannel;
+
+    /**
+     * Channel of the data messages. It is null if data messages are sent over the control channel.
+     */
+    private OutboundChannel dataChannel;
+
+    /**
+     * Asks for a data channel once the first data message is sent
+     */
+    private Runnable dataChannelOpener;
+    private boolean closed;
+    // true once a channel of the connection is closed
+    private boolean inactive;
+
+    /**
+     * @param outbound             true if this peer has connected to the neighbour
+     * @param maxPendingWriteCount connection is closed if more messages are held back while a channel is not writable
+     */
+    public Connection(ChannelHandlerContext ctx, boolean outbound, int maxPendingWriteCount) {
         this.remoteAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        this.outbound = outbound;
+        this.maxPendingWriteCount = maxPendingWriteCount;
+        this.controlChannel = new OutboundChannel(ctx);
     }
 
     public InetSocketAddress getRemoteAddress() {
         return remoteAddress;
     }
 
+    /**
+     * Returns true if this peer has connected to the neighbour. Remote address of an outbound connection is the address
+     * that the neighbour accepts connections, so only the outbound side can open a data channel.
+     */
+    public boolean isOutbound() {
+        return outbound;
+    }
+
     public String getPeerName() {
         return peerName;
     }
 
+    public long getPeerId() {
+        return peerId;
+    }
+
     public void setPeerName(String peerName) {
         if (this.peerName == null) {
             this.peerName = peerName;
+            this.peerId = PeerIds.of(peerName);
         } else {
             LOGGER.warn("Peer name '{}' was already set for connection {}", peerName, this);
         }
     }
 
+    /**
+     * Sets the capabilities advertised by the peer in its handshake
+     */
+    public void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public boolean hasCapability(final int capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * Sends the data messages over a data channel from now on. Data messages are held back until the data channel is
+     * bound, and the given opener is run once the first data message is sent.
+     *
+     * @param dataChannelOpener opens the data channel, or asks the neighbour to open it
+     */
+    public void enableDataChannel(final Runnable dataChannelOpener) {
+        if (dataChannel == null) {
+            this.dataChannel = new OutboundChannel(null);
+            this.dataChannelOpener = dataChannelOpener;
+        }
+    }
+
+    /**
+     * Binds the channel of the given connection as the data channel of this connection. Messages received from the
+     * channel are handled as the messages of this connection from now on, and the held back data messages are written.
+     *
+     * @param channelConnection connection created for the new channel
+     * @return false if this connection does not accept a data channel or it already has one
+     */
+    public boolean bindDataChannel(final Connection channelConnection) {
+        final ChannelHandlerContext ctx = channelConnection.controlChannel.ctx;
+        if (closed || dataChannel == null || dataChannel.ctx != null) {
+            return false;
+        }
+
+        PeerChannelHandler.getSessionAttribute(ctx).set(this);
+        // the data channel stays open as long as the control channel, which is checked for idleness
+        if (ctx.pipeline().get(IdleStateHandler.class) != null) {
+            ctx.pipeline().remove(IdleStateHandler.class);
+        }
+        dataChannelOpener = null;
+        dataChannel.ctx = ctx;
+        dataChannel.writePendingMessages();
+        return true;
+    }
+
+    /**
+     * Returns true if the data channel is bound, or data messages are sent over the control channel
+     */
+    public boolean isDataChannelReady() {
+        return dataChannel == null || dataChannel.ctx != null;
+    }
+
     public void send(Object msg) {
-        if (ctx != null) {
-            ctx.writeAndFlush(msg);
-        } else {
-            LOGGER.error("Cannot send message of type {} to {}", msg.getClass(), this);
+        send(msg, TrafficClass.of(msg));
+    }
+
+    /**
+     * Sends the message with the policy of the given traffic class. If the write buffer of the channel is above its
+     * high watermark, {@link TrafficClass#BEST_EFFORT} messages are dropped and {@link TrafficClass#BULK} messages are
+     * held back until the buffer drains. If too many messages are held back, the neighbour is considered too slow and
+     * the connection is closed.
+     *
+     * @param msg          message to send. It is released if it is not written.
+     * @param trafficClass traffic class of the message
+     */
+    public void send(final Object msg, final TrafficClass trafficClass) {
+        send(msg, trafficClass, msg instanceof DataMessage);
+    }
+
+    private void send(final Object msg, final TrafficClass trafficClass, final boolean data) {
+        if (closed) {
+            LOGGER.debug("Message of type {} is not sent since {} is closed", msg.getClass(), this);
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        final OutboundChannel channel = data && dataChannel != null ? dataChannel : controlChannel;
+        if (channel.ctx == null) {
+            openDataChannel();
+        }
+
+        channel.send(msg, trafficClass);
+    }
+
+    /**
+     * Opens the data channel if it is enabled and not opened yet
+     */
+    public void openDataChannel() {
+        if (dataChannelOpener != null && !closed) {
+            LOGGER.info("Opening data channel of {}", this);
+            final Runnable opener = dataChannelOpener;
+            dataChannelOpener = null;
+            opener.run();
+        }
+    }
+
+    /**
+     * Writes a frame whose header is already encoded and whose content is transferred from a file region
+     *
+     * @param header encoded header of the frame
+     * @param region content of the frame
+     */
+    public void sendFileRegion(final ByteBuf header, final FileRegion region) {
+        send(header, TrafficClass.BULK, true);
+        send(region, TrafficClass.BULK, true);
+    }
+
+    /**
+     * Sends a frame that is already encoded for the wire format of this connection. The frame is not released, so it
+     * can be sent to multiple connections. Each connection writes a retained duplicate of the frame, so the frame must
+     * not be modified until it is released by all of the writes.
+     *
+     * @param frame        encoded frame
+     * @param trafficClass traffic class of the encoded message
+     */
+    public void sendEncoded(final ByteBuf frame, final TrafficClass trafficClass) {
+        send(frame.retain().duplicate(), trafficClass, false);
+    }
+
+    /**
+     * Called when the write buffer of a channel crosses one of its watermarks. Held back messages are written if the
+     * buffer is drained below its low watermark.
+     *
+     * @return true if the data messages can be written without being held back
+     */
+    public boolean handleWritabilityChanged() {
+        controlChannel.handleWritabilityChanged();
+        if (dataChannel != null) {
+            dataChannel.handleWritabilityChanged();
+        }
+
+        return isWritable();
+    }
+
+    /**
+     * Returns true if data messages sent to this connection are written without being held back. Producers of bulk
+     * data check it to stop reading more data until the connection becomes writable again.
+     */
+    public boolean isWritable() {
+        return !closed && (dataChannel != null ? dataChannel : controlChannel).isWritable();
+    }
+
+    /**
+     * Returns for how many milliseconds a channel has not been writable, or 0 if both are writable
+     */
+    public long getUnwritableMillis(final long now) {
+        return Math.max(controlChannel.getUnwritableMillis(now),
+                dataChannel != null && dataChannel.ctx != null ? dataChannel.getUnwritableMillis(now) : 0);
+    }
+
+    /**
+     * Called when a channel of this connection is closed. Releases the held back messages and closes the other channel,
+     * since a connection is not usable without any of its channels.
+     *
+     * @return true if the connection is closed with this call, false if it is already closed by its other channel
+     */
+    public boolean handleChannelInactive() {
+        if (inactive) {
+            return false;
         }
+
+        inactive = true;
+        closed = true;
+        controlChannel.discardPendingWrites();
+        if (dataChannel != null) {
+            dataChannel.discardPendingWrites();
+            dataChannel.close();
+        }
+        controlChannel.close();
+        return true;
+    }
+
+    /**
+     * Returns the wire format negotiated for the outbound frames of this connection. Both channels negotiate the same
+     * wire format since it only depends on the configs of the peers.
+     *
+     * @return negotiated wire format
+     */
+    public WireFormat getWireFormat() {
+        final ChannelHandlerContext ctx = controlChannel.ctx;
+        final WireFormat wireFormat = ctx != null ? ctx.channel().attr(WireFormat.ATTRIBUTE_KEY).get() : null;
+        return wireFormat != null ? wireFormat : WireFormat.SERIALIZATION;
     }
 
+    /**
+     * Returns true if compression of the large binary frames is negotiated for this connection
+     */
+    public boolean isCompressionEnabled() {
+        final ChannelHandlerContext ctx = controlChannel.ctx;
+        return ctx != null && MessageEncoder.isCompressionEnabled(ctx.channel());
+    }
+
+    /**
+     * Returns true if file contents can be written with {@link #sendFileRegion(ByteBuf, FileRegion)}. File regions
+     * bypass the encoder, so they are only used with the binary wire format, and not used if chunks are to be
+     * compressed and compression is negotiated.
+     *
+     * @param chunkCompression true if chunks are compressed when compression is negotiated
+     */
+    public boolean isFileRegionEnabled(final boolean chunkCompression) {
+        return getWireFormat() == WireFormat.BINARY && !(chunkCompression && isCompressionEnabled());
+    }
+
+    /**
+     * Flushes the messages written since the last flush, if there is any
+     */
+    public void flush() {
+        controlChannel.flush();
+        if (dataChannel != null) {
+            dataChannel.flush();
+        }
+    }
+
+    public WriteStats getWriteStats() {
+        final WriteStats stats = controlChannel.getWriteStats();
+        if (dataChannel != null) {
+            final WriteStats dataStats = dataChannel.getWriteStats();
+            stats.add(dataStats);
+            stats.addPendingWrites(dataStats);
+        }
+
+        return stats;
+    }
 
     public void close() {
         LOGGER.debug("Closing session of {}", toString());
-        if (ctx != null) {
-            ctx.close();
+        closed = true;
+        controlChannel.close();
+        if (dataChannel != null) {
+            dataChannel.close();
         }
     }
 
@@ -103,20 +372,168 @@ public class Connection {
 
         Connection that = (Connection) other;
 
-        return !(peerName != null ? !peerName.equals(that.peerName) : that.peerName != null);
+        return peerId == that.peerId && !(peerName != null ? !peerName.equals(that.peerName) : that.peerName != null);
     }
 
     @Override
     public int hashCode() {
-        return peerName != null ? peerName.hashCode() : 0;
+        return (int) (peerId ^ (peerId >>> 32));
     }
 
     @Override
     public String toString() {
         return "Connection{" +
                 "remoteAddress=" + remoteAddress +
-                ", isOpen=" + (ctx != null) +
+                ", isOpen=" + (controlChannel.ctx != null) +
                 ", peerName='" + peerName + '\'' +
+                ", peerId=" + PeerIds.toString(peerId) +
+                ", dataChannel=" + (dataChannel != null ? (dataChannel.ctx != null ? "bound" : "pending") : "none") +
                 '}';
     }
+
+    /**
+     * Writes the messages of one of the channels of the connection and holds them back while the channel is not
+     * writable
+     */
+    private final class OutboundChannel {
+
+        private ChannelHandlerContext ctx;
+
+        /**
+         * Flushes the messages written to the channel. It is scheduled once per batch of writes so that messages sent
+         * within the same peer event loop task share a single flush.
+         */
+        private final Runnable flushTask = this::flush;
+        private boolean flushScheduled;
+        private long writtenMessageCount;
+        private long flushCount;
+
+        /**
+         * Messages held back while the write buffer of the channel is above its high watermark, or the channel is not
+         * bound yet, in the order they are sent. Messages sent after a held back message are queued behind it so that
+         * the neighbour receives them in order.
+         */
+        private final ArrayDeque<Object> pendingWrites = new ArrayDeque<>();
+        // control messages written since the channel became unwritable. they count against the pending write limit.
+        private int unwritableWriteCount;
+        // time when the channel is found unwritable, or -1 if it is writable
+        private long unwritableSince = -1;
+        private long delayedMessageCount;
+        private long droppedMessageCount;
+
+        OutboundChannel(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        void send(final Object msg, final TrafficClass trafficClass) {
+            if (!pendingWrites.isEmpty() && isChannelWritable()) {
+                writePendingMessages();
+            }
+
+            if (pendingWrites.isEmpty() && isChannelWritable()) {
+                unwritableSince = -1;
+                unwritableWriteCount = 0;
+                write(msg);
+                return;
+            }
+
+            if (unwritableSince == -1 && ctx != null) {
+                unwritableSince = System.currentTimeMillis();
+            }
+
+            if (trafficClass == TrafficClass.BEST_EFFORT) {
+                droppedMessageCount++;
+                ReferenceCountUtil.release(msg);
+            } else if (pendingWrites.size() + unwritableWriteCount >= maxPendingWriteCount) {
+                ReferenceCountUtil.release(msg);
+                if (!closed) {
+                    LOGGER.warn("Closing {} since {} messages are waiting to be written", Connection.this,
+                            maxPendingWriteCount);
+                    Connection.this.close();
+                }
+            } else if (trafficClass == TrafficClass.CONTROL && pendingWrites.isEmpty() && ctx != null) {
+                unwritableWriteCount++;
+                write(msg);
+            } else {
+                delayedMessageCount++;
+                pendingWrites.add(msg);
+            }
+        }
+
+        private boolean isChannelWritable() {
+            return ctx != null && ctx.channel().isWritable();
+        }
+
+        boolean isWritable() {
+            return pendingWrites.isEmpty() && isChannelWritable();
+        }
+
+        private void write(final Object msg) {
+            ctx.write(msg);
+            writtenMessageCount++;
+            if (!flushScheduled) {
+                flushScheduled = true;
+                ctx.executor().execute(flushTask);
+            }
+        }
+
+        /**
+         * Writes the held back messages while the channel is writable
+         */
+        void writePendingMessages() {
+            Object msg;
+            while (isChannelWritable() && (msg = pendingWrites.poll()) != null) {
+                write(msg);
+            }
+        }
+
+        void handleWritabilityChanged() {
+            if (ctx == null) {
+                return;
+            }
+
+            writePendingMessages();
+            if (pendingWrites.isEmpty() && isChannelWritable()) {
+                unwritableSince = -1;
+                unwritableWriteCount = 0;
+            } else if (unwritableSince == -1) {
+                unwritableSince = System.currentTimeMillis();
+            }
+        }
+
+        long getUnwritableMillis(final long now) {
+            return unwritableSince != -1 ? Math.max(0, now - unwritableSince) : 0;
+        }
+
+        void discardPendingWrites() {
+            Object msg;
+            while ((msg = pendingWrites.poll()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        void flush() {
+            if (flushScheduled) {
+                flushScheduled = false;
+                flushCount++;
+                ctx.flush();
+            }
+        }
+
+        WriteStats getWriteStats() {
+            final ChannelOutboundBuffer outboundBuffer = ctx != null ? ctx.channel().unsafe().outboundBuffer() : null;
+            final long pendingWriteBytes = outboundBuffer != null ? outboundBuffer.totalPendingWriteBytes() : 0;
+            return new WriteStats(writtenMessageCount, flushCount, pendingWrites.size(), pendingWriteBytes,
+                    delayedMessageCount, droppedMessageCount);
+        }
+
+        void close() {
+            if (ctx != null) {
+                flush();
+                ctx.close();
+            }
+        }
+
+    }
+
 }
@@ -2,7 +2,7 @@ package com.basrikahveci.p2p.peer.network;
 
 import com.basrikahveci.p2p.peer.Config;
 import com.basrikahveci.p2p.peer.Peer;
-import com.basrikahveci.p2p.peer.network.message.FileMessage;
+import com.basrikahveci.p2p.peer.network.codec.WireFormat;
 import com.basrikahveci.p2p.peer.network.message.Handshake;
 import com.basrikahveci.p2p.peer.network.message.Message;
 import io.netty.channel.ChannelHandler.Sharable;
@@ -30,57 +30,91 @@ public class PeerChannelHandler extends SimpleChannelInboundHandler<Message> {
 
     private final Peer peer;
 
+    // true if the channels of this handler are opened by this peer
+    private final boolean outbound;
+
+    // true if the channels of this handler are opened as data channels of existing connections
+    private final boolean dataChannel;
 
     public PeerChannelHandler(Config config, Peer peer) {
+        this(config, peer, false, false);
+    }
+
+    /**
+     * @param outbound    true if the channels are opened by this peer
+     * @param dataChannel true if the channels are opened as data channels of existing connections
+     */
+    public PeerChannelHandler(Config config, Peer peer, boolean outbound, boolean dataChannel) {
         this.config = config;
         this.peer = peer;
+        this.outbound = outbound;
+        this.dataChannel = dataChannel;
     }
 
     @Override
     public void channelActive(final ChannelHandlerContext ctx) throws Exception {
         LOGGER.debug("Channel active {}", ctx.channel().remoteAddress());
-        final Connection connection = new Connection(ctx);
+        final Connection connection = new Connection(ctx, outbound, config.getMaxPendingWriteCount());
         getSessionAttribute(ctx).set(connection);
-        ctx.writeAndFlush(new Handshake(config.getPeerName(), peer.getLeaderName()));
+        final int capabilities = dataChannel ? getCapabilities() | Handshake.DATA_CHANNEL_FLAG : getCapabilities();
+        ctx.writeAndFlush(new Handshake(config.getPeerName(), peer.getLeaderName(), capabilities));
+    }
+
+    private int getCapabilities() {
+        int capabilities = 0;
+        if (config.getWireFormat() == WireFormat.BINARY) {
+            capabilities |= Handshake.BINARY_WIRE_FORMAT_CAPABILITY;
+            if (config.getCompressionThresholdBytes() > 0) {
+                capabilities |= Handshake.COMPRESSION_CAPABILITY;
+            }
+        }
+        if (config.isDeltaTransferEnabled()) {
+            capabilities |= Handshake.DELTA_TRANSFER_CAPABILITY;
+        }
+        if (config.isDataChannelEnabled()) {
+            capabilities |= Handshake.DATA_CHANNEL_CAPABILITY;
+        }
+
+        return capabilities;
     }
 
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
         LOGGER.debug("Channel inactive {}", ctx.channel().remoteAddress());
         final Connection connection = getSessionAttribute(ctx).get();
-        peer.handleConnectionClosed(connection);
+        if (connection != null && connection.handleChannelInactive()) {
+            peer.handleConnectionClosed(connection);
+        }
     }
 
     @Override
-public void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
-    LOGGER.debug("Message {} received from {}", message.getClass(), ctx.channel().remoteAddress());
-    final Connection connection = getSessionAttribute(ctx).get();
-
-    if (message instanceof FileMessage) {
-        FileMessage fileMessage = (FileMessage) message;
-        saveReceivedFile(fileMessage);
-        LOGGER.info("File '{}' received from {}", fileMessage.getFileName(), fileMessage.getSenderName());
-    } else {
+    public void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+        LOGGER.debug("Message {} received from {}", message.getClass(), ctx.channel().remoteAddress());
+        final Connection connection = getSessionAttribute(ctx).get();
+        if (message instanceof Handshake && connection.getPeerName() == null
+                && (dataChannel || ((Handshake) message).hasCapability(Handshake.DATA_CHANNEL_FLAG))) {
+            peer.handleDataChannelOpened(connection, (Handshake) message);
+            return;
+        }
+
         message.handle(peer, connection);
     }
-}
-private void saveReceivedFile(FileMessage fileMessage) {
-    try {
-        java.nio.file.Path dir = java.nio.file.Paths.get("received_files");
-        java.nio.file.Files.createDirectories(dir);
 
-        java.nio.file.Path filePath = dir.resolve(fileMessage.getFileName());
-        java.nio.file.Files.write(filePath, fileMessage.getFileContent());
-
-        LOGGER.info("File saved in: {}", filePath.toAbsolutePath());
-    } catch (Exception e) {
-        LOGGER.error("Error saving the received file", e);
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) {
+        final Connection connection = getSessionAttribute(ctx).get();
+        if (connection != null) {
+            connection.flush();
+        }
     }
-}
 
     @Override
-    public void channelReadComplete(final ChannelHandlerContext ctx) {
-        ctx.flush();
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) {
+        final Connection connection = getSessionAttribute(ctx).get();
+        if (connection != null && connection.handleWritabilityChanged()) {
+            LOGGER.debug("Channel writable {}", ctx.channel().remoteAddress());
+            peer.handleConnectionWritable(connection);
+        }
     }
 
     @Override
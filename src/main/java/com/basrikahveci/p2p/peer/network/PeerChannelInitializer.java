@@ -1,12 +1,12 @@
 package com.basrikahveci.p2p.peer.network;
 
 import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.network.codec.MessageDecoder;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.serialization.ClassResolvers;
-import io.netty.handler.codec.serialization.ObjectDecoder;
-import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.channel.socket.SocketChannelConfig;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 
@@ -14,13 +14,13 @@ public class PeerChannelInitializer extends ChannelInitializer<SocketChannel> {
 
     private final Config config;
 
-    private final ObjectEncoder encoder;
+    private final MessageEncoder encoder;
 
     private final EventExecutorGroup peerChannelHandlerExecutorGroup;
 
     private final PeerChannelHandler peerChannelHandler;
 
-    public PeerChannelInitializer(Config config, ObjectEncoder encoder, EventExecutorGroup peerChannelHandlerExecutorGroup,
+    public PeerChannelInitializer(Config config, MessageEncoder encoder, EventExecutorGroup peerChannelHandlerExecutorGroup,
                                   PeerChannelHandler peerChannelHandler) {
         this.config = config;
         this.encoder = encoder;
@@ -30,13 +30,29 @@ public class PeerChannelInitializer extends ChannelInitializer<SocketChannel> {
 
     @Override
     protected void initChannel(final SocketChannel ch) throws Exception {
+        final int highWaterMark = config.getWriteBufferHighWaterMarkBytes();
+        setWriteBufferWaterMarks(ch.config(), highWaterMark, Math.min(config.getWriteBufferLowWaterMarkBytes(), highWaterMark));
+
         final ChannelPipeline pipeline = ch.pipeline();
 
-        pipeline.addLast(new ObjectDecoder(ClassResolvers.cacheDisabled(null)));
+        pipeline.addLast(new MessageDecoder(config));
         pipeline.addLast(encoder);
         pipeline.addLast(new IdleStateHandler(config.getMaxReadIdleSeconds(), 0, 0));
 
         pipeline.addLast(peerChannelHandlerExecutorGroup, peerChannelHandler);
     }
 
+    /**
+     * Sets the watermarks in an order that never puts the low watermark above the high one, since the channel rejects it
+     */
+    private static void setWriteBufferWaterMarks(final SocketChannelConfig channelConfig, final int high, final int low) {
+        if (high >= channelConfig.getWriteBufferLowWaterMark()) {
+            channelConfig.setWriteBufferHighWaterMark(high);
+            channelConfig.setWriteBufferLowWaterMark(low);
+        } else {
+            channelConfig.setWriteBufferLowWaterMark(low);
+            channelConfig.setWriteBufferHighWaterMark(high);
+        }
+    }
+
 }
@@ -0,0 +1,50 @@
+package com.basrikahveci.p2p.peer.network;
+
+import com.basrikahveci.p2p.peer.network.message.FileMessage;
+import com.basrikahveci.p2p.peer.network.message.KeepAlive;
+import com.basrikahveci.p2p.peer.network.message.membership.MembershipGossip;
+import com.basrikahveci.p2p.peer.network.message.ping.Ping;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkData;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferChunk;
+import io.netty.channel.FileRegion;
+
+/**
+ * Classes of the outbound messages of a connection. Each class has its own policy for when the write buffer of the
+ * connection is above its high watermark, i.e., the neighbour doesn't read as fast as this peer writes.
+ */
+public enum TrafficClass {
+
+    /**
+     * Messages that must be delivered, such as handshakes, elections, pongs and transfer acknowledgements. They are
+     * written even if the write buffer is full, unless messages sent before them are held back.
+     */
+    CONTROL,
+
+    /**
+     * Messages that only signal liveness or are flooded to many neighbours, such as keep-alives, membership gossips and
+     * pings. They are dropped while the write buffer is full. A dropped keep-alive is coalesced into the bytes that are
+     * still waiting to be read, since any frame received from this peer resets the idle timeout of the neighbour.
+     * Membership updates are piggybacked several times, so a dropped gossip is covered by the later ones.
+     */
+    BEST_EFFORT,
+
+    /**
+     * Contents of files. They are held back until the write buffer drains below its low watermark.
+     */
+    BULK;
+
+    /**
+     * Returns the class of the given outbound message
+     */
+    public static TrafficClass of(final Object msg) {
+        if (msg instanceof KeepAlive || msg instanceof MembershipGossip || msg instanceof Ping) {
+            return BEST_EFFORT;
+        } else if (msg instanceof TransferChunk || msg instanceof ChunkData || msg instanceof FileMessage
+                || msg instanceof FileRegion) {
+            return BULK;
+        }
+
+        return CONTROL;
+    }
+
+}
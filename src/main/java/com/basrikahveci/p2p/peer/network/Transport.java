@@ -0,0 +1,129 @@
+package com.basrikahveci.p2p.peer.network;
+
+import com.basrikahveci.p2p.peer.Config;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Netty transports that peers can use for their event loops and channels
+ */
+public enum Transport {
+
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int numberOfThreads) {
+            return new NioEventLoopGroup(numberOfThreads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> getSocketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public boolean isReusePortSupported() {
+            return false;
+        }
+
+        @Override
+        public void enableReusePort(ServerBootstrap bootstrap) {
+            LOGGER.warn("SO_REUSEPORT is not supported by {}. Server channel is bound without it.", name());
+        }
+    },
+
+    /**
+     * Native Linux transport. It is only available if the native library can be loaded.
+     */
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int numberOfThreads) {
+            return new EpollEventLoopGroup(numberOfThreads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> getSocketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public boolean isReusePortSupported() {
+            return true;
+        }
+
+        @Override
+        public void enableReusePort(ServerBootstrap bootstrap) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+    };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Transport.class);
+
+    /**
+     * Selects the native transport if it is enabled in the config and available on the platform. Otherwise, selects
+     * the NIO transport.
+     *
+     * @param config config of the peer
+     * @return transport to be used by the peer
+     */
+    public static Transport select(final Config config) {
+        if (config.isNativeTransportEnabled()) {
+            if (!Epoll.isAvailable()) {
+                LOGGER.info("Native epoll transport is not available. Falling back to NIO. Reason: {}",
+                        Epoll.unavailabilityCause().toString());
+            } else if (!PlatformDependent.hasUnsafe()) {
+                // epoll event loops allocate their event arrays with sun.misc.Unsafe
+                LOGGER.info("Native epoll transport requires sun.misc.Unsafe. Falling back to NIO.");
+            } else {
+                LOGGER.info("Using native epoll transport");
+                return EPOLL;
+            }
+        }
+
+        return NIO;
+    }
+
+    public abstract EventLoopGroup newEventLoopGroup(int numberOfThreads);
+
+    public abstract Class<? extends ServerChannel> getServerChannelClass();
+
+    public abstract Class<? extends Channel> getSocketChannelClass();
+
+    /**
+     * Returns true if multiple server channels can be bound to the same port to accept connections in parallel
+     *
+     * @return true if SO_REUSEPORT is supported
+     */
+    public abstract boolean isReusePortSupported();
+
+    /**
+     * Enables SO_REUSEPORT on the server channels of the bootstrap. It only logs a warning if the transport does not
+     * support it, so a single server channel should be bound in that case.
+     *
+     * @param bootstrap bootstrap of the server channels
+     */
+    public abstract void enableReusePort(ServerBootstrap bootstrap);
+
+}
@@ -0,0 +1,102 @@
+package com.basrikahveci.p2p.peer.network;
+
+/**
+ * Counters of the messages written to connections and the flushes done to send them, along with the depth of their
+ * send queues
+ */
+public class WriteStats {
+
+    private long writtenMessageCount;
+
+    private long flushCount;
+
+    // messages held back by the connections since their channels are not writable
+    private long pendingWriteCount;
+
+    // bytes written to the channels but not sent to the network yet
+    private long pendingWriteBytes;
+
+    private long delayedMessageCount;
+
+    private long droppedMessageCount;
+
+    public WriteStats() {
+    }
+
+    public WriteStats(long writtenMessageCount, long flushCount, long pendingWriteCount, long pendingWriteBytes,
+                      long delayedMessageCount, long droppedMessageCount) {
+        this.writtenMessageCount = writtenMessageCount;
+        this.flushCount = flushCount;
+        this.pendingWriteCount = pendingWriteCount;
+        this.pendingWriteBytes = pendingWriteBytes;
+        this.delayedMessageCount = delayedMessageCount;
+        this.droppedMessageCount = droppedMessageCount;
+    }
+
+    public long getWrittenMessageCount() {
+        return writtenMessageCount;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public double getMessagesPerFlush() {
+        return flushCount > 0 ? (double) writtenMessageCount / flushCount : 0;
+    }
+
+    public long getPendingWriteCount() {
+        return pendingWriteCount;
+    }
+
+    public long getPendingWriteBytes() {
+        return pendingWriteBytes;
+    }
+
+    /**
+     * Returns the number of messages that are held back until the channels become writable
+     */
+    public long getDelayedMessageCount() {
+        return delayedMessageCount;
+    }
+
+    /**
+     * Returns the number of best-effort messages that are dropped since the channels are not writable
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessageCount;
+    }
+
+    /**
+     * Adds the counters of the other stats to these stats. Queue depths of the removed connections are not added since
+     * their queues are discarded.
+     */
+    public void add(final WriteStats other) {
+        this.writtenMessageCount += other.writtenMessageCount;
+        this.flushCount += other.flushCount;
+        this.delayedMessageCount += other.delayedMessageCount;
+        this.droppedMessageCount += other.droppedMessageCount;
+    }
+
+    /**
+     * Adds the queue depths of the other stats to these stats
+     */
+    public void addPendingWrites(final WriteStats other) {
+        this.pendingWriteCount += other.pendingWriteCount;
+        this.pendingWriteBytes += other.pendingWriteBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteStats{" +
+                "writtenMessageCount=" + writtenMessageCount +
+                ", flushCount=" + flushCount +
+                ", messagesPerFlush=" + String.format("%.2f", getMessagesPerFlush()) +
+                ", pendingWriteCount=" + pendingWriteCount +
+                ", pendingWriteBytes=" + pendingWriteBytes +
+                ", delayedMessageCount=" + delayedMessageCount +
+                ", droppedMessageCount=" + droppedMessageCount +
+                '}';
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.basrikahveci.p2p.peer.network.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.AttributeKey;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of binary frame bodies. Compressed frames are marked with {@link #COMPRESSED_FLAG} on their
+ * message type tag and their bodies start with the uncompressed length of the body.
+ * <p>
+ * An instance is created for each channel that negotiates compression and it reuses its deflater, inflater and output
+ * buffer for all frames of the channel. Since the deflater and the inflater work on byte arrays, the bytes of direct
+ * buffers are copied into pooled heap buffers. An instance is only used by the event loop of its channel.
+ */
+final class Compression {
+
+    /**
+     * Channel attribute that holds the compression of the channel if the remote peer accepts compressed frames
+     */
+    static final AttributeKey<Compression> ATTRIBUTE_KEY = AttributeKey.valueOf("compression");
+
+    static final int COMPRESSED_FLAG = 0x80;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final Inflater inflater = new Inflater();
+
+    private final byte[] output = new byte[BUFFER_SIZE];
+
+    /**
+     * Compresses the bytes between the given index and the writer index of the buffer in place. If compression does
+     * not shrink the bytes, the buffer is left untouched.
+     *
+     * @param buf        buffer containing the bytes to compress
+     * @param startIndex index of the first byte to compress
+     * @return true if the bytes are replaced with their compressed form
+     */
+    boolean compress(final ByteBuf buf, final int startIndex) {
+        final int length = buf.writerIndex() - startIndex;
+        // the input is copied since the compressed bytes overwrite it
+        final ByteBuf input = buf.alloc().heapBuffer(length);
+        try {
+            input.writeBytes(buf, startIndex, length);
+            deflater.reset();
+            deflater.setInput(input.array(), input.arrayOffset(), length);
+            deflater.finish();
+
+            buf.writerIndex(startIndex);
+            buf.writeInt(length);
+            while (!deflater.finished()) {
+                final int compressedLength = deflater.deflate(output);
+                buf.writeBytes(output, 0, compressedLength);
+                if (buf.writerIndex() - startIndex >= length) {
+                    buf.writerIndex(startIndex);
+                    buf.writeBytes(input, 0, length);
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            input.release();
+        }
+    }
+
+    /**
+     * Decompresses a compressed frame body into a new pooled buffer
+     *
+     * @param in        compressed frame body starting with the uncompressed length
+     * @param maxLength max allowed uncompressed length
+     * @return uncompressed frame body. Caller is responsible for releasing it.
+     */
+    ByteBuf decompress(final ByteBuf in, final int maxLength) {
+        final int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new CorruptedFrameException("Invalid uncompressed frame length: " + length);
+        }
+
+        final int inputLength = in.readableBytes();
+        final ByteBuf input;
+        if (in.hasArray()) {
+            input = in.retain();
+        } else {
+            input = in.alloc().heapBuffer(inputLength).writeBytes(in, in.readerIndex(), inputLength);
+        }
+
+        final ByteBuf output = in.alloc().heapBuffer(length);
+        try {
+            inflater.reset();
+            inflater.setInput(input.array(), input.arrayOffset() + input.readerIndex(), inputLength);
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                final int inflated = inflater.inflate(output.array(), output.arrayOffset() + offset, length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += inflated;
+            }
+
+            if (offset != length) {
+                throw new CorruptedFrameException("Uncompressed frame length " + offset + " does not match " + length);
+            }
+        } catch (DataFormatException e) {
+            output.release();
+            throw new CorruptedFrameException(e);
+        } catch (RuntimeException e) {
+            output.release();
+            throw e;
+        } finally {
+            input.release();
+        }
+
+        in.skipBytes(inputLength);
+        return output.writerIndex(length);
+    }
+
+    /**
+     * Releases the native resources of the deflater and the inflater. The instance must not be used afterwards.
+     */
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+}
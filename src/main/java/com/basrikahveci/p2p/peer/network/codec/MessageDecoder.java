@@ -0,0 +1,117 @@
+package com.basrikahveci.p2p.peer.network.codec;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.network.message.Handshake;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.serialization.ClassResolvers;
+import io.netty.handler.codec.serialization.ObjectDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.basrikahveci.p2p.peer.network.message.Handshake.BINARY_WIRE_FORMAT_CAPABILITY;
+import static com.basrikahveci.p2p.peer.network.message.Handshake.COMPRESSION_CAPABILITY;
+
+/**
+ * Decodes inbound frames of a channel. The first frame is always a {@link Handshake} encoded with Java serialization.
+ * If both this peer and the remote peer support the {@link WireFormat#BINARY} format, the rest of the frames are
+ * decoded with binary layouts given in {@link MessageType}. This decoder also switches the outbound wire format of the
+ * channel once the handshake is decoded.
+ */
+public class MessageDecoder extends ObjectDecoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageDecoder.class);
+
+    public static final int MAX_FRAME_LENGTH = 1048576;
+
+    private final Config config;
+
+    private WireFormat wireFormat = WireFormat.SERIALIZATION;
+
+    // compression of the channel if it is negotiated
+    private Compression compression;
+
+    public MessageDecoder(Config config) {
+        super(MAX_FRAME_LENGTH, ClassResolvers.cacheDisabled(null));
+        this.config = config;
+    }
+
+    @Override
+    protected Object decode(final ChannelHandlerContext ctx, final ByteBuf in) throws Exception {
+        if (wireFormat == WireFormat.BINARY) {
+            return decodeBinary(in);
+        }
+
+        final Object decoded = super.decode(ctx, in);
+        if (decoded instanceof Handshake) {
+            negotiateWireFormat(ctx, (Handshake) decoded);
+        }
+
+        return decoded;
+    }
+
+    private void negotiateWireFormat(final ChannelHandlerContext ctx, final Handshake handshake) {
+        if (config.getWireFormat() == WireFormat.BINARY && handshake.hasCapability(BINARY_WIRE_FORMAT_CAPABILITY)) {
+            wireFormat = WireFormat.BINARY;
+            if (config.getCompressionThresholdBytes() > 0 && handshake.hasCapability(COMPRESSION_CAPABILITY)
+                    && compression == null) {
+                compression = new Compression();
+            }
+        }
+
+        ctx.channel().attr(WireFormat.ATTRIBUTE_KEY).set(wireFormat);
+        ctx.channel().attr(Compression.ATTRIBUTE_KEY).set(compression);
+        LOGGER.debug("Using {} wire format with {}. Compression: {}", wireFormat, ctx.channel().remoteAddress(),
+                compression != null);
+    }
+
+    /**
+     * Releases the compression of the channel. The encoder stops compressing the frames of the channel since the
+     * attribute is removed in the event loop of the channel.
+     */
+    @Override
+    protected void handlerRemoved0(final ChannelHandlerContext ctx) throws Exception {
+        if (compression != null) {
+            ctx.channel().attr(Compression.ATTRIBUTE_KEY).remove();
+            compression.end();
+            compression = null;
+        }
+    }
+
+    private Object decodeBinary(final ByteBuf in) {
+        if (in.readableBytes() < 4) {
+            return null;
+        }
+
+        final int frameLength = in.getInt(in.readerIndex());
+        if (frameLength < 1) {
+            throw new CorruptedFrameException("Invalid frame length: " + frameLength);
+        } else if (frameLength > MAX_FRAME_LENGTH) {
+            throw new TooLongFrameException("Frame length " + frameLength + " exceeds " + MAX_FRAME_LENGTH);
+        } else if (in.readableBytes() < frameLength + 4) {
+            return null;
+        }
+
+        in.skipBytes(4);
+        final ByteBuf frame = in.readSlice(frameLength);
+        final byte tag = frame.readByte();
+        final MessageType type = MessageType.byTag(tag);
+        if ((tag & Compression.COMPRESSED_FLAG) == 0) {
+            return type.read(frame);
+        }
+
+        if (compression == null) {
+            throw new CorruptedFrameException("Compressed frame is received without compression");
+        }
+
+        final ByteBuf body = compression.decompress(frame, MAX_FRAME_LENGTH);
+        try {
+            return type.read(body);
+        } finally {
+            body.release();
+        }
+    }
+
+}
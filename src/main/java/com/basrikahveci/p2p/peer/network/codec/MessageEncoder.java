@@ -0,0 +1,162 @@
+package com.basrikahveci.p2p.peer.network.codec;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.network.message.Handshake;
+import com.basrikahveci.p2p.peer.network.message.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.serialization.ObjectEncoder;
+
+import java.io.Serializable;
+
+/**
+ * Encodes outbound messages with the {@link WireFormat} negotiated for the channel. {@link Handshake} messages and
+ * messages of channels without a negotiated format fall back to Java serialization. Frames that are already encoded
+ * with {@link #encode(ByteBufAllocator, Message, WireFormat)} are passed through as they are.
+ */
+@Sharable
+public class MessageEncoder extends ObjectEncoder {
+
+    private final Config config;
+
+    public MessageEncoder(Config config) {
+        this.config = config;
+    }
+
+    @Override
+    protected void encode(final ChannelHandlerContext ctx, final Serializable msg, final ByteBuf out) throws Exception {
+        if (msg instanceof Message && !(msg instanceof Handshake)
+                && ctx.channel().attr(WireFormat.ATTRIBUTE_KEY).get() == WireFormat.BINARY) {
+            encodeBinary((Message) msg, out, ctx.channel().attr(Compression.ATTRIBUTE_KEY).get(),
+                    config.getCompressionThresholdBytes());
+        } else {
+            super.encode(ctx, msg, out);
+        }
+    }
+
+    /**
+     * Returns true if compression is negotiated for the outbound frames of the channel
+     *
+     * @param channel channel that has completed its handshake
+     */
+    public static boolean isCompressionEnabled(final Channel channel) {
+        return channel.attr(Compression.ATTRIBUTE_KEY).get() != null;
+    }
+
+    /**
+     * Encodes the message into a new frame that can be written to any channel using the given wire format.
+     * Frames encoded with this method are not compressed.
+     *
+     * @param allocator  allocator of the frame buffer
+     * @param message    message to encode
+     * @param wireFormat wire format of the channels that the frame will be written to
+     * @return encoded frame. Caller is responsible for releasing it.
+     * @throws Exception if the message can not be serialized
+     */
+    public ByteBuf encode(final ByteBufAllocator allocator, final Message message, final WireFormat wireFormat)
+            throws Exception {
+        final ByteBuf frame = allocator.ioBuffer();
+        try {
+            encode(message, wireFormat, frame);
+            return frame;
+        } catch (Exception e) {
+            frame.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the message into the given buffer using the given wire format. Frames encoded with this method are not
+     * compressed.
+     *
+     * @param message    message to encode
+     * @param wireFormat wire format of the channels that the frame will be written to
+     * @param out        buffer to write the frame
+     * @throws Exception if the message can not be serialized
+     */
+    public void encode(final Message message, final WireFormat wireFormat, final ByteBuf out) throws Exception {
+        if (wireFormat == WireFormat.BINARY && !(message instanceof Handshake)) {
+            encodeBinary(message, out);
+        } else {
+            // object encoder does not use the channel context
+            super.encode(null, message, out);
+        }
+    }
+
+    /**
+     * Writes the header of a binary {@link MessageType#TRANSFER_CHUNK} frame whose content is written to the channel
+     * separately, i.e., with a {@link io.netty.channel.FileRegion}. Length of the frame includes the content.
+     *
+     * @param out        buffer to write the header into
+     * @param transferId id of the transfer
+     * @param offset     offset of the content in the file
+     * @param proof      proof of the content against the Merkle root of the file
+     * @param length     length of the content that follows the header
+     */
+    public static void encodeTransferChunkHeader(final ByteBuf out, final long transferId, final long offset,
+                                                 final byte[] proof, final int length) {
+        final int startIndex = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(MessageType.TRANSFER_CHUNK.getTag());
+        MessageType.writeTransferChunkHeader(out, transferId, offset, proof, length);
+        out.setInt(startIndex, out.writerIndex() - startIndex - 4 + length);
+    }
+
+    /**
+     * Writes the header of a binary {@link MessageType#CHUNK_DATA} frame whose content is written to the channel
+     * separately. Length of the frame includes the content.
+     *
+     * @param out         buffer to write the header into
+     * @param contentHash content hash of the file
+     * @param chunkIndex  index of the chunk in the file
+     * @param length      length of the content that follows the header
+     */
+    public static void encodeChunkDataHeader(final ByteBuf out, final String contentHash, final int chunkIndex,
+                                             final int length) {
+        final int startIndex = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(MessageType.CHUNK_DATA.getTag());
+        MessageType.writeChunkDataHeader(out, contentHash, chunkIndex, length);
+        out.setInt(startIndex, out.writerIndex() - startIndex - 4 + length);
+    }
+
+    /**
+     * Writes a length-prefixed binary frame of the message into the given buffer
+     *
+     * @param message message to encode
+     * @param out     buffer to write the frame into
+     */
+    public static void encodeBinary(final Message message, final ByteBuf out) {
+        encodeBinary(message, out, null, 0);
+    }
+
+    /**
+     * Writes a length-prefixed binary frame of the message into the given buffer. If the message type is compressible
+     * and its body is larger than the given threshold, the body is compressed.
+     *
+     * @param message              message to encode
+     * @param out                  buffer to write the frame into
+     * @param compression          compression of the channel, or null if compression is not negotiated
+     * @param compressionThreshold min body size in bytes to compress. Compression is disabled if it is not positive.
+     */
+    static void encodeBinary(final Message message, final ByteBuf out, final Compression compression,
+                             final int compressionThreshold) {
+        final MessageType type = MessageType.byMessage(message);
+        final int startIndex = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(type.getTag());
+        final int bodyIndex = out.writerIndex();
+        type.write(message, out);
+
+        if (compression != null && compressionThreshold > 0 && type.isCompressible()
+                && out.writerIndex() - bodyIndex > compressionThreshold && compression.compress(out, bodyIndex)) {
+            out.setByte(startIndex + 4, type.getTag() | Compression.COMPRESSED_FLAG);
+        }
+
+        out.setInt(startIndex, out.writerIndex() - startIndex - 4);
+    }
+
+}
@@ -0,0 +1,780 @@
+package com.basrikahveci.p2p.peer.network.codec;
+
+import com.basrikahveci.p2p.peer.network.message.DataChannelRequest;
+import com.basrikahveci.p2p.peer.network.message.FileMessage;
+import com.basrikahveci.p2p.peer.network.message.Handshake;
+import com.basrikahveci.p2p.peer.network.message.KeepAlive;
+import com.basrikahveci.p2p.peer.network.message.Message;
+import com.basrikahveci.p2p.peer.network.message.leader.AnnounceLeader;
+import com.basrikahveci.p2p.peer.network.message.leader.Election;
+import com.basrikahveci.p2p.peer.network.message.leader.Rejection;
+import com.basrikahveci.p2p.peer.network.message.membership.MemberUpdate;
+import com.basrikahveci.p2p.peer.network.message.membership.MembershipGossip;
+import com.basrikahveci.p2p.peer.network.message.membership.Probe;
+import com.basrikahveci.p2p.peer.network.message.membership.ProbeAck;
+import com.basrikahveci.p2p.peer.network.message.membership.ProbeRequest;
+import com.basrikahveci.p2p.peer.network.message.ping.CancelPings;
+import com.basrikahveci.p2p.peer.network.message.ping.CancelPongs;
+import com.basrikahveci.p2p.peer.network.message.ping.Ping;
+import com.basrikahveci.p2p.peer.network.message.ping.Pong;
+import com.basrikahveci.p2p.peer.network.message.ping.PongBatch;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkData;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashes;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashesRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkMap;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkMapRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkReject;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.FileBroadcast;
+import com.basrikahveci.p2p.peer.network.message.swarm.Have;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferAbort;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferAck;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferChunk;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferComplete;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOffer;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOfferReply;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOpen;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferRewind;
+import com.google.common.net.InetAddresses;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Binary layouts of the messages. Each frame body starts with the one-byte tag of its message type which is followed
+ * by the fields of the message. Tags must be less than 128 since the highest bit is used to mark compressed frames.
+ * Tags must not be changed once they are released since they are part of the protocol.
+ */
+public enum MessageType {
+
+    HANDSHAKE(1, Handshake.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final Handshake handshake = (Handshake) message;
+            writeString(out, handshake.getPeerName());
+            writeString(out, handshake.getLeaderName());
+            out.writeInt(handshake.getCapabilities());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Handshake(readString(in), readString(in), in.readInt());
+        }
+    },
+
+    KEEP_ALIVE(2, KeepAlive.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return KeepAlive.INSTANCE;
+        }
+    },
+
+    PING(3, Ping.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final Ping ping = (Ping) message;
+            out.writeLong(ping.getPeerId());
+            out.writeInt(ping.getSequenceNumber());
+            out.writeByte(ping.getTtl());
+            out.writeByte(ping.getHops());
+            out.writeInt((int) ping.getPingTimeoutDurationInMillis());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Ping(in.readLong(), in.readInt(), in.readUnsignedByte(), in.readUnsignedByte(), in.readInt());
+        }
+    },
+
+    PONG(4, Pong.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final Pong pong = (Pong) message;
+            out.writeLong(pong.getPingPeerId());
+            out.writeInt(pong.getPingSequenceNumber());
+            out.writeLong(pong.getSenderPeerId());
+            out.writeLong(pong.getPeerId());
+            writeString(out, pong.getPeerName());
+            writeAddress(out, pong.getServerHost());
+            out.writeShort(pong.getServerPort());
+            out.writeByte(pong.getTtl());
+            out.writeByte(pong.getHops());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Pong(in.readLong(), in.readInt(), in.readLong(), in.readLong(), readString(in), readAddress(in),
+                    in.readUnsignedShort(), in.readUnsignedByte(), in.readUnsignedByte());
+        }
+    },
+
+    CANCEL_PINGS(5, CancelPings.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            out.writeLong(((CancelPings) message).getPeerId());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new CancelPings(in.readLong());
+        }
+    },
+
+    CANCEL_PONGS(6, CancelPongs.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            out.writeLong(((CancelPongs) message).getPeerId());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new CancelPongs(in.readLong());
+        }
+    },
+
+    ELECTION(7, Election.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Election();
+        }
+    },
+
+    REJECTION(8, Rejection.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Rejection();
+        }
+    },
+
+    ANNOUNCE_LEADER(9, AnnounceLeader.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            writeString(out, ((AnnounceLeader) message).getLeaderName());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new AnnounceLeader(readString(in));
+        }
+    },
+
+    FILE(10, FileMessage.class, true) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final FileMessage fileMessage = (FileMessage) message;
+            writeString(out, fileMessage.getFileName());
+            writeString(out, fileMessage.getSenderName());
+            final byte[] content = fileMessage.getFileContent();
+            out.writeInt(content.length);
+            out.writeBytes(content);
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final String fileName = readString(in);
+            final String senderName = readString(in);
+            final byte[] content = new byte[in.readInt()];
+            in.readBytes(content);
+            return new FileMessage(fileName, content, senderName);
+        }
+    },
+
+    TRANSFER_OPEN(11, TransferOpen.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferOpen open = (TransferOpen) message;
+            out.writeLong(open.getTransferId());
+            writeString(out, open.getFileName());
+            writeString(out, open.getSenderName());
+            out.writeLong(open.getFileSize());
+            out.writeInt(open.getChunkSize());
+            out.writeInt(open.getLeafCount());
+            writeByteArray(out, open.getMerkleRoot());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new TransferOpen(in.readLong(), readString(in), readString(in), in.readLong(), in.readInt(),
+                    in.readInt(), readByteArray(in));
+        }
+    },
+
+    TRANSFER_CHUNK(12, TransferChunk.class, true) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferChunk chunk = (TransferChunk) message;
+            final ByteBuf data = chunk.getData();
+            writeTransferChunkHeader(out, chunk.getTransferId(), chunk.getOffset(), chunk.getProof(),
+                    data.readableBytes());
+            out.writeBytes(data, data.readerIndex(), data.readableBytes());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final long transferId = in.readLong();
+            final long offset = in.readLong();
+            final byte[] proof = readByteArray(in);
+            // the content is not copied. it is released along with the chunk.
+            final ByteBuf data = in.readSlice(in.readInt()).retain();
+            return new TransferChunk(transferId, offset, proof, data);
+        }
+    },
+
+    TRANSFER_ACK(13, TransferAck.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferAck ack = (TransferAck) message;
+            out.writeLong(ack.getTransferId());
+            out.writeLong(ack.getReceivedBytes());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new TransferAck(in.readLong(), in.readLong());
+        }
+    },
+
+    TRANSFER_COMPLETE(14, TransferComplete.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            out.writeLong(((TransferComplete) message).getTransferId());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new TransferComplete(in.readLong());
+        }
+    },
+
+    TRANSFER_ABORT(15, TransferAbort.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferAbort abort = (TransferAbort) message;
+            out.writeLong(abort.getTransferId());
+            writeString(out, abort.getReason());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new TransferAbort(in.readLong(), readString(in));
+        }
+    },
+
+    CHUNK_MAP_REQUEST(16, ChunkMapRequest.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            writeString(out, ((ChunkMapRequest) message).getContentHash());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ChunkMapRequest(readString(in));
+        }
+    },
+
+    CHUNK_MAP(17, ChunkMap.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ChunkMap chunkMap = (ChunkMap) message;
+            writeString(out, chunkMap.getContentHash());
+            out.writeLong(chunkMap.getFileSize());
+            out.writeInt(chunkMap.getChunkSize());
+            writeByteArray(out, chunkMap.getMerkleRoot());
+            final byte[] chunks = chunkMap.getChunks();
+            out.writeInt(chunks.length);
+            out.writeBytes(chunks);
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final String contentHash = readString(in);
+            final long fileSize = in.readLong();
+            final int chunkSize = in.readInt();
+            final byte[] merkleRoot = readByteArray(in);
+            final byte[] chunks = new byte[in.readInt()];
+            in.readBytes(chunks);
+            return new ChunkMap(contentHash, fileSize, chunkSize, merkleRoot, chunks);
+        }
+    },
+
+    HAVE(18, Have.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final Have have = (Have) message;
+            writeString(out, have.getContentHash());
+            out.writeInt(have.getChunkIndex());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Have(readString(in), in.readInt());
+        }
+    },
+
+    CHUNK_REQUEST(19, ChunkRequest.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ChunkRequest request = (ChunkRequest) message;
+            writeString(out, request.getContentHash());
+            out.writeInt(request.getChunkIndex());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ChunkRequest(readString(in), in.readInt());
+        }
+    },
+
+    CHUNK_DATA(20, ChunkData.class, true) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ChunkData chunk = (ChunkData) message;
+            final ByteBuf data = chunk.getData();
+            writeChunkDataHeader(out, chunk.getContentHash(), chunk.getChunkIndex(), data.readableBytes());
+            out.writeBytes(data, data.readerIndex(), data.readableBytes());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final String contentHash = readString(in);
+            final int chunkIndex = in.readInt();
+            // the content is not copied. it is released along with the chunk.
+            final ByteBuf data = in.readSlice(in.readInt()).retain();
+            return new ChunkData(contentHash, chunkIndex, data);
+        }
+    },
+
+    CHUNK_REJECT(21, ChunkReject.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ChunkReject reject = (ChunkReject) message;
+            writeString(out, reject.getContentHash());
+            out.writeInt(reject.getChunkIndex());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ChunkReject(readString(in), in.readInt());
+        }
+    },
+
+    TRANSFER_OFFER(22, TransferOffer.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferOffer offer = (TransferOffer) message;
+            out.writeLong(offer.getTransferId());
+            out.writeInt(offer.getChunkIndex());
+            out.writeLong(offer.getOffset());
+            out.writeInt(offer.getChunkCount());
+            final int[] chunkLengths = offer.getChunkLengths();
+            final byte[] chunkHashes = offer.getChunkHashes();
+            for (int i = 0; i < chunkLengths.length; i++) {
+                out.writeInt(chunkLengths[i]);
+                out.writeBytes(chunkHashes, i * TransferOffer.HASH_LENGTH, TransferOffer.HASH_LENGTH);
+            }
+            writeByteArray(out, offer.getProof());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final long transferId = in.readLong();
+            final int chunkIndex = in.readInt();
+            final long offset = in.readLong();
+            final int chunkCount = in.readInt();
+            if (chunkCount < 0 || chunkCount > in.readableBytes() / (4 + TransferOffer.HASH_LENGTH)) {
+                throw new CorruptedFrameException("Invalid chunk count: " + chunkCount);
+            }
+
+            final int[] chunkLengths = new int[chunkCount];
+            final byte[] chunkHashes = new byte[chunkCount * TransferOffer.HASH_LENGTH];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkLengths[i] = in.readInt();
+                in.readBytes(chunkHashes, i * TransferOffer.HASH_LENGTH, TransferOffer.HASH_LENGTH);
+            }
+            return new TransferOffer(transferId, chunkIndex, offset, chunkLengths, chunkHashes, readByteArray(in));
+        }
+    },
+
+    TRANSFER_OFFER_REPLY(23, TransferOfferReply.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferOfferReply reply = (TransferOfferReply) message;
+            out.writeLong(reply.getTransferId());
+            out.writeLong(reply.getOffset());
+            out.writeInt(reply.getChunkCount());
+            final byte[] neededChunks = reply.getNeededChunks();
+            out.writeInt(neededChunks.length);
+            out.writeBytes(neededChunks);
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final long transferId = in.readLong();
+            final long offset = in.readLong();
+            final int chunkCount = in.readInt();
+            final byte[] neededChunks = new byte[in.readInt()];
+            in.readBytes(neededChunks);
+            return new TransferOfferReply(transferId, offset, chunkCount, neededChunks);
+        }
+    },
+
+    TRANSFER_REWIND(24, TransferRewind.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final TransferRewind rewind = (TransferRewind) message;
+            out.writeLong(rewind.getTransferId());
+            out.writeLong(rewind.getOffset());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new TransferRewind(in.readLong(), in.readLong());
+        }
+    },
+
+    DATA_CHANNEL_REQUEST(25, DataChannelRequest.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return DataChannelRequest.INSTANCE;
+        }
+    },
+
+    FILE_BROADCAST(26, FileBroadcast.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final FileBroadcast broadcast = (FileBroadcast) message;
+            writeString(out, broadcast.getContentHash());
+            writeString(out, broadcast.getFileName());
+            writeString(out, broadcast.getOriginName());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new FileBroadcast(readString(in), readString(in), readString(in));
+        }
+    },
+
+    PROBE(27, Probe.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final Probe probe = (Probe) message;
+            out.writeInt(probe.getSequenceNumber());
+            writeMemberUpdates(out, probe.getUpdates());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new Probe(in.readInt(), readMemberUpdates(in));
+        }
+    },
+
+    PROBE_ACK(28, ProbeAck.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ProbeAck ack = (ProbeAck) message;
+            out.writeInt(ack.getSequenceNumber());
+            writeMemberUpdates(out, ack.getUpdates());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ProbeAck(in.readInt(), readMemberUpdates(in));
+        }
+    },
+
+    PROBE_REQUEST(29, ProbeRequest.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ProbeRequest request = (ProbeRequest) message;
+            out.writeInt(request.getSequenceNumber());
+            writeString(out, request.getTargetPeerName());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ProbeRequest(in.readInt(), readString(in));
+        }
+    },
+
+    MEMBERSHIP_GOSSIP(30, MembershipGossip.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            writeMemberUpdates(out, ((MembershipGossip) message).getUpdates());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new MembershipGossip(readMemberUpdates(in));
+        }
+    },
+
+    PONG_BATCH(31, PongBatch.class, true) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final PongBatch batch = (PongBatch) message;
+            out.writeLong(batch.getPingPeerId());
+            out.writeInt(batch.getPingSequenceNumber());
+            out.writeLong(batch.getSenderPeerId());
+            out.writeShort(batch.getPongs().size());
+            for (Pong pong : batch.getPongs()) {
+                out.writeLong(pong.getPeerId());
+                writeString(out, pong.getPeerName());
+                writeAddress(out, pong.getServerHost());
+                out.writeShort(pong.getServerPort());
+                out.writeByte(pong.getTtl());
+                out.writeByte(pong.getHops());
+            }
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            final long pingPeerId = in.readLong();
+            final int pingSequenceNumber = in.readInt();
+            final long senderPeerId = in.readLong();
+            final int count = in.readUnsignedShort();
+            final List<Pong> pongs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                pongs.add(new Pong(pingPeerId, pingSequenceNumber, senderPeerId, in.readLong(), readString(in),
+                        readAddress(in), in.readUnsignedShort(), in.readUnsignedByte(), in.readUnsignedByte()));
+            }
+
+            return new PongBatch(pongs);
+        }
+    },
+
+    CHUNK_HASHES_REQUEST(32, ChunkHashesRequest.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            writeString(out, ((ChunkHashesRequest) message).getContentHash());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ChunkHashesRequest(readString(in));
+        }
+    },
+
+    CHUNK_HASHES(33, ChunkHashes.class) {
+        @Override
+        void write(Message message, ByteBuf out) {
+            final ChunkHashes chunkHashes = (ChunkHashes) message;
+            writeString(out, chunkHashes.getContentHash());
+            writeByteArray(out, chunkHashes.getChunkHashes());
+        }
+
+        @Override
+        Message read(ByteBuf in) {
+            return new ChunkHashes(readString(in), readByteArray(in));
+        }
+    };
+
+    private static final MemberUpdate.State[] MEMBER_STATES = MemberUpdate.State.values();
+
+    private static final int NULL_STRING_LENGTH = 0xFFFF;
+
+    private static final MessageType[] TYPES_BY_TAG = new MessageType[128];
+
+    private static final Map<Class<? extends Message>, MessageType> TYPES_BY_CLASS = new HashMap<>();
+
+    static {
+        for (MessageType type : values()) {
+            TYPES_BY_TAG[type.tag] = type;
+            TYPES_BY_CLASS.put(type.messageClass, type);
+        }
+    }
+
+    public static MessageType byTag(final byte tag) {
+        final MessageType type = TYPES_BY_TAG[tag & 0x7F];
+        if (type == null) {
+            throw new CorruptedFrameException("Invalid message type tag: " + tag);
+        }
+
+        return type;
+    }
+
+    public static MessageType byMessage(final Message message) {
+        final MessageType type = TYPES_BY_CLASS.get(message.getClass());
+        if (type == null) {
+            throw new IllegalArgumentException("No binary layout for message " + message.getClass());
+        }
+
+        return type;
+    }
+
+    private final byte tag;
+
+    private final Class<? extends Message> messageClass;
+
+    private final boolean compressible;
+
+    MessageType(int tag, Class<? extends Message> messageClass) {
+        this(tag, messageClass, false);
+    }
+
+    MessageType(int tag, Class<? extends Message> messageClass, boolean compressible) {
+        this.tag = (byte) tag;
+        this.messageClass = messageClass;
+        this.compressible = compressible;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    /**
+     * Returns true if frames of this type may carry large payloads that are worth compressing. Control messages are
+     * never compressed.
+     *
+     * @return true if frames of this type can be compressed
+     */
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    abstract void write(Message message, ByteBuf out);
+
+    abstract Message read(ByteBuf in);
+
+    /**
+     * Writes the fields of a {@link TransferChunk} that precede its content
+     */
+    static void writeTransferChunkHeader(final ByteBuf out, final long transferId, final long offset,
+                                         final byte[] proof, final int length) {
+        out.writeLong(transferId);
+        out.writeLong(offset);
+        writeByteArray(out, proof);
+        out.writeInt(length);
+    }
+
+    /**
+     * Writes the fields of a {@link ChunkData} that precede its content
+     */
+    static void writeChunkDataHeader(final ByteBuf out, final String contentHash, final int chunkIndex, final int length) {
+        writeString(out, contentHash);
+        out.writeInt(chunkIndex);
+        out.writeInt(length);
+    }
+
+    /**
+     * Writes a byte array with a 4-byte length prefix
+     */
+    static void writeByteArray(final ByteBuf out, final byte[] value) {
+        out.writeInt(value.length);
+        out.writeBytes(value);
+    }
+
+    static byte[] readByteArray(final ByteBuf in) {
+        final int length = in.readInt();
+        if (length < 0 || length > in.readableBytes()) {
+            throw new CorruptedFrameException("Invalid byte array length: " + length);
+        }
+
+        final byte[] value = new byte[length];
+        in.readBytes(value);
+        return value;
+    }
+
+    /**
+     * Writes a nullable string with an unsigned 2-byte length prefix. Null is written as {@link #NULL_STRING_LENGTH}.
+     */
+    static void writeString(final ByteBuf out, final String value) {
+        if (value == null) {
+            out.writeShort(NULL_STRING_LENGTH);
+            return;
+        }
+
+        final byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length >= NULL_STRING_LENGTH) {
+            throw new IllegalArgumentException("String too long to encode: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    static String readString(final ByteBuf in) {
+        final int length = in.readUnsignedShort();
+        if (length == NULL_STRING_LENGTH) {
+            return null;
+        }
+
+        final String value = in.toString(in.readerIndex(), length, UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Writes a list of {@link MemberUpdate} with an unsigned 2-byte count prefix
+     */
+    static void writeMemberUpdates(final ByteBuf out, final List<MemberUpdate> updates) {
+        out.writeShort(updates.size());
+        for (MemberUpdate update : updates) {
+            writeString(out, update.getPeerName());
+            writeAddress(out, update.getServerHost());
+            out.writeShort(update.getServerPort());
+            out.writeInt(update.getIncarnation());
+            out.writeByte(update.getState().ordinal());
+        }
+    }
+
+    static List<MemberUpdate> readMemberUpdates(final ByteBuf in) {
+        final int count = in.readUnsignedShort();
+        final List<MemberUpdate> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String peerName = readString(in);
+            final String serverHost = readAddress(in);
+            final int serverPort = in.readUnsignedShort();
+            final int incarnation = in.readInt();
+            final int state = in.readUnsignedByte();
+            if (state >= MEMBER_STATES.length) {
+                throw new CorruptedFrameException("Invalid member state: " + state);
+            }
+            updates.add(new MemberUpdate(peerName, serverHost, serverPort, incarnation, MEMBER_STATES[state]));
+        }
+
+        return updates;
+    }
+
+    /**
+     * Writes a textual IP address as its raw 4 or 16 bytes with a 1-byte length prefix
+     */
+    static void writeAddress(final ByteBuf out, final String host) {
+        final byte[] address = InetAddresses.forString(host).getAddress();
+        out.writeByte(address.length);
+        out.writeBytes(address);
+    }
+
+    static String readAddress(final ByteBuf in) {
+        final byte[] address = new byte[in.readUnsignedByte()];
+        in.readBytes(address);
+        try {
+            return InetAddresses.toAddrString(InetAddress.getByAddress(address));
+        } catch (UnknownHostException e) {
+            throw new CorruptedFrameException("Invalid address of length " + address.length);
+        }
+    }
+
+}
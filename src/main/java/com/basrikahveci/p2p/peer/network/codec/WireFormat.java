@@ -0,0 +1,27 @@
+package com.basrikahveci.p2p.peer.network.codec;
+
+import io.netty.util.AttributeKey;
+
+/**
+ * Encodings that can be used for the frames exchanged between two peers. {@link com.basrikahveci.p2p.peer.network.message.Handshake}
+ * messages are always sent with {@link #SERIALIZATION}. All of the following frames of a connection are sent with
+ * {@link #BINARY} if both peers advertise it in their handshakes.
+ */
+public enum WireFormat {
+
+    /**
+     * Java serialization via Netty's object codec
+     */
+    SERIALIZATION,
+
+    /**
+     * Hand-written length-prefixed binary encoding with a one-byte message type tag
+     */
+    BINARY;
+
+    /**
+     * Channel attribute that holds the wire format negotiated for the outbound frames of a channel
+     */
+    public static final AttributeKey<WireFormat> ATTRIBUTE_KEY = AttributeKey.valueOf("wireFormat");
+
+}
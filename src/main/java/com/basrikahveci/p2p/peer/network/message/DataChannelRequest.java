@@ -0,0 +1,24 @@
+package com.basrikahveci.p2p.peer.network.message;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+
+/**
+ * Sent by the accepting side of a connection to ask the neighbour to open the data channel, since only the side that
+ * has opened the connection knows the address that the other side accepts connections
+ */
+public class DataChannelRequest implements Message {
+
+    private static final long serialVersionUID = 3516286095164873519L;
+
+    /**
+     * Data channel requests carry no state so a single instance is shared
+     */
+    public static final DataChannelRequest INSTANCE = new DataChannelRequest();
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleDataChannelRequest(connection);
+    }
+
+}
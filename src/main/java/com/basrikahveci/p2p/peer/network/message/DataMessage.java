@@ -0,0 +1,9 @@
+package com.basrikahveci.p2p.peer.network.message;
+
+/**
+ * Marks the messages that carry files or coordinate their transfers. They are sent over the data channel of a
+ * connection, if the connection has one, so that they do not delay the control messages.
+ */
+public interface DataMessage extends Message {
+
+}
@@ -14,19 +14,70 @@ public class Handshake implements Message {
 
     private static final long serialVersionUID = 213352944600339280L;
 
+    /**
+     * Capability flag that indicates the sender is able to use the binary wire format after the handshake
+     */
+    public static final int BINARY_WIRE_FORMAT_CAPABILITY = 1;
+
+    /**
+     * Capability flag that indicates the sender accepts compressed frames in the binary wire format
+     */
+    public static final int COMPRESSION_CAPABILITY = 2;
+
+    /**
+     * Capability flag that indicates the sender accepts delta transfers, in which only the chunks it does not have
+     * are sent
+     */
+    public static final int DELTA_TRANSFER_CAPABILITY = 4;
+
+    /**
+     * Capability flag that indicates the sender accepts a second connection for the data messages
+     */
+    public static final int DATA_CHANNEL_CAPABILITY = 8;
+
+    /**
+     * Flag set in the capabilities of a handshake sent over a data channel, which is bound to the existing connection of
+     * the sender instead of being a connection of its own
+     */
+    public static final int DATA_CHANNEL_FLAG = 1 << 30;
+
     private final String peerName;
 
     private final String leaderName;
 
+    private final int capabilities;
+
     public Handshake(String peerName, String leaderName) {
+        this(peerName, leaderName, 0);
+    }
+
+    public Handshake(String peerName, String leaderName, int capabilities) {
         this.peerName = peerName;
         this.leaderName = leaderName;
+        this.capabilities = capabilities;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public String getLeaderName() {
+        return leaderName;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public boolean hasCapability(final int capability) {
+        return (capabilities & capability) == capability;
     }
 
     public void handle(Peer peer, Connection connection) {
         final String peerName = connection.getPeerName();
         if (peerName == null) {
             connection.setPeerName(this.peerName);
+            connection.setCapabilities(capabilities);
             peer.handleConnectionOpened(connection, leaderName);
         } else if (!peerName.equals(this.peerName)) {
             LOGGER.warn(
@@ -34,4 +85,13 @@ public class Handshake implements Message {
         }
     }
 
+    @Override
+    public String toString() {
+        return "Handshake{" +
+                "peerName='" + peerName + '\'' +
+                ", leaderName='" + leaderName + '\'' +
+                ", capabilities=" + capabilities +
+                '}';
+    }
+
 }
@@ -14,6 +14,11 @@ public class KeepAlive implements Message {
 
     private static final long serialVersionUID = -4998803925489492616L;
 
+    /**
+     * Keep-alive messages carry no state so a single instance is shared
+     */
+    public static final KeepAlive INSTANCE = new KeepAlive();
+
     @Override
     public void handle(Peer peer, Connection connection) {
         LOGGER.debug("Keep alive ping received from {}", connection);
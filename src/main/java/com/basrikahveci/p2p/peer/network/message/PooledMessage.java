@@ -0,0 +1,90 @@
+package com.basrikahveci.p2p.peer.network.message;
+
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.Recycler;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * Base class of the messages that are taken from an object pool on the hot path, such as the forwarded pings and pongs.
+ * A pooled message is returned to its pool once it is released. Netty encoders release the messages they encode,
+ * so a pooled message that is written to a single channel is returned to its pool after it is encoded. Messages that
+ * are broadcast with pre-encoded frames must be released by their owners.
+ * <p>
+ * Messages that are not taken from a pool, such as the decoded ones, ignore reference counting. Reference count
+ * of a pooled message is not thread-safe. Ownership of a pooled message is only passed between threads via task queues.
+ */
+public abstract class PooledMessage implements Message, ReferenceCounted {
+
+    private static final long serialVersionUID = -2467346215870516087L;
+
+    private final transient Recycler.Handle handle;
+
+    private transient int refCnt;
+
+    protected PooledMessage() {
+        this.handle = null;
+    }
+
+    protected PooledMessage(Recycler.Handle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Called when a pooled message is taken from its pool
+     */
+    protected final void initRefCnt() {
+        refCnt = 1;
+    }
+
+    /**
+     * Returns the message to its pool
+     *
+     * @param handle handle of the message in its pool
+     */
+    protected abstract void recycle(Recycler.Handle handle);
+
+    @Override
+    public int refCnt() {
+        return handle != null ? refCnt : 1;
+    }
+
+    @Override
+    public ReferenceCounted retain() {
+        return retain(1);
+    }
+
+    @Override
+    public ReferenceCounted retain(int increment) {
+        if (handle != null) {
+            if (refCnt <= 0) {
+                throw new IllegalReferenceCountException(refCnt, increment);
+            }
+            refCnt += increment;
+        }
+
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return release(1);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        if (handle == null) {
+            return false;
+        } else if (refCnt < decrement) {
+            throw new IllegalReferenceCountException(refCnt, -decrement);
+        }
+
+        refCnt -= decrement;
+        if (refCnt == 0) {
+            recycle(handle);
+            return true;
+        }
+
+        return false;
+    }
+
+}
@@ -17,6 +17,10 @@ public class AnnounceLeader implements Message {
         this.leaderName = leaderName;
     }
 
+    public String getLeaderName() {
+        return leaderName;
+    }
+
     @Override
     public void handle(Peer peer, Connection connection) {
         peer.handleLeader(connection, leaderName);
@@ -0,0 +1,81 @@
+package com.basrikahveci.p2p.peer.network.message.membership;
+
+import com.basrikahveci.p2p.peer.PeerIds;
+
+import java.io.Serializable;
+
+/**
+ * State of a peer as known by the sender of a membership message. Updates of a peer are ordered by its incarnation
+ * number which only the peer itself increments, when it refutes a suspicion about itself.
+ */
+public class MemberUpdate implements Serializable {
+
+    private static final long serialVersionUID = -1624706187243557301L;
+
+    public enum State {
+
+        ALIVE,
+
+        /**
+         * The peer has not responded to a probe. It is declared dead unless it refutes the suspicion in time.
+         */
+        SUSPECT,
+
+        DEAD
+
+    }
+
+    private final String peerName;
+
+    private final String serverHost;
+
+    private final int serverPort;
+
+    private final int incarnation;
+
+    private final State state;
+
+    public MemberUpdate(String peerName, String serverHost, int serverPort, int incarnation, State state) {
+        this.peerName = peerName;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.incarnation = incarnation;
+        this.state = state;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public long getPeerId() {
+        return PeerIds.of(peerName);
+    }
+
+    public String getServerHost() {
+        return serverHost;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public int getIncarnation() {
+        return incarnation;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return "MemberUpdate{" +
+                "peerName='" + peerName + '\'' +
+                ", serverHost='" + serverHost + '\'' +
+                ", serverPort=" + serverPort +
+                ", incarnation=" + incarnation +
+                ", state=" + state +
+                '}';
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.basrikahveci.p2p.peer.network.message.membership;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.Message;
+
+import java.util.List;
+
+/**
+ * Sent to the neighbours instead of a keep-alive message when there are membership updates to disseminate, and to a
+ * new neighbour with all members known by the sender
+ */
+public class MembershipGossip implements Message {
+
+    private static final long serialVersionUID = 4473050652393725218L;
+
+    private final List<MemberUpdate> updates;
+
+    public MembershipGossip(List<MemberUpdate> updates) {
+        this.updates = updates;
+    }
+
+    public List<MemberUpdate> getUpdates() {
+        return updates;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleMembershipGossip(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "MembershipGossip{" +
+                "updates=" + updates.size() +
+                '}';
+    }
+
+}
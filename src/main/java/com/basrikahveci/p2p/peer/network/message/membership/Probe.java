@@ -0,0 +1,47 @@
+package com.basrikahveci.p2p.peer.network.message.membership;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.Message;
+
+import java.util.List;
+
+/**
+ * Sent to a neighbour that is probed for liveness. The neighbour replies with a {@link ProbeAck} with the same
+ * sequence number. Membership updates of the sender are piggybacked on it.
+ */
+public class Probe implements Message {
+
+    private static final long serialVersionUID = 3050197740911447215L;
+
+    private final int sequenceNumber;
+
+    private final List<MemberUpdate> updates;
+
+    public Probe(int sequenceNumber, List<MemberUpdate> updates) {
+        this.sequenceNumber = sequenceNumber;
+        this.updates = updates;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public List<MemberUpdate> getUpdates() {
+        return updates;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleProbe(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "Probe{" +
+                "sequenceNumber=" + sequenceNumber +
+                ", updates=" + updates.size() +
+                '}';
+    }
+
+}
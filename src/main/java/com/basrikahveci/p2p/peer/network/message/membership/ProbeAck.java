@@ -0,0 +1,47 @@
+package com.basrikahveci.p2p.peer.network.message.membership;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.Message;
+
+import java.util.List;
+
+/**
+ * Reply of a {@link Probe}. It is also relayed back to the peer that has requested an indirect probe with a
+ * {@link ProbeRequest}. Membership updates of the sender are piggybacked on it.
+ */
+public class ProbeAck implements Message {
+
+    private static final long serialVersionUID = -5735580990178040617L;
+
+    private final int sequenceNumber;
+
+    private final List<MemberUpdate> updates;
+
+    public ProbeAck(int sequenceNumber, List<MemberUpdate> updates) {
+        this.sequenceNumber = sequenceNumber;
+        this.updates = updates;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public List<MemberUpdate> getUpdates() {
+        return updates;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleProbeAck(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ProbeAck{" +
+                "sequenceNumber=" + sequenceNumber +
+                ", updates=" + updates.size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.basrikahveci.p2p.peer.network.message.membership;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.Message;
+
+/**
+ * Asks a neighbour to probe another peer on behalf of the sender, after the sender's own probe of that peer is not
+ * acknowledged in time. The neighbour relays the {@link ProbeAck} of the target back with the given sequence number.
+ */
+public class ProbeRequest implements Message {
+
+    private static final long serialVersionUID = 8315290532957130524L;
+
+    private final int sequenceNumber;
+
+    private final String targetPeerName;
+
+    public ProbeRequest(int sequenceNumber, String targetPeerName) {
+        this.sequenceNumber = sequenceNumber;
+        this.targetPeerName = targetPeerName;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public String getTargetPeerName() {
+        return targetPeerName;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleProbeRequest(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ProbeRequest{" +
+                "sequenceNumber=" + sequenceNumber +
+                ", targetPeerName='" + targetPeerName + '\'' +
+                '}';
+    }
+
+}
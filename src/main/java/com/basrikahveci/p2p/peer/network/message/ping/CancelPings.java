@@ -1,6 +1,7 @@
 package com.basrikahveci.p2p.peer.network.message.ping;
 
 import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
 import com.basrikahveci.p2p.peer.network.Connection;
 import com.basrikahveci.p2p.peer.network.message.Message;
 
@@ -8,21 +9,25 @@ public class CancelPings implements Message {
 
     private static final long serialVersionUID = -8650899535821394626L;
 
-    private String peerName;
+    private long peerId;
 
-    public CancelPings(String peerName) {
-        this.peerName = peerName;
+    public CancelPings(long peerId) {
+        this.peerId = peerId;
+    }
+
+    public long getPeerId() {
+        return peerId;
     }
 
     @Override
     public void handle(Peer peer, Connection connection) {
-        peer.cancelPings(connection, peerName);
+        peer.cancelPings(connection, peerId);
     }
 
     @Override
     public String toString() {
         return "RemovePings{" +
-                "peerName='" + peerName + '\'' +
+                "peerId=" + PeerIds.toString(peerId) +
                 '}';
     }
 
@@ -1,6 +1,7 @@
 package com.basrikahveci.p2p.peer.network.message.ping;
 
 import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
 import com.basrikahveci.p2p.peer.network.Connection;
 import com.basrikahveci.p2p.peer.network.message.Message;
 
@@ -8,21 +9,25 @@ public class CancelPongs implements Message {
 
     private static final long serialVersionUID = 5147827390577329607L;
 
-    private final String peerName;
+    private final long peerId;
 
-    public CancelPongs(String peerName) {
-        this.peerName = peerName;
+    public CancelPongs(long peerId) {
+        this.peerId = peerId;
+    }
+
+    public long getPeerId() {
+        return peerId;
     }
 
     @Override
     public void handle(Peer peer, Connection connection) {
-        peer.cancelPongs(peerName);
+        peer.cancelPongs(peerId);
     }
 
     @Override
     public String toString() {
         return "RemovePongs{" +
-                "peerName='" + peerName + '\'' +
+                "peerId=" + PeerIds.toString(peerId) +
                 '}';
     }
 
@@ -1,35 +1,75 @@
 package com.basrikahveci.p2p.peer.network.message.ping;
 
 import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
 import com.basrikahveci.p2p.peer.network.Connection;
-import com.basrikahveci.p2p.peer.network.message.Message;
+import com.basrikahveci.p2p.peer.network.message.PooledMessage;
+import io.netty.util.Recycler;
 
 /**
- * Contains information about a Ping operation initiated by a peer
+ * Contains information about a Ping operation initiated by a peer. A Ping operation is identified by the id of its
+ * initiator and a sequence number that the initiator increments for each of its Ping operations.
  */
-public class Ping implements Message {
+public class Ping extends PooledMessage {
 
     private static final long serialVersionUID = -4362142418375530711L;
 
-    private final String peerName;
+    private static final Recycler<Ping> RECYCLER = new Recycler<Ping>() {
+        @Override
+        protected Ping newObject(Handle handle) {
+            return new Ping(handle);
+        }
+    };
 
-    private final int ttl;
+    private long peerId;
 
-    private final int hops;
+    private int sequenceNumber;
 
-    private final long pingTimeoutDurationInMillis;
+    private int ttl;
+
+    private int hops;
+
+    private long pingTimeoutDurationInMillis;
 
     private transient long pingStartTimestamp;
 
-    public Ping(String peerName, int ttl, int hops, long pingTimeoutDurationInMillis) {
-        this.peerName = peerName;
+    public Ping(long peerId, int sequenceNumber, int ttl, int hops, long pingTimeoutDurationInMillis) {
+        init(peerId, sequenceNumber, ttl, hops, pingTimeoutDurationInMillis);
+    }
+
+    private Ping(Recycler.Handle handle) {
+        super(handle);
+    }
+
+    private void init(long peerId, int sequenceNumber, int ttl, int hops, long pingTimeoutDurationInMillis) {
+        this.peerId = peerId;
+        this.sequenceNumber = sequenceNumber;
         this.ttl = ttl;
         this.hops = hops;
         this.pingTimeoutDurationInMillis = pingTimeoutDurationInMillis;
     }
 
-    public String getPeerName() {
-        return peerName;
+    public long getPeerId() {
+        return peerId;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Returns the id of the Ping operation that this ping belongs to
+     */
+    public long getPingId() {
+        return toPingId(peerId, sequenceNumber);
+    }
+
+    /**
+     * Combines the id of the initiator and the sequence number of a Ping operation into a single 64-bit id. Since peer
+     * ids are hashes, the ids of different Ping operations collide with a negligible probability.
+     */
+    public static long toPingId(final long peerId, final int sequenceNumber) {
+        return peerId ^ (sequenceNumber * 0x9E3779B97F4A7C15L);
     }
 
     public int getTtl() {
@@ -52,8 +92,27 @@ public class Ping implements Message {
         this.pingStartTimestamp = pingStartTimestamp;
     }
 
+    /**
+     * Returns the ping to be forwarded to the neighbours. Returned ping is taken from a pool and it must be released
+     * after it is sent.
+     *
+     * @return ping to be forwarded or null if ttl of this ping is exhausted
+     */
     public Ping next() {
-        return ttl > 1 ? new Ping(peerName, ttl - 1, hops + 1, pingTimeoutDurationInMillis) : null;
+        if (ttl <= 1) {
+            return null;
+        }
+
+        final Ping next = RECYCLER.get();
+        next.init(peerId, sequenceNumber, ttl - 1, hops + 1, pingTimeoutDurationInMillis);
+        next.initRefCnt();
+        return next;
+    }
+
+    @Override
+    protected void recycle(Recycler.Handle handle) {
+        pingStartTimestamp = 0;
+        RECYCLER.recycle(this, handle);
     }
 
     public void handle(Peer peer, Connection connection) {
@@ -63,7 +122,8 @@ public class Ping implements Message {
     @Override
     public String toString() {
         return "Ping{" +
-                "peerName=" + peerName +
+                "peerId=" + PeerIds.toString(peerId) +
+                ", sequenceNumber=" + sequenceNumber +
                 ", ttl=" + ttl +
                 ", hops=" + hops +
                 ", pingStartTimestamp=" + pingStartTimestamp +
@@ -1,34 +1,58 @@
 package com.basrikahveci.p2p.peer.network.message.ping;
 
 import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
 import com.basrikahveci.p2p.peer.network.Connection;
-import com.basrikahveci.p2p.peer.network.message.Message;
+import com.basrikahveci.p2p.peer.network.message.PooledMessage;
+import io.netty.util.Recycler;
 
 /**
  * Contains information about a peer which responds to an incoming Ping message
  */
-public class Pong implements Message {
+public class Pong extends PooledMessage {
 
     private static final long serialVersionUID = 2748377163219868853L;
 
-    private final String pingPeerName;
+    private static final Recycler<Pong> RECYCLER = new Recycler<Pong>() {
+        @Override
+        protected Pong newObject(Handle handle) {
+            return new Pong(handle);
+        }
+    };
 
-    private final String senderPeerName;
+    private long pingPeerId;
 
-    private final String peerName;
+    private int pingSequenceNumber;
 
-    private final String serverHost;
+    private long senderPeerId;
 
-    private final int serverPort;
+    private long peerId;
 
-    private final int ttl;
+    private String peerName;
 
-    private final int hops;
+    private String serverHost;
 
-    public Pong(String pingPeerName, String senderPeerName, String peerName, String serverHost, int serverPort, int ttl,
-                int hops) {
-        this.pingPeerName = pingPeerName;
-        this.senderPeerName = senderPeerName;
+    private int serverPort;
+
+    private int ttl;
+
+    private int hops;
+
+    public Pong(long pingPeerId, int pingSequenceNumber, long senderPeerId, long peerId, String peerName,
+                String serverHost, int serverPort, int ttl, int hops) {
+        init(pingPeerId, pingSequenceNumber, senderPeerId, peerId, peerName, serverHost, serverPort, ttl, hops);
+    }
+
+    private Pong(Recycler.Handle handle) {
+        super(handle);
+    }
+
+    private void init(long pingPeerId, int pingSequenceNumber, long senderPeerId, long peerId, String peerName,
+                      String serverHost, int serverPort, int ttl, int hops) {
+        this.pingPeerId = pingPeerId;
+        this.pingSequenceNumber = pingSequenceNumber;
+        this.senderPeerId = senderPeerId;
+        this.peerId = peerId;
         this.peerName = peerName;
         this.serverHost = serverHost;
         this.serverPort = serverPort;
@@ -36,12 +60,27 @@ public class Pong implements Message {
         this.hops = hops;
     }
 
-    public String getPingPeerName() {
-        return pingPeerName;
+    public long getPingPeerId() {
+        return pingPeerId;
+    }
+
+    public int getPingSequenceNumber() {
+        return pingSequenceNumber;
+    }
+
+    /**
+     * Returns the id of the Ping operation that this pong responds to
+     */
+    public long getPingId() {
+        return Ping.toPingId(pingPeerId, pingSequenceNumber);
+    }
+
+    public long getSenderPeerId() {
+        return senderPeerId;
     }
 
-    public String getSenderPeerName() {
-        return senderPeerName;
+    public long getPeerId() {
+        return peerId;
     }
 
     public String getPeerName() {
@@ -64,8 +103,29 @@ public class Pong implements Message {
         return hops;
     }
 
-    public Pong next(final String thisPeerName) {
-        return ttl > 1 ? new Pong(pingPeerName, thisPeerName, peerName, serverHost, serverPort, ttl - 1, hops + 1) : null;
+    /**
+     * Returns the pong to be forwarded towards the ping initiator. Returned pong is taken from a pool and it is
+     * returned to the pool once it is encoded, or once the {@link PongBatch} it is added to is released.
+     *
+     * @param thisPeerId id of the peer that forwards the pong
+     * @return pong to be forwarded or null if ttl of this pong is exhausted
+     */
+    public Pong next(final long thisPeerId) {
+        if (ttl <= 1) {
+            return null;
+        }
+
+        final Pong next = RECYCLER.get();
+        next.init(pingPeerId, pingSequenceNumber, thisPeerId, peerId, peerName, serverHost, serverPort, ttl - 1, hops + 1);
+        next.initRefCnt();
+        return next;
+    }
+
+    @Override
+    protected void recycle(Recycler.Handle handle) {
+        peerName = null;
+        serverHost = null;
+        RECYCLER.recycle(this, handle);
     }
 
     public void handle(Peer peer, Connection connection) {
@@ -75,8 +135,9 @@ public class Pong implements Message {
     @Override
     public String toString() {
         return "Pong{" +
-                "pingPeerName='" + pingPeerName + '\'' +
-                ", senderPeerName='" + senderPeerName + '\'' +
+                "pingPeerId=" + PeerIds.toString(pingPeerId) +
+                ", pingSequenceNumber=" + pingSequenceNumber +
+                ", senderPeerId=" + PeerIds.toString(senderPeerId) +
                 ", peerName='" + peerName + '\'' +
                 ", serverHost='" + serverHost + '\'' +
                 ", serverPort=" + serverPort +
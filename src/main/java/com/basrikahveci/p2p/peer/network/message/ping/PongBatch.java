@@ -0,0 +1,102 @@
+package com.basrikahveci.p2p.peer.network.message.ping;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.PooledMessage;
+import io.netty.util.Recycler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Contains a number of {@link Pong} messages of the same Ping operation that are forwarded together towards the ping
+ * initiator by the same peer
+ */
+public class PongBatch extends PooledMessage {
+
+    private static final long serialVersionUID = -7092245771985862916L;
+
+    private static final Recycler<PongBatch> RECYCLER = new Recycler<PongBatch>() {
+        @Override
+        protected PongBatch newObject(Handle handle) {
+            return new PongBatch(handle);
+        }
+    };
+
+    private final List<Pong> pongs;
+
+    /**
+     * @param pongs pongs that have the same ping id and sender. It must not be empty.
+     */
+    public PongBatch(List<Pong> pongs) {
+        this.pongs = pongs;
+    }
+
+    private PongBatch(Recycler.Handle handle) {
+        super(handle);
+        this.pongs = new ArrayList<>();
+    }
+
+    /**
+     * Returns an empty batch taken from a pool. The batch owns the pooled pongs added to it and it returns them to
+     * their pool along with itself once it is released.
+     */
+    public static PongBatch newInstance() {
+        final PongBatch batch = RECYCLER.get();
+        batch.initRefCnt();
+        return batch;
+    }
+
+    /**
+     * Adds a pong to a batch taken from the pool
+     *
+     * @param pong pooled pong that has the same ping id and sender with the other pongs of the batch
+     * @return number of pongs in the batch
+     */
+    public int add(final Pong pong) {
+        pongs.add(pong);
+        return pongs.size();
+    }
+
+    public List<Pong> getPongs() {
+        return pongs;
+    }
+
+    public long getPingPeerId() {
+        return pongs.get(0).getPingPeerId();
+    }
+
+    public int getPingSequenceNumber() {
+        return pongs.get(0).getPingSequenceNumber();
+    }
+
+    public long getSenderPeerId() {
+        return pongs.get(0).getSenderPeerId();
+    }
+
+    @Override
+    protected void recycle(Recycler.Handle handle) {
+        for (Pong pong : pongs) {
+            pong.release();
+        }
+        pongs.clear();
+        RECYCLER.recycle(this, handle);
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handlePongBatch(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "PongBatch{" +
+                "pingPeerId=" + PeerIds.toString(getPingPeerId()) +
+                ", pingSequenceNumber=" + getPingSequenceNumber() +
+                ", senderPeerId=" + PeerIds.toString(getSenderPeerId()) +
+                ", pongs=" + pongs.size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Carries a requested chunk of a content-addressed file. Like {@link com.basrikahveci.p2p.peer.network.message.transfer.TransferChunk},
+ * the content is kept in a {@link ByteBuf} and reference counting is delegated to it.
+ */
+public class ChunkData implements DataMessage, ReferenceCounted {
+
+    private static final long serialVersionUID = 3911734645061213790L;
+
+    private final String contentHash;
+
+    private final int chunkIndex;
+
+    private transient ByteBuf data;
+
+    public ChunkData(String contentHash, int chunkIndex, ByteBuf data) {
+        this.contentHash = contentHash;
+        this.chunkIndex = chunkIndex;
+        this.data = data;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public ByteBuf getData() {
+        return data;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkData(connection, this);
+    }
+
+    @Override
+    public int refCnt() {
+        return data.refCnt();
+    }
+
+    @Override
+    public ChunkData retain() {
+        data.retain();
+        return this;
+    }
+
+    @Override
+    public ChunkData retain(int increment) {
+        data.retain(increment);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return data.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return data.release(decrement);
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        final int length = data.readableBytes();
+        out.writeInt(length);
+        data.getBytes(data.readerIndex(), out, length);
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        data = Unpooled.wrappedBuffer(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkData{" +
+                "contentHash='" + contentHash + '\'' +
+                ", chunkIndex=" + chunkIndex +
+                ", length=" + (data != null ? data.readableBytes() : 0) +
+                '}';
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Carries the SHA-256 hashes of all chunks of a content-addressed file. The receiver accepts them only if they build
+ * the Merkle root given in the chunk maps of the file.
+ */
+public class ChunkHashes implements DataMessage {
+
+    private static final long serialVersionUID = -1590735212365473412L;
+
+    private final String contentHash;
+
+    // SHA-256 hashes of the chunks, concatenated
+    private final byte[] chunkHashes;
+
+    public ChunkHashes(String contentHash, byte[] chunkHashes) {
+        this.contentHash = contentHash;
+        this.chunkHashes = chunkHashes;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public byte[] getChunkHashes() {
+        return chunkHashes;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkHashes(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkHashes{" +
+                "contentHash='" + contentHash + '\'' +
+                ", length=" + chunkHashes.length +
+                '}';
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Asks a neighbour that has sent a {@link ChunkMap} for the hashes of the chunks of a content-addressed file, so that
+ * each chunk can be verified as soon as it is received
+ */
+public class ChunkHashesRequest implements DataMessage {
+
+    private static final long serialVersionUID = 4427361826430948507L;
+
+    private final String contentHash;
+
+    public ChunkHashesRequest(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkHashesRequest(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkHashesRequest{" +
+                "contentHash='" + contentHash + '\'' +
+                '}';
+    }
+
+}
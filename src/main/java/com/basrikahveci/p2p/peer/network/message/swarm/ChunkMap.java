@@ -0,0 +1,71 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+import java.util.BitSet;
+
+/**
+ * Informs a neighbour about the chunks of a content-addressed file that the sender has. Chunks are given as a bit set
+ * in {@link BitSet#toByteArray()} format. The file size, chunk size and Merkle root of the chunks are bound to the
+ * content hash, so the receiver can check them before it downloads the file.
+ */
+public class ChunkMap implements DataMessage {
+
+    private static final long serialVersionUID = 6470846734186297441L;
+
+    private final String contentHash;
+
+    private final long fileSize;
+
+    private final int chunkSize;
+
+    private final byte[] merkleRoot;
+
+    private final byte[] chunks;
+
+    public ChunkMap(String contentHash, long fileSize, int chunkSize, byte[] merkleRoot, byte[] chunks) {
+        this.contentHash = contentHash;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.merkleRoot = merkleRoot;
+        this.chunks = chunks;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public byte[] getChunks() {
+        return chunks;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkMap(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkMap{" +
+                "contentHash='" + contentHash + '\'' +
+                ", fileSize=" + fileSize +
+                ", chunkSize=" + chunkSize +
+                ", chunkCount=" + BitSet.valueOf(chunks).cardinality() +
+                '}';
+    }
+
+}
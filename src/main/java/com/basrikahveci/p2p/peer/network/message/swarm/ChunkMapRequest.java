@@ -0,0 +1,37 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Asks a neighbour which chunks of a content-addressed file it has. Neighbours that have or download the file reply
+ * with a {@link ChunkMap}.
+ */
+public class ChunkMapRequest implements DataMessage {
+
+    private static final long serialVersionUID = -2519466383338416140L;
+
+    private final String contentHash;
+
+    public ChunkMapRequest(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkMapRequest(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkMapRequest{" +
+                "contentHash='" + contentHash + '\'' +
+                '}';
+    }
+
+}
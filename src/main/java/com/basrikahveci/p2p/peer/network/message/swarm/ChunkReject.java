@@ -0,0 +1,44 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Informs the requester that a requested chunk is not available
+ */
+public class ChunkReject implements DataMessage {
+
+    private static final long serialVersionUID = -7761380426155834047L;
+
+    private final String contentHash;
+
+    private final int chunkIndex;
+
+    public ChunkReject(String contentHash, int chunkIndex) {
+        this.contentHash = contentHash;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkReject(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkReject{" +
+                "contentHash='" + contentHash + '\'' +
+                ", chunkIndex=" + chunkIndex +
+                '}';
+    }
+
+}
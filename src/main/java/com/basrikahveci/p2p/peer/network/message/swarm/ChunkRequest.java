@@ -0,0 +1,45 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Requests a chunk of a content-addressed file from a neighbour that has it. The neighbour replies with a {@link
+ * ChunkData} or a {@link ChunkReject}.
+ */
+public class ChunkRequest implements DataMessage {
+
+    private static final long serialVersionUID = 4408357093011217372L;
+
+    private final String contentHash;
+
+    private final int chunkIndex;
+
+    public ChunkRequest(String contentHash, int chunkIndex) {
+        this.contentHash = contentHash;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleChunkRequest(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkRequest{" +
+                "contentHash='" + contentHash + '\'' +
+                ", chunkIndex=" + chunkIndex +
+                '}';
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Announces a content-addressed file that is broadcast to all peers. Each peer that receives it for the first time
+ * starts downloading the file from its neighbours and forwards the announcement to its other neighbours.
+ */
+public class FileBroadcast implements DataMessage {
+
+    private static final long serialVersionUID = 6807218846360725641L;
+
+    private final String contentHash;
+
+    private final String fileName;
+
+    private final String originName;
+
+    public FileBroadcast(String contentHash, String fileName, String originName) {
+        this.contentHash = contentHash;
+        this.fileName = fileName;
+        this.originName = originName;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the name of the peer that has started the broadcast
+     */
+    public String getOriginName() {
+        return originName;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleFileBroadcast(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "FileBroadcast{" +
+                "contentHash='" + contentHash + '\'' +
+                ", fileName='" + fileName + '\'' +
+                ", originName='" + originName + '\'' +
+                '}';
+    }
+
+}
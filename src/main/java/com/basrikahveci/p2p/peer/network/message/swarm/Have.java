@@ -0,0 +1,45 @@
+package com.basrikahveci.p2p.peer.network.message.swarm;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Informs the neighbours that are interested in a content-addressed file about a chunk that the sender has just
+ * completed
+ */
+public class Have implements DataMessage {
+
+    private static final long serialVersionUID = -3207566245712939071L;
+
+    private final String contentHash;
+
+    private final int chunkIndex;
+
+    public Have(String contentHash, int chunkIndex) {
+        this.contentHash = contentHash;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleHave(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "Have{" +
+                "contentHash='" + contentHash + '\'' +
+                ", chunkIndex=" + chunkIndex +
+                '}';
+    }
+
+}
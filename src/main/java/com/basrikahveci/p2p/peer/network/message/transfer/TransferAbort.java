@@ -0,0 +1,44 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Cancels a streaming file transfer. It can be sent by both the sender and the receiver.
+ */
+public class TransferAbort implements DataMessage {
+
+    private static final long serialVersionUID = 8630183447245406185L;
+
+    private final long transferId;
+
+    private final String reason;
+
+    public TransferAbort(long transferId, String reason) {
+        this.transferId = transferId;
+        this.reason = reason;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferAbort(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferAbort{" +
+                "transferId=" + transferId +
+                ", reason='" + reason + '\'' +
+                '}';
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Informs the sender of a streaming file transfer about the number of bytes persisted by the receiver so that the
+ * sender can send more chunks. Acknowledging the whole file means the transfer is completed successfully.
+ */
+public class TransferAck implements DataMessage {
+
+    private static final long serialVersionUID = 4512286095447010745L;
+
+    private final long transferId;
+
+    private final long receivedBytes;
+
+    public TransferAck(long transferId, long receivedBytes) {
+        this.transferId = transferId;
+        this.receivedBytes = receivedBytes;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferAck(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferAck{" +
+                "transferId=" + transferId +
+                ", receivedBytes=" + receivedBytes +
+                '}';
+    }
+
+}
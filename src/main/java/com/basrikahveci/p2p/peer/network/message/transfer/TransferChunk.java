@@ -0,0 +1,117 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Carries a part of the file content of a streaming file transfer. The content is kept in a {@link ByteBuf} that is
+ * usually a slice of the received frame, so it can be written to disk without copying it into a heap array.
+ * Reference counting is delegated to the content buffer.
+ * <p>
+ * Chunks of a regular transfer carry the proof that verifies them against the Merkle root given in the
+ * {@link TransferOpen}. Chunks of a delta transfer are verified against their offered hashes instead.
+ */
+public class TransferChunk implements DataMessage, ReferenceCounted {
+
+    private static final long serialVersionUID = 2717463004402425262L;
+
+    private final long transferId;
+
+    private final long offset;
+
+    // sibling hashes from the chunk up to the Merkle root
+    private final byte[] proof;
+
+    private transient ByteBuf data;
+
+    public TransferChunk(long transferId, long offset, byte[] proof, ByteBuf data) {
+        this.transferId = transferId;
+        this.offset = offset;
+        this.proof = proof;
+        this.data = data;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getProof() {
+        return proof;
+    }
+
+    public ByteBuf getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return data.readableBytes();
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferChunk(connection, this);
+    }
+
+    @Override
+    public int refCnt() {
+        return data.refCnt();
+    }
+
+    @Override
+    public TransferChunk retain() {
+        data.retain();
+        return this;
+    }
+
+    @Override
+    public TransferChunk retain(int increment) {
+        data.retain(increment);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return data.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return data.release(decrement);
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        final int length = data.readableBytes();
+        out.writeInt(length);
+        data.getBytes(data.readerIndex(), out, length);
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        data = Unpooled.wrappedBuffer(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferChunk{" +
+                "transferId=" + transferId +
+                ", offset=" + offset +
+                ", length=" + (data != null ? data.readableBytes() : 0) +
+                '}';
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Sent after the last chunk of a streaming file transfer
+ */
+public class TransferComplete implements DataMessage {
+
+    private static final long serialVersionUID = -1957312867402165920L;
+
+    private final long transferId;
+
+    public TransferComplete(long transferId) {
+        this.transferId = transferId;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferComplete(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferComplete{" +
+                "transferId=" + transferId +
+                '}';
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Offers the hashes of consecutive content-defined chunks of a delta transfer before they are sent. The receiver
+ * replies with a {@link TransferOfferReply} that tells which of the chunks it does not have. Hashes of the chunks are
+ * the leaves of the Merkle tree of the file, and they are verified against its root with the proof of the offer.
+ */
+public class TransferOffer implements DataMessage {
+
+    private static final long serialVersionUID = -4618532795541375337L;
+
+    public static final int HASH_LENGTH = 32;
+
+    private final long transferId;
+
+    private final int chunkIndex;
+
+    private final long offset;
+
+    private final int[] chunkLengths;
+
+    // SHA-256 hashes of the chunks, concatenated
+    private final byte[] chunkHashes;
+
+    // sibling hashes from the offered chunks up to the Merkle root
+    private final byte[] proof;
+
+    public TransferOffer(long transferId, int chunkIndex, long offset, int[] chunkLengths, byte[] chunkHashes,
+                         byte[] proof) {
+        this.transferId = transferId;
+        this.chunkIndex = chunkIndex;
+        this.offset = offset;
+        this.chunkLengths = chunkLengths;
+        this.chunkHashes = chunkHashes;
+        this.proof = proof;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Returns the index of the first chunk in the file
+     */
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * Returns the offset of the first chunk in the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getChunkCount() {
+        return chunkLengths.length;
+    }
+
+    public int[] getChunkLengths() {
+        return chunkLengths;
+    }
+
+    public byte[] getChunkHashes() {
+        return chunkHashes;
+    }
+
+    public byte[] getProof() {
+        return proof;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferOffer(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferOffer{" +
+                "transferId=" + transferId +
+                ", chunkIndex=" + chunkIndex +
+                ", offset=" + offset +
+                ", chunkCount=" + chunkLengths.length +
+                '}';
+    }
+
+}
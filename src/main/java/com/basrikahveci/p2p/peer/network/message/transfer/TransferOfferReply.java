@@ -0,0 +1,63 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+import java.util.BitSet;
+
+/**
+ * Tells the sender of a delta transfer which of the chunks in a {@link TransferOffer} must be sent. Chunks are given
+ * as a bit set in {@link BitSet#toByteArray()} format, relative to the first offered chunk.
+ */
+public class TransferOfferReply implements DataMessage {
+
+    private static final long serialVersionUID = 2731660911294616412L;
+
+    private final long transferId;
+
+    private final long offset;
+
+    private final int chunkCount;
+
+    private final byte[] neededChunks;
+
+    public TransferOfferReply(long transferId, long offset, int chunkCount, byte[] neededChunks) {
+        this.transferId = transferId;
+        this.offset = offset;
+        this.chunkCount = chunkCount;
+        this.neededChunks = neededChunks;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public byte[] getNeededChunks() {
+        return neededChunks;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferOfferReply(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferOfferReply{" +
+                "transferId=" + transferId +
+                ", offset=" + offset +
+                ", chunkCount=" + chunkCount +
+                ", neededChunkCount=" + BitSet.valueOf(neededChunks).cardinality() +
+                '}';
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Starts a streaming file transfer. It is followed by {@link TransferChunk} messages carrying the file content and
+ * a {@link TransferComplete} message once all of the chunks are sent. It carries the root of the Merkle tree over the
+ * chunks of the file, so the receiver verifies each chunk as it arrives.
+ */
+public class TransferOpen implements DataMessage {
+
+    private static final long serialVersionUID = -6034311946542618412L;
+
+    private final long transferId;
+
+    private final String fileName;
+
+    private final String senderName;
+
+    private final long fileSize;
+
+    private final int chunkSize;
+
+    // number of leaves in the Merkle tree of the file
+    private final int leafCount;
+
+    private final byte[] merkleRoot;
+
+    public TransferOpen(long transferId, String fileName, String senderName, long fileSize, int chunkSize,
+                        int leafCount, byte[] merkleRoot) {
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.senderName = senderName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.leafCount = leafCount;
+        this.merkleRoot = merkleRoot;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferOpen(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferOpen{" +
+                "transferId=" + transferId +
+                ", fileName='" + fileName + '\'' +
+                ", senderName='" + senderName + '\'' +
+                ", fileSize=" + fileSize +
+                ", chunkSize=" + chunkSize +
+                ", leafCount=" + leafCount +
+                '}';
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.basrikahveci.p2p.peer.network.message.transfer;
+
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.DataMessage;
+
+/**
+ * Asks the sender of a streaming file transfer to send the chunks again starting from the given offset, since the
+ * chunk at the offset is found to be corrupt. Chunks before the offset are kept by the receiver.
+ */
+public class TransferRewind implements DataMessage {
+
+    private static final long serialVersionUID = -7391862216503725194L;
+
+    private final long transferId;
+
+    private final long offset;
+
+    public TransferRewind(long transferId, long offset) {
+        this.transferId = transferId;
+        this.offset = offset;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void handle(Peer peer, Connection connection) {
+        peer.handleTransferRewind(connection, this);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferRewind{" +
+                "transferId=" + transferId +
+                ", offset=" + offset +
+                '}';
+    }
+
+}
@@ -0,0 +1,277 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.google.common.hash.HashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index of the content-defined chunks of the files received with delta transfers. When a new version of a file is
+ * pushed, chunks found in the index are copied from the local files instead of being sent again.
+ * <p>
+ * The index is kept in memory and persisted into a text file that lists each indexed file with its size and
+ * modification time, followed by a line with the offset, length and hash of each of its chunks. Files modified after
+ * they are indexed are dropped when the index is loaded, and the chunks copied from the local files are verified
+ * against their hashes. The in-memory index is only accessed in the peer event loop while the index file is written
+ * by the disk tasks, which run in order.
+ */
+class ChunkStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkStore.class);
+
+    static final String INDEX_FILE_NAME = ".chunk-store";
+
+    private static final String FILE_KEY = "file=";
+
+    private static final String CHUNK_KEY = "chunk=";
+
+    private final Path indexFile;
+
+    private final Executor diskExecutor;
+
+    private final Executor peerExecutor;
+
+    // chunk hash -> a local copy of the chunk
+    private final Map<HashCode, ChunkLocation> chunks = new HashMap<>();
+
+    // indexed file -> its chunks
+    private final Map<Path, List<ContentDefinedChunk>> files = new HashMap<>();
+
+    // last disk task of the store. new tasks are chained to it.
+    private CompletableFuture<?> lastTask = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param diskExecutor executor that runs the blocking file operations
+     * @param peerExecutor executor of the peer event loop that accesses the in-memory index
+     */
+    ChunkStore(Path indexFile, Executor diskExecutor, Executor peerExecutor) {
+        this.indexFile = indexFile;
+        this.diskExecutor = diskExecutor;
+        this.peerExecutor = peerExecutor;
+    }
+
+    /**
+     * Loads the index file in the background and compacts it by dropping the files that are modified or replaced
+     */
+    void load() {
+        enqueue(this::loadIndexFile).whenCompleteAsync((loadedFiles, error) -> {
+            if (error != null) {
+                LOGGER.error("Couldn't load chunk store " + indexFile, error);
+                return;
+            }
+
+            for (Map.Entry<Path, List<ContentDefinedChunk>> e : loadedFiles.entrySet()) {
+                // files received during the load are already indexed
+                if (!files.containsKey(e.getKey())) {
+                    putFile(e.getKey(), e.getValue());
+                }
+            }
+            LOGGER.info("Loaded {} chunks of {} files from chunk store", chunks.size(), files.size());
+        }, peerExecutor);
+    }
+
+    /**
+     * Returns a local copy of the chunk with the given hash and length, or null if there is not any
+     */
+    ChunkLocation find(final HashCode hash, final int length) {
+        final ChunkLocation location = chunks.get(hash);
+        return location != null && location.getLength() == length ? location : null;
+    }
+
+    /**
+     * Indexes the chunks of a received file. Previously indexed chunks of the same path are dropped.
+     */
+    void addFile(final Path path, final List<ContentDefinedChunk> fileChunks) {
+        final Path normalizedPath = path.toAbsolutePath().normalize();
+        removeFile(normalizedPath);
+        putFile(normalizedPath, fileChunks);
+        enqueue(() -> {
+            final long size = Files.size(normalizedPath);
+            final long lastModified = Files.getLastModifiedTime(normalizedPath).toMillis();
+            try (Writer writer = Files.newBufferedWriter(indexFile, UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                writeFile(writer, normalizedPath, size, lastModified, fileChunks);
+            }
+            return null;
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                LOGGER.error("Couldn't add " + normalizedPath + " to chunk store", error);
+            }
+        });
+    }
+
+    /**
+     * Drops the chunks of a file, i.e., if the file is found to be modified
+     */
+    void removeFile(final Path path) {
+        final Path normalizedPath = path.toAbsolutePath().normalize();
+        final List<ContentDefinedChunk> fileChunks = files.remove(normalizedPath);
+        if (fileChunks != null) {
+            for (ContentDefinedChunk chunk : fileChunks) {
+                final ChunkLocation location = chunks.get(chunk.getHash());
+                if (location != null && location.getPath().equals(normalizedPath)) {
+                    chunks.remove(chunk.getHash());
+                }
+            }
+        }
+    }
+
+    private void putFile(final Path path, final List<ContentDefinedChunk> fileChunks) {
+        files.put(path, fileChunks);
+        for (ContentDefinedChunk chunk : fileChunks) {
+            chunks.putIfAbsent(chunk.getHash(), new ChunkLocation(path, chunk.getOffset(), chunk.getLength()));
+        }
+    }
+
+    private Map<Path, List<ContentDefinedChunk>> loadIndexFile() throws IOException {
+        final Map<Path, IndexedFile> indexedFiles = new LinkedHashMap<>();
+        if (Files.exists(indexFile)) {
+            IndexedFile current = null;
+            try {
+                for (String line : Files.readAllLines(indexFile, UTF_8)) {
+                    if (line.startsWith(FILE_KEY)) {
+                        final String[] tokens = line.substring(FILE_KEY.length()).split(",", 3);
+                        current = new IndexedFile(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]));
+                        // the last record of a path replaces the previous ones
+                        final Path path = Paths.get(tokens[2]);
+                        indexedFiles.remove(path);
+                        indexedFiles.put(path, current);
+                    } else if (line.startsWith(CHUNK_KEY) && current != null) {
+                        final String[] tokens = line.substring(CHUNK_KEY.length()).split(",");
+                        current.chunks.add(new ContentDefinedChunk(Long.parseLong(tokens[0]), Integer.parseInt(tokens[1]),
+                                HashCode.fromString(tokens[2])));
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the last line is torn if the peer crashed while appending it
+                LOGGER.warn("Chunk store {} is truncated", indexFile);
+            }
+        }
+
+        final Map<Path, List<ContentDefinedChunk>> validFiles = new LinkedHashMap<>();
+        final Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        try (Writer writer = Files.newBufferedWriter(tempFile, UTF_8)) {
+            for (Map.Entry<Path, IndexedFile> e : indexedFiles.entrySet()) {
+                final Path path = e.getKey();
+                final IndexedFile indexedFile = e.getValue();
+                if (Files.isRegularFile(path) && Files.size(path) == indexedFile.size
+                        && Files.getLastModifiedTime(path).toMillis() == indexedFile.lastModified) {
+                    writeFile(writer, path, indexedFile.size, indexedFile.lastModified, indexedFile.chunks);
+                    validFiles.put(path, indexedFile.chunks);
+                }
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+
+        return validFiles;
+    }
+
+    private static void writeFile(final Writer writer, final Path path, final long size, final long lastModified,
+                                  final List<ContentDefinedChunk> fileChunks) throws IOException {
+        writer.write(FILE_KEY + size + "," + lastModified + "," + path + "\n");
+        for (ContentDefinedChunk chunk : fileChunks) {
+            writer.write(CHUNK_KEY + chunk.getOffset() + "," + chunk.getLength() + "," + chunk.getHash() + "\n");
+        }
+    }
+
+    /**
+     * Chains the given task to the last disk task of the store
+     */
+    private <T> CompletableFuture<T> enqueue(final DiskTask<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        lastTask.whenComplete((ignored, previousError) -> {
+            try {
+                diskExecutor.execute(() -> {
+                    try {
+                        future.complete(task.run());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        lastTask = future;
+        return future;
+    }
+
+    private interface DiskTask<T> {
+        T run() throws IOException;
+    }
+
+    private static class IndexedFile {
+
+        final long size;
+
+        final long lastModified;
+
+        final List<ContentDefinedChunk> chunks = new ArrayList<>();
+
+        IndexedFile(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+    /**
+     * Location of a chunk in a local file
+     */
+    static class ChunkLocation {
+
+        private final Path path;
+
+        private final long offset;
+
+        private final int length;
+
+        ChunkLocation(Path path, long offset, int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "ChunkLocation{" +
+                    "path=" + path +
+                    ", offset=" + offset +
+                    ", length=" + length +
+                    '}';
+        }
+
+    }
+
+}
@@ -2,24 +2,39 @@ package com.basrikahveci.p2p.peer.service;
 
 import com.basrikahveci.p2p.peer.Config;
 import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
 import com.basrikahveci.p2p.peer.network.Connection;
 import com.basrikahveci.p2p.peer.network.PeerChannelHandler;
 import com.basrikahveci.p2p.peer.network.PeerChannelInitializer;
+import com.basrikahveci.p2p.peer.network.TrafficClass;
+import com.basrikahveci.p2p.peer.network.Transport;
+import com.basrikahveci.p2p.peer.network.WriteStats;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
+import com.basrikahveci.p2p.peer.network.codec.WireFormat;
+import com.basrikahveci.p2p.peer.network.message.DataChannelRequest;
+import com.basrikahveci.p2p.peer.network.message.KeepAlive;
+import com.basrikahveci.p2p.peer.network.message.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.serialization.ObjectEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * Maintains TCP connections between this peer and its neighbours
@@ -28,20 +43,43 @@ public class ConnectionService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionService.class);
 
+    private static final WireFormat[] WIRE_FORMATS = WireFormat.values();
+
+    private static final Predicate<Connection> ALL_CONNECTIONS = connection -> true;
+
     private final Config config;
 
+    private final Transport transport;
+
     private final EventLoopGroup networkEventLoopGroup;
 
     private final EventLoopGroup peerEventLoopGroup;
 
-    private final ObjectEncoder encoder;
+    private final MessageEncoder encoder;
+
+    // peer id -> connection
+    private final Map<Long, Connection> connections = new HashMap<Long, Connection>();
+
+    // connections in the order they are added. broadcasts iterate it by index so that they do not allocate an iterator.
+    private final List<Connection> connectionList = new ArrayList<>();
 
-    // server name -> connection
-    private final Map<String, Connection> connections = new HashMap<String, Connection>();
+    // keep-alive frames encoded once for each wire format
+    private final ByteBuf[] keepAliveFrames = new ByteBuf[WIRE_FORMATS.length];
 
-    public ConnectionService(Config config, EventLoopGroup networkEventLoopGroup, EventLoopGroup peerEventLoopGroup,
-                             ObjectEncoder encoder) {
+    // frame buffers of the message being broadcast. they are reused by the broadcasts, which run in the peer event loop,
+    // once all of the duplicates written to the connections are released.
+    private final ByteBuf[] broadcastFrames = new ByteBuf[WIRE_FORMATS.length];
+
+    // filter of forward(). it is reused so that forwarding a message does not allocate a new filter.
+    private final ExcludingFilter excludingFilter = new ExcludingFilter();
+
+    // write stats of the connections that are already removed
+    private final WriteStats removedConnectionsWriteStats = new WriteStats();
+
+    public ConnectionService(Config config, Transport transport, EventLoopGroup networkEventLoopGroup,
+                             EventLoopGroup peerEventLoopGroup, MessageEncoder encoder) {
         this.config = config;
+        this.transport = transport;
         this.networkEventLoopGroup = networkEventLoopGroup;
         this.peerEventLoopGroup = peerEventLoopGroup;
         this.encoder = encoder;
@@ -49,7 +87,11 @@ public class ConnectionService {
 
     public void addConnection(final Connection connection) {
         final String peerName = connection.getPeerName();
-        final Connection previousConnection = connections.put(peerName, connection);
+        final Connection previousConnection = connections.put(connection.getPeerId(), connection);
+        if (previousConnection != null) {
+            connectionList.remove(previousConnection);
+        }
+        connectionList.add(connection);
 
         LOGGER.info("Connection to " + peerName + " is added.");
 
@@ -60,9 +102,12 @@ public class ConnectionService {
     }
 
     public boolean removeConnection(final Connection connection) {
-        final boolean removed = connections.remove(connection.getPeerName()) != null;
+        final Connection removedConnection = connections.remove(connection.getPeerId());
+        final boolean removed = removedConnection != null;
 
         if (removed) {
+            connectionList.remove(removedConnection);
+            removedConnectionsWriteStats.add(connection.getWriteStats());
             LOGGER.info(connection + " is removed from connections!");
         } else {
             LOGGER.warn("Connection to " + connection.getPeerName() + " is not removed since not found in connections!");
@@ -76,25 +121,176 @@ public class ConnectionService {
     }
 
     public boolean isConnectedTo(final String peerName) {
-        return connections.containsKey(peerName);
+        return isConnectedTo(PeerIds.of(peerName));
+    }
+
+    public boolean isConnectedTo(final long peerId) {
+        return connections.containsKey(peerId);
     }
 
     public Connection getConnection(final String peerName) {
-        return connections.get(peerName);
+        return getConnection(PeerIds.of(peerName));
+    }
+
+    public Connection getConnection(final long peerId) {
+        return connections.get(peerId);
     }
 
     public Collection<Connection> getConnections() {
         return Collections.unmodifiableCollection(connections.values());
     }
 
-    public void connectTo(final Peer peer, final String host, final int port, final CompletableFuture<Void> futureToNotify) {
-        final PeerChannelHandler handler = new PeerChannelHandler(config, peer);
-        final PeerChannelInitializer initializer = new PeerChannelInitializer(config, encoder, peerEventLoopGroup, handler);
-        final Bootstrap clientBootstrap = new Bootstrap();
-        clientBootstrap.group(networkEventLoopGroup).channel(NioSocketChannel.class).option(ChannelOption.TCP_NODELAY, true)
-                .handler(initializer);
+    /**
+     * Sends the message to all connections
+     *
+     * @param message message to send
+     * @return number of connections that the message is sent to
+     */
+    public int broadcast(final Message message) {
+        return broadcast(message, ALL_CONNECTIONS);
+    }
+
+    /**
+     * Sends the message to all connections except the ones of the given peers, i.e., the neighbour that has sent the
+     * message and the initiator of the message. Forwarding a message does not allocate any objects other than the
+     * duplicates of the pooled frame written to the connections.
+     *
+     * @param message             message to forward
+     * @param excludedPeerId      peer id of a connection that the message is not sent
+     * @param otherExcludedPeerId peer id of another connection that the message is not sent
+     * @return number of connections that the message is sent to
+     */
+    public int forward(final Message message, final long excludedPeerId, final long otherExcludedPeerId) {
+        excludingFilter.excludedPeerId = excludedPeerId;
+        excludingFilter.otherExcludedPeerId = otherExcludedPeerId;
+        return broadcast(message, excludingFilter);
+    }
+
+    /**
+     * Sends a {@link KeepAlive} message to all connections. Keep-alive frames are encoded once and reused by all
+     * keep-alive rounds.
+     *
+     * @return number of connections that the keep-alive message is sent to
+     */
+    public int broadcastKeepAlive() {
+        return broadcast(KeepAlive.INSTANCE, keepAliveFrames, ALL_CONNECTIONS);
+    }
+
+    /**
+     * Sends the message to the connections accepted by the given filter. The message is encoded only once for each
+     * wire format in use and the encoded frame is shared by the connections.
+     *
+     * @param message message to send
+     * @param filter  filter that selects the connections to send the message
+     * @return number of connections that the message is sent to
+     */
+    public int broadcast(final Message message, final Predicate<Connection> filter) {
+        for (int i = 0; i < broadcastFrames.length; i++) {
+            final ByteBuf frame = broadcastFrames[i];
+            if (frame == null) {
+                continue;
+            }
+
+            // a frame whose duplicates are still being written is left to them and a new one is allocated
+            if (frame.refCnt() == 1) {
+                frame.clear();
+            } else {
+                frame.release();
+                broadcastFrames[i] = null;
+            }
+        }
+
+        return broadcast(message, broadcastFrames, filter);
+    }
+
+    /**
+     * Sends the message to the connections accepted by the filter. A pooled frame buffer is allocated for a wire format
+     * when it is first used and the message is encoded into it only if it is empty, so the buffers that are not
+     * released after the broadcast keep the encoded message for the next broadcasts.
+     */
+    private int broadcast(final Message message, final ByteBuf[] frames, final Predicate<Connection> filter) {
+        final TrafficClass trafficClass = TrafficClass.of(message);
+        int count = 0;
+        try {
+            for (int i = 0; i < connectionList.size(); i++) {
+                final Connection connection = connectionList.get(i);
+                if (!filter.test(connection)) {
+                    continue;
+                }
+
+                final int formatIndex = connection.getWireFormat().ordinal();
+                ByteBuf frame = frames[formatIndex];
+                if (frame == null) {
+                    frame = frames[formatIndex] = PooledByteBufAllocator.DEFAULT.ioBuffer();
+                }
+                if (!frame.isReadable()) {
+                    try {
+                        encoder.encode(message, WIRE_FORMATS[formatIndex], frame);
+                    } catch (Exception e) {
+                        frame.clear();
+                        throw e;
+                    }
+                }
 
-        final ChannelFuture connectFuture = clientBootstrap.connect(host, port);
+                connection.sendEncoded(frame, trafficClass);
+                count++;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Could not encode " + message + " for broadcast", e);
+        }
+
+        return count;
+    }
+
+    /**
+     * Closes the connections whose channels have not been writable for {@link Config#getSlowConnectionTimeoutSeconds()},
+     * i.e., the neighbours that chronically read slower than this peer writes
+     */
+    public void closeSlowConnections() {
+        final long now = System.currentTimeMillis();
+        final long timeoutMillis = TimeUnit.SECONDS.toMillis(config.getSlowConnectionTimeoutSeconds());
+        for (Connection connection : connections.values()) {
+            final long unwritableMillis = connection.getUnwritableMillis(now);
+            if (timeoutMillis > 0 && unwritableMillis > timeoutMillis) {
+                LOGGER.warn("Closing {} since it has not been writable for {} ms", connection, unwritableMillis);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the write stats of the current connections, keyed by peer name
+     *
+     * @return write stats of the current connections
+     */
+    public Map<String, WriteStats> getConnectionWriteStats() {
+        final Map<String, WriteStats> stats = new TreeMap<>();
+        for (Connection connection : connections.values()) {
+            stats.put(connection.getPeerName(), connection.getWriteStats());
+        }
+
+        return stats;
+    }
+
+    /**
+     * Returns the write stats of all connections opened so far, including the removed ones
+     *
+     * @return total write stats of this peer
+     */
+    public WriteStats getTotalWriteStats() {
+        final WriteStats total = new WriteStats();
+        total.add(removedConnectionsWriteStats);
+        for (Connection connection : connections.values()) {
+            final WriteStats stats = connection.getWriteStats();
+            total.add(stats);
+            total.addPendingWrites(stats);
+        }
+
+        return total;
+    }
+
+    public void connectTo(final Peer peer, final String host, final int port, final CompletableFuture<Void> futureToNotify) {
+        final ChannelFuture connectFuture = connect(new PeerChannelHandler(config, peer, true, false), host, port);
         if (futureToNotify != null) {
             connectFuture.addListener(new ChannelFutureListener() {
                 public void operationComplete(ChannelFuture future) throws Exception {
@@ -110,4 +306,57 @@ public class ConnectionService {
         }
     }
 
+    /**
+     * Opens the data channel of the connection. The side that has opened the connection connects to the neighbour
+     * again, since it knows the address that the neighbour accepts connections. The other side asks the neighbour to
+     * do so. The connection is closed if its data channel cannot be opened.
+     *
+     * @param peer       peer that handles the messages of the data channel
+     * @param connection connection to open the data channel
+     */
+    public void openDataChannel(final Peer peer, final Connection connection) {
+        if (!connection.isOutbound()) {
+            connection.send(DataChannelRequest.INSTANCE);
+            return;
+        }
+
+        final InetSocketAddress address = connection.getRemoteAddress();
+        final ChannelFuture connectFuture = connect(new PeerChannelHandler(config, peer, true, true),
+                address.getHostString(), address.getPort());
+        connectFuture.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    LOGGER.error("Could not open data channel of " + connection, future.cause());
+                    peerEventLoopGroup.execute(connection::close);
+                }
+            }
+        });
+    }
+
+    private ChannelFuture connect(final PeerChannelHandler handler, final String host, final int port) {
+        final PeerChannelInitializer initializer = new PeerChannelInitializer(config, encoder, peerEventLoopGroup, handler);
+        final Bootstrap clientBootstrap = new Bootstrap();
+        clientBootstrap.group(networkEventLoopGroup).channel(transport.getSocketChannelClass()).option(ChannelOption.TCP_NODELAY, true)
+                .handler(initializer);
+
+        return clientBootstrap.connect(host, port);
+    }
+
+    /**
+     * Accepts the connections of all peers except the given two
+     */
+    private static final class ExcludingFilter implements Predicate<Connection> {
+
+        private long excludedPeerId;
+
+        private long otherExcludedPeerId;
+
+        @Override
+        public boolean test(final Connection connection) {
+            final long peerId = connection.getPeerId();
+            return peerId != excludedPeerId && peerId != otherExcludedPeerId;
+        }
+
+    }
+
 }
@@ -0,0 +1,50 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * A chunk of a file whose boundaries are found by {@link ContentDefinedChunker}, identified by the SHA-256 hash of
+ * its content
+ */
+class ContentDefinedChunk {
+
+    static final int HASH_LENGTH = 32;
+
+    private final long offset;
+
+    private final int length;
+
+    private final HashCode hash;
+
+    ContentDefinedChunk(long offset, int length, HashCode hash) {
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    long getEnd() {
+        return offset + length;
+    }
+
+    HashCode getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "ContentDefinedChunk{" +
+                "offset=" + offset +
+                ", length=" + length +
+                ", hash=" + hash +
+                '}';
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits files into chunks whose boundaries depend on their content, so that inserting or deleting bytes in a file
+ * only changes the chunks around the edit and the other chunks keep their hashes. A boundary is placed where a gear
+ * rolling hash of the last bytes matches a mask. As in FastCDC, a mask with more bits is used until the average chunk
+ * size and a mask with fewer bits after it, so that chunk sizes are concentrated around the average.
+ * <p>
+ * Gear table is generated from a fixed seed, so all peers place the boundaries of the same content at the same
+ * offsets.
+ */
+final class ContentDefinedChunker {
+
+    private static final long[] GEAR = new long[256];
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    static {
+        final Random random = new Random(0x6765617243444321L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+
+    private final int averageSize;
+
+    private final int maxSize;
+
+    private final long strictMask;
+
+    private final long looseMask;
+
+    /**
+     * @param averageSize average chunk size. It is rounded down to a power of two.
+     * @param maxSize     upper bound of the chunk size
+     */
+    ContentDefinedChunker(int averageSize, int maxSize) {
+        this.averageSize = Integer.highestOneBit(Math.max(averageSize, 64));
+        this.minSize = this.averageSize / 4;
+        this.maxSize = Math.max(this.averageSize, Math.min(this.averageSize * 4, maxSize));
+        final int bits = Integer.numberOfTrailingZeros(this.averageSize);
+        // high bits of the gear hash depend on more of the recent bytes than the low bits
+        this.strictMask = -1L << (64 - (bits + 1));
+        this.looseMask = -1L << (64 - (bits - 1));
+    }
+
+    int getAverageSize() {
+        return averageSize;
+    }
+
+    /**
+     * Reads the whole file, so it must be called on the disk I/O threads
+     *
+     * @return chunks of the file in order
+     */
+    List<ContentDefinedChunk> split(final Path path) throws IOException {
+        final List<ContentDefinedChunk> chunks = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            final byte[] bytes = buffer.array();
+            Hasher hasher = Hashing.sha256().newHasher();
+            long chunkOffset = 0;
+            int chunkLength = 0;
+            long gearHash = 0;
+            int read;
+            while ((read = fileChannel.read(buffer)) >= 0) {
+                if (read == 0) {
+                    continue;
+                }
+
+                int hashedIndex = 0;
+                for (int i = 0; i < buffer.position(); i++) {
+                    gearHash = (gearHash << 1) + GEAR[bytes[i] & 0xFF];
+                    chunkLength++;
+                    if (isBoundary(chunkLength, gearHash)) {
+                        hasher.putBytes(bytes, hashedIndex, i + 1 - hashedIndex);
+                        chunks.add(new ContentDefinedChunk(chunkOffset, chunkLength, hasher.hash()));
+                        hasher = Hashing.sha256().newHasher();
+                        hashedIndex = i + 1;
+                        chunkOffset += chunkLength;
+                        chunkLength = 0;
+                        gearHash = 0;
+                    }
+                }
+
+                hasher.putBytes(bytes, hashedIndex, buffer.position() - hashedIndex);
+                buffer.clear();
+            }
+
+            if (chunkLength > 0) {
+                chunks.add(new ContentDefinedChunk(chunkOffset, chunkLength, hasher.hash()));
+            }
+        }
+
+        return chunks;
+    }
+
+    private boolean isBoundary(final int chunkLength, final long gearHash) {
+        if (chunkLength < minSize) {
+            return false;
+        } else if (chunkLength >= maxSize) {
+            return true;
+        }
+
+        return (gearHash & (chunkLength < averageSize ? strictMask : looseMask)) == 0;
+    }
+
+}
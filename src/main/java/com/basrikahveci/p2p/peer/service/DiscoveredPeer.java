@@ -0,0 +1,64 @@
+package com.basrikahveci.p2p.peer.service;
+
+/**
+ * A peer that has responded to a Ping operation of this peer
+ */
+public class DiscoveredPeer {
+
+    private final String peerName;
+
+    private final String serverHost;
+
+    private final int serverPort;
+
+    private final int hops;
+
+    private final long latencyMillis;
+
+    public DiscoveredPeer(String peerName, String serverHost, int serverPort, int hops, long latencyMillis) {
+        this.peerName = peerName;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.hops = hops;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public String getServerHost() {
+        return serverHost;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Returns the distance of the peer in number of connections, or -1 if it is not known
+     */
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Returns the time from the start of the Ping operation until the response of the peer is received, or 0 if the peer
+     * is already known by this peer
+     */
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveredPeer{" +
+                "peerName='" + peerName + '\'' +
+                ", serverHost='" + serverHost + '\'' +
+                ", serverPort=" + serverPort +
+                ", hops=" + hops +
+                ", latencyMillis=" + latencyMillis +
+                '}';
+    }
+
+}
@@ -0,0 +1,881 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.codec.MessageDecoder;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
+import com.basrikahveci.p2p.peer.network.message.FileMessage;
+import com.basrikahveci.p2p.peer.network.message.Handshake;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferAbort;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferAck;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferChunk;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferComplete;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOffer;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOfferReply;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferOpen;
+import com.basrikahveci.p2p.peer.network.message.transfer.TransferRewind;
+import com.basrikahveci.p2p.peer.service.ChunkStore.ChunkLocation;
+import com.basrikahveci.p2p.peer.service.IncomingTransfer.CorruptChunkException;
+import com.basrikahveci.p2p.peer.service.IncomingTransfer.DeltaChunk;
+import com.google.common.hash.HashCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FileRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams files between neighbours in fixed-size chunks. Chunks are sent with file regions on binary connections so
+ * that their content is not copied through the heap. The sender keeps at most
+ * {@link Config#getFileTransferWindowSize()} chunks unacknowledged, and the receiver writes each chunk to disk before
+ * acknowledging it. Therefore, only a small window of chunks is kept in memory on both sides and other messages can be
+ * interleaved between the chunks.
+ * <p>
+ * Transfers are resumable. The receiver answers a {@link TransferOpen} with the number of bytes it has already
+ * persisted for the transfer, and the sender starts sending chunks from there. If the connection drops, the receiver
+ * keeps the partial file with its manifest, and the sender opens the transfer again once it is connected to the
+ * receiver, within {@link Config#getTransferResumeTimeoutSeconds()}.
+ * <p>
+ * If both peers support it, files are sent with delta transfers. The sender splits the file into content-defined
+ * chunks and offers their hashes before sending them. The receiver looks them up in its {@link ChunkStore} and in the
+ * earlier chunks of the same file, copies the chunks it finds, and asks only for the others. Files received with
+ * delta transfers are indexed in the chunk store, so pushing a new version of a file sends only its changed chunks.
+ * <p>
+ * The sender hashes the file into a {@link MerkleTree} on the hashing pool before opening the transfer, and the
+ * receiver verifies each chunk against its root on the same pool before writing it. A corrupt chunk is fetched again
+ * by rewinding the transfer to it with a {@link TransferRewind}, so the chunks received before it are kept.
+ * <p>
+ * Chunks are only read while the connection is writable and its bandwidth limits allow. Once the neighbour falls behind
+ * or a limit is reached, the transfer waits until the write buffer of the connection drains or the {@link TrafficShaper}
+ * refills, in addition to its window.
+ */
+public class FileTransferService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileTransferService.class);
+
+    /**
+     * Chunk size is capped to leave room for the other fields of a chunk frame
+     */
+    static final int MAX_CHUNK_SIZE_BYTES = MessageDecoder.MAX_FRAME_LENGTH / 2;
+
+    /**
+     * Max number of chunks in a single offer of a delta transfer. Offers are sent at most two batches ahead of the
+     * sent chunks.
+     */
+    private static final int MAX_OFFERED_CHUNK_COUNT = 1024;
+
+    /**
+     * An incoming transfer is aborted if more of its chunks are found corrupt
+     */
+    private static final int MAX_CORRUPT_CHUNK_COUNT = 16;
+
+    private static final byte[] NO_PROOF = new byte[0];
+
+    /**
+     * Max number of finished transfers whose stats are kept
+     */
+    private static final int MAX_FINISHED_TRANSFER_STATS_COUNT = 16;
+
+    private final ConnectionService connectionService;
+
+    private final Config config;
+
+    private final Executor diskExecutor;
+
+    private final ForkJoinPool hashPool;
+
+    private final TrafficShaper trafficShaper;
+
+    private final EventLoopGroup peerEventLoopGroup;
+
+    private final TimeoutScheduler timeoutScheduler;
+
+    private final ChunkStore chunkStore;
+
+    private final ContentDefinedChunker chunker;
+
+    // transfer id -> transfers sent by this peer
+    private final Map<Long, OutgoingTransfer> outgoingTransfers = new HashMap<>();
+
+    // transfer id -> transfers received by this peer
+    private final Map<Long, IncomingTransfer> incomingTransfers = new HashMap<>();
+
+    // transfer id -> pending suspensions of the incoming transfers of closed connections
+    private final Map<Long, CompletableFuture<Long>> incomingTransferSuspensions = new HashMap<>();
+
+    // stats of the recently finished outgoing transfers, from the oldest to the newest
+    private final ArrayDeque<TransferStats.Transfer> finishedTransferStats = new ArrayDeque<>();
+
+    // throughput and latency samples of the finished outgoing transfers
+    private final Histogram finishedThroughputHistogram = new Histogram();
+
+    private final Histogram finishedAckLatencyHistogram = new Histogram();
+
+    /**
+     * @param diskExecutor       executor that runs the blocking file writes
+     * @param hashPool           pool that hashes the sent files and verifies the received chunks
+     * @param trafficShaper      shaper that limits the rate of the sent chunks
+     * @param peerEventLoopGroup event loop of the peer that is notified once the writes are completed
+     * @param timeoutScheduler   scheduler of the resume timeouts of the suspended transfers
+     */
+    public FileTransferService(ConnectionService connectionService, Config config, Executor diskExecutor,
+                               ForkJoinPool hashPool, TrafficShaper trafficShaper, EventLoopGroup peerEventLoopGroup,
+                               TimeoutScheduler timeoutScheduler) {
+        this.connectionService = connectionService;
+        this.config = config;
+        this.diskExecutor = diskExecutor;
+        this.hashPool = hashPool;
+        this.trafficShaper = trafficShaper;
+        this.peerEventLoopGroup = peerEventLoopGroup;
+        this.timeoutScheduler = timeoutScheduler;
+        this.chunkStore = new ChunkStore(Paths.get(config.getDownloadDirectory()).resolve(ChunkStore.INDEX_FILE_NAME),
+                diskExecutor, peerEventLoopGroup);
+        this.chunker = new ContentDefinedChunker(config.getDeltaChunkSizeBytes(), MAX_CHUNK_SIZE_BYTES);
+        if (config.isDeltaTransferEnabled()) {
+            chunkStore.load();
+        }
+    }
+
+    /**
+     * Starts streaming the given file to the given peer
+     *
+     * @param peerName name of the neighbour peer to send the file
+     * @param path     file to send
+     * @param handle   handle to be notified with the progress of the transfer, and once the receiver acknowledges the
+     *                 whole file
+     */
+    public void sendFile(final String peerName, final Path path, final TransferHandle handle) {
+        final CompletableFuture<Void> future = handle.getFuture();
+        final Connection connection = connectionService.getConnection(peerName);
+        if (connection == null) {
+            LOGGER.error("No connection found for peer {}", peerName);
+            future.completeExceptionally(new IllegalArgumentException("Not connected to " + peerName));
+            return;
+        }
+
+        final int chunkSize = Math.max(1, Math.min(config.getFileChunkSizeBytes(), MAX_CHUNK_SIZE_BYTES));
+        final long transferId = newTransferId();
+        final OutgoingTransfer transfer;
+        try {
+            transfer = new OutgoingTransfer(transferId, connection, path, chunkSize, handle);
+        } catch (IOException e) {
+            LOGGER.error("Couldn't open " + path + " to send to " + peerName, e);
+            future.completeExceptionally(e);
+            return;
+        }
+
+        outgoingTransfers.put(transferId, transfer);
+        LOGGER.info("Sending {} with {} bytes to {} with transfer id {}", path, transfer.getFileSize(), peerName,
+                transferId);
+        prepareFile(transfer, isDeltaTransferSupported(connection));
+    }
+
+    /**
+     * Hashes the file into a Merkle tree, and then opens the transfer. For a delta transfer, the file is split into
+     * content-defined chunks on the disk I/O executor first. Otherwise, its fixed-size chunks are read and hashed in
+     * parallel on the hashing pool.
+     */
+    private void prepareFile(final OutgoingTransfer transfer, final boolean delta) {
+        final CompletableFuture<List<ContentDefinedChunk>> chunks = delta
+                ? supplyAsync(() -> chunker.split(transfer.getPath()), diskExecutor)
+                : CompletableFuture.completedFuture(null);
+        final CompletableFuture<MerkleTree> merkleTree = chunks.thenCompose(deltaChunks -> supplyAsync(
+                () -> deltaChunks != null ? MerkleTree.fromChunks(deltaChunks)
+                        : MerkleTree.build(transfer.getPath(), transfer.getFileSize(), transfer.getChunkSize(), hashPool),
+                hashPool));
+
+        transfer.setPreparing(true);
+        merkleTree.whenCompleteAsync((tree, error) -> handleFilePrepared(transfer, chunks.getNow(null), tree, error),
+                peerEventLoopGroup);
+    }
+
+    private void handleFilePrepared(final OutgoingTransfer transfer, final List<ContentDefinedChunk> chunks,
+                                    final MerkleTree merkleTree, final Throwable error) {
+        if (outgoingTransfers.get(transfer.getTransferId()) != transfer) {
+            return;
+        }
+
+        if (chunks != null) {
+            if (error != null) {
+                LOGGER.warn("Sending " + transfer + " without delta since file couldn't be split", error);
+                prepareFile(transfer, false);
+                return;
+            } else if (!chunks.isEmpty() && chunks.get(chunks.size() - 1).getEnd() != transfer.getFileSize()) {
+                LOGGER.warn("Sending {} without delta since file is modified while it is being split", transfer);
+                prepareFile(transfer, false);
+                return;
+            } else if (!isDeltaTransferSupported(transfer.getConnection())) {
+                // resumed over a connection that does not support delta transfers while the file is being split
+                prepareFile(transfer, false);
+                return;
+            }
+        } else if (error != null) {
+            LOGGER.error("Couldn't hash file of " + transfer, error);
+            abortOutgoingTransfer(transfer, "Couldn't read file");
+            return;
+        }
+
+        transfer.setPreparing(false);
+        transfer.setDeltaChunks(chunks);
+        transfer.setMerkleTree(merkleTree);
+        if (!transfer.isSuspended()) {
+            sendTransferOpen(transfer);
+        }
+    }
+
+    private static <T> CompletableFuture<T> supplyAsync(final HashTask<T> task, final Executor executor) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.run());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private boolean isDeltaTransferSupported(final Connection connection) {
+        return config.isDeltaTransferEnabled() && connection.hasCapability(Handshake.DELTA_TRANSFER_CAPABILITY);
+    }
+
+    public void handleTransferOpen(final Connection connection, final TransferOpen open) {
+        final long transferId = open.getTransferId();
+        CompletableFuture<?> previousTask = incomingTransferSuspensions.get(transferId);
+        final IncomingTransfer existingTransfer = incomingTransfers.get(transferId);
+        if (existingTransfer != null) {
+            if (existingTransfer.getConnection().getPeerId() != connection.getPeerId()) {
+                LOGGER.warn("Ignoring {} from {} since transfer already exists", open, connection.getPeerName());
+                return;
+            }
+
+            // the sender has reconnected before this peer has noticed the old connection is closed
+            LOGGER.info("Restarting {} since it is opened again", existingTransfer);
+            incomingTransfers.remove(transferId);
+            previousTask = existingTransfer.suspend();
+        }
+
+        final Path fileName = Paths.get(open.getFileName()).getFileName();
+        if (fileName == null || fileName.toString().equals(ChunkStore.INDEX_FILE_NAME) || open.getFileSize() < 0
+                || open.getChunkSize() <= 0 || open.getLeafCount() < 0
+                || open.getMerkleRoot().length != MerkleTree.HASH_LENGTH) {
+            LOGGER.warn("Rejecting invalid {} from {}", open, connection.getPeerName());
+            connection.send(new TransferAbort(transferId, "Invalid transfer"));
+            return;
+        }
+
+        final Path destination = Paths.get(config.getDownloadDirectory()).resolve(fileName);
+        final IncomingTransfer transfer = new IncomingTransfer(transferId, connection, open.getSenderName(),
+                destination, open.getFileSize(), open.getChunkSize(), open.getLeafCount(), open.getMerkleRoot(),
+                diskExecutor, hashPool, previousTask != null ? previousTask : CompletableFuture.completedFuture(null));
+        incomingTransfers.put(transferId, transfer);
+        LOGGER.info("Receiving {} with {} bytes from {}", fileName, open.getFileSize(), open.getSenderName());
+        transfer.open().whenCompleteAsync((persistedBytes, error) -> handleTransferOpened(transfer, persistedBytes, error),
+                peerEventLoopGroup);
+    }
+
+    private void handleTransferOpened(final IncomingTransfer transfer, final Long persistedBytes, final Throwable error) {
+        if (incomingTransfers.get(transfer.getTransferId()) != transfer) {
+            return;
+        }
+
+        if (error != null) {
+            LOGGER.error("Couldn't open file of " + transfer, error);
+            abortIncomingTransfer(transfer, "Couldn't create file");
+            return;
+        }
+
+        if (persistedBytes > 0) {
+            LOGGER.info("Resuming {} from {} persisted bytes", transfer, persistedBytes);
+        }
+
+        transfer.start(persistedBytes);
+        transfer.getConnection().send(new TransferAck(transfer.getTransferId(), persistedBytes));
+    }
+
+    public void handleTransferChunk(final Connection connection, final TransferChunk chunk) {
+        final IncomingTransfer transfer = getIncomingTransfer(connection, chunk.getTransferId());
+        if (transfer == null) {
+            LOGGER.warn("No incoming transfer found for {} from {}", chunk, connection.getPeerName());
+            return;
+        }
+
+        if (transfer.isRewinding() && (transfer.isDelta() || chunk.getOffset() != transfer.getRewindOffset())) {
+            // sent before the sender is informed about the corrupt chunk
+            LOGGER.debug("Ignoring {} since {} is rewound to {}", chunk, transfer, transfer.getRewindOffset());
+            return;
+        }
+
+        try {
+            transfer.write(chunk.getOffset(), chunk.getData(), chunk.getProof()).whenCompleteAsync(
+                    (receivedBytes, error) -> handleChunkWritten(transfer, receivedBytes, error), peerEventLoopGroup);
+        } catch (IOException e) {
+            LOGGER.error("Invalid " + chunk + " for " + transfer, e);
+            abortIncomingTransfer(transfer, "Invalid chunk");
+            return;
+        }
+
+        copyLocalDeltaChunks(transfer);
+    }
+
+    public void handleTransferOffer(final Connection connection, final TransferOffer offer) {
+        final IncomingTransfer transfer = getIncomingTransfer(connection, offer.getTransferId());
+        if (transfer == null) {
+            LOGGER.warn("No incoming transfer found for {} from {}", offer, connection.getPeerName());
+            return;
+        }
+
+        // offers are verified in parallel with the chunks, but handled in order
+        final CompletableFuture<Boolean> verification = supplyAsync(() -> offer.getChunkCount() > 0
+                && MerkleTree.verify(transfer.getMerkleRoot(), transfer.getLeafCount(), offer.getChunkIndex(),
+                offer.getChunkHashes(), offer.getProof()), hashPool);
+        transfer.setLastOffer(transfer.getLastOffer().thenCombineAsync(verification.handle(
+                (verified, error) -> error == null && verified), (ignored, verified) -> {
+            handleOfferVerified(transfer, offer, verified);
+            return null;
+        }, peerEventLoopGroup));
+    }
+
+    private void handleOfferVerified(final IncomingTransfer transfer, final TransferOffer offer, final boolean verified) {
+        if (incomingTransfers.get(transfer.getTransferId()) != transfer) {
+            return;
+        } else if (transfer.isRewinding() && offer.getOffset() != transfer.getRewindOffset()) {
+            LOGGER.debug("Ignoring {} since {} is rewound to {}", offer, transfer, transfer.getRewindOffset());
+            return;
+        } else if (!verified) {
+            LOGGER.error("{} does not match the Merkle root of {}", offer, transfer);
+            abortIncomingTransfer(transfer, "Invalid offer");
+            return;
+        }
+
+        final int[] chunkLengths = offer.getChunkLengths();
+        final byte[] chunkHashes = offer.getChunkHashes();
+        final List<ContentDefinedChunk> chunks = new ArrayList<>(chunkLengths.length);
+        long offset = offer.getOffset();
+        for (int i = 0; i < chunkLengths.length; i++) {
+            final byte[] hash = Arrays.copyOfRange(chunkHashes, i * TransferOffer.HASH_LENGTH,
+                    (i + 1) * TransferOffer.HASH_LENGTH);
+            chunks.add(new ContentDefinedChunk(offset, chunkLengths[i], HashCode.fromBytes(hash)));
+            offset += chunkLengths[i];
+        }
+
+        final BitSet neededChunks;
+        try {
+            neededChunks = transfer.offer(offer.getChunkIndex(), offer.getOffset(), chunks, chunkStore);
+        } catch (IOException e) {
+            LOGGER.error("Invalid " + offer + " for " + transfer, e);
+            abortIncomingTransfer(transfer, "Invalid offer");
+            return;
+        }
+
+        transfer.getConnection().send(new TransferOfferReply(transfer.getTransferId(), offer.getOffset(), chunks.size(),
+                neededChunks.toByteArray()));
+        copyLocalDeltaChunks(transfer);
+    }
+
+    /**
+     * Queues the offered chunks that are available locally to be copied, until the next chunk that must be sent by
+     * the sender
+     */
+    private void copyLocalDeltaChunks(final IncomingTransfer transfer) {
+        DeltaChunk deltaChunk;
+        while ((deltaChunk = transfer.pollLocalDeltaChunk()) != null) {
+            final ChunkLocation source = deltaChunk.getSource();
+            final long offset = deltaChunk.getChunk().getOffset();
+            try {
+                transfer.copy(deltaChunk).whenCompleteAsync((receivedBytes, error) -> {
+                    final Throwable cause = unwrap(error);
+                    if (cause instanceof CorruptChunkException && ((CorruptChunkException) cause).getOffset() == offset) {
+                        // the local file is modified after it is indexed
+                        chunkStore.removeFile(source.getPath());
+                    }
+                    handleChunkWritten(transfer, receivedBytes, error);
+                }, peerEventLoopGroup);
+            } catch (IOException e) {
+                LOGGER.error("Couldn't copy " + deltaChunk.getChunk() + " for " + transfer, e);
+                abortIncomingTransfer(transfer, "Invalid chunk");
+                return;
+            }
+        }
+    }
+
+    private void handleChunkWritten(final IncomingTransfer transfer, final Long receivedBytes, final Throwable error) {
+        if (incomingTransfers.get(transfer.getTransferId()) != transfer) {
+            return;
+        }
+
+        final Throwable cause = unwrap(error);
+        if (cause instanceof CorruptChunkException) {
+            handleCorruptChunk(transfer, (CorruptChunkException) cause);
+            return;
+        } else if (error != null) {
+            LOGGER.error("Couldn't write chunk of " + transfer, error);
+            abortIncomingTransfer(transfer, "Couldn't write chunk");
+            return;
+        }
+
+        // completions of consecutive writes may be reordered on their way to the peer event loop
+        if (receivedBytes <= transfer.getReceivedBytes()) {
+            return;
+        }
+
+        transfer.setReceivedBytes(receivedBytes);
+        // the last chunk is acknowledged after the file is moved to its destination
+        if (receivedBytes < transfer.getFileSize()) {
+            transfer.getConnection().send(new TransferAck(transfer.getTransferId(), receivedBytes));
+        }
+    }
+
+    /**
+     * Rewinds the transfer to the corrupt chunk so that the sender sends it again
+     */
+    private void handleCorruptChunk(final IncomingTransfer transfer, final CorruptChunkException cause) {
+        if (!transfer.rewind(cause)) {
+            // a write queued after the corrupt chunk
+            return;
+        } else if (transfer.getCorruptChunkCount() > MAX_CORRUPT_CHUNK_COUNT) {
+            LOGGER.error("Aborting {} since {} of its chunks are corrupt", transfer, transfer.getCorruptChunkCount());
+            abortIncomingTransfer(transfer, "Too many corrupt chunks");
+            return;
+        }
+
+        LOGGER.warn("Chunk at {} of {} is corrupt. Fetching it again.", cause.getOffset(), transfer);
+        transfer.getConnection().send(new TransferRewind(transfer.getTransferId(), cause.getOffset()));
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    public void handleTransferComplete(final Connection connection, final TransferComplete complete) {
+        final IncomingTransfer transfer = getIncomingTransfer(connection, complete.getTransferId());
+        if (transfer == null) {
+            LOGGER.warn("No incoming transfer found for {} from {}", complete, connection.getPeerName());
+            return;
+        } else if (transfer.isRewinding()) {
+            // the sender completes the transfer again after it sends the corrupt chunk again
+            LOGGER.debug("Ignoring {} since {} is rewound to {}", complete, transfer, transfer.getRewindOffset());
+            return;
+        }
+
+        try {
+            transfer.complete().whenCompleteAsync((fileSize, error) -> handleFileCompleted(transfer, error),
+                    peerEventLoopGroup);
+        } catch (IOException e) {
+            LOGGER.error("Couldn't complete " + transfer, e);
+            abortIncomingTransfer(transfer, "Couldn't complete file");
+        }
+    }
+
+    private void handleFileCompleted(final IncomingTransfer transfer, final Throwable error) {
+        if (incomingTransfers.get(transfer.getTransferId()) != transfer) {
+            return;
+        }
+
+        if (unwrap(error) instanceof CorruptChunkException) {
+            // the transfer is rewound to the corrupt chunk
+            return;
+        } else if (error != null) {
+            LOGGER.error("Couldn't complete " + transfer, error);
+            abortIncomingTransfer(transfer, "Couldn't complete file");
+            return;
+        }
+
+        incomingTransfers.remove(transfer.getTransferId());
+        transfer.setReceivedBytes(transfer.getFileSize());
+        transfer.getConnection().send(new TransferAck(transfer.getTransferId(), transfer.getFileSize()));
+        LOGGER.info("File {} with {} bytes received from {}", transfer.getDestination().toAbsolutePath(),
+                transfer.getFileSize(), transfer.getConnection().getPeerName());
+        if (transfer.isDelta()) {
+            chunkStore.addFile(transfer.getDestination(), transfer.getDeltaChunks());
+        }
+    }
+
+    /**
+     * Saves a file received with a single {@link FileMessage} from peers that do not stream files
+     */
+    public void handleFileMessage(final Connection connection, final FileMessage fileMessage) {
+        final Path fileName = Paths.get(fileMessage.getFileName()).getFileName();
+        if (fileName == null || fileName.toString().equals(ChunkStore.INDEX_FILE_NAME)) {
+            LOGGER.warn("Ignoring file with invalid name from {}", connection.getPeerName());
+            return;
+        }
+
+        final Path destination = Paths.get(config.getDownloadDirectory()).resolve(fileName);
+        final byte[] content = fileMessage.getFileContent();
+        CompletableFuture.runAsync(() -> {
+            try {
+                Files.createDirectories(destination.getParent());
+                Files.write(destination, content);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, diskExecutor).whenCompleteAsync((ignored, error) -> {
+            if (error == null) {
+                LOGGER.info("File {} with {} bytes received from {}", destination.toAbsolutePath(), content.length,
+                        fileMessage.getSenderName());
+            } else {
+                LOGGER.error("Couldn't save file " + destination + " received from " + fileMessage.getSenderName(),
+                        error);
+            }
+        }, peerEventLoopGroup);
+    }
+
+    public void handleTransferAck(final Connection connection, final TransferAck ack) {
+        final OutgoingTransfer transfer = outgoingTransfers.get(ack.getTransferId());
+        if (transfer == null || transfer.isSuspended() || transfer.getConnection() != connection) {
+            LOGGER.warn("No outgoing transfer found for {} from {}", ack, connection.getPeerName());
+            return;
+        }
+
+        if (!transfer.ack(ack.getReceivedBytes())) {
+            LOGGER.warn("Invalid {} for {}", ack, transfer);
+            abortOutgoingTransfer(transfer, "Invalid acknowledgement");
+            return;
+        }
+
+        transfer.getHandle().updateProgress(transfer.getProgress());
+        if (transfer.isAllAcked() && transfer.isCompleteSent()) {
+            outgoingTransfers.remove(transfer.getTransferId());
+            transfer.close();
+            addFinishedTransferStats(transfer);
+            LOGGER.info("File {} with {} bytes sent to {}", transfer.getPath(), transfer.getFileSize(),
+                    connection.getPeerName());
+            if (transfer.isDelta()) {
+                LOGGER.info("{} of {} chunks of {} are sent to {}", transfer.getNeededChunkCount(),
+                        transfer.getSentChunkCount(), transfer.getPath(), connection.getPeerName());
+            }
+            transfer.getFuture().complete(null);
+        } else {
+            sendChunks(transfer);
+        }
+    }
+
+    public void handleTransferOfferReply(final Connection connection, final TransferOfferReply reply) {
+        final OutgoingTransfer transfer = outgoingTransfers.get(reply.getTransferId());
+        if (transfer == null || transfer.isSuspended() || transfer.getConnection() != connection || !transfer.isDelta()) {
+            LOGGER.warn("No outgoing delta transfer found for {} from {}", reply, connection.getPeerName());
+            return;
+        }
+
+        if (!transfer.reply(reply.getOffset(), reply.getChunkCount(), BitSet.valueOf(reply.getNeededChunks()))) {
+            LOGGER.warn("Invalid {} for {}", reply, transfer);
+            abortOutgoingTransfer(transfer, "Invalid offer reply");
+            return;
+        }
+
+        sendChunks(transfer);
+    }
+
+    public void handleTransferRewind(final Connection connection, final TransferRewind rewind) {
+        final OutgoingTransfer transfer = outgoingTransfers.get(rewind.getTransferId());
+        if (transfer == null || transfer.isSuspended() || transfer.getConnection() != connection) {
+            LOGGER.warn("No outgoing transfer found for {} from {}", rewind, connection.getPeerName());
+            return;
+        }
+
+        if (!transfer.rewind(rewind.getOffset())) {
+            LOGGER.warn("Invalid {} for {}", rewind, transfer);
+            abortOutgoingTransfer(transfer, "Invalid rewind");
+            return;
+        }
+
+        LOGGER.warn("Sending {} again from {} since receiver has found a corrupt chunk", transfer, rewind.getOffset());
+        sendChunks(transfer);
+    }
+
+    public void handleTransferAbort(final Connection connection, final TransferAbort abort) {
+        final long transferId = abort.getTransferId();
+        final OutgoingTransfer outgoingTransfer = outgoingTransfers.get(transferId);
+        if (outgoingTransfer != null && outgoingTransfer.getConnection() == connection) {
+            LOGGER.warn("{} aborted by receiver: {}", outgoingTransfer, abort.getReason());
+            removeOutgoingTransfer(outgoingTransfer, abort.getReason());
+            return;
+        }
+
+        final IncomingTransfer incomingTransfer = getIncomingTransfer(connection, transferId);
+        if (incomingTransfer != null) {
+            LOGGER.warn("{} aborted by sender: {}", incomingTransfer, abort.getReason());
+            incomingTransfers.remove(transferId);
+            incomingTransfer.discard();
+        }
+    }
+
+    /**
+     * Suspends the transfers of a closed connection so that they can be resumed later
+     */
+    public void handleConnectionClosed(final Connection connection) {
+        for (Iterator<IncomingTransfer> it = incomingTransfers.values().iterator(); it.hasNext(); ) {
+            final IncomingTransfer transfer = it.next();
+            if (transfer.getConnection() == connection) {
+                LOGGER.warn("Suspending {} since connection is closed", transfer);
+                it.remove();
+                final long transferId = transfer.getTransferId();
+                final CompletableFuture<Long> suspension = transfer.suspend();
+                incomingTransferSuspensions.put(transferId, suspension);
+                suspension.whenCompleteAsync((ignored, error) -> incomingTransferSuspensions.remove(transferId, suspension),
+                        peerEventLoopGroup);
+            }
+        }
+
+        for (OutgoingTransfer transfer : outgoingTransfers.values()) {
+            if (!transfer.isSuspended() && transfer.getConnection() == connection) {
+                LOGGER.warn("Suspending {} since connection is closed", transfer);
+                transfer.suspend(timeoutScheduler.schedule(() -> expireSuspendedTransfer(transfer),
+                        config.getTransferResumeTimeoutSeconds(), TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    /**
+     * Resumes the suspended transfers to the peer of the new connection
+     */
+    public void handleConnectionOpened(final Connection connection) {
+        for (OutgoingTransfer transfer : outgoingTransfers.values()) {
+            if (transfer.isSuspended() && transfer.getConnection().getPeerId() == connection.getPeerId()) {
+                transfer.resume(connection);
+                LOGGER.info("Resuming {} over new connection", transfer);
+                if (transfer.isDelta() && !isDeltaTransferSupported(connection)) {
+                    // Merkle tree of the content-defined chunks can not be used for a regular transfer
+                    transfer.setDeltaChunks(null);
+                    prepareFile(transfer, false);
+                } else if (!transfer.isPreparing()) {
+                    sendTransferOpen(transfer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the chunks that are held back while the write buffer of the connection is full or its bandwidth is used up
+     */
+    public void handleConnectionWritable(final Connection connection) {
+        for (OutgoingTransfer transfer : new ArrayList<>(outgoingTransfers.values())) {
+            if (!transfer.isSuspended() && transfer.getConnection() == connection) {
+                sendChunks(transfer);
+            }
+        }
+    }
+
+    private void expireSuspendedTransfer(final OutgoingTransfer transfer) {
+        if (outgoingTransfers.get(transfer.getTransferId()) == transfer && transfer.isSuspended()) {
+            LOGGER.warn("{} is not resumed in {} seconds", transfer, config.getTransferResumeTimeoutSeconds());
+            removeOutgoingTransfer(transfer, "Connection is not established again");
+        }
+    }
+
+    private void sendTransferOpen(final OutgoingTransfer transfer) {
+        final MerkleTree merkleTree = transfer.getMerkleTree();
+        transfer.getConnection().send(new TransferOpen(transfer.getTransferId(),
+                transfer.getPath().getFileName().toString(), config.getPeerName(), transfer.getFileSize(),
+                transfer.getChunkSize(), merkleTree.getLeafCount(), merkleTree.getRoot()));
+    }
+
+    private void sendChunks(final OutgoingTransfer transfer) {
+        final Connection connection = transfer.getConnection();
+        if (transfer.isDelta()) {
+            sendDeltaChunks(transfer);
+        }
+
+        while (!transfer.isDelta() && !transfer.isReading() && transfer.hasWindow(config.getFileTransferWindowSize())
+                && connection.isWritable() && trafficShaper.hasBandwidth(connection)) {
+            final long offset = transfer.getSentBytes();
+            final byte[] proof = transfer.getChunkProof(offset);
+            if (connection.isFileRegionEnabled(config.isChunkCompressionEnabled())) {
+                final FileRegion region = transfer.nextRegion();
+                final ByteBuf header = PooledByteBufAllocator.DEFAULT.ioBuffer();
+                MessageEncoder.encodeTransferChunkHeader(header, transfer.getTransferId(), offset, proof,
+                        (int) region.count());
+                connection.sendFileRegion(header, region);
+            } else {
+                sendBufferedChunk(transfer, offset, transfer.skipNextChunk(), proof);
+            }
+            trafficShaper.consume(connection, transfer.getSentBytes() - offset);
+        }
+
+        if (transfer.isStarted() && transfer.isAllSent() && !transfer.isReading() && !transfer.isCompleteSent()) {
+            transfer.setCompleteSent();
+            connection.send(new TransferComplete(transfer.getTransferId()));
+        }
+    }
+
+    /**
+     * Offers the next chunks and sends the replied chunks that the receiver needs
+     */
+    private void sendDeltaChunks(final OutgoingTransfer transfer) {
+        final Connection connection = transfer.getConnection();
+        sendOffers(transfer);
+        while (!transfer.isReading() && transfer.hasWindow(config.getFileTransferWindowSize())
+                && transfer.hasRepliedChunk() && connection.isWritable() && trafficShaper.hasBandwidth(connection)) {
+            final int chunkIndex = transfer.getSentChunkCount();
+            final ContentDefinedChunk chunk = transfer.nextDeltaChunk();
+            if (!transfer.isNeeded(chunkIndex)) {
+                continue;
+            }
+
+            if (connection.isFileRegionEnabled(config.isChunkCompressionEnabled())) {
+                final ByteBuf header = PooledByteBufAllocator.DEFAULT.ioBuffer();
+                MessageEncoder.encodeTransferChunkHeader(header, transfer.getTransferId(), chunk.getOffset(), NO_PROOF,
+                        chunk.getLength());
+                connection.sendFileRegion(header, transfer.newRegion(chunk.getOffset(), chunk.getLength()));
+            } else {
+                sendBufferedChunk(transfer, chunk.getOffset(), chunk.getLength(), NO_PROOF);
+            }
+            trafficShaper.consume(connection, chunk.getLength());
+        }
+        sendOffers(transfer);
+    }
+
+    /**
+     * Reads the chunk on the disk I/O executor and sends it as a {@link TransferChunk} message so that the encoder can
+     * compress it. Chunks of a transfer are read one at a time so that they are sent in order, and the next chunks are
+     * sent once the chunk is sent.
+     */
+    private void sendBufferedChunk(final OutgoingTransfer transfer, final long offset, final int length,
+                                   final byte[] proof) {
+        final int readId = transfer.startRead();
+        final CompletableFuture<ByteBuf> future = new CompletableFuture<>();
+        try {
+            diskExecutor.execute(() -> {
+                try {
+                    future.complete(transfer.readChunk(offset, length, PooledByteBufAllocator.DEFAULT));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+
+        future.whenCompleteAsync((data, error) -> {
+            if (!transfer.finishRead(readId) || transfer.isSuspended()
+                    || outgoingTransfers.get(transfer.getTransferId()) != transfer) {
+                if (data != null) {
+                    data.release();
+                }
+            } else if (error != null) {
+                LOGGER.error("Couldn't read chunk of " + transfer, error);
+                abortOutgoingTransfer(transfer, "Couldn't read file");
+            } else {
+                transfer.getConnection().send(new TransferChunk(transfer.getTransferId(), offset, proof, data));
+                sendChunks(transfer);
+            }
+        }, peerEventLoopGroup);
+    }
+
+    private void sendOffers(final OutgoingTransfer transfer) {
+        List<ContentDefinedChunk> chunks;
+        while (!(chunks = transfer.nextOffer(MAX_OFFERED_CHUNK_COUNT, 2 * MAX_OFFERED_CHUNK_COUNT)).isEmpty()) {
+            final int[] chunkLengths = new int[chunks.size()];
+            final byte[] chunkHashes = new byte[chunks.size() * TransferOffer.HASH_LENGTH];
+            for (int i = 0; i < chunks.size(); i++) {
+                final ContentDefinedChunk chunk = chunks.get(i);
+                chunkLengths[i] = chunk.getLength();
+                chunk.getHash().writeBytesTo(chunkHashes, i * TransferOffer.HASH_LENGTH, TransferOffer.HASH_LENGTH);
+            }
+            final int chunkIndex = transfer.getOfferedChunkCount() - chunks.size();
+            transfer.getConnection().send(new TransferOffer(transfer.getTransferId(), chunkIndex,
+                    chunks.get(0).getOffset(), chunkLengths, chunkHashes,
+                    transfer.getMerkleTree().getProof(chunkIndex, chunkIndex + chunks.size())));
+        }
+    }
+
+    private IncomingTransfer getIncomingTransfer(final Connection connection, final long transferId) {
+        final IncomingTransfer transfer = incomingTransfers.get(transferId);
+        return transfer != null && transfer.getConnection() == connection ? transfer : null;
+    }
+
+    private void abortIncomingTransfer(final IncomingTransfer transfer, final String reason) {
+        incomingTransfers.remove(transfer.getTransferId());
+        transfer.discard();
+        transfer.getConnection().send(new TransferAbort(transfer.getTransferId(), reason));
+    }
+
+    private void abortOutgoingTransfer(final OutgoingTransfer transfer, final String reason) {
+        removeOutgoingTransfer(transfer, reason);
+        transfer.getConnection().send(new TransferAbort(transfer.getTransferId(), reason));
+    }
+
+    private void removeOutgoingTransfer(final OutgoingTransfer transfer, final String reason) {
+        outgoingTransfers.remove(transfer.getTransferId());
+        transfer.close();
+        addFinishedTransferStats(transfer);
+        transfer.getFuture().completeExceptionally(new IOException("Transfer of " + transfer.getPath() + " failed: " + reason));
+    }
+
+    private void addFinishedTransferStats(final OutgoingTransfer transfer) {
+        finishedThroughputHistogram.add(transfer.getThroughputHistogram());
+        finishedAckLatencyHistogram.add(transfer.getAckLatencyHistogram());
+        if (finishedTransferStats.size() == MAX_FINISHED_TRANSFER_STATS_COUNT) {
+            finishedTransferStats.poll();
+        }
+        finishedTransferStats.add(newTransferStats(transfer, false));
+    }
+
+    private static TransferStats.Transfer newTransferStats(final OutgoingTransfer transfer, final boolean active) {
+        return new TransferStats.Transfer(transfer.getPath().toString(), transfer.getProgress(), active,
+                transfer.getThroughputHistogram().copy(), transfer.getAckLatencyHistogram().copy());
+    }
+
+    /**
+     * Returns the stats of the ongoing and recently finished outgoing transfers, along with the histograms of all
+     * outgoing transfers
+     */
+    public TransferStats getTransferStats() {
+        final List<TransferStats.Transfer> transfers = new ArrayList<>();
+        final Histogram throughputHistogram = finishedThroughputHistogram.copy();
+        final Histogram ackLatencyHistogram = finishedAckLatencyHistogram.copy();
+        for (OutgoingTransfer transfer : outgoingTransfers.values()) {
+            transfers.add(newTransferStats(transfer, true));
+            throughputHistogram.add(transfer.getThroughputHistogram());
+            ackLatencyHistogram.add(transfer.getAckLatencyHistogram());
+        }
+        final List<TransferStats.Transfer> finishedTransfers = new ArrayList<>(finishedTransferStats);
+        Collections.reverse(finishedTransfers);
+        transfers.addAll(finishedTransfers);
+
+        return new TransferStats(transfers, throughputHistogram, ackLatencyHistogram);
+    }
+
+    private interface HashTask<T> {
+        T run() throws IOException;
+    }
+
+    private long newTransferId() {
+        long transferId;
+        do {
+            transferId = Peer.RANDOM.nextLong();
+        } while (outgoingTransfers.containsKey(transferId));
+
+        return transferId;
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.basrikahveci.p2p.peer.service;
+
+import java.util.Arrays;
+
+/**
+ * Counts non-negative values in buckets whose widths grow exponentially, so that it takes a fixed amount of memory for
+ * any range of values. Each power of two is split into {@link #SUB_BUCKET_COUNT} buckets, hence percentiles are
+ * reported within 12.5% of the recorded values. Histograms are not thread-safe, so they are copied before they are
+ * passed to other threads.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final long[] counts;
+
+    private long count;
+
+    private long sum;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    public Histogram() {
+        this.counts = new long[BUCKET_COUNT];
+    }
+
+    private Histogram(final Histogram other) {
+        this.counts = Arrays.copyOf(other.counts, BUCKET_COUNT);
+        this.count = other.count;
+        this.sum = other.sum;
+        this.min = other.min;
+        this.max = other.max;
+    }
+
+    /**
+     * Records the given value. Negative values are recorded as 0.
+     */
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        counts[bucketIndex(v)]++;
+        count++;
+        sum += v;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Adds the values recorded by the other histogram to this histogram
+     */
+    public void add(final Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public Histogram copy() {
+        return new Histogram(this);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall, rounded up to the end of its
+     * bucket
+     *
+     * @param percentile percentage between 0 and 100
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, bucketUpperBound(i)));
+            }
+        }
+
+        return max;
+    }
+
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        final int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKET_COUNT;
+        final long lowerBound = (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram{" +
+                "count=" + count +
+                ", min=" + getMin() +
+                ", p50=" + getValueAtPercentile(50) +
+                ", p90=" + getValueAtPercentile(90) +
+                ", p99=" + getValueAtPercentile(99) +
+                ", max=" + max +
+                ", mean=" + String.format("%.1f", getMean()) +
+                '}';
+    }
+
+}
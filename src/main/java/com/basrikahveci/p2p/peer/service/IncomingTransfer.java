@@ -0,0 +1,681 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.service.ChunkStore.ChunkLocation;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the state of a file that is streamed from a neighbour. Chunks are written into a partial file as they
+ * arrive and the partial file is moved to its destination once the transfer completes. Each written chunk is recorded
+ * in a {@link TransferManifest} so that an interrupted transfer can be resumed from its last persisted chunk.
+ * <p>
+ * The file is written behind on the disk I/O executor. Disk tasks of a transfer are chained so that they run in order,
+ * and at most one of them is queued in the executor at a time. Methods of this class must be called on the peer
+ * event loop while the files are only touched by the disk tasks.
+ * <p>
+ * In a delta transfer, the sender offers the hashes of the content-defined chunks of the file before sending them,
+ * and only sends the chunks that this peer does not have. Other chunks are copied from the local files indexed in the
+ * {@link ChunkStore}, or from the earlier chunks of the same file, so the partial file is still written in order.
+ * <p>
+ * Each chunk is verified against the Merkle root of the file before it is written. Chunks of a regular transfer
+ * carry their proofs, while the offered hashes of a delta transfer are verified with the proofs of the offers and
+ * chunks are verified against their offered hashes. Chunks are hashed in parallel on the hashing executor, but they
+ * are still written in order. If a chunk is corrupt, it is not written and the transfer is rewound to the chunk so
+ * that it is fetched again along with the chunks after it.
+ */
+class IncomingTransfer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncomingTransfer.class);
+
+    private static final Runnable NO_CLEANUP = () -> {
+    };
+
+    static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    private final long transferId;
+
+    private final Connection connection;
+
+    private final String senderName;
+
+    private final Path destination;
+
+    private final Path partialFile;
+
+    private final Path manifestFile;
+
+    private final long fileSize;
+
+    // size of the leaves of the Merkle tree in a regular transfer
+    private final int leafSize;
+
+    private final int leafCount;
+
+    private final byte[] merkleRoot;
+
+    private final Executor diskExecutor;
+
+    private final Executor hashExecutor;
+
+    private FileChannel fileChannel;
+
+    private TransferManifest manifest;
+
+    // last disk task of the transfer. new tasks are chained to it.
+    private CompletableFuture<Long> lastTask;
+
+    // number of bytes accepted to be written
+    private long queuedBytes;
+
+    private long receivedBytes;
+
+    // offset of the corrupt chunk that is expected to be sent again, or -1 if there is not any
+    private long rewindOffset = -1;
+
+    // failure of the last corrupt chunk. writes queued after the chunk fail with the same exception.
+    private CorruptChunkException rewindCause;
+
+    private int corruptChunkCount;
+
+    private boolean delta;
+
+    // index of the next chunk that the sender of a delta transfer offers, or -1 before the first offer
+    private int offeredChunkIndex = -1;
+
+    // last offer waiting for its hashes to be verified. offers are handled in order.
+    private CompletableFuture<?> lastOffer = CompletableFuture.completedFuture(null);
+
+    // end of the last chunk offered by the sender of a delta transfer
+    private long offeredBytes;
+
+    // chunks offered by the sender that are not queued to be written yet, in file order
+    private final Deque<DeltaChunk> pendingDeltaChunks = new ArrayDeque<>();
+
+    // chunks offered by the sender, to be indexed once the file is received
+    private final List<ContentDefinedChunk> deltaChunks = new ArrayList<>();
+
+    // chunk hash -> offset of an offered chunk in the partial file
+    private final Map<HashCode, Long> offeredChunkOffsets = new HashMap<>();
+
+    // local file that the last chunk is copied from. only accessed by the disk tasks.
+    private Path sourcePath;
+
+    private FileChannel sourceChannel;
+
+    /**
+     * @param hashExecutor executor that verifies the chunks against the Merkle root
+     * @param previousTask disk task that must be completed before this transfer touches its files, such as suspension
+     *                     of an earlier attempt of the same transfer
+     */
+    IncomingTransfer(long transferId, Connection connection, String senderName, Path destination, long fileSize,
+                     int leafSize, int leafCount, byte[] merkleRoot, Executor diskExecutor, Executor hashExecutor,
+                     CompletableFuture<?> previousTask) {
+        this.transferId = transferId;
+        this.connection = connection;
+        this.senderName = senderName;
+        this.destination = destination;
+        this.partialFile = destination.resolveSibling(destination.getFileName() + PARTIAL_FILE_SUFFIX);
+        this.manifestFile = destination.resolveSibling(destination.getFileName() + TransferManifest.MANIFEST_FILE_SUFFIX);
+        this.fileSize = fileSize;
+        this.leafSize = leafSize;
+        this.leafCount = leafCount;
+        this.merkleRoot = merkleRoot;
+        this.diskExecutor = diskExecutor;
+        this.hashExecutor = hashExecutor;
+        this.lastTask = previousTask.handle((ignored, error) -> 0L);
+    }
+
+    long getTransferId() {
+        return transferId;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    Path getDestination() {
+        return destination;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the number of bytes persisted to the partial file
+     */
+    long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    void setReceivedBytes(final long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+
+    boolean isAllQueued() {
+        return queuedBytes == fileSize;
+    }
+
+    /**
+     * Opens the partial file. If there is a manifest of an earlier attempt of this transfer, chunks recorded in it
+     * are verified and kept.
+     *
+     * @return future to be completed with the number of bytes that are already persisted
+     */
+    CompletableFuture<Long> open() {
+        return enqueue(() -> {
+            Files.createDirectories(partialFile.getParent());
+            final TransferManifest existingManifest = TransferManifest.load(manifestFile);
+            long persistedBytes = 0;
+            if (existingManifest != null && existingManifest.matches(transferId, senderName, fileSize)
+                    && existingManifest.getPartialFile().equals(partialFile) && Files.exists(partialFile)) {
+                manifest = existingManifest;
+                fileChannel = FileChannel.open(partialFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                persistedBytes = manifest.verify(fileChannel);
+                fileChannel.truncate(persistedBytes);
+            } else {
+                manifest = new TransferManifest(manifestFile, transferId, senderName, fileSize, partialFile);
+                fileChannel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            manifest.write();
+            return persistedBytes;
+        }, NO_CLEANUP);
+    }
+
+    /**
+     * Starts accepting chunks after the given number of bytes that are already persisted
+     */
+    void start(final long persistedBytes) {
+        queuedBytes = persistedBytes;
+        receivedBytes = persistedBytes;
+    }
+
+    /**
+     * Queues the chunk content to be written into the partial file without copying it into a heap array. Chunks
+     * must arrive in order. The content is retained until it is written. It is verified on the hashing executor and
+     * the write fails with a {@link CorruptChunkException} if it is corrupt.
+     *
+     * @param proof proof of the chunk against the Merkle root in a regular transfer
+     * @return future to be completed with the number of bytes persisted once the chunk is written
+     */
+    CompletableFuture<Long> write(final long offset, final ByteBuf data, final byte[] proof) throws IOException {
+        final int length = data.readableBytes();
+        if (offset != queuedBytes) {
+            throw new IOException("Expected chunk at " + queuedBytes + " but received at " + offset);
+        } else if (offset + length > fileSize) {
+            throw new IOException("Chunk at " + offset + " with length " + length + " exceeds file size " + fileSize);
+        }
+
+        final BooleanSupplier verifier;
+        if (delta) {
+            final ContentDefinedChunk chunk = pollSentDeltaChunk(offset, length);
+            if (chunk == null) {
+                throw new IOException("Chunk at " + offset + " is not offered or available locally");
+            }
+            verifier = () -> MerkleTree.hashLeaf(data).equals(chunk.getHash());
+        } else {
+            if (leafSize <= 0 || offset % leafSize != 0 || length != Math.min(leafSize, fileSize - offset)) {
+                throw new IOException("Chunk at " + offset + " with length " + length + " does not match chunk size "
+                        + leafSize);
+            }
+            final int leafIndex = (int) (offset / leafSize);
+            verifier = () -> MerkleTree.verify(merkleRoot, leafCount, leafIndex, MerkleTree.hashLeaf(data).asBytes(), proof);
+        }
+
+        if (offset == rewindOffset) {
+            rewindOffset = -1;
+        }
+        queuedBytes += length;
+        data.retain();
+        final CompletableFuture<Boolean> verification = new CompletableFuture<>();
+        try {
+            hashExecutor.execute(() -> {
+                try {
+                    verification.complete(verifier.getAsBoolean());
+                } catch (Throwable t) {
+                    verification.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            verification.completeExceptionally(e);
+        }
+
+        // the content is released only after it is hashed, even if a previous task fails
+        final CompletableFuture<Long> previousTask = lastTask;
+        lastTask = verification.handle((ignored, error) -> 0L).thenCompose(ignored -> previousTask);
+        return enqueue(() -> {
+            if (!verification.join()) {
+                throw new CorruptChunkException(offset);
+            }
+
+            return writeBuffers(offset, length, data.nioBuffers());
+        }, data::release);
+    }
+
+    /**
+     * Registers the chunks offered by the sender of a delta transfer. Chunks found in the chunk store or among the
+     * earlier chunks of this file are queued to be copied with {@link #pollLocalDeltaChunk()}, and the others are
+     * expected to be sent in order.
+     *
+     * The offered hashes must already be verified against the Merkle root.
+     *
+     * @param chunkIndex index of the first chunk in the file
+     * @param offset     offset of the first chunk in the file
+     * @return the chunks that must be sent by the sender, relative to the first offered chunk
+     */
+    BitSet offer(final int chunkIndex, final long offset, final List<ContentDefinedChunk> chunks,
+                 final ChunkStore chunkStore) throws IOException {
+        if (!delta) {
+            delta = true;
+            offeredBytes = queuedBytes;
+        }
+
+        if (offset != offeredBytes) {
+            throw new IOException("Expected offer at " + offeredBytes + " but received at " + offset);
+        } else if (offeredChunkIndex >= 0 && chunkIndex != offeredChunkIndex) {
+            throw new IOException("Expected offer of chunk " + offeredChunkIndex + " but received " + chunkIndex);
+        } else if (chunkIndex < 0 || chunkIndex + chunks.size() > leafCount) {
+            throw new IOException("Offered chunks exceed chunk count " + leafCount);
+        }
+
+        final BitSet neededChunks = new BitSet(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            final ContentDefinedChunk chunk = chunks.get(i);
+            if (chunk.getOffset() != offeredBytes || chunk.getLength() <= 0 || chunk.getEnd() > fileSize) {
+                throw new IOException("Invalid offered " + chunk + " for file size " + fileSize);
+            }
+
+            final Long earlierOffset = offeredChunkOffsets.get(chunk.getHash());
+            final ChunkLocation source = earlierOffset != null
+                    ? new ChunkLocation(partialFile, earlierOffset, chunk.getLength())
+                    : chunkStore.find(chunk.getHash(), chunk.getLength());
+            if (source == null) {
+                neededChunks.set(i);
+            }
+
+            pendingDeltaChunks.add(new DeltaChunk(chunk, source));
+            deltaChunks.add(chunk);
+            offeredChunkOffsets.putIfAbsent(chunk.getHash(), chunk.getOffset());
+            offeredBytes = chunk.getEnd();
+        }
+
+        offeredChunkIndex = chunkIndex + chunks.size();
+        if (offeredBytes == fileSize && offeredChunkIndex != leafCount) {
+            throw new IOException("Offered " + offeredChunkIndex + " chunks of " + leafCount);
+        }
+        if (offset == rewindOffset) {
+            rewindOffset = -1;
+        }
+
+        return neededChunks;
+    }
+
+    boolean isDelta() {
+        return delta;
+    }
+
+    int getLeafCount() {
+        return leafCount;
+    }
+
+    byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    /**
+     * Returns true if the transfer waits for a corrupt chunk to be sent again. Chunks sent before the sender is
+     * informed about it must be ignored.
+     */
+    boolean isRewinding() {
+        return rewindOffset >= 0;
+    }
+
+    long getRewindOffset() {
+        return rewindOffset;
+    }
+
+    int getCorruptChunkCount() {
+        return corruptChunkCount;
+    }
+
+    CompletableFuture<?> getLastOffer() {
+        return lastOffer;
+    }
+
+    void setLastOffer(final CompletableFuture<?> lastOffer) {
+        this.lastOffer = lastOffer;
+    }
+
+    /**
+     * Drops the chunks queued after the corrupt chunk, and waits for the sender to send them again. Chunks queued
+     * before the corrupt one are kept.
+     *
+     * @param cause failure of the corrupt chunk
+     * @return false if the transfer is already rewound for the given failure
+     */
+    boolean rewind(final CorruptChunkException cause) {
+        final long offset = cause.getOffset();
+        if (cause == rewindCause || offset > queuedBytes) {
+            return false;
+        }
+
+        rewindCause = cause;
+        rewindOffset = offset;
+        corruptChunkCount++;
+        queuedBytes = offset;
+        // writes after the corrupt chunk have failed along with it
+        lastTask = lastTask.handle((ignored, error) -> 0L);
+        if (delta) {
+            pendingDeltaChunks.clear();
+            offeredBytes = offset;
+            while (!deltaChunks.isEmpty() && deltaChunks.get(deltaChunks.size() - 1).getOffset() >= offset) {
+                deltaChunks.remove(deltaChunks.size() - 1);
+                offeredChunkIndex--;
+            }
+            offeredChunkOffsets.values().removeIf(chunkOffset -> chunkOffset >= offset);
+        }
+
+        return true;
+    }
+
+    List<ContentDefinedChunk> getDeltaChunks() {
+        return deltaChunks;
+    }
+
+    /**
+     * Removes the next offered chunk if it can be copied from a local file
+     *
+     * @return the removed chunk, or null if the next chunk must be sent by the sender or there is no offered chunk
+     */
+    DeltaChunk pollLocalDeltaChunk() {
+        final DeltaChunk next = pendingDeltaChunks.peek();
+        return next != null && next.getSource() != null ? pendingDeltaChunks.poll() : null;
+    }
+
+    /**
+     * Removes the next offered chunk if it is the one sent by the sender at the given offset
+     *
+     * @return the removed chunk, or null if the sent chunk is not expected
+     */
+    private ContentDefinedChunk pollSentDeltaChunk(final long offset, final int length) {
+        final DeltaChunk next = pendingDeltaChunks.peek();
+        if (next == null || next.getSource() != null || next.getChunk().getOffset() != offset
+                || next.getChunk().getLength() != length) {
+            return null;
+        }
+
+        return pendingDeltaChunks.poll().getChunk();
+    }
+
+    /**
+     * Queues an offered chunk to be copied from a local file into the partial file. The copied content is verified
+     * against the hash of the chunk, and the copy fails with a {@link CorruptChunkException} if the local file is
+     * modified.
+     *
+     * @return future to be completed with the number of bytes persisted once the chunk is written
+     */
+    CompletableFuture<Long> copy(final DeltaChunk deltaChunk) throws IOException {
+        final ContentDefinedChunk chunk = deltaChunk.getChunk();
+        final ChunkLocation source = deltaChunk.getSource();
+        final long offset = chunk.getOffset();
+        final int length = chunk.getLength();
+        if (offset != queuedBytes) {
+            throw new IOException("Expected chunk at " + queuedBytes + " but copying at " + offset);
+        }
+
+        queuedBytes += length;
+        return enqueue(() -> {
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                final FileChannel channel = getSourceChannel(source.getPath());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, source.getOffset() + buffer.position()) < 0) {
+                        throw new EOFException(source + " is truncated");
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't read " + source, e);
+                throw new CorruptChunkException(offset);
+            }
+
+            if (!Hashing.sha256().hashBytes(buffer.array()).equals(chunk.getHash())) {
+                LOGGER.warn("{} does not match the hash of {}", source, chunk);
+                throw new CorruptChunkException(offset);
+            }
+
+            buffer.flip();
+            return writeBuffers(offset, length, new ByteBuffer[]{buffer});
+        }, NO_CLEANUP);
+    }
+
+    private FileChannel getSourceChannel(final Path path) throws IOException {
+        if (path.equals(partialFile)) {
+            return fileChannel;
+        } else if (!path.equals(sourcePath)) {
+            closeSourceChannel();
+            sourceChannel = FileChannel.open(path, StandardOpenOption.READ);
+            sourcePath = path;
+        }
+
+        return sourceChannel;
+    }
+
+    private void closeSourceChannel() throws IOException {
+        if (sourceChannel != null) {
+            sourceChannel.close();
+            sourceChannel = null;
+            sourcePath = null;
+        }
+    }
+
+    /**
+     * Writes the given content at the given offset and records it in the manifest
+     *
+     * @return position of the end of the content in the partial file
+     */
+    private long writeBuffers(final long offset, final int length, final ByteBuffer[] buffers) throws IOException {
+        final CRC32 crc = new CRC32();
+        long position = offset;
+        for (ByteBuffer buffer : buffers) {
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+        }
+
+        manifest.append(offset, length, crc.getValue());
+        return position;
+    }
+
+    /**
+     * Moves the partial file to its destination after all of the chunks are written, and deletes the manifest
+     *
+     * @return future to be completed with the file size once the file is moved
+     */
+    CompletableFuture<Long> complete() throws IOException {
+        if (!isAllQueued()) {
+            throw new IOException("Received " + queuedBytes + " bytes of " + fileSize);
+        }
+
+        return enqueue(() -> {
+            fileChannel.close();
+            closeSourceChannel();
+            Files.move(partialFile, destination, StandardCopyOption.REPLACE_EXISTING);
+            manifest.delete();
+            return fileSize;
+        }, NO_CLEANUP);
+    }
+
+    /**
+     * Closes the partial file and the manifest after the pending disk tasks are done. They are kept to resume
+     * the transfer later.
+     *
+     * @return future to be completed once the files are closed
+     */
+    CompletableFuture<Long> suspend() {
+        return enqueueFinally(() -> {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            closeSourceChannel();
+            if (manifest != null) {
+                manifest.close();
+            }
+        });
+    }
+
+    /**
+     * Deletes the partial file and the manifest after the pending disk tasks are done
+     */
+    void discard() {
+        enqueueFinally(() -> {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            closeSourceChannel();
+            if (manifest != null) {
+                manifest.delete();
+            }
+            Files.deleteIfExists(partialFile);
+        });
+    }
+
+    /**
+     * Chains the given task to the last disk task of the transfer. The task is skipped if a previous task has failed.
+     * The cleanup runs once in any case.
+     */
+    private CompletableFuture<Long> enqueue(final DiskTask task, final Runnable cleanup) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        lastTask.whenComplete((ignored, previousError) -> {
+            if (previousError != null) {
+                cleanup.run();
+                future.completeExceptionally(previousError);
+                return;
+            }
+
+            try {
+                diskExecutor.execute(() -> {
+                    try {
+                        future.complete(task.run());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        cleanup.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                cleanup.run();
+                future.completeExceptionally(e);
+            }
+        });
+
+        lastTask = future;
+        return future;
+    }
+
+    /**
+     * Chains the given task to the last disk task of the transfer. The task runs even if a previous task has failed.
+     */
+    private CompletableFuture<Long> enqueueFinally(final CloseTask task) {
+        lastTask = lastTask.handle((ignored, error) -> 0L);
+        return enqueue(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't close files of " + this, e);
+            }
+            return 0L;
+        }, NO_CLEANUP);
+    }
+
+    /**
+     * A chunk offered by the sender of a delta transfer with its local copy, if there is any
+     */
+    static class DeltaChunk {
+
+        private final ContentDefinedChunk chunk;
+
+        private final ChunkLocation source;
+
+        DeltaChunk(ContentDefinedChunk chunk, ChunkLocation source) {
+            this.chunk = chunk;
+            this.source = source;
+        }
+
+        ContentDefinedChunk getChunk() {
+            return chunk;
+        }
+
+        ChunkLocation getSource() {
+            return source;
+        }
+
+    }
+
+    /**
+     * Thrown by the write of a chunk that does not match the Merkle root of the file, and by the writes queued after it
+     */
+    static class CorruptChunkException extends IOException {
+
+        private static final long serialVersionUID = 5170862335806325461L;
+
+        private final long offset;
+
+        CorruptChunkException(long offset) {
+            super("Chunk at " + offset + " is corrupt");
+            this.offset = offset;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+    }
+
+    private interface DiskTask {
+        long run() throws IOException;
+    }
+
+    private interface CloseTask {
+        void run() throws IOException;
+    }
+
+    @Override
+    public String toString() {
+        return "IncomingTransfer{" +
+                "transferId=" + transferId +
+                ", peerName=" + connection.getPeerName() +
+                ", destination=" + destination +
+                ", fileSize=" + fileSize +
+                ", receivedBytes=" + receivedBytes +
+                '}';
+    }
+
+}
@@ -6,9 +6,6 @@ import com.basrikahveci.p2p.peer.network.Connection;
 import com.basrikahveci.p2p.peer.network.message.leader.AnnounceLeader;
 import com.basrikahveci.p2p.peer.network.message.leader.Election;
 import com.basrikahveci.p2p.peer.network.message.leader.Rejection;
-import io.netty.channel.EventLoopGroup;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,7 +20,7 @@ public class LeadershipService {
 
     private final Config config;
 
-    private final EventLoopGroup peerEventLoopGroup;
+    private final TimeoutScheduler timeoutScheduler;
 
     /**
      * Name of the peer that is announced as leader
@@ -36,14 +33,14 @@ public class LeadershipService {
     private boolean isElectionPresent;
 
     /**
-     * Timeout {@link Future} of the current election
+     * Timeout of the current election
      */
-    private ScheduledFuture electionTimeoutFuture;
+    private TimeoutScheduler.Timeout electionTimeout;
 
-    public LeadershipService(ConnectionService connectionService, Config config, EventLoopGroup peerEventLoopGroup) {
+    public LeadershipService(ConnectionService connectionService, Config config, TimeoutScheduler timeoutScheduler) {
         this.connectionService = connectionService;
         this.config = config;
-        this.peerEventLoopGroup = peerEventLoopGroup;
+        this.timeoutScheduler = timeoutScheduler;
     }
 
     /**
@@ -110,9 +107,9 @@ public class LeadershipService {
                 LOGGER.warn("Rejection of {} is ignored since it is weaker.", connectionPeerName);
             } else {
                 LOGGER.info("{} rejected. Scheduling election timeout.", connectionPeerName);
-                if (electionTimeoutFuture != null) {
-                    electionTimeoutFuture.cancel(false);
-                    electionTimeoutFuture = null;
+                if (electionTimeout != null) {
+                    electionTimeout.cancel();
+                    electionTimeout = null;
                 } else {
                     LOGGER.warn("Election timeout do not exist!");
                 }
@@ -130,7 +127,7 @@ public class LeadershipService {
      * to reduce congestion between election of this peer and other peers.
      */
     public void scheduleElection() {
-        peerEventLoopGroup.schedule((Runnable) this::startElection, Peer.RANDOM.nextInt(100), MILLISECONDS);
+        timeoutScheduler.schedule(this::startElection, Peer.RANDOM.nextInt(100), MILLISECONDS);
     }
 
     /**
@@ -154,23 +151,18 @@ public class LeadershipService {
 
         isElectionPresent = true;
         leaderName = null;
-        final Election election = new Election();
-        for (Connection connection : connectionService.getConnections()) {
-            if (connection.getPeerName().compareTo(config.getPeerName()) > 0) {
-                connection.send(election);
-            }
-        }
+        connectionService.broadcast(new Election(), connection -> connection.getPeerName().compareTo(config.getPeerName()) > 0);
 
         LOGGER.info("Started an election!");
         scheduleElectionTimeout(config.getLeaderElectionTimeoutSeconds());
     }
 
     private void scheduleElectionTimeout(final long timeoutSeconds) {
-        electionTimeoutFuture = peerEventLoopGroup.schedule((Runnable) this::handleElectionTimeout, timeoutSeconds, SECONDS);
+        electionTimeout = timeoutScheduler.schedule(this::handleElectionTimeout, timeoutSeconds, SECONDS);
     }
 
     private void handleElectionTimeout() {
-        electionTimeoutFuture = null;
+        electionTimeout = null;
         if (isElectionPresent) {
             LOGGER.info("Election timed out without getting any rejections. Announcing itself as leader.");
             setThisPeerLeader();
@@ -186,10 +178,7 @@ public class LeadershipService {
     private void setThisPeerLeader() {
         this.leaderName = config.getPeerName();
         LOGGER.info("Announcing itself as leader!");
-        final AnnounceLeader announceLeader = new AnnounceLeader(config.getPeerName());
-        for (Connection connection : connectionService.getConnections()) {
-            connection.send(announceLeader);
-        }
+        connectionService.broadcast(new AnnounceLeader(config.getPeerName()));
     }
 
 }
@@ -0,0 +1,21 @@
+package com.basrikahveci.p2p.peer.service;
+
+/**
+ * Protocols that a peer uses to learn about the other peers in the network and to find peers to connect to
+ */
+public enum MembershipMode {
+
+    /**
+     * Peers are discovered by flooding {@link com.basrikahveci.p2p.peer.network.message.ping.Ping} messages to the
+     * network periodically, which costs a number of messages that grows with the size of the network for each peer
+     */
+    FLOODING,
+
+    /**
+     * Peers probe their neighbours for liveness and gossip membership updates piggybacked on the probes and
+     * keep-alive messages as in SWIM. Each peer sends a constant number of messages per protocol period regardless of
+     * the size of the network. See {@link MembershipService}.
+     */
+    SWIM
+
+}
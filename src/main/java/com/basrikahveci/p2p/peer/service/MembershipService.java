@@ -0,0 +1,500 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.membership.MemberUpdate;
+import com.basrikahveci.p2p.peer.network.message.membership.MemberUpdate.State;
+import com.basrikahveci.p2p.peer.network.message.membership.MembershipGossip;
+import com.basrikahveci.p2p.peer.network.message.membership.Probe;
+import com.basrikahveci.p2p.peer.network.message.membership.ProbeAck;
+import com.basrikahveci.p2p.peer.network.message.membership.ProbeRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Maintains the members of the network with a SWIM-like protocol when the membership mode is
+ * {@link MembershipMode#SWIM}. In each protocol period, i.e., keep-alive period, this peer probes one of its neighbours
+ * in a shuffled round-robin order. If the neighbour doesn't acknowledge the probe in half a period, a few other
+ * neighbours are asked to probe it indirectly. If no acknowledgement is received until the next period, the neighbour
+ * is suspected, and it is declared dead unless it refutes the suspicion in a number of periods logarithmic in the size
+ * of the network.
+ * <p>
+ * Since peers only talk to their neighbours, probes are limited to the neighbours, and the members beyond them are
+ * learnt by gossip. Membership updates are piggybacked on the probes, their acknowledgements and the keep-alive
+ * messages that are sent anyway, and each update is piggybacked a logarithmic number of times. Hence a peer sends a
+ * constant number of messages per period regardless of the size of the network.
+ */
+public class MembershipService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MembershipService.class);
+
+    /**
+     * Number of neighbours asked to probe a neighbour that has not acknowledged a direct probe
+     */
+    static final int INDIRECT_PROBE_COUNT = 3;
+
+    /**
+     * Multiplied by the logarithm of the number of members to find how many times an update is piggybacked and for how
+     * many periods a member is suspected before it is declared dead
+     */
+    static final int DISSEMINATION_MULTIPLIER = 3;
+
+    static final int MAX_PIGGYBACKED_UPDATE_COUNT = 8;
+
+    /**
+     * Maximum number of members sent in a single message when a new neighbour is synchronized
+     */
+    static final int MAX_SYNC_UPDATE_COUNT = 256;
+
+    /**
+     * Number of periods that a dead member is remembered, so that stale updates of it are ignored
+     */
+    static final int DEAD_MEMBER_RETENTION_PERIODS = 60;
+
+    private final ConnectionService connectionService;
+
+    private final Config config;
+
+    private final TimeoutScheduler timeoutScheduler;
+
+    private final Map<Long, Member> members = new HashMap<>();
+
+    /**
+     * Updates to piggyback, at most one for each peer
+     */
+    private final Map<Long, Dissemination> disseminations = new HashMap<>();
+
+    /**
+     * Probes sent on behalf of the neighbours that have requested indirect probes, by sequence number
+     */
+    private final Map<Integer, RelayedProbe> relayedProbes = new HashMap<>();
+
+    private final List<Long> probeOrder = new ArrayList<>();
+
+    private InetSocketAddress bindAddress;
+
+    private int incarnation;
+
+    private int sequenceNumber;
+
+    private ProbeContext currentProbe;
+
+    public MembershipService(ConnectionService connectionService, Config config, TimeoutScheduler timeoutScheduler) {
+        this.connectionService = connectionService;
+        this.config = config;
+        this.timeoutScheduler = timeoutScheduler;
+    }
+
+    public void setBindAddress(final InetSocketAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Runs a protocol period. Suspects the neighbour probed in the previous period if it has not acknowledged, probes
+     * the next neighbour and sends the pending updates to the neighbours in place of a keep-alive message.
+     */
+    public void runProtocolPeriod() {
+        final long now = System.nanoTime();
+        if (currentProbe != null && !currentProbe.acked) {
+            final Member target = members.get(currentProbe.targetPeerId);
+            if (target != null) {
+                LOGGER.warn("Suspecting {} since it has not acknowledged probe #{}", target.peerName,
+                        currentProbe.sequenceNumber);
+                suspect(target, now);
+            }
+        }
+        currentProbe = null;
+
+        expireMembers(now);
+        probeNextNeighbour();
+
+        final List<MemberUpdate> updates = piggyback();
+        if (updates.isEmpty()) {
+            connectionService.broadcastKeepAlive();
+        } else {
+            final int count = connectionService.broadcast(new MembershipGossip(updates));
+            LOGGER.debug("Gossiped {} updates to {} neighbours", updates.size(), count);
+        }
+    }
+
+    /**
+     * Sends all members known by this peer to the new neighbour
+     */
+    public void handleConnectionOpened(final Connection connection) {
+        final List<MemberUpdate> updates = new ArrayList<>();
+        if (bindAddress != null) {
+            updates.add(newSelfUpdate(State.ALIVE));
+        }
+        for (Member member : members.values()) {
+            updates.add(member.toUpdate());
+            if (updates.size() == MAX_SYNC_UPDATE_COUNT) {
+                connection.send(new MembershipGossip(updates));
+                updates.clear();
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            connection.send(new MembershipGossip(updates));
+        }
+    }
+
+    /**
+     * Suspects the neighbour whose connection is closed, since it is not probed anymore. If it is still alive, it
+     * refutes the suspicion through its other neighbours.
+     */
+    public void handleConnectionClosed(final Connection connection) {
+        final Member member = members.get(connection.getPeerId());
+        if (member != null && member.state == State.ALIVE) {
+            LOGGER.info("Suspecting {} since its connection is closed", member.peerName);
+            suspect(member, System.nanoTime());
+        }
+    }
+
+    public void handleProbe(final Connection connection, final Probe probe) {
+        apply(probe.getUpdates());
+        connection.send(new ProbeAck(probe.getSequenceNumber(), piggyback()));
+    }
+
+    public void handleProbeAck(final Connection connection, final ProbeAck ack) {
+        apply(ack.getUpdates());
+
+        final int sequenceNumber = ack.getSequenceNumber();
+        if (currentProbe != null && currentProbe.sequenceNumber == sequenceNumber) {
+            LOGGER.debug("Probe #{} of {} is acknowledged via {}", sequenceNumber, currentProbe.targetPeerName,
+                    connection.getPeerName());
+            currentProbe.acked = true;
+            return;
+        }
+
+        final RelayedProbe relayedProbe = relayedProbes.remove(sequenceNumber);
+        if (relayedProbe != null && connectionService.getConnection(relayedProbe.requester.getPeerId())
+                == relayedProbe.requester) {
+            relayedProbe.requester.send(new ProbeAck(relayedProbe.requesterSequenceNumber, piggyback()));
+        }
+    }
+
+    public void handleProbeRequest(final Connection connection, final ProbeRequest request) {
+        final Connection target = connectionService.getConnection(request.getTargetPeerName());
+        if (target == null || target == connection) {
+            LOGGER.debug("Ignoring {} of {} since there is no connection to the target", request,
+                    connection.getPeerName());
+            return;
+        }
+
+        final int relayedSequenceNumber = ++sequenceNumber;
+        relayedProbes.put(relayedSequenceNumber, new RelayedProbe(connection, request.getSequenceNumber()));
+        target.send(new Probe(relayedSequenceNumber, piggyback()));
+        timeoutScheduler.schedule(() -> relayedProbes.remove(relayedSequenceNumber),
+                config.getKeepAlivePeriodSeconds(), SECONDS);
+    }
+
+    public void handleMembershipGossip(final MembershipGossip gossip) {
+        apply(gossip.getUpdates());
+    }
+
+    /**
+     * Notifies the handle with the members that are not declared dead and completes it with their names, including
+     * this peer. Since the members are already known, the handle is completed immediately and the hop counts are not
+     * known.
+     */
+    public void ping(final PingHandle handle) {
+        final Set<String> peers = new HashSet<>();
+        for (Member member : members.values()) {
+            if (member.state != State.DEAD) {
+                peers.add(member.peerName);
+                handle.notifyPeer(new DiscoveredPeer(member.peerName, member.serverHost, member.serverPort, -1, 0));
+            }
+        }
+        peers.add(config.getPeerName());
+        handle.getFuture().complete(peers);
+    }
+
+    /**
+     * Returns the members that are known to be alive
+     */
+    public List<MemberUpdate> getAliveMembers() {
+        final List<MemberUpdate> aliveMembers = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.state == State.ALIVE) {
+                aliveMembers.add(member.toUpdate());
+            }
+        }
+
+        return aliveMembers;
+    }
+
+    /**
+     * Announces to the neighbours that this peer is leaving the network
+     */
+    public void leave() {
+        if (bindAddress != null) {
+            connectionService.broadcast(new MembershipGossip(Collections.singletonList(newSelfUpdate(State.DEAD))));
+        }
+    }
+
+    private void probeNextNeighbour() {
+        Connection target = null;
+        while (target == null) {
+            if (probeOrder.isEmpty()) {
+                for (Connection connection : connectionService.getConnections()) {
+                    probeOrder.add(connection.getPeerId());
+                }
+                if (probeOrder.isEmpty()) {
+                    return;
+                }
+                Collections.shuffle(probeOrder, Peer.RANDOM);
+            }
+
+            target = connectionService.getConnection(probeOrder.remove(probeOrder.size() - 1));
+        }
+
+        currentProbe = new ProbeContext(++sequenceNumber, target.getPeerId(), target.getPeerName());
+        target.send(new Probe(currentProbe.sequenceNumber, piggyback()));
+
+        final int probeSequenceNumber = currentProbe.sequenceNumber;
+        final long ackTimeoutMillis = SECONDS.toMillis(config.getKeepAlivePeriodSeconds()) / 2;
+        timeoutScheduler.schedule(() -> probeIndirectly(probeSequenceNumber), ackTimeoutMillis, MILLISECONDS);
+    }
+
+    private void probeIndirectly(final int probeSequenceNumber) {
+        if (currentProbe == null || currentProbe.sequenceNumber != probeSequenceNumber || currentProbe.acked) {
+            return;
+        }
+
+        final List<Connection> candidates = new ArrayList<>();
+        for (Connection connection : connectionService.getConnections()) {
+            if (connection.getPeerId() != currentProbe.targetPeerId) {
+                candidates.add(connection);
+            }
+        }
+        Collections.shuffle(candidates, Peer.RANDOM);
+
+        final ProbeRequest request = new ProbeRequest(probeSequenceNumber, currentProbe.targetPeerName);
+        final int count = Math.min(INDIRECT_PROBE_COUNT, candidates.size());
+        for (int i = 0; i < count; i++) {
+            candidates.get(i).send(request);
+        }
+
+        LOGGER.info("Probe #{} of {} is not acknowledged. Requested {} neighbours to probe it.", probeSequenceNumber,
+                currentProbe.targetPeerName, count);
+    }
+
+    private void apply(final List<MemberUpdate> updates) {
+        for (MemberUpdate update : updates) {
+            apply(update);
+        }
+    }
+
+    private void apply(final MemberUpdate update) {
+        final long peerId = update.getPeerId();
+        if (peerId == config.getPeerId()) {
+            if (update.getState() != State.ALIVE && update.getIncarnation() >= incarnation && bindAddress != null) {
+                incarnation = update.getIncarnation() + 1;
+                LOGGER.info("Refuting {} with incarnation {}", update, incarnation);
+                disseminate(newSelfUpdate(State.ALIVE));
+            }
+            return;
+        }
+
+        final Member member = members.get(peerId);
+        if (member == null) {
+            members.put(peerId, new Member(update, System.nanoTime()));
+            if (update.getState() != State.DEAD) {
+                LOGGER.info("{} has joined via {}:{}", update.getPeerName(), update.getServerHost(),
+                        update.getServerPort());
+            }
+        } else if (member.isOverriddenBy(update)) {
+            LOGGER.info("{} is {} with incarnation {}", member.peerName, update.getState(), update.getIncarnation());
+            member.update(update, System.nanoTime());
+        } else {
+            return;
+        }
+
+        disseminate(update);
+    }
+
+    private void suspect(final Member member, final long now) {
+        if (member.state == State.ALIVE) {
+            member.state = State.SUSPECT;
+            member.stateChangeNanos = now;
+            disseminate(member.toUpdate());
+        }
+    }
+
+    private void expireMembers(final long now) {
+        final long periodNanos = SECONDS.toNanos(config.getKeepAlivePeriodSeconds());
+        final long suspicionTimeoutNanos = getDisseminationLimit() * periodNanos;
+        final long deadMemberRetentionNanos = DEAD_MEMBER_RETENTION_PERIODS * periodNanos;
+
+        final Iterator<Member> it = members.values().iterator();
+        while (it.hasNext()) {
+            final Member member = it.next();
+            final long elapsedNanos = now - member.stateChangeNanos;
+            if (member.state == State.SUSPECT && elapsedNanos > suspicionTimeoutNanos) {
+                LOGGER.warn("Declaring {} dead since it has not refuted the suspicion", member.peerName);
+                member.state = State.DEAD;
+                member.stateChangeNanos = now;
+                disseminate(member.toUpdate());
+
+                final Connection connection = connectionService.getConnection(member.peerId);
+                if (connection != null) {
+                    connection.close();
+                }
+            } else if (member.state == State.DEAD && elapsedNanos > deadMemberRetentionNanos) {
+                it.remove();
+                disseminations.remove(member.peerId);
+            }
+        }
+    }
+
+    private void disseminate(final MemberUpdate update) {
+        disseminations.put(update.getPeerId(), new Dissemination(update));
+    }
+
+    /**
+     * Returns the updates that are piggybacked the least so far, and counts them as piggybacked once more
+     */
+    private List<MemberUpdate> piggyback() {
+        if (disseminations.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<Dissemination> candidates = new ArrayList<>(disseminations.values());
+        candidates.sort((d1, d2) -> Integer.compare(d1.count, d2.count));
+
+        final int limit = getDisseminationLimit();
+        final List<MemberUpdate> updates = new ArrayList<>();
+        for (int i = 0, j = Math.min(MAX_PIGGYBACKED_UPDATE_COUNT, candidates.size()); i < j; i++) {
+            final Dissemination dissemination = candidates.get(i);
+            updates.add(dissemination.update);
+            if (++dissemination.count >= limit) {
+                disseminations.remove(dissemination.update.getPeerId());
+            }
+        }
+
+        return updates;
+    }
+
+    /**
+     * Returns {@link #DISSEMINATION_MULTIPLIER} times the base-2 logarithm of the network size, rounded up
+     */
+    private int getDisseminationLimit() {
+        return DISSEMINATION_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+    }
+
+    private MemberUpdate newSelfUpdate(final State state) {
+        return new MemberUpdate(config.getPeerName(), bindAddress.getAddress().getHostAddress(), bindAddress.getPort(),
+                incarnation, state);
+    }
+
+    private static class Member {
+
+        private final String peerName;
+
+        private final long peerId;
+
+        private String serverHost;
+
+        private int serverPort;
+
+        private int incarnation;
+
+        private State state;
+
+        private long stateChangeNanos;
+
+        Member(final MemberUpdate update, final long now) {
+            this.peerName = update.getPeerName();
+            this.peerId = PeerIds.of(peerName);
+            update(update, now);
+        }
+
+        /**
+         * Returns true if the update is more recent than the state of the member
+         */
+        boolean isOverriddenBy(final MemberUpdate update) {
+            switch (update.getState()) {
+                case ALIVE:
+                    return update.getIncarnation() > incarnation;
+                case SUSPECT:
+                    return (state == State.ALIVE && update.getIncarnation() >= incarnation)
+                            || (state == State.SUSPECT && update.getIncarnation() > incarnation);
+                default:
+                    return state != State.DEAD && update.getIncarnation() >= incarnation;
+            }
+        }
+
+        void update(final MemberUpdate update, final long now) {
+            this.serverHost = update.getServerHost();
+            this.serverPort = update.getServerPort();
+            this.incarnation = update.getIncarnation();
+            this.state = update.getState();
+            this.stateChangeNanos = now;
+        }
+
+        MemberUpdate toUpdate() {
+            return new MemberUpdate(peerName, serverHost, serverPort, incarnation, state);
+        }
+
+    }
+
+    private static class Dissemination {
+
+        private final MemberUpdate update;
+
+        private int count;
+
+        Dissemination(final MemberUpdate update) {
+            this.update = update;
+        }
+
+    }
+
+    private static class ProbeContext {
+
+        private final int sequenceNumber;
+
+        private final long targetPeerId;
+
+        private final String targetPeerName;
+
+        private boolean acked;
+
+        ProbeContext(final int sequenceNumber, final long targetPeerId, final String targetPeerName) {
+            this.sequenceNumber = sequenceNumber;
+            this.targetPeerId = targetPeerId;
+            this.targetPeerName = targetPeerName;
+        }
+
+    }
+
+    private static class RelayedProbe {
+
+        private final Connection requester;
+
+        private final int requesterSequenceNumber;
+
+        RelayedProbe(final Connection requester, final int requesterSequenceNumber) {
+            this.requester = requester;
+            this.requesterSequenceNumber = requesterSequenceNumber;
+        }
+
+    }
+
+}
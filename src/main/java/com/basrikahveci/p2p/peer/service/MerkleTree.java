@@ -0,0 +1,336 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Binary hash tree over the chunks of a file. Leaves are the SHA-256 hashes of the chunks and each inner node is the
+ * SHA-256 hash of a marker byte followed by its two children. The last node of a level without a sibling is promoted
+ * to the next level as is. Root of the tree identifies the whole file, and a contiguous range of chunks is verified
+ * against it with the sibling hashes on the paths from the range to the root, so a corrupt chunk is detected without
+ * the rest of the file.
+ * <p>
+ * Leaves of a file are hashed in parallel on a {@link ForkJoinPool}.
+ */
+final class MerkleTree {
+
+    static final int HASH_LENGTH = 32;
+
+    private static final byte NODE_MARKER = 1;
+
+    // number of leaves hashed by a single fork-join task
+    private static final int LEAVES_PER_TASK = 4;
+
+    private static final byte[] EMPTY_ROOT = Hashing.sha256().hashBytes(new byte[0]).asBytes();
+
+    private static final byte[] EMPTY_PROOF = new byte[0];
+
+    private static final int HASH_BUFFER_SIZE = 8192;
+
+    private final int leafCount;
+
+    // levels[0] is the leaf hashes and the last level is the root
+    private final byte[][] levels;
+
+    private MerkleTree(int leafCount, byte[][] levels) {
+        this.leafCount = leafCount;
+        this.levels = levels;
+    }
+
+    /**
+     * Builds the tree of the given leaf hashes
+     *
+     * @param leafHashes concatenated hashes of the leaves
+     */
+    static MerkleTree fromLeaves(final byte[] leafHashes) {
+        final int leafCount = leafHashes.length / HASH_LENGTH;
+        final List<byte[]> levels = new ArrayList<>();
+        levels.add(leafHashes);
+        for (int count = leafCount; count > 1; count = (count + 1) / 2) {
+            final byte[] level = levels.get(levels.size() - 1);
+            final byte[] parents = new byte[(count + 1) / 2 * HASH_LENGTH];
+            for (int i = 0; i < count; i += 2) {
+                if (i + 1 < count) {
+                    hashNode(level, i * HASH_LENGTH, level, (i + 1) * HASH_LENGTH, parents, i / 2 * HASH_LENGTH);
+                } else {
+                    System.arraycopy(level, i * HASH_LENGTH, parents, i / 2 * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+            levels.add(parents);
+        }
+
+        return new MerkleTree(leafCount, levels.toArray(new byte[levels.size()][]));
+    }
+
+    /**
+     * Builds the tree of the content-defined chunks of a file
+     */
+    static MerkleTree fromChunks(final List<ContentDefinedChunk> chunks) {
+        final byte[] leafHashes = new byte[chunks.size() * HASH_LENGTH];
+        for (int i = 0; i < chunks.size(); i++) {
+            chunks.get(i).getHash().writeBytesTo(leafHashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+
+        return fromLeaves(leafHashes);
+    }
+
+    /**
+     * Reads the file and builds the tree of its fixed-size chunks. Chunks are read and hashed in parallel on the
+     * given pool, and the calling thread waits for them.
+     */
+    static MerkleTree build(final Path path, final long fileSize, final int leafSize, final ForkJoinPool pool)
+            throws IOException {
+        final int leafCount = getLeafCount(fileSize, leafSize);
+        final byte[] leafHashes = new byte[leafCount * HASH_LENGTH];
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            pool.invoke(new HashLeavesTask(fileChannel, fileSize, leafSize, leafHashes, 0, leafCount));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return fromLeaves(leafHashes);
+    }
+
+    static int getLeafCount(final long fileSize, final int leafSize) {
+        final long leafCount = (fileSize + leafSize - 1) / leafSize;
+        if (leafCount > Integer.MAX_VALUE / HASH_LENGTH) {
+            throw new IllegalArgumentException("Too many chunks for file size " + fileSize + " and chunk size " + leafSize);
+        }
+
+        return (int) leafCount;
+    }
+
+    /**
+     * Hashes the readable bytes of a chunk without changing the reader index of the buffer
+     */
+    static HashCode hashLeaf(final ByteBuf data) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        final byte[] bytes = new byte[Math.min(data.readableBytes(), HASH_BUFFER_SIZE)];
+        for (ByteBuffer buffer : data.nioBuffers()) {
+            while (buffer.hasRemaining()) {
+                final int count = Math.min(buffer.remaining(), bytes.length);
+                buffer.get(bytes, 0, count);
+                hasher.putBytes(bytes, 0, count);
+            }
+        }
+
+        return hasher.hash();
+    }
+
+    int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Returns the concatenated hashes of the leaves. The returned array must not be modified.
+     */
+    byte[] getLeafHashes() {
+        return levels[0];
+    }
+
+    /**
+     * Returns true if the given chunk is the leaf with the given index
+     */
+    boolean isLeaf(final int leafIndex, final ByteBuf data) {
+        final byte[] hash = hashLeaf(data).asBytes();
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (hash[i] != levels[0][leafIndex * HASH_LENGTH + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    byte[] getRoot() {
+        return leafCount > 0 ? Arrays.copyOf(levels[levels.length - 1], HASH_LENGTH) : EMPTY_ROOT.clone();
+    }
+
+    /**
+     * Returns the sibling hashes needed to verify the leaves in the given range against the root, from the leaf level
+     * up to the root
+     *
+     * @param from index of the first leaf in the range
+     * @param to   index after the last leaf in the range
+     */
+    byte[] getProof(final int from, final int to) {
+        if (from < 0 || to > leafCount || from >= to) {
+            throw new IllegalArgumentException("Invalid leaf range [" + from + ", " + to + ") of " + leafCount);
+        }
+
+        final List<byte[]> siblings = new ArrayList<>();
+        int low = from, high = to, count = leafCount;
+        for (int level = 0; count > 1; level++) {
+            if ((low & 1) == 1) {
+                siblings.add(Arrays.copyOfRange(levels[level], (low - 1) * HASH_LENGTH, low * HASH_LENGTH));
+                low--;
+            }
+            if ((high & 1) == 1 && high < count) {
+                siblings.add(Arrays.copyOfRange(levels[level], high * HASH_LENGTH, (high + 1) * HASH_LENGTH));
+                high++;
+            }
+            low /= 2;
+            high = (high + 1) / 2;
+            count = (count + 1) / 2;
+        }
+
+        if (siblings.isEmpty()) {
+            return EMPTY_PROOF;
+        }
+
+        final byte[] proof = new byte[siblings.size() * HASH_LENGTH];
+        for (int i = 0; i < siblings.size(); i++) {
+            System.arraycopy(siblings.get(i), 0, proof, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        return proof;
+    }
+
+    /**
+     * Verifies the hashes of a contiguous range of leaves against the root with the proof given by
+     * {@link #getProof(int, int)}
+     *
+     * @param leafHashes concatenated hashes of the leaves in the range
+     * @param from       index of the first leaf in the range
+     * @return true if the leaves belong to the tree with the given root
+     */
+    static boolean verify(final byte[] root, final int leafCount, final int from, final byte[] leafHashes,
+                          final byte[] proof) {
+        final int to = from + leafHashes.length / HASH_LENGTH;
+        if (from < 0 || to > leafCount || from >= to || leafHashes.length % HASH_LENGTH != 0
+                || proof.length % HASH_LENGTH != 0) {
+            return false;
+        }
+
+        byte[] nodes = leafHashes;
+        int low = from, high = to, count = leafCount, proofIndex = 0;
+        while (count > 1) {
+            if ((low & 1) == 1) {
+                if (proofIndex == proof.length) {
+                    return false;
+                }
+                nodes = concat(proof, proofIndex, nodes);
+                proofIndex += HASH_LENGTH;
+                low--;
+            }
+            if ((high & 1) == 1 && high < count) {
+                if (proofIndex == proof.length) {
+                    return false;
+                }
+                nodes = concat(nodes, proof, proofIndex);
+                proofIndex += HASH_LENGTH;
+                high++;
+            }
+
+            final int nodeCount = nodes.length / HASH_LENGTH;
+            final byte[] parents = new byte[(nodeCount + 1) / 2 * HASH_LENGTH];
+            for (int i = 0; i < nodeCount; i += 2) {
+                if (i + 1 < nodeCount) {
+                    hashNode(nodes, i * HASH_LENGTH, nodes, (i + 1) * HASH_LENGTH, parents, i / 2 * HASH_LENGTH);
+                } else {
+                    // only the last node of a level can be promoted without a sibling
+                    System.arraycopy(nodes, i * HASH_LENGTH, parents, i / 2 * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+            nodes = parents;
+            low /= 2;
+            high = (high + 1) / 2;
+            count = (count + 1) / 2;
+        }
+
+        return proofIndex == proof.length && Arrays.equals(nodes, root);
+    }
+
+    private static byte[] concat(final byte[] sibling, final int siblingIndex, final byte[] nodes) {
+        final byte[] result = new byte[HASH_LENGTH + nodes.length];
+        System.arraycopy(sibling, siblingIndex, result, 0, HASH_LENGTH);
+        System.arraycopy(nodes, 0, result, HASH_LENGTH, nodes.length);
+        return result;
+    }
+
+    private static byte[] concat(final byte[] nodes, final byte[] sibling, final int siblingIndex) {
+        final byte[] result = Arrays.copyOf(nodes, nodes.length + HASH_LENGTH);
+        System.arraycopy(sibling, siblingIndex, result, nodes.length, HASH_LENGTH);
+        return result;
+    }
+
+    private static void hashNode(final byte[] left, final int leftIndex, final byte[] right, final int rightIndex,
+                                 final byte[] out, final int outIndex) {
+        Hashing.sha256().newHasher().putByte(NODE_MARKER).putBytes(left, leftIndex, HASH_LENGTH)
+                .putBytes(right, rightIndex, HASH_LENGTH).hash().writeBytesTo(out, outIndex, HASH_LENGTH);
+    }
+
+    /**
+     * Hashes a range of the leaves of a file, splitting the range in half until it is small enough
+     */
+    private static class HashLeavesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2516470470632934862L;
+
+        private final FileChannel fileChannel;
+
+        private final long fileSize;
+
+        private final int leafSize;
+
+        private final byte[] leafHashes;
+
+        private final int from;
+
+        private final int to;
+
+        HashLeavesTask(FileChannel fileChannel, long fileSize, int leafSize, byte[] leafHashes, int from, int to) {
+            this.fileChannel = fileChannel;
+            this.fileSize = fileSize;
+            this.leafSize = leafSize;
+            this.leafHashes = leafHashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAVES_PER_TASK) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new HashLeavesTask(fileChannel, fileSize, leafSize, leafHashes, from, middle),
+                        new HashLeavesTask(fileChannel, fileSize, leafSize, leafHashes, middle, to));
+                return;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(leafSize);
+            try {
+                for (int i = from; i < to; i++) {
+                    final long offset = (long) i * leafSize;
+                    final int length = (int) Math.min(leafSize, fileSize - offset);
+                    buffer.clear();
+                    buffer.limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                            throw new EOFException("File is truncated at " + (offset + buffer.position()));
+                        }
+                    }
+                    Hashing.sha256().hashBytes(buffer.array(), 0, length).writeBytesTo(leafHashes, i * HASH_LENGTH,
+                            HASH_LENGTH);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+    }
+
+}
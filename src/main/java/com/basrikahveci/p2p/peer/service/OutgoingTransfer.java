@@ -0,0 +1,595 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.network.Connection;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the state of a file that is streamed to a neighbour. Chunks are either transferred from the file to the socket
+ * without copying them into user space, or read into direct buffers one at a time. Therefore, the memory used by a
+ * transfer does not depend on the file size.
+ * <p>
+ * In a delta transfer, hashes of the content-defined chunks of the file are offered to the receiver a few batches
+ * ahead, and only the chunks that the receiver replies as needed are sent. Chunks that are not needed are skipped,
+ * but they still take up the window until the receiver acknowledges that it has copied them from its local files.
+ * <p>
+ * Before the transfer is opened, the file is hashed into a {@link MerkleTree} whose leaves are the fixed-size chunks
+ * of a regular transfer, or the content-defined chunks of a delta transfer. If the receiver finds a corrupt chunk, it
+ * rewinds the transfer to that chunk.
+ * <p>
+ * Acknowledgements of the receiver are measured into the throughput of the transfer and the latencies of its chunks.
+ */
+class OutgoingTransfer {
+
+    /**
+     * Throughput is sampled over intervals of at least this duration, since acknowledgements arrive in bursts
+     */
+    private static final long THROUGHPUT_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final double THROUGHPUT_SMOOTHING_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long transferId;
+
+    private Connection connection;
+
+    private final Path path;
+
+    private final FileChannel fileChannel;
+
+    /**
+     * Closes the file channel once both the transfer and the file regions of its chunks are done with it
+     */
+    private final AbstractReferenceCounted fileReference = new AbstractReferenceCounted() {
+        @Override
+        protected void deallocate() {
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    };
+
+    private final long fileSize;
+
+    private final int chunkSize;
+
+    private final TransferHandle handle;
+
+    private long sentBytes;
+
+    private long ackedBytes;
+
+    private boolean closed;
+
+    // chunks are sent after the receiver acknowledges the number of bytes it already has
+    private boolean started;
+
+    private boolean completeSent;
+
+    // the file is being hashed before the transfer is opened
+    private boolean preparing;
+
+    private MerkleTree merkleTree;
+
+    // timeout of the transfer while it waits for the connection to come back
+    private TimeoutScheduler.Timeout resumeTimeout;
+
+    // content-defined chunks of the file if it is sent with a delta transfer
+    private List<ContentDefinedChunk> deltaChunks;
+
+    private int offeredChunkCount;
+
+    private int repliedChunkCount;
+
+    private int sentChunkCount;
+
+    // number of chunk reads started on the disk I/O executor. it is also increased when the sent position moves back,
+    // so that the chunks read for the old position are dropped.
+    private int readCount;
+
+    // true while a chunk is read on the disk I/O executor. chunks are read one at a time to send them in order.
+    private boolean reading;
+
+    // chunks that the receiver does not have
+    private final BitSet neededChunks = new BitSet();
+
+    private final long startNanos = System.nanoTime();
+
+    // end offsets and send times of the chunks that are not acknowledged yet, in the order they are sent
+    private final ArrayDeque<long[]> unackedChunks = new ArrayDeque<>();
+
+    // start of the current throughput sample, or 0 if the receiver has not acknowledged since the transfer is (re)started
+    private long sampleStartNanos;
+
+    private long sampleStartBytes;
+
+    // rate of the acknowledged bytes, smoothed exponentially over THROUGHPUT_SMOOTHING_NANOS
+    private double throughputBytesPerSecond;
+
+    private final Histogram throughputHistogram = new Histogram();
+
+    private final Histogram ackLatencyHistogram = new Histogram();
+
+    OutgoingTransfer(long transferId, Connection connection, Path path, int chunkSize, TransferHandle handle)
+            throws IOException {
+        this.transferId = transferId;
+        this.connection = connection;
+        this.path = path;
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = fileChannel.size();
+        this.chunkSize = chunkSize;
+        this.handle = handle;
+    }
+
+    long getTransferId() {
+        return transferId;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    TransferHandle getHandle() {
+        return handle;
+    }
+
+    CompletableFuture<Void> getFuture() {
+        return handle.getFuture();
+    }
+
+    long getSentBytes() {
+        return sentBytes;
+    }
+
+    long getAckedBytes() {
+        return ackedBytes;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    boolean isSuspended() {
+        return resumeTimeout != null;
+    }
+
+    boolean isCompleteSent() {
+        return completeSent;
+    }
+
+    void setCompleteSent() {
+        this.completeSent = true;
+    }
+
+    boolean isPreparing() {
+        return preparing;
+    }
+
+    void setPreparing(final boolean preparing) {
+        this.preparing = preparing;
+    }
+
+    MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    void setMerkleTree(final MerkleTree merkleTree) {
+        this.merkleTree = merkleTree;
+    }
+
+    /**
+     * Returns the proof of the fixed-size chunk at the given offset against the Merkle root
+     */
+    byte[] getChunkProof(final long offset) {
+        final int leafIndex = (int) (offset / chunkSize);
+        return merkleTree.getProof(leafIndex, leafIndex + 1);
+    }
+
+    /**
+     * Stops sending chunks until the transfer is resumed over a new connection
+     *
+     * @param resumeTimeout timeout that fails the transfer if it is not resumed in time
+     */
+    void suspend(final TimeoutScheduler.Timeout resumeTimeout) {
+        this.resumeTimeout = resumeTimeout;
+    }
+
+    /**
+     * Restarts the transfer over the given connection. Chunks that are not acknowledged by the receiver will be sent
+     * again starting from the offset given by its first acknowledgement.
+     */
+    void resume(final Connection connection) {
+        this.connection = connection;
+        resumeTimeout.cancel();
+        resumeTimeout = null;
+        started = false;
+        completeSent = false;
+        sentBytes = ackedBytes;
+        unackedChunks.clear();
+        sampleStartNanos = 0;
+        cancelRead();
+    }
+
+    boolean isAllSent() {
+        return sentBytes == fileSize;
+    }
+
+    boolean isAllAcked() {
+        return ackedBytes == fileSize;
+    }
+
+    boolean isDelta() {
+        return deltaChunks != null;
+    }
+
+    /**
+     * Switches the transfer to a delta transfer with the given chunks, or to a regular transfer if it is null. It must
+     * be called before the transfer is started.
+     */
+    void setDeltaChunks(final List<ContentDefinedChunk> deltaChunks) {
+        this.deltaChunks = deltaChunks;
+    }
+
+    /**
+     * Returns the next chunks to offer to the receiver, and marks them as offered. Chunks are offered at most the
+     * given number of chunks ahead of the sent chunks.
+     *
+     * @return chunks to offer, which is empty if it is not the time to offer more chunks
+     */
+    List<ContentDefinedChunk> nextOffer(final int maxChunkCount, final int maxOfferedAhead) {
+        final int end = Math.min(deltaChunks.size(),
+                Math.min(offeredChunkCount + maxChunkCount, sentChunkCount + maxOfferedAhead));
+        if (!started || isSuspended() || end <= offeredChunkCount) {
+            return deltaChunks.subList(0, 0);
+        }
+
+        final List<ContentDefinedChunk> offer = deltaChunks.subList(offeredChunkCount, end);
+        offeredChunkCount = end;
+        return offer;
+    }
+
+    /**
+     * Records the chunks that the receiver needs among the offered chunks starting at the given offset
+     *
+     * @param neededChunks chunks the receiver needs, relative to the first chunk of the reply
+     * @return false if the reply does not match the offered chunks
+     */
+    boolean reply(final long offset, final int chunkCount, final BitSet neededChunks) {
+        if (repliedChunkCount + chunkCount > offeredChunkCount || chunkCount < 0
+                || (chunkCount > 0 && deltaChunks.get(repliedChunkCount).getOffset() != offset)) {
+            return false;
+        }
+
+        for (int i = neededChunks.nextSetBit(0); i >= 0 && i < chunkCount; i = neededChunks.nextSetBit(i + 1)) {
+            this.neededChunks.set(repliedChunkCount + i);
+        }
+        repliedChunkCount += chunkCount;
+        return true;
+    }
+
+    /**
+     * Returns true if the receiver has replied for the next chunk to send
+     */
+    boolean hasRepliedChunk() {
+        return sentChunkCount < repliedChunkCount;
+    }
+
+    /**
+     * Returns the next chunk to send and advances the sent position over it
+     */
+    ContentDefinedChunk nextDeltaChunk() {
+        final ContentDefinedChunk chunk = deltaChunks.get(sentChunkCount++);
+        sentBytes = chunk.getEnd();
+        recordSent();
+        return chunk;
+    }
+
+    /**
+     * Returns true if the receiver needs the chunk with the given index
+     */
+    boolean isNeeded(final int chunkIndex) {
+        return neededChunks.get(chunkIndex);
+    }
+
+    int getSentChunkCount() {
+        return sentChunkCount;
+    }
+
+    int getOfferedChunkCount() {
+        return offeredChunkCount;
+    }
+
+    /**
+     * Returns the number of chunks that the receiver replied as needed
+     */
+    int getNeededChunkCount() {
+        return neededChunks.cardinality();
+    }
+
+    /**
+     * Returns true if another chunk can be sent without exceeding the given number of unacknowledged chunks
+     */
+    boolean hasWindow(final int windowSize) {
+        return started && !isSuspended() && !isAllSent() && sentBytes - ackedBytes < (long) windowSize * chunkSize;
+    }
+
+    /**
+     * Creates a file region for the next chunk and advances the sent position. The region is transferred directly
+     * from the file to the socket.
+     *
+     * @return file region of the chunk
+     */
+    FileRegion nextRegion() {
+        final int length = getNextChunkLength();
+        final FileRegion region = newRegion(sentBytes, length);
+        sentBytes += length;
+        recordSent();
+        return region;
+    }
+
+    /**
+     * Creates a file region for the given part of the file
+     */
+    FileRegion newRegion(final long offset, final int length) {
+        return new SharedFileRegion(fileChannel, fileReference, offset, length);
+    }
+
+    /**
+     * Advances the sent position over the next chunk, which is read with
+     * {@link #readChunk(long, int, ByteBufAllocator)} on the disk I/O executor
+     *
+     * @return length of the chunk
+     */
+    int skipNextChunk() {
+        final int length = getNextChunkLength();
+        sentBytes += length;
+        recordSent();
+        return length;
+    }
+
+    /**
+     * Returns true if a chunk is being read on the disk I/O executor
+     */
+    boolean isReading() {
+        return reading;
+    }
+
+    /**
+     * Marks the start of a chunk read and retains the file until {@link #finishRead(int)} is called
+     *
+     * @return id of the read
+     */
+    int startRead() {
+        fileReference.retain();
+        reading = true;
+        return ++readCount;
+    }
+
+    /**
+     * Marks the end of the given chunk read and releases the file. It must be called in the peer event loop.
+     *
+     * @return false if the sent position has moved back after the read is started, so the chunk must be dropped
+     */
+    boolean finishRead(final int readId) {
+        fileReference.release();
+        if (readId != readCount) {
+            return false;
+        }
+
+        reading = false;
+        return true;
+    }
+
+    private void cancelRead() {
+        readCount++;
+        reading = false;
+    }
+
+    /**
+     * Reads the given part of the file into a direct buffer. It can be called outside of the peer event loop.
+     *
+     * @return content of the part. Caller is responsible for releasing it.
+     */
+    ByteBuf readChunk(final long offset, final int length, final ByteBufAllocator allocator) throws IOException {
+        final ByteBuf chunk = allocator.ioBuffer(length);
+        try {
+            final ByteBuffer buffer = chunk.nioBuffer(0, length);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException(path + " is truncated at " + (offset + buffer.position()));
+                }
+            }
+            chunk.writerIndex(length);
+        } catch (IOException e) {
+            chunk.release();
+            throw e;
+        }
+
+        return chunk;
+    }
+
+    private int getNextChunkLength() {
+        return (int) Math.min(chunkSize, fileSize - sentBytes);
+    }
+
+    private void recordSent() {
+        unackedChunks.add(new long[]{sentBytes, System.nanoTime()});
+    }
+
+    /**
+     * Updates the acknowledged position with the number of bytes persisted by the receiver
+     *
+     * @return false if the acknowledgement is not valid
+     */
+    boolean ack(final long receivedBytes) {
+        if (!started) {
+            // first acknowledgement gives the number of bytes that the receiver already has
+            if (receivedBytes < 0 || receivedBytes > fileSize) {
+                return false;
+            }
+
+            if (deltaChunks != null) {
+                // delta transfers are resumed from the chunk that starts at the acknowledged offset
+                final int chunkIndex = findDeltaChunk(receivedBytes);
+                if (chunkIndex < 0) {
+                    return false;
+                }
+                offeredChunkCount = repliedChunkCount = sentChunkCount = chunkIndex;
+                neededChunks.clear();
+            }
+
+            started = true;
+            sentBytes = ackedBytes = receivedBytes;
+            unackedChunks.clear();
+            sampleStartNanos = System.nanoTime();
+            sampleStartBytes = receivedBytes;
+            return true;
+        } else if (receivedBytes < ackedBytes || receivedBytes > sentBytes) {
+            return false;
+        }
+
+        recordAck(receivedBytes, System.nanoTime());
+        ackedBytes = receivedBytes;
+        return true;
+    }
+
+    /**
+     * Measures the latencies of the acknowledged chunks, and the throughput if the current sample is long enough
+     */
+    private void recordAck(final long receivedBytes, final long now) {
+        long[] chunk;
+        while ((chunk = unackedChunks.peek()) != null && chunk[0] <= receivedBytes) {
+            unackedChunks.poll();
+            ackLatencyHistogram.record(TimeUnit.NANOSECONDS.toMicros(now - chunk[1]));
+        }
+
+        final long elapsedNanos = now - sampleStartNanos;
+        if (sampleStartNanos != 0 && (elapsedNanos >= THROUGHPUT_SAMPLE_NANOS || receivedBytes == fileSize)
+                && elapsedNanos > 0) {
+            final double rate = (receivedBytes - sampleStartBytes) * 1e9 / elapsedNanos;
+            throughputHistogram.record((long) rate);
+            final double weight = 1 - Math.exp(-elapsedNanos / THROUGHPUT_SMOOTHING_NANOS);
+            throughputBytesPerSecond = throughputBytesPerSecond > 0
+                    ? throughputBytesPerSecond + weight * (rate - throughputBytesPerSecond) : rate;
+            sampleStartNanos = now;
+            sampleStartBytes = receivedBytes;
+        }
+    }
+
+    TransferProgress getProgress() {
+        return new TransferProgress(transferId, connection.getPeerName(), fileSize, ackedBytes,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), throughputBytesPerSecond);
+    }
+
+    Histogram getThroughputHistogram() {
+        return throughputHistogram;
+    }
+
+    Histogram getAckLatencyHistogram() {
+        return ackLatencyHistogram;
+    }
+
+    /**
+     * Sends the chunks again starting from the given offset, since the receiver has found the chunk at the offset
+     * corrupt. In a delta transfer, chunks are offered again as well.
+     *
+     * @return false if the offset is not at an unacknowledged chunk that is sent
+     */
+    boolean rewind(final long offset) {
+        if (!started || offset < ackedBytes || offset >= sentBytes) {
+            return false;
+        }
+
+        if (deltaChunks != null) {
+            final int chunkIndex = findDeltaChunk(offset);
+            if (chunkIndex < 0) {
+                return false;
+            }
+            offeredChunkCount = repliedChunkCount = sentChunkCount = chunkIndex;
+            neededChunks.clear(chunkIndex, Math.max(chunkIndex, neededChunks.length()));
+        }
+
+        sentBytes = offset;
+        completeSent = false;
+        cancelRead();
+        while (!unackedChunks.isEmpty() && unackedChunks.peekLast()[0] > offset) {
+            unackedChunks.pollLast();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the chunk starting at the given offset, the number of chunks if it is the end of the file,
+     * or -1 if there is not any
+     */
+    private int findDeltaChunk(final long offset) {
+        if (offset == fileSize) {
+            return deltaChunks.size();
+        }
+
+        int low = 0, high = deltaChunks.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midOffset = deltaChunks.get(mid).getOffset();
+            if (midOffset < offset) {
+                low = mid + 1;
+            } else if (midOffset > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    void close() {
+        if (resumeTimeout != null) {
+            resumeTimeout.cancel();
+        }
+
+        if (!closed) {
+            closed = true;
+            fileReference.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OutgoingTransfer{" +
+                "transferId=" + transferId +
+                ", peerName=" + connection.getPeerName() +
+                ", path=" + path +
+                ", fileSize=" + fileSize +
+                ", sentBytes=" + sentBytes +
+                ", ackedBytes=" + ackedBytes +
+                '}';
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.PeerIds;
+import com.basrikahveci.p2p.peer.network.message.ping.Pong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Keeps the peers seen in the network so that ping commands and auto-connect decisions do not need a new Ping
+ * operation each time. Peers are learnt from every {@link Pong} message handled by this peer, whether it is sent for the
+ * Ping operation of this peer or forwarded for another peer, and they are refreshed by the handshakes of new
+ * connections. Peers are evicted once they are not seen for {@link Config#getPeerDirectoryTtlSeconds()} or their pongs
+ * are cancelled.
+ * <p>
+ * The directory is valid while the last Ping operation of this peer has completed within the ttl, and fresh while it
+ * has completed within {@link Config#getPeerDirectoryRefreshSeconds()}.
+ */
+public class PeerDirectory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerDirectory.class);
+
+    private final Config config;
+
+    // peer id -> entry
+    private final Map<Long, Entry> entries = new HashMap<>();
+
+    private long lastRefreshNanos;
+
+    private boolean refreshed;
+
+    public PeerDirectory(Config config) {
+        this.config = config;
+    }
+
+    public boolean isEnabled() {
+        return config.getPeerDirectoryTtlSeconds() > 0;
+    }
+
+    /**
+     * Returns true if the peers can be answered from the directory
+     */
+    public boolean isValid() {
+        return isRefreshedWithin(config.getPeerDirectoryTtlSeconds());
+    }
+
+    /**
+     * Returns true if the directory does not need to be refreshed yet
+     */
+    public boolean isFresh() {
+        return isRefreshedWithin(Math.min(config.getPeerDirectoryRefreshSeconds(), config.getPeerDirectoryTtlSeconds()));
+    }
+
+    private boolean isRefreshedWithin(final int seconds) {
+        return isEnabled() && refreshed && System.nanoTime() - lastRefreshNanos < SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Records the completion of a Ping operation of this peer
+     */
+    public void markRefreshed() {
+        if (isEnabled()) {
+            refreshed = true;
+            lastRefreshNanos = System.nanoTime();
+            evictExpiredEntries();
+            LOGGER.debug("Peer directory is refreshed with {} peers", entries.size());
+        }
+    }
+
+    /**
+     * Records the peer that has sent the pong. Distance of the peer is taken from the pongs of the Ping operations of
+     * this peer as is, and from the pongs forwarded for other peers only if it is shorter since they may have travelled
+     * a longer path.
+     *
+     * @param pong    pong received by this peer
+     * @param ownPing true if the pong is sent for the Ping operation of this peer
+     */
+    public void handlePong(final Pong pong, final boolean ownPing) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        final int hops = pong.getHops() + 1;
+        final Entry entry = entries.get(pong.getPeerId());
+        if (entry == null) {
+            entries.put(pong.getPeerId(), new Entry(pong.getPeerId(), pong.getPeerName(), pong.getServerHost(),
+                    pong.getServerPort(), hops));
+        } else {
+            entry.update(pong.getServerHost(), pong.getServerPort(), ownPing ? hops : Math.min(entry.hops, hops));
+        }
+    }
+
+    /**
+     * Marks the peer that has completed a handshake with this peer as a neighbour if it is already known
+     */
+    public void handleConnectionOpened(final long peerId) {
+        final Entry entry = entries.get(peerId);
+        if (entry != null) {
+            entry.update(entry.serverHost, entry.serverPort, 1);
+        }
+    }
+
+    /**
+     * Evicts the peer whose pongs are cancelled. It is added again once it responds to another Ping operation.
+     */
+    public void remove(final long peerId) {
+        if (entries.remove(peerId) != null) {
+            LOGGER.debug("Removed {} from peer directory", PeerIds.toString(peerId));
+        }
+    }
+
+    /**
+     * Returns the peers that are not expired
+     */
+    public List<Entry> getEntries() {
+        evictExpiredEntries();
+        return new ArrayList<>(entries.values());
+    }
+
+    private void evictExpiredEntries() {
+        final long now = System.nanoTime();
+        final long ttlNanos = SECONDS.toNanos(config.getPeerDirectoryTtlSeconds());
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (now - entry.lastSeenNanos >= ttlNanos) {
+                LOGGER.debug("Evicting {} from peer directory", entry);
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerDirectory{" +
+                "entries=" + entries.size() +
+                ", refreshed=" + refreshed +
+                '}';
+    }
+
+    /**
+     * A peer seen in the network
+     */
+    public static class Entry {
+
+        private final long peerId;
+
+        private final String peerName;
+
+        private String serverHost;
+
+        private int serverPort;
+
+        private int hops;
+
+        private long lastSeenNanos;
+
+        Entry(final long peerId, final String peerName, final String serverHost, final int serverPort, final int hops) {
+            this.peerId = peerId;
+            this.peerName = peerName;
+            update(serverHost, serverPort, hops);
+        }
+
+        private void update(final String serverHost, final int serverPort, final int hops) {
+            this.serverHost = serverHost;
+            this.serverPort = serverPort;
+            this.hops = hops;
+            this.lastSeenNanos = System.nanoTime();
+        }
+
+        public long getPeerId() {
+            return peerId;
+        }
+
+        public String getPeerName() {
+            return peerName;
+        }
+
+        public String getServerHost() {
+            return serverHost;
+        }
+
+        public int getServerPort() {
+            return serverPort;
+        }
+
+        /**
+         * Returns the distance of the peer in number of connections when it is last seen
+         */
+        public int getHops() {
+            return hops;
+        }
+
+        public long getMillisSinceLastSeen() {
+            return NANOSECONDS.toMillis(System.nanoTime() - lastSeenNanos);
+        }
+
+        public DiscoveredPeer toDiscoveredPeer() {
+            return new DiscoveredPeer(peerName, serverHost, serverPort, hops, 0);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "peerName='" + peerName + '\'' +
+                    ", serverHost='" + serverHost + '\'' +
+                    ", serverPort=" + serverPort +
+                    ", hops=" + hops +
+                    ", millisSinceLastSeen=" + getMillisSinceLastSeen() +
+                    '}';
+        }
+
+    }
+
+}
@@ -3,11 +3,11 @@ package com.basrikahveci.p2p.peer.service;
 import com.basrikahveci.p2p.peer.network.Connection;
 import com.basrikahveci.p2p.peer.network.message.ping.Ping;
 import com.basrikahveci.p2p.peer.network.message.ping.Pong;
+import com.basrikahveci.p2p.peer.network.message.ping.PongBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 
 import static java.util.Collections.unmodifiableList;
 
@@ -22,18 +22,33 @@ public class PingContext {
 
     private final Connection connection;
 
-    // peer name -> pong
-    private final Map<String, Pong> pongs = new HashMap<>();
+    // peer id -> pong
+    private final Map<Long, Pong> pongs = new HashMap<>();
 
-    private final List<CompletableFuture<Collection<String>>> futures = new ArrayList<>();
+    private final List<PingHandle> handles = new ArrayList<>();
+
+    // peers discovered so far by the Ping operation of this peer
+    private final List<DiscoveredPeer> discoveredPeers = new ArrayList<>();
+
+    private final long startNanos = System.nanoTime();
+
+    private TimeoutScheduler.Timeout timeout;
+
+    // pongs waiting to be forwarded towards the ping initiator. the batch is taken from a pool for the first pong.
+    private PongBatch pendingPongs;
+
+    // upper bound of the encoded length of the pending pongs
+    private int pendingPongBytes;
+
+    private TimeoutScheduler.Timeout flushTimeout;
 
     public PingContext(Ping ping, Connection connection) {
         this.ping = ping;
         this.connection = connection;
     }
 
-    public String getPeerName() {
-        return ping.getPeerName();
+    public long getPeerId() {
+        return ping.getPeerId();
     }
 
     public Ping getPing() {
@@ -48,49 +63,115 @@ public class PingContext {
         return Collections.unmodifiableCollection(pongs.values());
     }
 
-    public boolean handlePong(final String thisServerName, final Pong pong) {
-        final String pongServerName = pong.getPeerName();
-        if (pongs.containsKey(pongServerName)) {
-            LOGGER.debug("{} from {} is already handled for {}", pong, pongServerName, ping.getPeerName());
+    /**
+     * Records the pong if no pong of the same peer is recorded before
+     *
+     * @return true if the pong is recorded
+     */
+    public boolean handlePong(final Pong pong) {
+        final long pongPeerId = pong.getPeerId();
+        if (pongs.putIfAbsent(pongPeerId, pong) != null) {
+            LOGGER.debug("{} from {} is already handled for {}", pong, pong.getPeerName(), ping);
             return false;
         }
 
-        pongs.put(pongServerName, pong);
-
-        LOGGER.debug("Handling {} from {} for {}. Pong #: {}", pong, pongServerName, ping.getPeerName(), pongs.size());
-
-        if (!thisServerName.equals(ping.getPeerName())) {
-            if (connection != null) {
-                final Pong next = pong.next(thisServerName);
-                if (next != null) {
-                    LOGGER.debug("Forwarding {} to {} for initiator {}", pong, connection.getPeerName(), ping.getPeerName());
-                    connection.send(next);
-                } else {
-                    LOGGER.error("Invalid {} received from {} for {}", pong, pongServerName, ping.getPeerName());
-                }
-            } else {
-                LOGGER.error("No connection is found in ping context for {} from {} for {}", pong, pongServerName,
-                        ping.getPeerName());
-            }
+        LOGGER.debug("Handling {} from {} for {}. Pong #: {}", pong, pong.getPeerName(), ping, pongs.size());
+        return true;
+    }
+
+    /**
+     * Adds a pong that will be forwarded towards the ping initiator in a batch
+     *
+     * @param pong          pooled pong to forward
+     * @param encodedLength upper bound of the encoded length of the pong in a batch
+     * @return number of pongs waiting to be forwarded
+     */
+    public int addPendingPong(final Pong pong, final int encodedLength) {
+        if (pendingPongs == null) {
+            pendingPongs = PongBatch.newInstance();
         }
+        pendingPongBytes += encodedLength;
+        return pendingPongs.add(pong);
+    }
 
-        return true;
+    public int getPendingPongBytes() {
+        return pendingPongBytes;
+    }
+
+    public void setFlushTimeout(final TimeoutScheduler.Timeout flushTimeout) {
+        this.flushTimeout = flushTimeout;
     }
 
-    public void addFuture(CompletableFuture<Collection<String>> future) {
-        futures.add(future);
+    /**
+     * Returns the pongs waiting to be forwarded and cancels their flush timeout. The caller owns the returned batch.
+     *
+     * @return pooled batch of the pending pongs, or null if there is no pending pong
+     */
+    public PongBatch takePendingPongs() {
+        if (flushTimeout != null) {
+            flushTimeout.cancel();
+            flushTimeout = null;
+        }
+
+        final PongBatch pongs = pendingPongs;
+        pendingPongs = null;
+        pendingPongBytes = 0;
+        return pongs;
     }
 
-    public boolean isTimeout() {
-        return ping.getPingStartTimestamp() + ping.getPingTimeoutDurationInMillis() <= System.currentTimeMillis();
+    /**
+     * Drops the pongs waiting to be forwarded and returns them to their pool
+     */
+    public void discardPendingPongs() {
+        final PongBatch pongs = takePendingPongs();
+        if (pongs != null) {
+            pongs.release();
+        }
     }
 
-    public List<CompletableFuture<Collection<String>>> getFutures() {
-        return unmodifiableList(futures);
+    public void addHandle(final PingHandle handle) {
+        handles.add(handle);
+    }
+
+    public boolean removeHandle(final PingHandle handle) {
+        return handles.remove(handle);
+    }
+
+    public List<PingHandle> getHandles() {
+        return unmodifiableList(handles);
+    }
+
+    public void addDiscoveredPeer(final DiscoveredPeer peer) {
+        discoveredPeers.add(peer);
+    }
+
+    public List<DiscoveredPeer> getDiscoveredPeers() {
+        return unmodifiableList(discoveredPeers);
+    }
+
+    /**
+     * Returns the time since the context is created
+     */
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    public void setTimeout(final TimeoutScheduler.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Cancels the timeout of the Ping operation when it is terminated before its timeout duration
+     */
+    public void cancelTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
     }
 
-    public boolean removePong(final String serverName) {
-        return pongs.remove(serverName) != null;
+    public boolean removePong(final long peerId) {
+        return pongs.remove(peerId) != null;
     }
 
     @Override
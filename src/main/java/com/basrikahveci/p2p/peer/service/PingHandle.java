@@ -0,0 +1,85 @@
+package com.basrikahveci.p2p.peer.service;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Tracks a caller of a Ping operation of this peer. Its listener is notified with each peer as its response is
+ * received, in the peer event loop, so it must not block. Its future is completed with the names of the peers in the
+ * network, including this peer, once the Ping operation times out. It is completed earlier if the expected number of
+ * peers is reached or no response is received for the quiet period.
+ */
+public class PingHandle {
+
+    private final Consumer<DiscoveredPeer> peerListener;
+
+    private final int expectedPeerCount;
+
+    private final long quietPeriodMillis;
+
+    private final CompletableFuture<Collection<String>> future = new CompletableFuture<>();
+
+    private TimeoutScheduler.Timeout quietTimeout;
+
+    /**
+     * @param peerListener      listener that is notified with each discovered peer. It can be null.
+     * @param expectedPeerCount number of peers including this peer that completes the Ping early, or 0 to disable
+     * @param quietPeriodMillis duration without any response that completes the Ping early, or 0 to disable
+     */
+    public PingHandle(Consumer<DiscoveredPeer> peerListener, int expectedPeerCount, long quietPeriodMillis) {
+        this.peerListener = peerListener;
+        this.expectedPeerCount = expectedPeerCount;
+        this.quietPeriodMillis = quietPeriodMillis;
+    }
+
+    /**
+     * Creates a handle that is completed once the Ping operation times out
+     */
+    public PingHandle() {
+        this(null, 0, 0);
+    }
+
+    public CompletableFuture<Collection<String>> getFuture() {
+        return future;
+    }
+
+    public int getExpectedPeerCount() {
+        return expectedPeerCount;
+    }
+
+    public long getQuietPeriodMillis() {
+        return quietPeriodMillis;
+    }
+
+    void notifyPeer(final DiscoveredPeer peer) {
+        if (peerListener != null) {
+            peerListener.accept(peer);
+        }
+    }
+
+    /**
+     * Replaces the timeout that completes the handle once the network is quiet
+     */
+    void setQuietTimeout(final TimeoutScheduler.Timeout quietTimeout) {
+        cancelQuietTimeout();
+        this.quietTimeout = quietTimeout;
+    }
+
+    void cancelQuietTimeout() {
+        if (quietTimeout != null) {
+            quietTimeout.cancel();
+            quietTimeout = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PingHandle{" +
+                "expectedPeerCount=" + expectedPeerCount +
+                ", quietPeriodMillis=" + quietPeriodMillis +
+                ", done=" + future.isDone() +
+                '}';
+    }
+
+}
@@ -1,22 +1,28 @@
 package com.basrikahveci.p2p.peer.service;
 
 import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.PeerIds;
 import com.basrikahveci.p2p.peer.network.Connection;
-import com.basrikahveci.p2p.peer.network.message.KeepAlive;
+import com.basrikahveci.p2p.peer.network.codec.MessageDecoder;
 import com.basrikahveci.p2p.peer.network.message.ping.CancelPings;
 import com.basrikahveci.p2p.peer.network.message.ping.CancelPongs;
 import com.basrikahveci.p2p.peer.network.message.ping.Ping;
 import com.basrikahveci.p2p.peer.network.message.ping.Pong;
+import com.basrikahveci.p2p.peer.network.message.ping.PongBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
- * Maintains all of the ongoing Ping operations either initiated by this peer or other peers in the network
+ * Maintains all of the ongoing Ping operations either initiated by this peer or other peers in the network. Ping
+ * operations are identified by their initiators and sequence numbers, so an initiator may have a number of ongoing
+ * Ping operations. Copies of a Ping message received over different paths are dropped with {@link SeenMessageCache}.
  */
 public class PingService {
 
@@ -28,30 +34,81 @@ public class PingService {
 
     private final Config config;
 
-    private final Map<String, PingContext> currentPings = new HashMap<String, PingContext>();
+    /**
+     * Maximum number of Ping operations remembered by {@link #seenPings} in a ping timeout duration
+     */
+    static final int MAX_SEEN_PING_COUNT = 4096;
+
+    /**
+     * Pending pongs are forwarded once their encoded length may exceed this, so that a batch stays well below the
+     * maximum frame length on both wire formats
+     */
+    static final int MAX_PONG_BATCH_BYTES = MessageDecoder.MAX_FRAME_LENGTH / 2;
+
+    /**
+     * Upper bound of the encoded length of the fixed-size fields of a pong in a batch, including the overhead of Java
+     * serialization
+     */
+    private static final int MAX_PONG_FIELDS_LENGTH = 128;
+
+    // ping id -> ping context
+    private final Map<Long, PingContext> currentPings = new HashMap<Long, PingContext>();
+
+    private final SeenMessageCache seenPings;
+
+    private final TimeoutScheduler timeoutScheduler;
+
+    private final PeerDirectory peerDirectory;
+
+    private Consumer<Collection<Pong>> ownPingListener = pongs -> {
+    };
+
+    /**
+     * Ongoing Ping operation initiated by this peer
+     */
+    private PingContext ownPing;
+
+    /**
+     * Sequence number of the last Ping operation of this peer. It starts from a random number so that the Ping
+     * operations of a restarted peer are not mistaken for the ones before the restart.
+     */
+    private int pingSequenceNumber = Peer.RANDOM.nextInt();
 
     private int autoPingCount;
 
-    public PingService(ConnectionService connectionService, LeadershipService leadershipService, Config config) {
+    public PingService(ConnectionService connectionService, LeadershipService leadershipService, Config config,
+                       TimeoutScheduler timeoutScheduler) {
         this.connectionService = connectionService;
         this.leadershipService = leadershipService;
         this.config = config;
+        this.timeoutScheduler = timeoutScheduler;
+        this.seenPings = new SeenMessageCache(MAX_SEEN_PING_COUNT, MILLISECONDS.toNanos(config.getPingTimeoutMillis()));
+        this.peerDirectory = new PeerDirectory(config);
+    }
+
+    public PeerDirectory getPeerDirectory() {
+        return peerDirectory;
+    }
+
+    /**
+     * Sets the listener that is notified with the {@link Pong} messages collected once the Ping operation of this peer
+     * times out
+     */
+    public void setOwnPingListener(final Consumer<Collection<Pong>> ownPingListener) {
+        this.ownPingListener = ownPingListener;
     }
 
     /**
      * Sends a keep-alive message to its neighbours to notify its presence. It sends {@link Ping} messages to others
-     * instead of keep-alive messages at frequency given with {@link Config#autoDiscoveryPingFrequency}
+     * instead of keep-alive messages at frequency given with {@link Config#autoDiscoveryPingFrequency}, unless the
+     * {@link PeerDirectory} is fresh.
      *
      * @param discoveryPingEnabled if true, then peer is allowed to trigger a discovery ping to learn about other peers
      */
     public void keepAlive(final boolean discoveryPingEnabled) {
-        if (!currentPings.containsKey(config.getPeerName())) {
-            if (incrementAutoPingCountAndCheckIfFullPing() && discoveryPingEnabled) {
-                if (!currentPings.containsKey(config.getPeerName())) {
-                    discoveryPing();
-                } else {
-                    LOGGER.info("Periodic discovery ping skipped since there exists a ping already");
-                }
+        if (ownPing == null) {
+            if (incrementAutoPingCountAndCheckIfFullPing() && discoveryPingEnabled && !peerDirectory.isFresh()) {
+                discoveryPing();
             } else {
                 keepAlive();
             }
@@ -60,20 +117,40 @@ public class PingService {
 
     /**
      * Initiates a Ping operation in the network. If there is an ongoing Ping operation, it only attaches to it without
-     * starting a new Ping.
+     * starting a new Ping. The handle is first notified with the peers already discovered by the ongoing Ping. If the
+     * {@link PeerDirectory} is valid, the handle is completed with its peers immediately instead, and a new Ping is
+     * started in the background only if the directory is not fresh.
      *
-     * @param future future to be informed once the Ping is completed.
+     * @param handle handle to be notified with the discovered peers and completed once the Ping is completed.
      */
-    public void ping(final CompletableFuture<Collection<String>> future) {
-        PingContext pingContext = currentPings.get(config.getPeerName());
+    public void ping(final PingHandle handle) {
+        if (handle != null && peerDirectory.isValid()) {
+            completeFromDirectory(handle);
+            if (ownPing == null && !peerDirectory.isFresh()) {
+                LOGGER.info("Refreshing peer directory");
+                discoveryPing();
+            }
+            return;
+        }
+
+        PingContext pingContext = ownPing;
         if (pingContext == null) {
             pingContext = discoveryPing();
         } else {
             LOGGER.info("Attaching to the already existing ping context");
         }
 
-        if (future != null) {
-            pingContext.addFuture(future);
+        if (handle == null) {
+            return;
+        }
+
+        pingContext.addHandle(handle);
+        for (DiscoveredPeer peer : pingContext.getDiscoveredPeers()) {
+            handle.notifyPeer(peer);
+        }
+
+        if (!completeIfExpectedPeersDiscovered(pingContext, handle) && handle.getQuietPeriodMillis() > 0) {
+            scheduleQuietTimeout(pingContext, handle, handle.getQuietPeriodMillis());
         }
     }
 
@@ -88,35 +165,36 @@ public class PingService {
      *                    any other peer that has no direct connection to this peer
      */
     public void handlePing(final InetSocketAddress bindAddress, final Connection connection, final Ping ping) {
-        final String pingPeerName = ping.getPeerName();
-        if (currentPings.containsKey(pingPeerName)) {
-            LOGGER.info("Skipping ping of {} since it is already handled.", pingPeerName);
+        final long pingId = ping.getPingId();
+        if (!seenPings.add(pingId)) {
+            return;
+        }
+
+        if (currentPings.containsKey(pingId)) {
+            LOGGER.info("Skipping {} since it is already handled.", ping);
             return;
         }
 
-        if (pingPeerName.equals(connection.getPeerName())) {
-            LOGGER.info("Handling {} of initiator {} with ttl={}", ping, pingPeerName, ping.getTtl());
+        final long pingPeerId = ping.getPeerId();
+        if (pingPeerId == connection.getPeerId()) {
+            LOGGER.info("Handling {} of initiator {}", ping, connection.getPeerName());
         } else {
-            LOGGER.info("Handling {} of initiator {} and forwarder {} with ttl={} and hops={}", ping, pingPeerName,
-                    connection.getPeerName(), ping.getTtl(), ping.getHops());
+            LOGGER.info("Handling {} of forwarder {}", ping, connection.getPeerName());
         }
 
         ping.setPingStartTimestamp(System.currentTimeMillis());
-        currentPings.put(pingPeerName, new PingContext(ping, connection));
+        addPing(pingId, new PingContext(ping, connection));
 
-        final Pong pong = new Pong(pingPeerName, config.getPeerName(), config.getPeerName(),
-                bindAddress.getAddress().getHostAddress(), bindAddress.getPort(), ping.getHops() + 1, 0);
+        final Pong pong = new Pong(pingPeerId, ping.getSequenceNumber(), config.getPeerId(), config.getPeerId(),
+                config.getPeerName(), bindAddress.getAddress().getHostAddress(), bindAddress.getPort(),
+                ping.getHops() + 1, 0);
         connection.send(pong);
 
         final Ping next = ping.next();
         if (next != null) {
-            for (Connection neighbour : connectionService.getConnections()) {
-                if (!neighbour.equals(connection) && !neighbour.getPeerName().equals(ping.getPeerName())) {
-                    LOGGER.info("Forwarding {} to {} for initiator {}", next, neighbour.getPeerName(),
-                            ping.getPeerName());
-                    neighbour.send(next);
-                }
-            }
+            final int count = connectionService.forward(next, connection.getPeerId(), pingPeerId);
+            LOGGER.info("Forwarded {} to {} neighbours", next, count);
+            next.release();
         }
     }
 
@@ -127,11 +205,12 @@ public class PingService {
      */
     public void propagatePingsToNewConnection(final Connection connection) {
         for (PingContext pingContext : currentPings.values()) {
-            if (!pingContext.getPeerName().equals(connection.getPeerName())) {
+            if (pingContext.getPeerId() != connection.getPeerId()) {
                 final Ping next = pingContext.getPing().next();
                 if (next != null) {
-                    connection.send(next);
                     LOGGER.info("{} sent to new connection {}", next, connection.getPeerName());
+                    // next is released by the encoder
+                    connection.send(next);
                 }
             }
         }
@@ -143,38 +222,221 @@ public class PingService {
      * @param pong Pong message that is sent in response to a {@link Ping} message propagated by this peer.
      */
     public void handlePong(final Pong pong) {
-        if (pong.getPeerName().equals(config.getPeerName())) {
+        if (pong.getPeerId() == config.getPeerId()) {
             LOGGER.warn("Received {} from itself", pong);
             return;
         }
-        final String pingPeerName = pong.getPingPeerName();
-        final PingContext pingContext = currentPings.get(pingPeerName);
+        final PingContext pingContext = currentPings.get(pong.getPingId());
+        if (pingContext == null) {
+            LOGGER.warn("No ping context is found for {} from {}", pong, pong.getPeerName());
+            return;
+        }
+
+        handlePong(pingContext, pong);
+    }
+
+    /**
+     * Handles the {@link Pong} messages forwarded together by a neighbour
+     *
+     * @param batch Pong messages that are sent in response to a {@link Ping} message propagated by this peer
+     */
+    public void handlePongBatch(final PongBatch batch) {
+        final PingContext pingContext = currentPings.get(Ping.toPingId(batch.getPingPeerId(),
+                batch.getPingSequenceNumber()));
         if (pingContext == null) {
-            LOGGER.warn("No ping context is found for {} from {} for initiator {}", pong, pong.getPeerName(),
-                    pingPeerName);
+            LOGGER.warn("No ping context is found for {}", batch);
+            return;
+        }
+
+        for (Pong pong : batch.getPongs()) {
+            if (pong.getPeerId() != config.getPeerId()) {
+                handlePong(pingContext, pong);
+            }
+        }
+    }
+
+    private void handlePong(final PingContext pingContext, final Pong pong) {
+        if (!pingContext.handlePong(pong)) {
             return;
         }
 
-        pingContext.handlePong(config.getPeerName(), pong);
+        final boolean isOwnPing = pingContext.getPeerId() == config.getPeerId();
+        peerDirectory.handlePong(pong, isOwnPing);
+        if (!isOwnPing) {
+            forwardPong(pingContext, pong);
+        } else {
+            discoverPeer(pingContext, pong);
+        }
+    }
+
+    /**
+     * Notifies the handles of the Ping operation of this peer with the peer that has sent the pong, and completes the
+     * handles that have discovered as many peers as they expect. The Ping operation itself continues until its timeout
+     * so that the own ping listener gets all of the peers.
+     */
+    private void discoverPeer(final PingContext pingContext, final Pong pong) {
+        final DiscoveredPeer peer = new DiscoveredPeer(pong.getPeerName(), pong.getServerHost(), pong.getServerPort(),
+                pong.getHops() + 1, pingContext.getElapsedMillis());
+        pingContext.addDiscoveredPeer(peer);
+        LOGGER.debug("Discovered {}", peer);
+
+        for (PingHandle handle : new ArrayList<>(pingContext.getHandles())) {
+            handle.notifyPeer(peer);
+            completeIfExpectedPeersDiscovered(pingContext, handle);
+        }
+    }
+
+    private boolean completeIfExpectedPeersDiscovered(final PingContext pingContext, final PingHandle handle) {
+        final int expectedPeerCount = handle.getExpectedPeerCount();
+        if (expectedPeerCount > 0 && pingContext.getDiscoveredPeers().size() + 1 >= expectedPeerCount) {
+            LOGGER.info("Completing {} since expected number of peers are discovered", handle);
+            completeHandle(pingContext, handle);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Completes the handle once no peer is discovered for its quiet period. The timeout is not rescheduled for each
+     * discovered peer. Instead, once it fires, it is rescheduled for the rest of the quiet period after the last
+     * discovered peer.
+     */
+    private void scheduleQuietTimeout(final PingContext pingContext, final PingHandle handle, final long delayMillis) {
+        handle.setQuietTimeout(timeoutScheduler.schedule(() -> {
+            final List<DiscoveredPeer> discoveredPeers = pingContext.getDiscoveredPeers();
+            final long quietMillis = discoveredPeers.isEmpty() ? handle.getQuietPeriodMillis()
+                    : pingContext.getElapsedMillis() - discoveredPeers.get(discoveredPeers.size() - 1).getLatencyMillis();
+            if (quietMillis >= handle.getQuietPeriodMillis()) {
+                LOGGER.info("Completing {} since no peer is discovered for {} ms", handle, quietMillis);
+                completeHandle(pingContext, handle);
+            } else {
+                scheduleQuietTimeout(pingContext, handle, handle.getQuietPeriodMillis() - quietMillis);
+            }
+        }, delayMillis, MILLISECONDS));
+    }
+
+    private void completeHandle(final PingContext pingContext, final PingHandle handle) {
+        pingContext.removeHandle(handle);
+        handle.cancelQuietTimeout();
+        handle.getFuture().complete(getPeerNames(pingContext));
+    }
+
+    private void completeFromDirectory(final PingHandle handle) {
+        final Set<String> peers = new HashSet<>();
+        for (PeerDirectory.Entry entry : peerDirectory.getEntries()) {
+            peers.add(entry.getPeerName());
+            handle.notifyPeer(entry.toDiscoveredPeer());
+        }
+        peers.add(config.getPeerName());
+        LOGGER.info("Completing {} from peer directory with # peers: {}", handle, peers.size());
+        handle.getFuture().complete(peers);
+    }
+
+    private Set<String> getPeerNames(final PingContext pingContext) {
+        final Set<String> peers = new HashSet<>();
+        for (Pong pong : pingContext.getPongs()) {
+            peers.add(pong.getPeerName());
+        }
+        peers.add(config.getPeerName());
+        return peers;
+    }
+
+    /**
+     * Forwards the pong towards the ping initiator. Pongs are collected for {@link Config#getPongBatchWindowMillis()}
+     * or until there are {@link Config#getMaxPongBatchSize()} of them, and forwarded together in a {@link PongBatch}
+     * so that the peers close to the initiator do not relay a message for each peer in the network. A batch is also
+     * forwarded before its encoded length may exceed {@link #MAX_PONG_BATCH_BYTES}.
+     */
+    private void forwardPong(final PingContext pingContext, final Pong pong) {
+        final Connection connection = pingContext.getConnection();
+        if (connection == null) {
+            LOGGER.error("No connection is found in ping context for {} from {} for {}", pong, pong.getPeerName(),
+                    pingContext.getPing());
+            return;
+        } else if (pong.getTtl() <= 1) {
+            LOGGER.error("Invalid {} received from {} for {}", pong, pong.getPeerName(), pingContext.getPing());
+            return;
+        }
+
+        final int batchWindowMillis = config.getPongBatchWindowMillis();
+        if (batchWindowMillis <= 0) {
+            LOGGER.debug("Forwarding {} to {} for {}", pong, connection.getPeerName(), pingContext.getPing());
+            // next is released by the encoder
+            connection.send(pong.next(config.getPeerId()));
+            return;
+        }
+
+        // ttl of the pong is checked above, so next is not null. it is released along with its batch.
+        final Pong forwarded = pong.next(config.getPeerId());
+        final int encodedLength = getMaxEncodedLength(forwarded);
+        if (pingContext.getPendingPongBytes() + encodedLength > MAX_PONG_BATCH_BYTES) {
+            flushPongs(pingContext);
+        }
+
+        final int pendingPongCount = pingContext.addPendingPong(forwarded, encodedLength);
+        if (pendingPongCount >= config.getMaxPongBatchSize()) {
+            flushPongs(pingContext);
+        } else if (pendingPongCount == 1) {
+            pingContext.setFlushTimeout(timeoutScheduler.schedule(() -> flushPongs(pingContext), batchWindowMillis,
+                    MILLISECONDS));
+        }
+    }
+
+    /**
+     * Returns an upper bound of the encoded length of the pong in a batch. Strings take at most 3 bytes per char in
+     * both UTF-8 and the modified UTF-8 of Java serialization.
+     */
+    private static int getMaxEncodedLength(final Pong pong) {
+        final String peerName = pong.getPeerName();
+        final String serverHost = pong.getServerHost();
+        return MAX_PONG_FIELDS_LENGTH + 3 * ((peerName != null ? peerName.length() : 0)
+                + (serverHost != null ? serverHost.length() : 0));
+    }
+
+    private void flushPongs(final PingContext pingContext) {
+        final PongBatch batch = pingContext.takePendingPongs();
+        if (batch == null) {
+            return;
+        }
+
+        final Connection connection = pingContext.getConnection();
+        final List<Pong> pongs = batch.getPongs();
+        LOGGER.debug("Forwarding {} pongs to {} for {}", pongs.size(), connection.getPeerName(), pingContext.getPing());
+        if (pongs.size() == 1) {
+            // the pong outlives its batch until it is encoded
+            final Pong pong = pongs.get(0);
+            pong.retain();
+            batch.release();
+            connection.send(pong);
+        } else {
+            // the batch is released by the encoder along with its pongs
+            connection.send(batch);
+        }
     }
 
     /**
      * Removes {@link Pong} messages sent by the disconnected peer to cancel out its presence in ongoing Ping
      * operations.
      *
-     * @param disconnectedPeerName name of the disconnected peer
+     * @param disconnectedPeerId id of the disconnected peer
      */
-    public void cancelPongs(final String disconnectedPeerName) {
-        final Iterator<Entry<String, PingContext>> pingIt = currentPings.entrySet().iterator();
+    public void cancelPongs(final long disconnectedPeerId) {
+        final Iterator<PingContext> pingIt = currentPings.values().iterator();
 
-        final CancelPongs cancelPongs = new CancelPongs(disconnectedPeerName);
+        final String disconnectedPeerName = PeerIds.toString(disconnectedPeerId);
+        final CancelPongs cancelPongs = new CancelPongs(disconnectedPeerId);
+        peerDirectory.remove(disconnectedPeerId);
         while (pingIt.hasNext()) {
-            final Entry<String, PingContext> pingEntry = pingIt.next();
-            final String pingPeerName = pingEntry.getKey();
-            final PingContext pingContext = pingEntry.getValue();
+            final PingContext pingContext = pingIt.next();
+            final long pingPeerId = pingContext.getPeerId();
+            final String pingPeerName = PeerIds.toString(pingPeerId);
+
+            // Pongs waiting to be forwarded must precede the cancellations of them
+            flushPongs(pingContext);
 
             // Remove Pong messages of disconnected peer in ongoing ping operations
-            if (pingContext.removePong(disconnectedPeerName)) {
+            if (pingContext.removePong(disconnectedPeerId)) {
                 final Connection pingOwnerConnection = pingContext.getConnection();
                 if (pingOwnerConnection != null) {
                     LOGGER.info("Removed pong of {} in ping of {}. Forwarding {} to {}", disconnectedPeerName, pingPeerName,
@@ -191,14 +453,14 @@ public class PingService {
             // to check if there is still an active connection between this peer and the orphan peer
             boolean rePing = false;
             for (Pong pong : new ArrayList<>(pingContext.getPongs())) {
-                if (pong.getSenderPeerName().equals(disconnectedPeerName)) {
-                    pingContext.removePong(pong.getPeerName());
+                if (pong.getSenderPeerId() == disconnectedPeerId) {
+                    pingContext.removePong(pong.getPeerId());
                     rePing = true;
                     LOGGER.info("Removed Pong of {} in ping of {} since it was sent by {}", pong.getPeerName(), pingPeerName,
                             disconnectedPeerName);
                     final Connection connection = pingContext.getConnection();
                     if (connection != null) {
-                        final CancelPongs msg = new CancelPongs(pong.getPeerName());
+                        final CancelPongs msg = new CancelPongs(pong.getPeerId());
                         connection.send(msg);
                         LOGGER.info("Forwarded {} to {} for ping of {}", msg, connection.getPeerName(), pingPeerName);
                     }
@@ -209,13 +471,10 @@ public class PingService {
                 final Ping next = pingContext.getPing().next();
                 if (next != null) {
                     LOGGER.info("Will re-send {}", next);
-                    for (Connection connection : connectionService.getConnections()) {
-                        if (!(connection.getPeerName().equals(pingPeerName) || connection.getPeerName()
-                                .equals(disconnectedPeerName) || !connection.equals(pingContext.getConnection()))) {
-                            connection.send(next);
-                            LOGGER.info("{} re-sent to {} because {} left", next, connection.getPeerName(), disconnectedPeerName);
-                        }
-                    }
+                    final int count = connectionService.broadcast(next, connection -> !(connection.getPeerId() == pingPeerId
+                            || connection.getPeerId() == disconnectedPeerId || !connection.equals(pingContext.getConnection())));
+                    LOGGER.info("{} re-sent to {} neighbours because {} left", next, count, disconnectedPeerName);
+                    next.release();
                 }
             }
         }
@@ -226,29 +485,30 @@ public class PingService {
      * to the cancelled Ping are also notified.
      *
      * @param connection           connection of the neighbour that notifies this peer about disconnected peer
-     * @param disconnectedPeerName name of disconnected peer
+     * @param disconnectedPeerId   id of disconnected peer
      */
-    public void cancelPings(final Connection connection, final String disconnectedPeerName) {
-        final Iterator<Entry<String, PingContext>> pingIt = currentPings.entrySet().iterator();
+    public void cancelPings(final Connection connection, final long disconnectedPeerId) {
+        final Iterator<PingContext> pingIt = currentPings.values().iterator();
 
         while (pingIt.hasNext()) {
-            final Entry<String, PingContext> pingEntry = pingIt.next();
-            final String pingPeerName = pingEntry.getKey();
-            final PingContext pingContext = pingEntry.getValue();
+            final PingContext pingContext = pingIt.next();
+            final long pingPeerId = pingContext.getPeerId();
 
             final Connection pingOwnerConnection = pingContext.getConnection();
-            boolean shouldRemove = pingPeerName.equals(disconnectedPeerName) && connection.equals(pingOwnerConnection);
+            boolean shouldRemove = pingPeerId == disconnectedPeerId && connection.equals(pingOwnerConnection);
             if (!shouldRemove) {
-                shouldRemove = pingOwnerConnection != null && pingOwnerConnection.getPeerName().equals(disconnectedPeerName);
+                shouldRemove = pingOwnerConnection != null && pingOwnerConnection.getPeerId() == disconnectedPeerId;
             }
 
             if (shouldRemove) {
-                LOGGER.info("Removing ping of {} since it is disconnected", pingPeerName);
+                LOGGER.info("Removing ping of {} since it is disconnected", PeerIds.toString(pingPeerId));
 
                 pingIt.remove();
-                final CancelPings cancelPings = new CancelPings(disconnectedPeerName);
+                pingContext.cancelTimeout();
+                pingContext.discardPendingPongs();
+                final CancelPings cancelPings = new CancelPings(disconnectedPeerId);
                 for (Pong pong : pingContext.getPongs()) {
-                    final Connection c = connectionService.getConnection(pong.getPeerName());
+                    final Connection c = connectionService.getConnection(pong.getPeerId());
                     if (c != null) {
                         c.send(cancelPings);
                         LOGGER.info("{} sent to {}", cancelPings, pong.getPeerName());
@@ -261,56 +521,46 @@ public class PingService {
     }
 
     /**
-     * Cancels this peers ping operation and notifies its futures
+     * Cancels this peers ping operation and notifies its handles
      */
     public void cancelOwnPing() {
-        final PingContext pingContext = currentPings.get(config.getPeerName());
+        final PingContext pingContext = ownPing;
         if (pingContext != null) {
             LOGGER.info("Cancelling own ping");
-            for (CompletableFuture<Collection<String>> future : pingContext.getFutures()) {
-                future.cancel(true);
+            for (PingHandle handle : pingContext.getHandles()) {
+                handle.cancelQuietTimeout();
+                handle.getFuture().cancel(true);
             }
         }
     }
 
     /**
-     * Terminates ongoing Ping operations that completed the timeout duration. If there is a terminated Ping operation
-     * initiated by this peer, {@link Pong} messages collected are returned.
-     *
-     * @return Pong messages return in response to the ongoing Ping operation of this peer.
+     * Terminates the Ping operation once its timeout duration is completed. If it is the Ping operation of this peer,
+     * its handles and the listener are notified with the {@link Pong} messages collected.
      */
-    public Collection<Pong> timeoutPings() {
-        Collection<Pong> pongs = Collections.emptyList();
-
-        final Iterator<Entry<String, PingContext>> pingIt = currentPings.entrySet().iterator();
-
-        while (pingIt.hasNext()) {
-            final Entry<String, PingContext> pingEntry = pingIt.next();
-            final String pingPeerName = pingEntry.getKey();
-            final PingContext pingContext = pingEntry.getValue();
-
-            if (pingContext.isTimeout()) {
-                pingIt.remove();
-
-                if (config.getPeerName().equals(pingPeerName)) {
-                    pongs = pingContext.getPongs();
-                    final Set<String> peers = new HashSet<>();
-                    for (Pong pong : pongs) {
-                        peers.add(pong.getPeerName());
-                    }
-                    peers.add(config.getPeerName());
-                    LOGGER.info("Ping for {} has timed out. Notifying futures with # peers: {}", pingContext.getPeerName(),
-                            peers.size());
-                    for (CompletableFuture<Collection<String>> future : pingContext.getFutures()) {
-                        future.complete(peers);
-                    }
-                } else {
-                    LOGGER.info("Ping for {} has timed out.", pingContext.getPeerName());
-                }
+    private void timeoutPing(final long pingId, final PingContext pingContext) {
+        currentPings.remove(pingId);
+        pingContext.discardPendingPongs();
+
+        if (pingContext == ownPing) {
+            ownPing = null;
+            peerDirectory.markRefreshed();
+            final Set<String> peers = getPeerNames(pingContext);
+            LOGGER.info("Own ping has timed out. Notifying handles with # peers: {}", peers.size());
+            for (PingHandle handle : pingContext.getHandles()) {
+                handle.cancelQuietTimeout();
+                handle.getFuture().complete(peers);
             }
+            ownPingListener.accept(pingContext.getPongs());
+        } else {
+            LOGGER.info("{} has timed out.", pingContext.getPing());
         }
+    }
 
-        return pongs;
+    private void addPing(final long pingId, final PingContext pingContext) {
+        currentPings.put(pingId, pingContext);
+        pingContext.setTimeout(timeoutScheduler.schedule(() -> timeoutPing(pingId, pingContext),
+                pingContext.getPing().getPingTimeoutDurationInMillis(), MILLISECONDS));
     }
 
     private PingContext discoveryPing() {
@@ -318,14 +568,14 @@ public class PingService {
 
         LOGGER.info("Doing a full ping with ttl={}", ttl);
 
-        final Ping ping = new Ping(config.getPeerName(), ttl, 0, config.getPingTimeoutMillis());
+        final Ping ping = new Ping(config.getPeerId(), ++pingSequenceNumber, ttl, 0, config.getPingTimeoutMillis());
         ping.setPingStartTimestamp(System.currentTimeMillis());
         final PingContext pingContext = new PingContext(ping, null);
-        currentPings.put(config.getPeerName(), pingContext);
+        seenPings.add(ping.getPingId());
+        addPing(ping.getPingId(), pingContext);
+        ownPing = pingContext;
 
-        for (Connection connection : connectionService.getConnections()) {
-            connection.send(ping);
-        }
+        connectionService.broadcast(ping);
 
         return pingContext;
     }
@@ -337,10 +587,7 @@ public class PingService {
     private void keepAlive() {
         LOGGER.debug("Doing a keep-alive ping");
 
-        final KeepAlive keepAlive = new KeepAlive();
-        for (Connection connection : connectionService.getConnections()) {
-            connection.send(keepAlive);
-        }
+        connectionService.broadcastKeepAlive();
     }
 
 }
@@ -0,0 +1,121 @@
+package com.basrikahveci.p2p.peer.service;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the ids of the flooded messages seen recently, so that the copies of a message arriving over different
+ * paths are dropped. Ids are kept in two generations of open-addressing tables of primitive longs, so that checking an
+ * id allocates nothing. The current generation is retired once it is older than the window or it holds the maximum
+ * number of ids, and the retired generation is still checked until it is replaced. Hence an id is remembered for at
+ * least one window unless more ids than the maximum are seen in a window.
+ */
+public class SeenMessageCache {
+
+    private final int maxIdsPerGeneration;
+
+    private final long windowNanos;
+
+    private final int mask;
+
+    private long[] current;
+
+    private long[] previous;
+
+    /**
+     * 0 marks empty slots of the tables so it is tracked separately
+     */
+    private boolean currentHasZero;
+
+    private boolean previousHasZero;
+
+    private int currentSize;
+
+    private long currentStartNanos;
+
+    /**
+     * @param maxIdsPerGeneration maximum number of ids in a generation
+     * @param windowNanos         duration of a generation
+     */
+    public SeenMessageCache(final int maxIdsPerGeneration, final long windowNanos) {
+        this.maxIdsPerGeneration = Math.max(1, maxIdsPerGeneration);
+        this.windowNanos = windowNanos;
+        // tables are kept at most half full for short probe sequences
+        final int tableSize = Integer.highestOneBit(this.maxIdsPerGeneration) << 2;
+        this.mask = tableSize - 1;
+        this.current = new long[tableSize];
+        this.previous = new long[tableSize];
+        this.currentStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Remembers the given id
+     *
+     * @return true if the id is not seen recently
+     */
+    public boolean add(final long id) {
+        final long now = System.nanoTime();
+        if (now - currentStartNanos >= windowNanos || currentSize >= maxIdsPerGeneration) {
+            rotate(now);
+        }
+
+        if (id == 0) {
+            if (currentHasZero || previousHasZero) {
+                return false;
+            }
+            currentHasZero = true;
+            currentSize++;
+            return true;
+        }
+
+        if (contains(previous, id)) {
+            return false;
+        }
+
+        int i = index(id);
+        while (current[i] != 0) {
+            if (current[i] == id) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        current[i] = id;
+        currentSize++;
+        return true;
+    }
+
+    private boolean contains(final long[] table, final long id) {
+        int i = index(id);
+        while (table[i] != 0) {
+            if (table[i] == id) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+
+        return false;
+    }
+
+    private int index(final long id) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rotate(final long now) {
+        final long[] retired = previous;
+        Arrays.fill(retired, 0);
+        if (now - currentStartNanos >= 2 * windowNanos) {
+            // the current generation has expired as well
+            Arrays.fill(current, 0);
+            currentHasZero = false;
+        }
+
+        previous = current;
+        previousHasZero = currentHasZero;
+        current = retired;
+        currentHasZero = false;
+        currentSize = 0;
+        currentStartNanos = now;
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.basrikahveci.p2p.peer.service;
+
+import io.netty.channel.DefaultFileRegion;
+import io.netty.util.ReferenceCounted;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A file region over a file channel that is shared by all chunks of a transfer. {@link DefaultFileRegion} closes its
+ * file channel once it is released. Instead, this region only releases its reference to the shared file so that the
+ * file is closed after the transfer and all of its regions are done with it. It still extends
+ * {@link DefaultFileRegion} since the native transport only transfers that type with sendfile.
+ */
+class SharedFileRegion extends DefaultFileRegion {
+
+    private final ReferenceCounted fileReference;
+
+    SharedFileRegion(FileChannel fileChannel, ReferenceCounted fileReference, long position, long count) {
+        super(fileChannel, position, count);
+        this.fileReference = fileReference.retain();
+    }
+
+    @Override
+    protected void deallocate() {
+        fileReference.release();
+    }
+
+}
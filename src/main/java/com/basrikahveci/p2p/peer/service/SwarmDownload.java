@@ -0,0 +1,122 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.network.Connection;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the state of a content-addressed file that is downloaded from the neighbours. Size of the file is not known
+ * until a neighbour that has the file sends its chunk map, and chunks are not requested until the chunk hashes are
+ * received from one of the neighbours.
+ */
+class SwarmDownload {
+
+    private final String contentHash;
+
+    private final Path destination;
+
+    private final CompletableFuture<Path> future;
+
+    // chunks that are requested from a neighbour or being written
+    private final BitSet pendingChunks = new BitSet();
+
+    // neighbours that have asked for the file before its chunk hashes are known
+    private final List<Connection> waitingConnections = new ArrayList<>();
+
+    // peer ids of the neighbours that have sent corrupt chunks or chunk hashes. they are not asked for the file again.
+    private final Set<Long> bannedPeerIds = new HashSet<>();
+
+    private SwarmFile file;
+
+    private boolean completing;
+
+    private long lastQueryNanos;
+
+    // neighbour that the chunk hashes are requested from last, and the time of the request
+    private Connection chunkHashesConnection;
+
+    private long chunkHashesRequestNanos;
+
+    SwarmDownload(String contentHash, Path destination, CompletableFuture<Path> future) {
+        this.contentHash = contentHash;
+        this.destination = destination;
+        this.future = future;
+    }
+
+    String getContentHash() {
+        return contentHash;
+    }
+
+    Path getDestination() {
+        return destination;
+    }
+
+    CompletableFuture<Path> getFuture() {
+        return future;
+    }
+
+    BitSet getPendingChunks() {
+        return pendingChunks;
+    }
+
+    List<Connection> getWaitingConnections() {
+        return waitingConnections;
+    }
+
+    Set<Long> getBannedPeerIds() {
+        return bannedPeerIds;
+    }
+
+    SwarmFile getFile() {
+        return file;
+    }
+
+    void setFile(final SwarmFile file) {
+        this.file = file;
+    }
+
+    boolean isCompleting() {
+        return completing;
+    }
+
+    void setCompleting() {
+        this.completing = true;
+    }
+
+    long getLastQueryNanos() {
+        return lastQueryNanos;
+    }
+
+    void setLastQueryNanos(final long lastQueryNanos) {
+        this.lastQueryNanos = lastQueryNanos;
+    }
+
+    Connection getChunkHashesConnection() {
+        return chunkHashesConnection;
+    }
+
+    long getChunkHashesRequestNanos() {
+        return chunkHashesRequestNanos;
+    }
+
+    void setChunkHashesRequest(final Connection connection, final long nowNanos) {
+        this.chunkHashesConnection = connection;
+        this.chunkHashesRequestNanos = nowNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SwarmDownload{" +
+                "contentHash='" + contentHash + '\'' +
+                ", destination=" + destination +
+                ", file=" + file +
+                '}';
+    }
+
+}
@@ -0,0 +1,401 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashes;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the state of a content-addressed file that this peer shares or downloads: the chunks this peer has and the
+ * neighbours that have or download the same file. A file being downloaded is served from its partial file, so chunks
+ * are passed on to the other neighbours as soon as they are written.
+ * <p>
+ * Chunk bit sets and neighbours are only accessed in the peer event loop while the file channel is read and written by
+ * the disk I/O threads with positional operations.
+ */
+class SwarmFile {
+
+    /**
+     * Min size of the chunks of a file. Smaller chunks are not accepted from the neighbours, so that a chunk map can
+     * not make this peer keep state for a huge number of chunks.
+     */
+    static final int MIN_CHUNK_SIZE_BYTES = 4 * 1024;
+
+    static final int MAX_CHUNK_SIZE_BYTES = FileTransferService.MAX_CHUNK_SIZE_BYTES;
+
+    /**
+     * Max number of chunks of a file. Chunks of larger files are enlarged to stay within the limit. It also keeps the
+     * hashes of all chunks within a single {@link ChunkHashes} frame.
+     */
+    static final int MAX_CHUNK_COUNT = 16 * 1024;
+
+    private final String contentHash;
+
+    private final long fileSize;
+
+    private final int chunkSize;
+
+    // Merkle root of the chunks, which is bound to the content hash along with the file and chunk sizes
+    private final byte[] merkleRoot;
+
+    // tree of the chunk hashes, which is null until the chunk hashes of a download are received and verified
+    private MerkleTree merkleTree;
+
+    private final int chunkCount;
+
+    private final BitSet chunks;
+
+    // peer id -> neighbour that has or downloads the file
+    private final Map<Long, SwarmSource> sources = new HashMap<>();
+
+    // chunk index -> number of neighbours that have the chunk
+    private final int[] availability;
+
+    private Path path;
+
+    private FileChannel fileChannel;
+
+    /**
+     * Closes the file channel once both the file and the file regions of its chunks are done with it
+     */
+    private AbstractReferenceCounted fileReference;
+
+    private boolean closed;
+
+    SwarmFile(String contentHash, long fileSize, int chunkSize, byte[] merkleRoot, Path path) {
+        if (!isValidGeometry(fileSize, chunkSize)) {
+            throw new IllegalArgumentException("Invalid file size " + fileSize + " or chunk size " + chunkSize);
+        }
+
+        this.contentHash = contentHash;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.merkleRoot = merkleRoot;
+        this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.chunks = new BitSet(chunkCount);
+        this.availability = new int[chunkCount];
+        this.path = path;
+    }
+
+    /**
+     * Returns true if a file with the given size can be split into chunks of the given size
+     */
+    static boolean isValidGeometry(final long fileSize, final int chunkSize) {
+        return fileSize >= 0 && chunkSize >= MIN_CHUNK_SIZE_BYTES && chunkSize <= MAX_CHUNK_SIZE_BYTES
+                && (fileSize + chunkSize - 1) / chunkSize <= MAX_CHUNK_COUNT;
+    }
+
+    /**
+     * Returns the chunk size to share a file with. It is the preferred chunk size within the limits, which is doubled
+     * until the file fits in {@link #MAX_CHUNK_COUNT} chunks.
+     *
+     * @throws IllegalArgumentException if the file does not fit even with the largest chunks
+     */
+    static int selectChunkSize(final long fileSize, final int preferredChunkSize) {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE_BYTES, Math.min(preferredChunkSize, MAX_CHUNK_SIZE_BYTES));
+        while (!isValidGeometry(fileSize, chunkSize) && chunkSize < MAX_CHUNK_SIZE_BYTES) {
+            chunkSize = Math.min(2 * chunkSize, MAX_CHUNK_SIZE_BYTES);
+        }
+
+        if (!isValidGeometry(fileSize, chunkSize)) {
+            throw new IllegalArgumentException("File size " + fileSize + " exceeds "
+                    + (long) MAX_CHUNK_COUNT * MAX_CHUNK_SIZE_BYTES + " bytes");
+        }
+
+        return chunkSize;
+    }
+
+    /**
+     * Returns the content hash of a file, which is the SHA-256 hash of its size, chunk size and the Merkle root of its
+     * chunks. Neighbours can check the size and the chunks of a file against its content hash before they download it.
+     */
+    static String getContentHash(final long fileSize, final int chunkSize, final byte[] merkleRoot) {
+        return Hashing.sha256().newHasher().putLong(fileSize).putInt(chunkSize).putBytes(merkleRoot).hash().toString();
+    }
+
+    String getContentHash() {
+        return contentHash;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    /**
+     * Returns true if the hashes of the chunks are known, so chunks can be verified and served to the neighbours
+     */
+    boolean hasChunkHashes() {
+        return merkleTree != null;
+    }
+
+    MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    /**
+     * Sets the tree of the chunk hashes. Its root must be the Merkle root of the file.
+     */
+    void setMerkleTree(final MerkleTree merkleTree) {
+        this.merkleTree = merkleTree;
+    }
+
+    /**
+     * Returns true if the data matches the hash of the chunk. It can be called by the hash pool threads once the chunk
+     * hashes are set.
+     */
+    boolean isValidChunkData(final int chunkIndex, final ByteBuf data) {
+        return merkleTree.isLeaf(chunkIndex, data);
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    BitSet getChunks() {
+        return chunks;
+    }
+
+    boolean hasChunk(final int chunkIndex) {
+        return chunks.get(chunkIndex);
+    }
+
+    void setChunk(final int chunkIndex) {
+        chunks.set(chunkIndex);
+    }
+
+    void setAllChunks() {
+        chunks.set(0, chunkCount);
+    }
+
+    boolean isComplete() {
+        return chunks.cardinality() == chunkCount;
+    }
+
+    boolean isValidChunk(final int chunkIndex) {
+        return chunkIndex >= 0 && chunkIndex < chunkCount;
+    }
+
+    long getChunkOffset(final int chunkIndex) {
+        return (long) chunkIndex * chunkSize;
+    }
+
+    int getChunkLength(final int chunkIndex) {
+        return (int) Math.min(chunkSize, fileSize - getChunkOffset(chunkIndex));
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void setPath(final Path path) {
+        this.path = path;
+    }
+
+    boolean isOpen() {
+        return fileChannel != null && !closed;
+    }
+
+    void setFileChannel(final FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+        this.fileReference = new AbstractReferenceCounted() {
+            @Override
+            protected void deallocate() {
+                try {
+                    fileChannel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
+    FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    int getAvailability(final int chunkIndex) {
+        return availability[chunkIndex];
+    }
+
+    Collection<SwarmSource> getSources() {
+        return sources.values();
+    }
+
+    SwarmSource getSource(final Connection connection) {
+        final SwarmSource source = sources.get(connection.getPeerId());
+        return source != null && source.getConnection() == connection ? source : null;
+    }
+
+    /**
+     * Adds a neighbour with the given chunks. If there is a neighbour with the same peer id, i.e., the neighbour has
+     * reconnected before its old connection is noticed to be closed, it is replaced.
+     *
+     * @return the replaced neighbour, or null if there is not any
+     */
+    SwarmSource addSource(final Connection connection, final BitSet sourceChunks) {
+        sourceChunks.clear(chunkCount, Math.max(chunkCount, sourceChunks.length()));
+        final SwarmSource previous = sources.put(connection.getPeerId(), new SwarmSource(connection, sourceChunks));
+        if (previous != null) {
+            updateAvailability(previous.getChunks(), -1);
+        }
+        updateAvailability(sourceChunks, 1);
+        return previous;
+    }
+
+    /**
+     * Replaces the known chunks of a neighbour
+     */
+    void setSourceChunks(final SwarmSource source, final BitSet sourceChunks) {
+        updateAvailability(source.getChunks(), -1);
+        source.getChunks().clear();
+        source.getChunks().or(sourceChunks);
+        source.getChunks().clear(chunkCount, Math.max(chunkCount, sourceChunks.length()));
+        updateAvailability(source.getChunks(), 1);
+    }
+
+    /**
+     * Removes the state of the neighbour if it belongs to the given connection
+     */
+    SwarmSource removeSource(final Connection connection) {
+        final SwarmSource source = getSource(connection);
+        if (source != null) {
+            sources.remove(connection.getPeerId());
+            updateAvailability(source.getChunks(), -1);
+        }
+
+        return source;
+    }
+
+    /**
+     * Marks a chunk as available on the given neighbour
+     *
+     * @return true if the neighbour did not have the chunk before
+     */
+    boolean addSourceChunk(final SwarmSource source, final int chunkIndex) {
+        if (source.getChunks().get(chunkIndex)) {
+            return false;
+        }
+
+        source.getChunks().set(chunkIndex);
+        availability[chunkIndex]++;
+        return true;
+    }
+
+    /**
+     * Marks a chunk as unavailable on the given neighbour
+     */
+    void removeSourceChunk(final SwarmSource source, final int chunkIndex) {
+        if (source.getChunks().get(chunkIndex)) {
+            source.getChunks().clear(chunkIndex);
+            availability[chunkIndex]--;
+        }
+    }
+
+    private void updateAvailability(final BitSet sourceChunks, final int delta) {
+        for (int i = sourceChunks.nextSetBit(0); i >= 0; i = sourceChunks.nextSetBit(i + 1)) {
+            availability[i] += delta;
+        }
+    }
+
+    /**
+     * Creates a region of a chunk to be sent to the socket directly from the file
+     */
+    FileRegion newRegion(final int chunkIndex) {
+        return new SharedFileRegion(fileChannel, fileReference, getChunkOffset(chunkIndex), getChunkLength(chunkIndex));
+    }
+
+    /**
+     * Retains the file until {@link #releaseFile()} is called, so that it can be read or written by the disk I/O
+     * threads even if the file is closed in the meantime
+     */
+    void retainFile() {
+        fileReference.retain();
+    }
+
+    void releaseFile() {
+        fileReference.release();
+    }
+
+    /**
+     * Reads a chunk into a direct buffer. It must be called between {@link #retainFile()} and {@link #releaseFile()}.
+     */
+    ByteBuf readChunk(final int chunkIndex, final ByteBufAllocator allocator) throws IOException {
+        final int length = getChunkLength(chunkIndex);
+        final ByteBuf buffer = allocator.directBuffer(length);
+        boolean success = false;
+        try {
+            final ByteBuffer nioBuffer = buffer.nioBuffer(0, length);
+            long position = getChunkOffset(chunkIndex);
+            while (nioBuffer.hasRemaining()) {
+                final int read = fileChannel.read(nioBuffer, position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of " + path);
+                }
+                position += read;
+            }
+            buffer.writerIndex(length);
+            success = true;
+            return buffer;
+        } finally {
+            if (!success) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the content of a chunk without changing the reader index of the buffer. It must be called between
+     * {@link #retainFile()} and {@link #releaseFile()}.
+     */
+    void writeChunk(final int chunkIndex, final ByteBuf data) throws IOException {
+        long position = getChunkOffset(chunkIndex);
+        for (ByteBuffer nioBuffer : data.nioBuffers(data.readerIndex(), data.readableBytes())) {
+            while (nioBuffer.hasRemaining()) {
+                position += fileChannel.write(nioBuffer, position);
+            }
+        }
+    }
+
+    /**
+     * Closes the file channel once the pending reads and writes are completed
+     */
+    void close() {
+        if (!closed) {
+            closed = true;
+            if (fileReference != null) {
+                fileReference.release();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SwarmFile{" +
+                "contentHash='" + contentHash + '\'' +
+                ", fileSize=" + fileSize +
+                ", chunks=" + chunks.cardinality() + "/" + chunkCount +
+                ", sources=" + sources.size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,947 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.Peer;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkData;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashes;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkHashesRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkMap;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkMapRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkReject;
+import com.basrikahveci.p2p.peer.network.message.swarm.ChunkRequest;
+import com.basrikahveci.p2p.peer.network.message.swarm.FileBroadcast;
+import com.basrikahveci.p2p.peer.network.message.swarm.Have;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads content-addressed files from all neighbours that have them in parallel. Files are split into fixed-size
+ * chunks and identified by a content hash that covers the file size, the chunk size and the Merkle root of the chunks.
+ * A {@link ChunkMap} is accepted only if these match the content hash, so a neighbour can not make this peer download
+ * a file with a different size or chunk layout.
+ * <p>
+ * Neighbours that share or download the same file exchange {@link ChunkMap}s when they meet, and then announce each
+ * chunk they complete with a {@link Have}. With these maps, the downloader keeps how many neighbours have each chunk,
+ * and requests the rarest chunks first so that chunks held by few neighbours spread quickly. The number of chunks
+ * requested from a neighbour at a time is adjusted to its measured throughput and round-trip time, so fast neighbours
+ * serve most of the file while slow ones do not hold it back. Requests that are not answered in
+ * {@link Config#getSwarmRequestTimeoutSeconds()} are sent to the other neighbours.
+ * <p>
+ * Before requesting chunks, the downloader gets the hashes of all chunks from a neighbour and checks them against the
+ * Merkle root. Each chunk is then verified on the hash pool before it is written, announced or served, so a corrupt
+ * chunk is requested again from another neighbour instead of spreading. Neighbours that send
+ * {@value #MAX_CORRUPT_CHUNK_COUNT} corrupt chunks, or chunk hashes that do not match the Merkle root, are not asked
+ * for the file anymore.
+ * <p>
+ * Chunks of a file being downloaded are served to the other neighbours as soon as they are verified and written.
+ * Requests of a neighbour wait while its
+ * connection is not writable or its bandwidth limit is used up, so a throttled neighbour is asked less by its
+ * downloaders as its measured throughput drops.
+ * <p>
+ * A file is sent to all peers in the network by broadcasting it. Its announcement is flooded through the network and
+ * each peer downloads it from the neighbours that have announced it or received it earlier. Since chunks are served
+ * while they are still being downloaded, a chunk travels through the network while the later chunks are being sent by
+ * the origin, and the origin's uplink carries the file only to its own neighbours.
+ */
+public class SwarmService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SwarmService.class);
+
+    private static final Pattern CONTENT_HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    /**
+     * Period of the task that expires requests and queries the neighbours for files without enough sources
+     */
+    private static final long CHECK_PERIOD_MILLIS = 1000;
+
+    private static final long QUERY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Max number of chunk requests of a neighbour that wait for bandwidth. Further requests are rejected.
+     */
+    private static final int MAX_DEFERRED_REQUEST_COUNT = 256;
+
+    /**
+     * Number of corrupt chunks after which a neighbour is not asked for the file anymore
+     */
+    static final int MAX_CORRUPT_CHUNK_COUNT = 3;
+
+    private final ConnectionService connectionService;
+
+    private final Config config;
+
+    private final Executor diskExecutor;
+
+    private final ForkJoinPool hashPool;
+
+    private final TrafficShaper trafficShaper;
+
+    private final EventLoopGroup peerEventLoopGroup;
+
+    // content hash -> files shared or downloaded by this peer
+    private final Map<String, SwarmFile> files = new HashMap<>();
+
+    // content hash -> files being downloaded by this peer
+    private final Map<String, SwarmDownload> downloads = new HashMap<>();
+
+    // connection -> chunk requests of the neighbour that wait until its connection is writable or its bandwidth refills
+    private final Map<Connection, ArrayDeque<ChunkRequest>> deferredRequests = new IdentityHashMap<>();
+
+    private ScheduledFuture<?> checkDownloadsFuture;
+
+    /**
+     * @param diskExecutor       executor that runs the blocking file operations
+     * @param hashPool           pool that hashes the chunks of the files
+     * @param trafficShaper      shaper that limits the rate of the served chunks
+     * @param peerEventLoopGroup event loop of the peer that is notified once the file operations are completed
+     */
+    public SwarmService(ConnectionService connectionService, Config config, Executor diskExecutor,
+                        ForkJoinPool hashPool, TrafficShaper trafficShaper, EventLoopGroup peerEventLoopGroup) {
+        this.connectionService = connectionService;
+        this.config = config;
+        this.diskExecutor = diskExecutor;
+        this.hashPool = hashPool;
+        this.trafficShaper = trafficShaper;
+        this.peerEventLoopGroup = peerEventLoopGroup;
+    }
+
+    public static boolean isValidContentHash(final String contentHash) {
+        return contentHash != null && CONTENT_HASH_PATTERN.matcher(contentHash).matches();
+    }
+
+    /**
+     * Makes the given file available to the neighbours with its content hash
+     *
+     * @param path   file to share
+     * @param future future to be notified with the content hash of the file
+     */
+    public void shareFile(final Path path, final CompletableFuture<String> future) {
+        runOnDisk(() -> {
+            final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+            final SwarmFile file;
+            try {
+                final long fileSize = fileChannel.size();
+                final int chunkSize = SwarmFile.selectChunkSize(fileSize, config.getFileChunkSizeBytes());
+                // chunks are read and hashed in parallel on the hash pool
+                final MerkleTree merkleTree = MerkleTree.build(path, fileSize, chunkSize, hashPool);
+                final byte[] merkleRoot = merkleTree.getRoot();
+                file = new SwarmFile(SwarmFile.getContentHash(fileSize, chunkSize, merkleRoot), fileSize, chunkSize,
+                        merkleRoot, path);
+                file.setMerkleTree(merkleTree);
+            } catch (IOException | RuntimeException e) {
+                fileChannel.close();
+                throw e;
+            }
+            file.setFileChannel(fileChannel);
+            return file;
+        }, NO_CLEANUP).whenCompleteAsync((file, error) -> handleFileShared(path, file, error, future), peerEventLoopGroup);
+    }
+
+    private void handleFileShared(final Path path, final SwarmFile file, final Throwable error,
+                                  final CompletableFuture<String> future) {
+        if (error != null) {
+            LOGGER.error("Couldn't share " + path, error);
+            future.completeExceptionally(unwrap(error));
+            return;
+        }
+
+        final String contentHash = file.getContentHash();
+        final SwarmFile existingFile = files.get(contentHash);
+        final SwarmDownload download = downloads.get(contentHash);
+        if (existingFile != null && download == null) {
+            LOGGER.info("{} is already shared as {}", path, existingFile.getPath());
+            file.close();
+            future.complete(contentHash);
+            return;
+        }
+
+        file.setAllChunks();
+        if (download != null) {
+            // the download is not needed anymore
+            discardDownload(download);
+            download.getFuture().complete(path);
+        }
+
+        files.put(contentHash, file);
+        LOGGER.info("Sharing {} with {} bytes and content hash {}", path, file.getFileSize(), contentHash);
+        future.complete(contentHash);
+    }
+
+    /**
+     * Starts downloading a file from the neighbours that have it
+     *
+     * @param contentHash content hash of the file
+     * @param destination path to save the file
+     * @param future      future to be notified once the file is downloaded and verified
+     */
+    public void downloadFile(final String contentHash, final Path destination, final CompletableFuture<Path> future) {
+        if (!isValidContentHash(contentHash)) {
+            future.completeExceptionally(new IllegalArgumentException("Invalid content hash: " + contentHash));
+            return;
+        }
+
+        if (downloads.containsKey(contentHash)) {
+            future.completeExceptionally(new IllegalStateException("Already downloading " + contentHash));
+            return;
+        }
+
+        final SwarmFile existingFile = files.get(contentHash);
+        if (existingFile != null) {
+            LOGGER.info("{} is already available at {}", contentHash, existingFile.getPath());
+            future.complete(existingFile.getPath());
+            return;
+        }
+
+        final SwarmDownload download = new SwarmDownload(contentHash, destination, future);
+        downloads.put(contentHash, download);
+        LOGGER.info("Downloading {} to {}", contentHash, destination);
+        queryNeighbours(download, System.nanoTime());
+        if (checkDownloadsFuture == null) {
+            checkDownloadsFuture = peerEventLoopGroup.scheduleAtFixedRate(this::checkDownloads, CHECK_PERIOD_MILLIS,
+                    CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Broadcasts the given file to all peers in the network. The file is shared and announced to the neighbours with a
+     * {@link FileBroadcast}, which is flooded through the network. Each peer starts downloading the file once it receives
+     * the announcement and serves the chunks it completes to the peers it has forwarded the announcement to.
+     *
+     * @param path   file to broadcast
+     * @param future future to be notified with the content hash of the file once it is announced
+     */
+    public void broadcastFile(final Path path, final CompletableFuture<String> future) {
+        final CompletableFuture<String> shareFuture = new CompletableFuture<>();
+        shareFile(path, shareFuture);
+        shareFuture.whenComplete((contentHash, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+                return;
+            }
+
+            final FileBroadcast broadcast = new FileBroadcast(contentHash, path.getFileName().toString(),
+                    config.getPeerName());
+            int count = 0;
+            for (Connection connection : connectionService.getConnections()) {
+                connection.send(broadcast);
+                count++;
+            }
+            LOGGER.info("Broadcasting {} with content hash {} via {} neighbours", path, contentHash, count);
+            future.complete(contentHash);
+        });
+    }
+
+    /**
+     * Starts downloading a broadcast file and forwards the announcement to the other neighbours, unless the file is
+     * already shared or downloaded by this peer. The announcement is forwarded before the download completes, so the
+     * neighbours download the chunks from this peer while this peer is still downloading them.
+     */
+    public void handleFileBroadcast(final Connection connection, final FileBroadcast broadcast) {
+        final String contentHash = broadcast.getContentHash();
+        if (files.containsKey(contentHash) || downloads.containsKey(contentHash)) {
+            LOGGER.debug("Ignoring {} from {} since file is already known", broadcast, connection.getPeerName());
+            return;
+        }
+
+        final Path fileName = broadcast.getFileName() != null ? Paths.get(broadcast.getFileName()).getFileName() : null;
+        if (!isValidContentHash(contentHash) || fileName == null
+                || fileName.toString().equals(ChunkStore.INDEX_FILE_NAME)) {
+            LOGGER.warn("Ignoring invalid {} from {}", broadcast, connection.getPeerName());
+            return;
+        }
+
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+        future.whenComplete((path, error) -> {
+            if (error != null) {
+                LOGGER.error("Couldn't download broadcast " + fileName + " of " + broadcast.getOriginName(), error);
+            }
+        });
+        LOGGER.info("Receiving broadcast {} of {} via {}", fileName, broadcast.getOriginName(), connection.getPeerName());
+        downloadFile(contentHash, Paths.get(config.getDownloadDirectory()).resolve(fileName), future);
+        for (Connection neighbour : connectionService.getConnections()) {
+            if (neighbour != connection) {
+                neighbour.send(broadcast);
+            }
+        }
+    }
+
+    public void handleChunkMapRequest(final Connection connection, final ChunkMapRequest request) {
+        final SwarmFile file = files.get(request.getContentHash());
+        if (file == null || !file.hasChunkHashes()) {
+            final SwarmDownload download = downloads.get(request.getContentHash());
+            if (download != null) {
+                // the neighbour is answered once the chunk hashes are received from another neighbour, since it will
+                // ask this peer for them
+                if (!download.getWaitingConnections().contains(connection)) {
+                    download.getWaitingConnections().add(connection);
+                }
+            } else {
+                LOGGER.debug("Ignoring {} from {} since file is not known", request, connection.getPeerName());
+            }
+            return;
+        }
+
+        // the requester downloads the file, so it is informed about the chunks this peer completes from now on
+        if (file.getSource(connection) == null) {
+            releaseRequests(file, file.addSource(connection, new BitSet()));
+        }
+
+        connection.send(newChunkMap(file));
+    }
+
+    public void handleChunkMap(final Connection connection, final ChunkMap chunkMap) {
+        final String contentHash = chunkMap.getContentHash();
+        final SwarmDownload download = downloads.get(contentHash);
+        if (download != null && download.getBannedPeerIds().contains(connection.getPeerId())) {
+            LOGGER.debug("Ignoring {} from {} since it has sent corrupt data", chunkMap, connection.getPeerName());
+            return;
+        }
+
+        SwarmFile file = files.get(contentHash);
+        if (file == null) {
+            if (download == null) {
+                LOGGER.debug("Ignoring {} from {} since file is not downloaded", chunkMap, connection.getPeerName());
+                return;
+            }
+
+            // the chunk map is checked against the content hash before the file is created with its sizes
+            if (!SwarmFile.isValidGeometry(chunkMap.getFileSize(), chunkMap.getChunkSize())
+                    || chunkMap.getMerkleRoot() == null || chunkMap.getMerkleRoot().length != MerkleTree.HASH_LENGTH
+                    || !contentHash.equals(SwarmFile.getContentHash(chunkMap.getFileSize(), chunkMap.getChunkSize(),
+                    chunkMap.getMerkleRoot()))) {
+                LOGGER.warn("Ignoring {} from {} since it does not match the content hash", chunkMap,
+                        connection.getPeerName());
+                return;
+            }
+
+            file = new SwarmFile(contentHash, chunkMap.getFileSize(), chunkMap.getChunkSize(), chunkMap.getMerkleRoot(),
+                    Paths.get(config.getDownloadDirectory()).resolve(contentHash + PARTIAL_FILE_SUFFIX));
+            if (file.getChunkCount() == 0) {
+                // an empty file has no chunk hashes to ask for
+                file.setMerkleTree(MerkleTree.fromLeaves(new byte[0]));
+            }
+            files.put(contentHash, file);
+            download.setFile(file);
+            LOGGER.info("{} has {} bytes in {} chunks", contentHash, file.getFileSize(), file.getChunkCount());
+            openPartialFile(download);
+        } else if (file.getFileSize() != chunkMap.getFileSize() || file.getChunkSize() != chunkMap.getChunkSize()
+                || !Arrays.equals(file.getMerkleRoot(), chunkMap.getMerkleRoot())) {
+            LOGGER.warn("Ignoring {} from {} since it does not match {}", chunkMap, connection.getPeerName(), file);
+            return;
+        }
+
+        final BitSet chunks = BitSet.valueOf(chunkMap.getChunks());
+        final SwarmSource source = file.getSource(connection);
+        if (source != null) {
+            file.setSourceChunks(source, chunks);
+        } else {
+            releaseRequests(file, file.addSource(connection, chunks));
+            // the neighbour has learned about this peer from this peer's request, so it does not know its chunks yet
+            if (!file.getChunks().isEmpty()) {
+                connection.send(newChunkMap(file));
+            }
+        }
+
+        if (download != null && !file.hasChunkHashes() && download.getChunkHashesConnection() == null) {
+            requestChunkHashes(download, System.nanoTime());
+        }
+        schedule(download);
+    }
+
+    public void handleChunkHashesRequest(final Connection connection, final ChunkHashesRequest request) {
+        final SwarmFile file = files.get(request.getContentHash());
+        if (file == null || !file.hasChunkHashes()) {
+            LOGGER.debug("Ignoring {} from {} since chunk hashes are not known", request, connection.getPeerName());
+            return;
+        }
+
+        connection.send(new ChunkHashes(file.getContentHash(), file.getMerkleTree().getLeafHashes()));
+    }
+
+    /**
+     * Accepts the chunk hashes if they build the Merkle root of the file. The tree is built on the hash pool, and once
+     * it is accepted, chunks are requested and the neighbours waiting for the file are answered.
+     */
+    public void handleChunkHashes(final Connection connection, final ChunkHashes chunkHashes) {
+        final SwarmDownload download = downloads.get(chunkHashes.getContentHash());
+        final SwarmFile file = download != null ? download.getFile() : null;
+        if (file == null || file.hasChunkHashes() || download.getChunkHashesConnection() != connection) {
+            LOGGER.debug("Ignoring {} from {} since it is not requested", chunkHashes, connection.getPeerName());
+            return;
+        }
+
+        final byte[] leafHashes = chunkHashes.getChunkHashes();
+        if (leafHashes.length != file.getChunkCount() * MerkleTree.HASH_LENGTH) {
+            handleInvalidChunkHashes(download, connection);
+            return;
+        }
+
+        runOn(hashPool, () -> MerkleTree.fromLeaves(leafHashes), NO_CLEANUP).whenCompleteAsync((merkleTree, error) -> {
+            if (downloads.get(download.getContentHash()) != download || file.hasChunkHashes()) {
+                return;
+            }
+
+            if (error != null || !Arrays.equals(merkleTree.getRoot(), file.getMerkleRoot())) {
+                handleInvalidChunkHashes(download, connection);
+                return;
+            }
+
+            file.setMerkleTree(merkleTree);
+            LOGGER.debug("Chunk hashes of {} are received from {}", file, connection.getPeerName());
+            for (Connection waitingConnection : download.getWaitingConnections()) {
+                if (connectionService.getConnection(waitingConnection.getPeerId()) == waitingConnection) {
+                    if (file.getSource(waitingConnection) == null) {
+                        releaseRequests(file, file.addSource(waitingConnection, new BitSet()));
+                    }
+                    waitingConnection.send(newChunkMap(file));
+                }
+            }
+            download.getWaitingConnections().clear();
+            schedule(download);
+        }, peerEventLoopGroup);
+    }
+
+    private void handleInvalidChunkHashes(final SwarmDownload download, final Connection connection) {
+        LOGGER.warn("Chunk hashes of {} from {} do not match the Merkle root", download.getContentHash(),
+                connection.getPeerName());
+        banSource(download, connection);
+        requestChunkHashes(download, System.nanoTime());
+    }
+
+    /**
+     * Requests the chunk hashes from a neighbour that has sent the chunk map of the file, preferring a neighbour other
+     * than the one asked last
+     */
+    private void requestChunkHashes(final SwarmDownload download, final long now) {
+        SwarmSource selected = null;
+        for (SwarmSource source : download.getFile().getSources()) {
+            selected = source;
+            if (source.getConnection() != download.getChunkHashesConnection()) {
+                break;
+            }
+        }
+
+        if (selected != null) {
+            download.setChunkHashesRequest(selected.getConnection(), now);
+            selected.getConnection().send(new ChunkHashesRequest(download.getContentHash()));
+        } else {
+            download.setChunkHashesRequest(null, now);
+        }
+    }
+
+    public void handleHave(final Connection connection, final Have have) {
+        final SwarmFile file = files.get(have.getContentHash());
+        final SwarmSource source = file != null ? file.getSource(connection) : null;
+        if (source == null || !file.isValidChunk(have.getChunkIndex())) {
+            LOGGER.debug("Ignoring {} from {}", have, connection.getPeerName());
+            return;
+        }
+
+        if (file.addSourceChunk(source, have.getChunkIndex())) {
+            schedule(downloads.get(have.getContentHash()));
+        }
+    }
+
+    public void handleChunkRequest(final Connection connection, final ChunkRequest request) {
+        final ArrayDeque<ChunkRequest> requests = deferredRequests.get(connection);
+        if (requests == null && connection.isWritable() && trafficShaper.hasBandwidth(connection)) {
+            serveChunk(connection, request);
+        } else if (requests == null || requests.size() < MAX_DEFERRED_REQUEST_COUNT) {
+            // served in order once the chunks requested earlier are served
+            deferredRequests.computeIfAbsent(connection, c -> new ArrayDeque<>()).add(request);
+        } else {
+            LOGGER.debug("Rejecting {} from {} since too many requests are waiting", request, connection.getPeerName());
+            connection.send(new ChunkReject(request.getContentHash(), request.getChunkIndex()));
+        }
+    }
+
+    /**
+     * Serves the chunk requests that wait until the connection is writable or its bandwidth refills
+     */
+    public void handleConnectionWritable(final Connection connection) {
+        final ArrayDeque<ChunkRequest> requests = deferredRequests.get(connection);
+        while (requests != null && !requests.isEmpty() && connection.isWritable()
+                && trafficShaper.hasBandwidth(connection)) {
+            serveChunk(connection, requests.poll());
+        }
+
+        if (requests != null && requests.isEmpty()) {
+            deferredRequests.remove(connection);
+        }
+    }
+
+    private void serveChunk(final Connection connection, final ChunkRequest request) {
+        final String contentHash = request.getContentHash();
+        final int chunkIndex = request.getChunkIndex();
+        final SwarmFile file = files.get(contentHash);
+        if (file == null || !file.isOpen() || !file.isValidChunk(chunkIndex) || !file.hasChunk(chunkIndex)) {
+            LOGGER.debug("Rejecting {} from {}", request, connection.getPeerName());
+            connection.send(new ChunkReject(contentHash, chunkIndex));
+            return;
+        }
+
+        trafficShaper.consume(connection, file.getChunkLength(chunkIndex));
+        if (connection.isFileRegionEnabled(config.isChunkCompressionEnabled())) {
+            final ByteBuf header = PooledByteBufAllocator.DEFAULT.ioBuffer();
+            MessageEncoder.encodeChunkDataHeader(header, contentHash, chunkIndex, file.getChunkLength(chunkIndex));
+            connection.sendFileRegion(header, file.newRegion(chunkIndex));
+            return;
+        }
+
+        file.retainFile();
+        runOnDisk(() -> file.readChunk(chunkIndex, PooledByteBufAllocator.DEFAULT), file::releaseFile)
+                .whenCompleteAsync((data, error) -> {
+                    if (error == null) {
+                        connection.send(new ChunkData(contentHash, chunkIndex, data));
+                    } else {
+                        LOGGER.error("Couldn't read chunk " + chunkIndex + " of " + file, error);
+                        connection.send(new ChunkReject(contentHash, chunkIndex));
+                    }
+                }, peerEventLoopGroup);
+    }
+
+    public void handleChunkReject(final Connection connection, final ChunkReject reject) {
+        final SwarmDownload download = downloads.get(reject.getContentHash());
+        final SwarmFile file = download != null ? download.getFile() : null;
+        final SwarmSource source = file != null ? file.getSource(connection) : null;
+        final int chunkIndex = reject.getChunkIndex();
+        if (source == null || !source.removeRequest(chunkIndex)) {
+            LOGGER.debug("Ignoring {} from {}", reject, connection.getPeerName());
+            return;
+        }
+
+        LOGGER.debug("{} is rejected by {}", chunkIndex, source);
+        download.getPendingChunks().clear(chunkIndex);
+        file.removeSourceChunk(source, chunkIndex);
+        schedule(download);
+    }
+
+    public void handleChunkData(final Connection connection, final ChunkData chunkData) {
+        final SwarmDownload download = downloads.get(chunkData.getContentHash());
+        final SwarmFile file = download != null ? download.getFile() : null;
+        final SwarmSource source = file != null ? file.getSource(connection) : null;
+        final int chunkIndex = chunkData.getChunkIndex();
+        final ByteBuf data = chunkData.getData();
+        if (source == null || !source.recordChunk(chunkIndex, data.readableBytes(), System.nanoTime())) {
+            // the request may have been expired and sent to another neighbour
+            LOGGER.debug("Ignoring {} from {} since it is not requested", chunkData, connection.getPeerName());
+            return;
+        }
+
+        if (data.readableBytes() != file.getChunkLength(chunkIndex) || !file.isOpen()) {
+            LOGGER.warn("Ignoring invalid {} from {}", chunkData, connection.getPeerName());
+            download.getPendingChunks().clear(chunkIndex);
+            schedule(download);
+            return;
+        }
+
+        // the chunk is hashed on the hash pool and written only if it matches its hash
+        file.retainFile();
+        data.retain();
+        final CompletableFuture<Boolean> written = runOn(hashPool, () -> file.isValidChunkData(chunkIndex, data), NO_CLEANUP)
+                .thenCompose(valid -> valid ? runOnDisk(() -> {
+                    file.writeChunk(chunkIndex, data);
+                    return true;
+                }, NO_CLEANUP) : CompletableFuture.completedFuture(false));
+        written.whenComplete((valid, error) -> {
+            data.release();
+            file.releaseFile();
+        });
+        written.whenCompleteAsync((valid, error) -> handleChunkWritten(download, connection, chunkIndex, valid, error),
+                peerEventLoopGroup);
+
+        schedule(download);
+    }
+
+    private void handleChunkWritten(final SwarmDownload download, final Connection connection, final int chunkIndex,
+                                    final Boolean valid, final Throwable error) {
+        if (downloads.get(download.getContentHash()) != download) {
+            return;
+        }
+
+        final SwarmFile file = download.getFile();
+        download.getPendingChunks().clear(chunkIndex);
+        if (error != null) {
+            LOGGER.error("Couldn't write chunk " + chunkIndex + " of " + file, error);
+            failDownload(download, "Couldn't write chunk");
+            return;
+        }
+
+        if (!valid) {
+            handleCorruptChunk(download, connection, chunkIndex);
+            schedule(download);
+            return;
+        }
+
+        file.setChunk(chunkIndex);
+        final Have have = new Have(file.getContentHash(), chunkIndex);
+        for (SwarmSource source : file.getSources()) {
+            if (source.getChunks().cardinality() < file.getChunkCount()) {
+                source.getConnection().send(have);
+            }
+        }
+
+        if (file.isComplete()) {
+            completeDownload(download);
+        } else {
+            schedule(download);
+        }
+    }
+
+    /**
+     * Requests the corrupt chunk from the other neighbours, and stops asking the neighbour for the file once it has
+     * sent {@value #MAX_CORRUPT_CHUNK_COUNT} corrupt chunks
+     */
+    private void handleCorruptChunk(final SwarmDownload download, final Connection connection, final int chunkIndex) {
+        final SwarmFile file = download.getFile();
+        LOGGER.warn("Chunk {} of {} from {} does not match its hash", chunkIndex, file.getContentHash(),
+                connection.getPeerName());
+        final SwarmSource source = file.getSource(connection);
+        if (source != null) {
+            file.removeSourceChunk(source, chunkIndex);
+            if (source.recordCorruptChunk() >= MAX_CORRUPT_CHUNK_COUNT) {
+                banSource(download, connection);
+            }
+        }
+    }
+
+    /**
+     * Removes the neighbour from the sources of the download and ignores its chunk maps until the download ends
+     */
+    private void banSource(final SwarmDownload download, final Connection connection) {
+        LOGGER.warn("{} is not asked for {} anymore", connection.getPeerName(), download.getContentHash());
+        download.getBannedPeerIds().add(connection.getPeerId());
+        final SwarmFile file = download.getFile();
+        releaseRequests(file, file.removeSource(connection));
+    }
+
+    /**
+     * Stops serving the file to the neighbour of the closed connection and requests the chunks that are requested
+     * from it from the other neighbours
+     */
+    public void handleConnectionClosed(final Connection connection) {
+        deferredRequests.remove(connection);
+        for (SwarmFile file : files.values()) {
+            final SwarmSource source = file.removeSource(connection);
+            if (source != null) {
+                releaseRequests(file, source);
+                final SwarmDownload download = downloads.get(file.getContentHash());
+                if (download != null && download.getChunkHashesConnection() == connection && !file.hasChunkHashes()) {
+                    requestChunkHashes(download, System.nanoTime());
+                }
+                schedule(download);
+            }
+        }
+    }
+
+    /**
+     * Asks the neighbour of the new connection for the files being downloaded
+     */
+    public void handleConnectionOpened(final Connection connection) {
+        for (SwarmDownload download : downloads.values()) {
+            connection.send(new ChunkMapRequest(download.getContentHash()));
+        }
+    }
+
+    private void openPartialFile(final SwarmDownload download) {
+        final SwarmFile file = download.getFile();
+        final Path path = file.getPath();
+        runOnDisk(() -> {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                fileChannel.truncate(0);
+            } catch (IOException e) {
+                fileChannel.close();
+                throw e;
+            }
+            return fileChannel;
+        }, NO_CLEANUP).whenCompleteAsync((fileChannel, error) -> {
+            if (downloads.get(download.getContentHash()) != download) {
+                if (fileChannel != null) {
+                    closeQuietly(fileChannel);
+                }
+                return;
+            }
+
+            if (error != null) {
+                LOGGER.error("Couldn't create " + path, error);
+                failDownload(download, "Couldn't create file");
+                return;
+            }
+
+            file.setFileChannel(fileChannel);
+            if (file.isComplete()) {
+                completeDownload(download);
+            } else {
+                schedule(download);
+            }
+        }, peerEventLoopGroup);
+    }
+
+    /**
+     * Moves the downloaded file to its destination. Its chunks are already verified before they are written.
+     */
+    private void completeDownload(final SwarmDownload download) {
+        final SwarmFile file = download.getFile();
+        final Path path = file.getPath();
+        final Path destination = download.getDestination();
+        download.setCompleting();
+        file.retainFile();
+        runOnDisk(() -> {
+            file.getFileChannel().force(false);
+            Files.createDirectories(destination.toAbsolutePath().getParent());
+            Files.move(path, destination, StandardCopyOption.REPLACE_EXISTING);
+            return destination;
+        }, file::releaseFile).whenCompleteAsync((ignored, error) -> {
+            if (downloads.get(download.getContentHash()) != download) {
+                return;
+            }
+
+            if (error != null) {
+                LOGGER.error("Couldn't complete " + file, error);
+                failDownload(download, "Couldn't move file to destination");
+                return;
+            }
+
+            removeDownload(download);
+            // the open file channel still refers to the moved file
+            file.setPath(destination);
+            LOGGER.info("File {} with {} bytes downloaded with content hash {}", destination.toAbsolutePath(),
+                    file.getFileSize(), file.getContentHash());
+            download.getFuture().complete(destination);
+        }, peerEventLoopGroup);
+    }
+
+    private void failDownload(final SwarmDownload download, final String reason) {
+        discardDownload(download);
+        LOGGER.warn("Download of {} failed: {}", download.getContentHash(), reason);
+        download.getFuture().completeExceptionally(new IOException("Download of " + download.getContentHash() + " failed: " + reason));
+    }
+
+    /**
+     * Removes the download along with its partial file
+     */
+    private void discardDownload(final SwarmDownload download) {
+        removeDownload(download);
+        final SwarmFile file = download.getFile();
+        if (file != null) {
+            files.remove(file.getContentHash());
+            file.close();
+            final Path path = file.getPath();
+            runOnDisk(() -> Files.deleteIfExists(path), NO_CLEANUP).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    LOGGER.warn("Couldn't delete " + path, error);
+                }
+            });
+        }
+    }
+
+    private void removeDownload(final SwarmDownload download) {
+        downloads.remove(download.getContentHash());
+        if (downloads.isEmpty() && checkDownloadsFuture != null) {
+            checkDownloadsFuture.cancel(false);
+            checkDownloadsFuture = null;
+        }
+    }
+
+    /**
+     * Sends the chunks of the expired requests to the other neighbours and asks the neighbours that are not known to
+     * have the file yet
+     */
+    private void checkDownloads() {
+        final long now = System.nanoTime();
+        final long deadline = now - TimeUnit.SECONDS.toNanos(config.getSwarmRequestTimeoutSeconds());
+        for (SwarmDownload download : new ArrayList<>(downloads.values())) {
+            final SwarmFile file = download.getFile();
+            if (file != null) {
+                if (!file.hasChunkHashes() && download.getChunkHashesRequestNanos() < deadline) {
+                    LOGGER.warn("Request of chunk hashes of {} is expired", file.getContentHash());
+                    requestChunkHashes(download, now);
+                }
+
+                for (SwarmSource source : file.getSources()) {
+                    int chunkIndex;
+                    while ((chunkIndex = source.getExpiredRequest(deadline)) >= 0) {
+                        LOGGER.warn("Request of chunk {} of {} from {} is expired", chunkIndex, file.getContentHash(),
+                                source.getConnection().getPeerName());
+                        source.removeRequest(chunkIndex);
+                        source.penalize();
+                        download.getPendingChunks().clear(chunkIndex);
+                    }
+                }
+            }
+
+            if (now - download.getLastQueryNanos() >= QUERY_INTERVAL_NANOS) {
+                queryNeighbours(download, now);
+            }
+
+            schedule(download);
+        }
+    }
+
+    private void queryNeighbours(final SwarmDownload download, final long now) {
+        download.setLastQueryNanos(now);
+        final SwarmFile file = download.getFile();
+        final ChunkMapRequest request = new ChunkMapRequest(download.getContentHash());
+        for (Connection connection : connectionService.getConnections()) {
+            if ((file == null || file.getSource(connection) == null)
+                    && !download.getBannedPeerIds().contains(connection.getPeerId())) {
+                connection.send(request);
+            }
+        }
+    }
+
+    /**
+     * Requests chunks from the neighbours until their pipelines are full. Neighbours are given one chunk at a time in
+     * turns, so a chunk that is available on multiple neighbours is not always requested from the same one.
+     */
+    private void schedule(final SwarmDownload download) {
+        final SwarmFile file = download != null ? download.getFile() : null;
+        if (file == null || !file.isOpen() || !file.hasChunkHashes() || download.isCompleting()) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final int maxPipelineDepth = config.getSwarmMaxPipelineDepth();
+        boolean requested;
+        do {
+            requested = false;
+            for (SwarmSource source : file.getSources()) {
+                if (source.getRequestCount() >= source.getPipelineDepth(file.getChunkSize(), maxPipelineDepth)) {
+                    continue;
+                }
+
+                final int chunkIndex = selectRarestChunk(file, download.getPendingChunks(), source);
+                if (chunkIndex >= 0) {
+                    download.getPendingChunks().set(chunkIndex);
+                    source.addRequest(chunkIndex, now);
+                    source.getConnection().send(new ChunkRequest(file.getContentHash(), chunkIndex));
+                    requested = true;
+                }
+            }
+        } while (requested);
+    }
+
+    /**
+     * Selects the chunk with the fewest owners among the neighbours from the chunks that the given neighbour has and
+     * this peer neither has nor waits for. Ties are broken randomly so that the downloaders of the same file do not
+     * request the same chunks.
+     *
+     * @return index of the selected chunk, or -1 if the neighbour has no chunk to request
+     */
+    private int selectRarestChunk(final SwarmFile file, final BitSet pendingChunks, final SwarmSource source) {
+        final BitSet sourceChunks = source.getChunks();
+        int selectedChunkIndex = -1;
+        int selectedAvailability = Integer.MAX_VALUE;
+        int ties = 0;
+        for (int i = sourceChunks.nextSetBit(0); i >= 0; i = sourceChunks.nextSetBit(i + 1)) {
+            if (file.hasChunk(i) || pendingChunks.get(i)) {
+                continue;
+            }
+
+            final int availability = file.getAvailability(i);
+            if (availability < selectedAvailability) {
+                selectedChunkIndex = i;
+                selectedAvailability = availability;
+                ties = 1;
+            } else if (availability == selectedAvailability && Peer.RANDOM.nextInt(++ties) == 0) {
+                selectedChunkIndex = i;
+            }
+        }
+
+        return selectedChunkIndex;
+    }
+
+    private void releaseRequests(final SwarmFile file, final SwarmSource source) {
+        final SwarmDownload download = downloads.get(file.getContentHash());
+        if (source != null && download != null) {
+            for (int chunkIndex : source.getRequestedChunks()) {
+                download.getPendingChunks().clear(chunkIndex);
+            }
+        }
+    }
+
+    private ChunkMap newChunkMap(final SwarmFile file) {
+        return new ChunkMap(file.getContentHash(), file.getFileSize(), file.getChunkSize(), file.getMerkleRoot(),
+                file.getChunks().toByteArray());
+    }
+
+    /**
+     * Runs the given task on the disk I/O executor. The cleanup runs after the task, or if the task is rejected.
+     */
+    private <T> CompletableFuture<T> runOnDisk(final BlockingTask<T> task, final Runnable cleanup) {
+        return runOn(diskExecutor, task, cleanup);
+    }
+
+    private static <T> CompletableFuture<T> runOn(final Executor executor, final BlockingTask<T> task,
+                                                  final Runnable cleanup) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.run());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    cleanup.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cleanup.run();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static void closeQuietly(final FileChannel fileChannel) {
+        try {
+            fileChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final Runnable NO_CLEANUP = () -> {
+    };
+
+    private interface BlockingTask<T> {
+        T run() throws IOException;
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.network.Connection;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps what is known about a neighbour that has or downloads a content-addressed file: the chunks it has, the chunks
+ * requested from it and its measured throughput and round-trip time. Number of chunks requested from a neighbour at a
+ * time is derived from its bandwidth-delay product, so faster neighbours are given more chunks to send.
+ */
+class SwarmSource {
+
+    /**
+     * Number of requests sent to a neighbour before its throughput is measured
+     */
+    static final int INITIAL_PIPELINE_DEPTH = 2;
+
+    private static final double SMOOTHING_FACTOR = 0.25;
+
+    private final Connection connection;
+
+    private final BitSet chunks;
+
+    // chunk index -> request time in nanos
+    private final Map<Integer, Long> requests = new HashMap<>();
+
+    private double bytesPerNano;
+
+    private long minRttNanos = Long.MAX_VALUE;
+
+    private long lastArrivalNanos;
+
+    private int corruptChunkCount;
+
+    SwarmSource(Connection connection, BitSet chunks) {
+        this.connection = connection;
+        this.chunks = chunks;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    BitSet getChunks() {
+        return chunks;
+    }
+
+    boolean isRequested(final int chunkIndex) {
+        return requests.containsKey(chunkIndex);
+    }
+
+    Iterable<Integer> getRequestedChunks() {
+        return requests.keySet();
+    }
+
+    int getRequestCount() {
+        return requests.size();
+    }
+
+    void addRequest(final int chunkIndex, final long nowNanos) {
+        requests.put(chunkIndex, nowNanos);
+    }
+
+    boolean removeRequest(final int chunkIndex) {
+        return requests.remove(chunkIndex) != null;
+    }
+
+    /**
+     * Returns index of a chunk that is requested before the given deadline, or -1 if there is not any
+     */
+    int getExpiredRequest(final long deadlineNanos) {
+        for (Map.Entry<Integer, Long> e : requests.entrySet()) {
+            if (e.getValue() - deadlineNanos < 0) {
+                return e.getKey();
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Updates throughput and round-trip time estimations with a received chunk
+     *
+     * @return true if the chunk was requested from this neighbour
+     */
+    boolean recordChunk(final int chunkIndex, final int length, final long nowNanos) {
+        final Long requestNanos = requests.remove(chunkIndex);
+        if (requestNanos == null) {
+            return false;
+        }
+
+        minRttNanos = Math.min(minRttNanos, Math.max(1, nowNanos - requestNanos));
+        // the neighbour is busy with this chunk since its previous chunk arrived or this chunk is requested
+        final long intervalNanos = Math.max(1, nowNanos - Math.max(lastArrivalNanos, requestNanos));
+        final double sample = (double) length / intervalNanos;
+        bytesPerNano = bytesPerNano == 0 ? sample : bytesPerNano + SMOOTHING_FACTOR * (sample - bytesPerNano);
+        lastArrivalNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * Halves the throughput estimation of the neighbour after a request times out
+     */
+    void penalize() {
+        bytesPerNano /= 2;
+    }
+
+    /**
+     * Records a chunk that does not match its hash and halves the throughput estimation of the neighbour
+     *
+     * @return number of corrupt chunks received from the neighbour
+     */
+    int recordCorruptChunk() {
+        penalize();
+        return ++corruptChunkCount;
+    }
+
+    /**
+     * Returns the number of chunks that can be requested from the neighbour at a time to keep it busy. It is twice
+     * the bandwidth-delay product of the neighbour in chunks, plus one for the chunk being received.
+     */
+    int getPipelineDepth(final int chunkSize, final int maxDepth) {
+        if (bytesPerNano == 0) {
+            return Math.min(INITIAL_PIPELINE_DEPTH, maxDepth);
+        }
+
+        final double bandwidthDelayProduct = bytesPerNano * minRttNanos;
+        final int depth = (int) Math.ceil(2 * bandwidthDelayProduct / chunkSize) + 1;
+        return Math.max(1, Math.min(depth, maxDepth));
+    }
+
+    /**
+     * Returns the measured throughput of the neighbour in bytes per second
+     */
+    long getThroughput() {
+        return (long) (bytesPerNano * 1000000000L);
+    }
+
+    @Override
+    public String toString() {
+        return "SwarmSource{" +
+                "peerName=" + connection.getPeerName() +
+                ", chunks=" + chunks.cardinality() +
+                ", requests=" + requests.size() +
+                ", throughput=" + getThroughput() +
+                '}';
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.basrikahveci.p2p.peer.service;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Schedules the timeouts of the protocol operations, such as pings, elections and probes, on a hashed wheel timer
+ * which adds and cancels a timeout in constant time regardless of the number of pending timeouts. Expired timeouts
+ * are run in the peer event loop, within {@link #TICK_MILLIS} of their deadlines. The timer and its thread are shared
+ * by all peers in the JVM.
+ */
+public class TimeoutScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimeoutScheduler.class);
+
+    static final long TICK_MILLIS = 10;
+
+    static final int TICKS_PER_WHEEL = 512;
+
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(new DefaultThreadFactory("timeouts", true),
+            TICK_MILLIS, MILLISECONDS, TICKS_PER_WHEEL);
+
+    private final EventLoopGroup peerEventLoopGroup;
+
+    public TimeoutScheduler(EventLoopGroup peerEventLoopGroup) {
+        this.peerEventLoopGroup = peerEventLoopGroup;
+    }
+
+    /**
+     * Runs the task in the peer event loop after the given delay, unless the returned timeout is cancelled before.
+     * The task is dropped if the peer event loop is shut down when the timeout expires.
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final Timeout timeout = new Timeout(task);
+        timeout.timerTimeout = TIMER.newTimeout(ignored -> {
+            try {
+                peerEventLoopGroup.execute(timeout);
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Timeout task is dropped since peer event loop is shut down");
+            }
+        }, delay, unit);
+        return timeout;
+    }
+
+    /**
+     * A scheduled task. It must be cancelled in the peer event loop, so that a cancelled task is never run even if it
+     * has expired and is waiting to be run in the peer event loop.
+     */
+    public static class Timeout implements Runnable {
+
+        private final Runnable task;
+
+        private io.netty.util.Timeout timerTimeout;
+
+        private boolean cancelled;
+
+        private Timeout(final Runnable task) {
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            timerTimeout.cancel();
+        }
+
+        @Override
+        public void run() {
+            if (!cancelled) {
+                cancelled = true;
+                task.run();
+            }
+        }
+
+    }
+
+}
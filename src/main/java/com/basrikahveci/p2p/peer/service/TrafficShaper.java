@@ -0,0 +1,246 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.PeerIds;
+import com.basrikahveci.p2p.peer.network.Connection;
+import io.netty.channel.EventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Limits the rate of the bulk data sent by this peer, i.e., file chunks, with a token bucket for the whole peer and a
+ * token bucket for each neighbour. Producers of bulk data check the buckets before sending each chunk and stop once
+ * one of them is exhausted. The listener is notified once the buckets are refilled so that the producers continue.
+ * <p>
+ * Control messages, such as handshakes, keep-alives, pings, pongs and leader messages, do not pass through the buckets,
+ * so a file push neither delays them nor makes neighbours believe this peer is dead. Buckets may go into debt by the
+ * size of a single chunk, so a chunk is never split to fit into a small limit. Limits are changed at runtime and a
+ * limit that is not positive means unlimited. Shaper is only accessed in the peer event loop.
+ */
+public class TrafficShaper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrafficShaper.class);
+
+    /**
+     * Bytes that a bucket accumulates while idle are capped to this duration of its rate
+     */
+    private static final long BURST_MILLIS = 100;
+
+    private final EventLoopGroup peerEventLoopGroup;
+
+    private final TokenBucket globalBucket;
+
+    private long defaultPeerLimit;
+
+    // peer id -> limit set for the peer at runtime
+    private final Map<Long, Long> peerLimits = new HashMap<>();
+
+    // peer id -> bucket of the peer
+    private final Map<Long, TokenBucket> peerBuckets = new HashMap<>();
+
+    // connection -> scheduled notification of the connection waiting for its buckets to refill
+    private final Map<Connection, ScheduledFuture<?>> waitingConnections = new IdentityHashMap<>();
+
+    private Consumer<Connection> listener = connection -> {
+    };
+
+    /**
+     * @param peerEventLoopGroup event loop of the peer that runs the notifications
+     */
+    public TrafficShaper(Config config, EventLoopGroup peerEventLoopGroup) {
+        this.peerEventLoopGroup = peerEventLoopGroup;
+        this.globalBucket = new TokenBucket(config.getGlobalBandwidthLimitBytesPerSecond(), System.nanoTime());
+        this.defaultPeerLimit = config.getPeerBandwidthLimitBytesPerSecond();
+    }
+
+    /**
+     * Sets the listener that is notified once bulk data can be sent to a waiting connection again
+     */
+    public void setListener(final Consumer<Connection> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns true if bulk data can be sent to the connection now. Otherwise, the listener is notified for the
+     * connection once both of its buckets are refilled.
+     */
+    public boolean hasBandwidth(final Connection connection) {
+        final long now = System.nanoTime();
+        final TokenBucket peerBucket = getPeerBucket(connection.getPeerId());
+        globalBucket.refill(now);
+        peerBucket.refill(now);
+        if (globalBucket.hasTokens() && peerBucket.hasTokens()) {
+            return true;
+        }
+
+        if (!waitingConnections.containsKey(connection)) {
+            final long waitNanos = Math.max(globalBucket.getWaitNanos(), peerBucket.getWaitNanos());
+            waitingConnections.put(connection, peerEventLoopGroup.schedule(() -> notifyListener(connection), waitNanos,
+                    TimeUnit.NANOSECONDS));
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes the given number of bytes sent to the connection from its buckets
+     */
+    public void consume(final Connection connection, final long bytes) {
+        globalBucket.consume(bytes);
+        getPeerBucket(connection.getPeerId()).consume(bytes);
+    }
+
+    public long getGlobalLimit() {
+        return globalBucket.getBytesPerSecond();
+    }
+
+    public void setGlobalLimit(final long bytesPerSecond) {
+        LOGGER.info("Setting global bandwidth limit to {} bytes/s", bytesPerSecond);
+        globalBucket.setBytesPerSecond(bytesPerSecond, System.nanoTime());
+        notifyWaitingConnections();
+    }
+
+    public long getPeerLimit(final String peerName) {
+        final Long limit = peerLimits.get(PeerIds.of(peerName));
+        return limit != null ? limit : defaultPeerLimit;
+    }
+
+    /**
+     * Sets the limit of a neighbour. The limit is kept if the neighbour reconnects.
+     *
+     * @param peerName       name of the neighbour
+     * @param bytesPerSecond limit of the neighbour, or a negative value to use the default limit again
+     */
+    public void setPeerLimit(final String peerName, final long bytesPerSecond) {
+        LOGGER.info("Setting bandwidth limit of {} to {} bytes/s", peerName, bytesPerSecond);
+        final long peerId = PeerIds.of(peerName);
+        if (bytesPerSecond < 0) {
+            peerLimits.remove(peerId);
+        } else {
+            peerLimits.put(peerId, bytesPerSecond);
+        }
+
+        final TokenBucket bucket = peerBuckets.get(peerId);
+        if (bucket != null) {
+            bucket.setBytesPerSecond(getPeerLimit(peerName), System.nanoTime());
+        }
+        notifyWaitingConnections();
+    }
+
+    /**
+     * Sets the limit of the neighbours without a limit of their own
+     */
+    public void setDefaultPeerLimit(final long bytesPerSecond) {
+        LOGGER.info("Setting default bandwidth limit of neighbours to {} bytes/s", bytesPerSecond);
+        defaultPeerLimit = bytesPerSecond;
+        final long now = System.nanoTime();
+        for (Map.Entry<Long, TokenBucket> e : peerBuckets.entrySet()) {
+            if (!peerLimits.containsKey(e.getKey())) {
+                e.getValue().setBytesPerSecond(bytesPerSecond, now);
+            }
+        }
+        notifyWaitingConnections();
+    }
+
+    public void handleConnectionClosed(final Connection connection) {
+        final ScheduledFuture<?> notification = waitingConnections.remove(connection);
+        if (notification != null) {
+            notification.cancel(false);
+        }
+        peerBuckets.remove(connection.getPeerId());
+    }
+
+    private TokenBucket getPeerBucket(final long peerId) {
+        TokenBucket bucket = peerBuckets.get(peerId);
+        if (bucket == null) {
+            final Long limit = peerLimits.get(peerId);
+            bucket = new TokenBucket(limit != null ? limit : defaultPeerLimit, System.nanoTime());
+            peerBuckets.put(peerId, bucket);
+        }
+
+        return bucket;
+    }
+
+    /**
+     * Notifies the waiting connections immediately, since their buckets may be refilled earlier with the new limits
+     */
+    private void notifyWaitingConnections() {
+        for (Connection connection : new ArrayList<>(waitingConnections.keySet())) {
+            waitingConnections.remove(connection).cancel(false);
+            listener.accept(connection);
+        }
+    }
+
+    private void notifyListener(final Connection connection) {
+        waitingConnections.remove(connection);
+        listener.accept(connection);
+    }
+
+    private static class TokenBucket {
+
+        private long bytesPerSecond;
+
+        // bytes that can be sent now. it is negative while the bucket is in debt.
+        private double tokens;
+
+        private long lastRefillNanos;
+
+        TokenBucket(long bytesPerSecond, long now) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.tokens = getBurstBytes();
+            this.lastRefillNanos = now;
+        }
+
+        long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        void setBytesPerSecond(final long bytesPerSecond, final long now) {
+            refill(now);
+            this.bytesPerSecond = bytesPerSecond;
+            tokens = Math.min(tokens, getBurstBytes());
+        }
+
+        void refill(final long now) {
+            if (bytesPerSecond > 0) {
+                tokens = Math.min(getBurstBytes(), tokens + (now - lastRefillNanos) * (double) bytesPerSecond / 1e9);
+            }
+            lastRefillNanos = now;
+        }
+
+        boolean hasTokens() {
+            return bytesPerSecond <= 0 || tokens > 0;
+        }
+
+        void consume(final long bytes) {
+            if (bytesPerSecond > 0) {
+                tokens -= bytes;
+            }
+        }
+
+        /**
+         * Returns how long it takes until the bucket has tokens again
+         */
+        long getWaitNanos() {
+            if (hasTokens()) {
+                return 0;
+            }
+
+            return (long) Math.ceil((1 - tokens) * 1e9 / bytesPerSecond);
+        }
+
+        private double getBurstBytes() {
+            return Math.max(1, bytesPerSecond * BURST_MILLIS / 1000.0);
+        }
+
+    }
+
+}
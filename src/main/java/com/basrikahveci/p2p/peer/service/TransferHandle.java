@@ -0,0 +1,74 @@
+package com.basrikahveci.p2p.peer.service;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Tracks a file sent to a neighbour. Its future is completed once the receiver acknowledges that it has persisted and
+ * verified the whole file, or failed if the transfer is aborted. Progress listeners are notified on each
+ * acknowledgement of the receiver in the peer event loop, so they must not block.
+ */
+public class TransferHandle {
+
+    private final String peerName;
+
+    private final Path path;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private final List<Consumer<TransferProgress>> progressListeners = new CopyOnWriteArrayList<>();
+
+    private volatile TransferProgress progress;
+
+    public TransferHandle(String peerName, Path path) {
+        this.peerName = peerName;
+        this.path = path;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * Returns the latest progress of the transfer, or null if the receiver has not acknowledged it yet
+     */
+    public TransferProgress getProgress() {
+        return progress;
+    }
+
+    public void addProgressListener(final Consumer<TransferProgress> listener) {
+        progressListeners.add(listener);
+    }
+
+    public void removeProgressListener(final Consumer<TransferProgress> listener) {
+        progressListeners.remove(listener);
+    }
+
+    void updateProgress(final TransferProgress progress) {
+        this.progress = progress;
+        for (Consumer<TransferProgress> listener : progressListeners) {
+            listener.accept(progress);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransferHandle{" +
+                "peerName='" + peerName + '\'' +
+                ", path=" + path +
+                ", progress=" + progress +
+                '}';
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.basrikahveci.p2p.peer.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Persisted state of a file that is being received. It is kept next to the partial file so that the transfer can be
+ * resumed from the last persisted chunk after the connection drops or the peer restarts. It is a text file with a
+ * header that identifies the transfer, followed by a line with the offset, length and CRC32 checksum of each chunk
+ * written into the partial file.
+ */
+class TransferManifest {
+
+    static final String MANIFEST_FILE_SUFFIX = ".manifest";
+
+    private static final String TRANSFER_ID_KEY = "transferId=";
+
+    private static final String SENDER_NAME_KEY = "senderName=";
+
+    private static final String FILE_SIZE_KEY = "fileSize=";
+
+    private static final String PARTIAL_FILE_KEY = "partialFile=";
+
+    private static final String CHUNK_KEY = "chunk=";
+
+    private final Path path;
+
+    private final long transferId;
+
+    private final String senderName;
+
+    private final long fileSize;
+
+    private final Path partialFile;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private Writer writer;
+
+    TransferManifest(Path path, long transferId, String senderName, long fileSize, Path partialFile) {
+        this.path = path;
+        this.transferId = transferId;
+        this.senderName = senderName;
+        this.fileSize = fileSize;
+        this.partialFile = partialFile;
+    }
+
+    /**
+     * Loads the manifest at the given path
+     *
+     * @return loaded manifest, or null if there is no manifest or it is not readable
+     */
+    static TransferManifest load(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        Long transferId = null, fileSize = null;
+        String senderName = null, partialFile = null;
+        final List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(path, UTF_8)) {
+                if (line.startsWith(TRANSFER_ID_KEY)) {
+                    transferId = Long.parseLong(line.substring(TRANSFER_ID_KEY.length()));
+                } else if (line.startsWith(SENDER_NAME_KEY)) {
+                    senderName = line.substring(SENDER_NAME_KEY.length());
+                } else if (line.startsWith(FILE_SIZE_KEY)) {
+                    fileSize = Long.parseLong(line.substring(FILE_SIZE_KEY.length()));
+                } else if (line.startsWith(PARTIAL_FILE_KEY)) {
+                    partialFile = line.substring(PARTIAL_FILE_KEY.length());
+                } else if (line.startsWith(CHUNK_KEY)) {
+                    final String[] tokens = line.substring(CHUNK_KEY.length()).split(",");
+                    chunks.add(new Chunk(Long.parseLong(tokens[0]), Integer.parseInt(tokens[1]),
+                            Long.parseLong(tokens[2], 16)));
+                }
+            }
+        } catch (RuntimeException e) {
+            // the last line is torn if the peer crashed while appending it. chunks before it are still valid.
+        }
+
+        if (transferId == null || fileSize == null || partialFile == null) {
+            return null;
+        }
+
+        final TransferManifest manifest = new TransferManifest(path, transferId, senderName, fileSize,
+                path.resolveSibling(partialFile));
+        manifest.chunks.addAll(chunks);
+        return manifest;
+    }
+
+    Path getPartialFile() {
+        return partialFile;
+    }
+
+    boolean matches(final long transferId, final String senderName, final long fileSize) {
+        return this.transferId == transferId && this.fileSize == fileSize
+                && (this.senderName == null ? senderName == null : this.senderName.equals(senderName));
+    }
+
+    /**
+     * Verifies the checksums of the chunks in the partial file in order and drops the chunks starting from the first
+     * missing or corrupt one
+     *
+     * @return number of bytes from the beginning of the partial file that are verified
+     */
+    long verify(final FileChannel partialFileChannel) throws IOException {
+        long verifiedBytes = 0;
+        int verifiedChunks = 0;
+        final CRC32 crc = new CRC32();
+        for (Chunk chunk : chunks) {
+            if (chunk.offset != verifiedBytes || chunk.offset + chunk.length > partialFileChannel.size()) {
+                break;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(chunk.length);
+            while (buffer.hasRemaining()) {
+                partialFileChannel.read(buffer, chunk.offset + buffer.position());
+            }
+            buffer.flip();
+            crc.reset();
+            crc.update(buffer);
+            if (crc.getValue() != chunk.crc) {
+                break;
+            }
+
+            verifiedBytes += chunk.length;
+            verifiedChunks++;
+        }
+
+        chunks.subList(verifiedChunks, chunks.size()).clear();
+        return verifiedBytes;
+    }
+
+    /**
+     * Writes the header and the current chunks into the manifest file. Chunks can be appended after that.
+     */
+    void write() throws IOException {
+        close();
+        writer = Files.newBufferedWriter(path, UTF_8);
+        writer.write(TRANSFER_ID_KEY + transferId + "\n");
+        if (senderName != null) {
+            writer.write(SENDER_NAME_KEY + senderName + "\n");
+        }
+        writer.write(FILE_SIZE_KEY + fileSize + "\n");
+        writer.write(PARTIAL_FILE_KEY + partialFile.getFileName() + "\n");
+        for (Chunk chunk : chunks) {
+            writeChunk(chunk);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Appends a chunk that is written into the partial file
+     */
+    void append(final long offset, final int length, final long crc) throws IOException {
+        final Chunk chunk = new Chunk(offset, length, crc);
+        chunks.add(chunk);
+        writeChunk(chunk);
+        writer.flush();
+    }
+
+    void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private void writeChunk(final Chunk chunk) throws IOException {
+        writer.write(CHUNK_KEY + chunk.offset + "," + chunk.length + "," + Long.toHexString(chunk.crc) + "\n");
+    }
+
+    private static class Chunk {
+
+        final long offset;
+
+        final int length;
+
+        final long crc;
+
+        Chunk(long offset, int length, long crc) {
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.basrikahveci.p2p.peer.service;
+
+/**
+ * Progress of a file sent to a neighbour as of an acknowledgement of the receiver. Only the bytes persisted by the
+ * receiver are counted as transferred.
+ */
+public class TransferProgress {
+
+    private final long transferId;
+
+    private final String peerName;
+
+    private final long fileSize;
+
+    private final long ackedBytes;
+
+    private final long elapsedMillis;
+
+    private final double throughputBytesPerSecond;
+
+    public TransferProgress(long transferId, String peerName, long fileSize, long ackedBytes, long elapsedMillis,
+                            double throughputBytesPerSecond) {
+        this.transferId = transferId;
+        this.peerName = peerName;
+        this.fileSize = fileSize;
+        this.ackedBytes = ackedBytes;
+        this.elapsedMillis = elapsedMillis;
+        this.throughputBytesPerSecond = throughputBytesPerSecond;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the number of bytes that the receiver has acknowledged
+     */
+    public long getAckedBytes() {
+        return ackedBytes;
+    }
+
+    /**
+     * Returns the time since the transfer is started
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Returns the rate of the acknowledged bytes, smoothed over the last second or so
+     */
+    public double getThroughputBytesPerSecond() {
+        return throughputBytesPerSecond;
+    }
+
+    public double getPercentage() {
+        return fileSize > 0 ? 100.0 * ackedBytes / fileSize : 100;
+    }
+
+    public boolean isComplete() {
+        return ackedBytes == fileSize;
+    }
+
+    /**
+     * Returns the estimated time until the receiver acknowledges the whole file at the current throughput, or -1 if the
+     * throughput is not known yet
+     */
+    public long getEtaMillis() {
+        if (isComplete()) {
+            return 0;
+        }
+
+        return throughputBytesPerSecond > 0 ? (long) ((fileSize - ackedBytes) * 1000 / throughputBytesPerSecond) : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferProgress{" +
+                "transferId=" + transferId +
+                ", peerName='" + peerName + '\'' +
+                ", ackedBytes=" + ackedBytes +
+                ", fileSize=" + fileSize +
+                ", percentage=" + String.format("%.1f", getPercentage()) +
+                ", elapsedMillis=" + elapsedMillis +
+                ", throughputBytesPerSecond=" + String.format("%.0f", throughputBytesPerSecond) +
+                ", etaMillis=" + getEtaMillis() +
+                '}';
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.basrikahveci.p2p.peer.service;
+
+import java.util.List;
+
+/**
+ * Throughput and acknowledgement latency of the files sent by this peer. Throughput is sampled as the rate of the
+ * acknowledged bytes between consecutive acknowledgements, in bytes per second. Latency is the time from sending a
+ * chunk until the receiver acknowledges it, in microseconds.
+ */
+public class TransferStats {
+
+    private final List<Transfer> transfers;
+
+    private final Histogram throughputHistogram;
+
+    private final Histogram ackLatencyHistogram;
+
+    public TransferStats(List<Transfer> transfers, Histogram throughputHistogram, Histogram ackLatencyHistogram) {
+        this.transfers = transfers;
+        this.throughputHistogram = throughputHistogram;
+        this.ackLatencyHistogram = ackLatencyHistogram;
+    }
+
+    /**
+     * Returns the ongoing transfers followed by the recently finished ones
+     */
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Returns the throughput samples of all transfers sent so far
+     */
+    public Histogram getThroughputHistogram() {
+        return throughputHistogram;
+    }
+
+    /**
+     * Returns the acknowledgement latencies of all transfers sent so far
+     */
+    public Histogram getAckLatencyHistogram() {
+        return ackLatencyHistogram;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferStats{" +
+                "transfers=" + transfers.size() +
+                ", throughputHistogram=" + throughputHistogram +
+                ", ackLatencyHistogram=" + ackLatencyHistogram +
+                '}';
+    }
+
+    /**
+     * Stats of a single transfer
+     */
+    public static class Transfer {
+
+        private final String path;
+
+        private final TransferProgress progress;
+
+        private final boolean active;
+
+        private final Histogram throughputHistogram;
+
+        private final Histogram ackLatencyHistogram;
+
+        public Transfer(String path, TransferProgress progress, boolean active, Histogram throughputHistogram,
+                        Histogram ackLatencyHistogram) {
+            this.path = path;
+            this.progress = progress;
+            this.active = active;
+            this.throughputHistogram = throughputHistogram;
+            this.ackLatencyHistogram = ackLatencyHistogram;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public TransferProgress getProgress() {
+            return progress;
+        }
+
+        /**
+         * Returns false if the transfer is completed or failed
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        public Histogram getThroughputHistogram() {
+            return throughputHistogram;
+        }
+
+        public Histogram getAckLatencyHistogram() {
+            return ackLatencyHistogram;
+        }
+
+        @Override
+        public String toString() {
+            return "Transfer{" +
+                    "path='" + path + '\'' +
+                    ", active=" + active +
+                    ", progress=" + progress +
+                    ", throughputHistogram=" + throughputHistogram +
+                    ", ackLatencyHistogram=" + ackLatencyHistogram +
+                    '}';
+        }
+
+    }
+
+}
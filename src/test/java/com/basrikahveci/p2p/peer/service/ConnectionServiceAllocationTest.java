@@ -0,0 +1,185 @@
+package com.basrikahveci.p2p.peer.service;
+
+import com.basrikahveci.p2p.peer.Config;
+import com.basrikahveci.p2p.peer.network.Connection;
+import com.basrikahveci.p2p.peer.network.Transport;
+import com.basrikahveci.p2p.peer.network.codec.MessageEncoder;
+import com.basrikahveci.p2p.peer.network.codec.WireFormat;
+import com.basrikahveci.p2p.peer.network.message.ping.Ping;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ResourceLeakDetector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that forwarding a message to the neighbours does not allocate on the heap. Netty allocates a promise for each
+ * channel write and each neighbour writes a duplicate of the shared frame, so the bytes allocated by the same number of
+ * plain channel writes of frame duplicates are subtracted.
+ */
+public class ConnectionServiceAllocationTest {
+
+    private static final int NEIGHBOUR_COUNT = 8;
+
+    private static final int WARM_UP_COUNT = 20000;
+
+    private static final int FORWARD_COUNT = 10000;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    private ResourceLeakDetector.Level leakDetectionLevel;
+
+    private ConnectionService connectionService;
+
+    private Ping ping;
+
+    @Before
+    public void setUp() {
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        // sampled leak records are allocated independently of the code under test
+        leakDetectionLevel = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.DISABLED);
+
+        final Config config = new Config();
+        connectionService = new ConnectionService(config, Transport.NIO, null, null, new MessageEncoder(config));
+        for (int i = 0; i < NEIGHBOUR_COUNT; i++) {
+            final EmbeddedChannel channel = new NeighbourChannel(i);
+            channel.attr(WireFormat.ATTRIBUTE_KEY).set(WireFormat.BINARY);
+            final Connection connection = new Connection(channel.pipeline().firstContext(), true, 1024);
+            connection.setPeerName(i == 0 ? "sender" : i == 1 ? "initiator" : "neighbour" + i);
+            connectionService.addConnection(connection);
+            channels.add(channel);
+        }
+
+        ping = new Ping(connectionService.getConnection("initiator").getPeerId(), 1, 7, 0, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        if (leakDetectionLevel != null) {
+            ResourceLeakDetector.setLevel(leakDetectionLevel);
+        }
+        for (EmbeddedChannel channel : channels) {
+            channel.finish();
+        }
+    }
+
+    @Test
+    public void forwardingPingDoesNotAllocate() {
+        final long senderPeerId = connectionService.getConnection("sender").getPeerId();
+        final long initiatorPeerId = connectionService.getConnection("initiator").getPeerId();
+
+        forward(senderPeerId, initiatorPeerId, WARM_UP_COUNT);
+        writeToChannels(WARM_UP_COUNT);
+
+        final long forwardBytes = allocatedBytes(() -> forward(senderPeerId, initiatorPeerId, FORWARD_COUNT));
+        final long writeBytes = allocatedBytes(() -> writeToChannels(FORWARD_COUNT));
+
+        assertThat((forwardBytes - writeBytes) / FORWARD_COUNT, lessThanOrEqualTo(0L));
+    }
+
+    @Test
+    public void forwardSkipsSenderAndInitiator() {
+        final long senderPeerId = connectionService.getConnection("sender").getPeerId();
+        final long initiatorPeerId = connectionService.getConnection("initiator").getPeerId();
+
+        final Ping next = ping.next();
+        final int count = connectionService.forward(next, senderPeerId, initiatorPeerId);
+        next.release();
+
+        assertThat(count, equalTo(NEIGHBOUR_COUNT - 2));
+        assertThat(drain(channels.get(0)), equalTo(0));
+        assertThat(drain(channels.get(1)), equalTo(0));
+        assertThat(drain(channels.get(2)), equalTo(1));
+    }
+
+    private void forward(final long senderPeerId, final long initiatorPeerId, final int count) {
+        for (int i = 0; i < count; i++) {
+            final Ping next = ping.next();
+            connectionService.forward(next, senderPeerId, initiatorPeerId);
+            next.release();
+            drainAll();
+        }
+    }
+
+    /**
+     * Writes duplicates of a pooled frame to the channels that {@link #forward(long, long, int)} writes to
+     */
+    private void writeToChannels(final int count) {
+        final ByteBuf frame = PooledByteBufAllocator.DEFAULT.ioBuffer();
+        MessageEncoder.encodeBinary(ping, frame);
+        for (int i = 0; i < count; i++) {
+            for (int j = 2; j < NEIGHBOUR_COUNT; j++) {
+                final ChannelHandlerContext ctx = channels.get(j).pipeline().firstContext();
+                ctx.write(frame.retain().duplicate());
+                ctx.flush();
+            }
+            drainAll();
+        }
+        frame.release();
+    }
+
+    private void drainAll() {
+        for (EmbeddedChannel channel : channels) {
+            drain(channel);
+        }
+    }
+
+    private int drain(final EmbeddedChannel channel) {
+        channel.runPendingTasks();
+        int count = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ((ByteBuf) msg).release();
+            count++;
+        }
+
+        return count;
+    }
+
+    private long allocatedBytes(final Runnable task) {
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        task.run();
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    /**
+     * Embedded channel with an internet address, since connections are created for TCP channels
+     */
+    private static final class NeighbourChannel extends EmbeddedChannel {
+
+        private final InetSocketAddress remoteAddress;
+
+        NeighbourChannel(final int index) {
+            super(new ChannelInboundHandlerAdapter());
+            this.remoteAddress = new InetSocketAddress("127.0.0.1", 50000 + index);
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+    }
+
+}